@@ -19,8 +19,12 @@ import android.annotation.SuppressLint;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
+import com.bottlerocketstudios.vault.CharacterEncodingConstants;
+import com.bottlerocketstudios.vault.EncryptionConstants;
 import com.bottlerocketstudios.vault.SharedPreferenceVault;
 import com.bottlerocketstudios.vault.SharedPreferenceVaultFactory;
+import com.bottlerocketstudios.vault.StringEncryptionUtils;
+import com.bottlerocketstudios.vault.keys.generator.Aes256RandomKeyFactory;
 
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
@@ -33,6 +37,8 @@ import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
+import javax.crypto.SecretKey;
+
 /**
  * Test with a lot of concurrent threads.
  */
@@ -100,6 +106,55 @@ public class MultiThreadTest extends AndroidTestCase {
         }
     }
 
+    public void testCipherReuseWithManyThreads() {
+        ExecutorService executorService = ThreadPoolExecutorWithExceptions.newCachedThreadPool();
+        SecretKey secretKey = Aes256RandomKeyFactory.createKey();
+
+        List<Future<Boolean>> resultFutureList = new ArrayList<>(NUMBER_OF_SIMULTANEOUS_THREADS);
+        for (int i = 0; i < NUMBER_OF_SIMULTANEOUS_THREADS; i++) {
+            resultFutureList.add(executorService.submit(new EncryptionRoundTripCallable(secretKey, TEST_VALUE + i)));
+        }
+
+        int successCounter = 0;
+        for (Future<Boolean> resultFuture : resultFutureList) {
+            try {
+                successCounter += resultFuture.get() ? 1 : 0;
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Caught java.lang.InterruptedException", e);
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Caught java.util.concurrent.ExecutionException", e);
+            }
+        }
+        executorService.shutdown();
+
+        assertEquals("Reused ciphers produced an incorrect value", NUMBER_OF_SIMULTANEOUS_THREADS, successCounter);
+    }
+
+    private class EncryptionRoundTripCallable implements Callable<Boolean> {
+        private final SecretKey mSecretKey;
+        private final String mValue;
+
+        public EncryptionRoundTripCallable(SecretKey secretKey, String value) {
+            mSecretKey = secretKey;
+            mValue = value;
+        }
+
+        @Override
+        public Boolean call() throws Exception {
+            boolean success = true;
+            for (int i = 0; i < NUMBER_OF_ITERATIONS; i++) {
+                String encrypted = StringEncryptionUtils.encrypt(mSecretKey, mValue, CharacterEncodingConstants.UTF_8, EncryptionConstants.AES_CBC_PADDED_TRANSFORM);
+                try {
+                    success &= mValue.equals(StringEncryptionUtils.decrypt(mSecretKey, encrypted, CharacterEncodingConstants.UTF_8, EncryptionConstants.AES_CBC_PADDED_TRANSFORM));
+                } catch (StringEncryptionUtils.UnencryptedException e) {
+                    Log.e(TAG, "Caught UnencryptedException", e);
+                    success = false;
+                }
+            }
+            return success;
+        }
+    }
+
     private class GetVaultValueCallable implements Callable<String> {
         private SharedPreferenceVault mSharedPreferenceVault;
 
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault.test;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.bottlerocketstudios.vault.SharedPreferenceVault;
+import com.bottlerocketstudios.vault.SharedPreferenceVaultEditor;
+import com.bottlerocketstudios.vault.SharedPreferenceVaultFactory;
+import com.bottlerocketstudios.vault.keys.generator.Aes256RandomKeyFactory;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class TestAsyncOperations extends AndroidTestCase {
+    private static final String TAG = TestAsyncOperations.class.getSimpleName();
+
+    private static final String PREF_FILE_NAME = "asyncOperationsPrefFile";
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private static final String TEST_STRING_KEY = "testKey";
+    private static final String TEST_STRING_VALUE = " This is a test. ";
+    private static final String TEST_INT_KEY = "testIntegerKey";
+    private static final int TEST_INT_VALUE = 1234;
+
+    public void testAsyncOperations() throws InterruptedException, ExecutionException, TimeoutException {
+        SharedPreferenceVault sharedPreferenceVault = null;
+        try {
+            sharedPreferenceVault = SharedPreferenceVaultFactory.getMemoryOnlyKeyAes256Vault(getContext(), PREF_FILE_NAME, true);
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Caught java.security.GeneralSecurityException", e);
+            assertTrue("Exception creating vault", false);
+        }
+        assertNotNull("Unable to create vault", sharedPreferenceVault);
+        sharedPreferenceVault.rekeyStorage(Aes256RandomKeyFactory.createKey());
+
+        SharedPreferenceVaultEditor editor = sharedPreferenceVault.edit();
+        Future<Boolean> commitFuture = editor.putString(TEST_STRING_KEY, TEST_STRING_VALUE).commitAsync();
+        //Editor is empty after handing off its changes.
+        Future<Boolean> secondCommitFuture = editor.putInt(TEST_INT_KEY, TEST_INT_VALUE).commitAsync();
+
+        //Reads are queued behind the commits and must see their values.
+        Future<String> stringFuture = sharedPreferenceVault.getStringAsync(TEST_STRING_KEY, null);
+        Future<Integer> intFuture = sharedPreferenceVault.getIntAsync(TEST_INT_KEY, 0);
+
+        assertTrue("Commit failed", commitFuture.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue("Second commit failed", secondCommitFuture.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals("Incorrect string", TEST_STRING_VALUE, stringFuture.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals("Incorrect int", TEST_INT_VALUE, (int) intFuture.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals("Default not returned", "default", sharedPreferenceVault.getStringAsync("missingKey", "default").get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        sharedPreferenceVault.clearStorage();
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault.test;
+
+import android.annotation.SuppressLint;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.bottlerocketstudios.vault.SharedPreferenceVault;
+import com.bottlerocketstudios.vault.SharedPreferenceVaultFactory;
+import com.bottlerocketstudios.vault.VaultValues;
+import com.bottlerocketstudios.vault.keys.generator.Aes256RandomKeyFactory;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+public class TestBatchRead extends AndroidTestCase {
+    private static final String TAG = TestBatchRead.class.getSimpleName();
+
+    private static final String PREF_FILE_NAME = "batchReadPrefFile";
+
+    private static final String TEST_STRING_KEY = "testKey";
+    private static final String TEST_STRING_VALUE = " This is a test. ";
+    private static final String TEST_LONG_KEY = "testLongKey";
+    private static final long TEST_LONG_VALUE = Long.MIN_VALUE + 1;
+    private static final String TEST_BOOLEAN_KEY = "testBooleanKey";
+    private static final String TEST_STRING_SET_KEY = "testStringSetKey";
+    private static final Set<String> TEST_STRING_SET_VALUE;
+    private static final String MISSING_KEY = "missingKey";
+
+    static {
+        Set<String> stringSet = new HashSet<>();
+        stringSet.add("Test String One");
+        stringSet.add("Test String Two");
+        TEST_STRING_SET_VALUE = stringSet;
+    }
+
+    @SuppressLint("CommitPrefEdits")
+    public void testBatchRead() {
+        SharedPreferenceVault sharedPreferenceVault = null;
+        try {
+            sharedPreferenceVault = SharedPreferenceVaultFactory.getMemoryOnlyKeyAes256Vault(getContext(), PREF_FILE_NAME, true);
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Caught java.security.GeneralSecurityException", e);
+            assertTrue("Exception creating vault", false);
+        }
+        assertNotNull("Unable to create vault", sharedPreferenceVault);
+        sharedPreferenceVault.rekeyStorage(Aes256RandomKeyFactory.createKey());
+
+        sharedPreferenceVault.edit()
+                .putString(TEST_STRING_KEY, TEST_STRING_VALUE)
+                .putLong(TEST_LONG_KEY, TEST_LONG_VALUE)
+                .putBoolean(TEST_BOOLEAN_KEY, true)
+                .putStringSet(TEST_STRING_SET_KEY, TEST_STRING_SET_VALUE)
+                .commit();
+
+        VaultValues vaultValues = sharedPreferenceVault.getValues(Arrays.asList(TEST_STRING_KEY, TEST_LONG_KEY, TEST_BOOLEAN_KEY, TEST_STRING_SET_KEY, MISSING_KEY));
+        assertEquals("Incorrect size", 4, vaultValues.size());
+        assertEquals("Incorrect string", TEST_STRING_VALUE, vaultValues.getString(TEST_STRING_KEY, null));
+        assertEquals("Incorrect long", TEST_LONG_VALUE, vaultValues.getLong(TEST_LONG_KEY, 0));
+        assertTrue("Incorrect boolean", vaultValues.getBoolean(TEST_BOOLEAN_KEY, false));
+        assertEquals("Incorrect string set", TEST_STRING_SET_VALUE, vaultValues.getStringSet(TEST_STRING_SET_KEY, null));
+        assertFalse("Missing key was found", vaultValues.contains(MISSING_KEY));
+        assertEquals("Default not returned", "default", vaultValues.getString(MISSING_KEY, "default"));
+
+        //Conversions must match the individual getters.
+        assertEquals("Conversion differs from getString", sharedPreferenceVault.getString(TEST_LONG_KEY, null), vaultValues.getString(TEST_LONG_KEY, null));
+
+        sharedPreferenceVault.clearStorage();
+        assertEquals("Values returned without a key", 0, sharedPreferenceVault.getValues(Arrays.asList(TEST_STRING_KEY)).size());
+    }
+}
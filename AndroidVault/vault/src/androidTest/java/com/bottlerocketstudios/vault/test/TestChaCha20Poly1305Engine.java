@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bottlerocketstudios.vault.test;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.util.Base64;
+import android.util.Log;
+
+import com.bottlerocketstudios.vault.ChaCha20Poly1305;
+import com.bottlerocketstudios.vault.EncryptionConstants;
+import com.bottlerocketstudios.vault.SharedPreferenceVault;
+import com.bottlerocketstudios.vault.SharedPreferenceVaultFactory;
+import com.bottlerocketstudios.vault.keys.generator.Aes256RandomKeyFactory;
+
+import java.lang.reflect.Method;
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+
+public class TestChaCha20Poly1305Engine extends AndroidTestCase {
+    private static final String TAG = TestChaCha20Poly1305Engine.class.getSimpleName();
+
+    private static final String PREF_FILE_NAME = "chaCha20Poly1305PrefFile";
+    private static final int HEADER_VERSION_OFFSET = 1;
+    private static final int CBC_TYPED_VERSION = 2;
+    private static final int CHACHA20_POLY1305_TYPED_VERSION = 5;
+    private static final int[] BENCHMARK_SIZES = {16, 256, 4096, 65536};
+    private static final int BENCHMARK_BYTES = 4 * 1024 * 1024;
+
+    //RFC 8439 section 2.3.2, the sealed keystream starts at block counter 1 as in the RFC.
+    private static final String BLOCK_NONCE = "000000090000004a00000000";
+    private static final String BLOCK_OUTPUT = "10f1e7e4d13b5915500fdd1fa32071c4c7d1f4c733c068030422aa9ac3d46c4e"
+            + "d2826446079faa0914c2d705d98b02a2b5129cd1de164eb9cbd083e8a2503c4e";
+
+    //RFC 8439 section 2.5.2
+    private static final String POLY1305_KEY = "85d6be7857556d337f4452fe42d506a80103808afb0db2fd4abff6af4149f51b";
+    private static final String POLY1305_MESSAGE = "Cryptographic Forum Research Group";
+    private static final String POLY1305_TAG = "a8061dc1305136c6c22b8baf0c0127a9";
+
+    //RFC 8439 section 2.8.2 without the additional data, which changes only the tag.
+    private static final String AEAD_KEY = "808182838485868788898a8b8c8d8e8f909192939495969798999a9b9c9d9e9f";
+    private static final String AEAD_NONCE = "070000004041424344454647";
+    private static final String AEAD_CLEARTEXT = "Ladies and Gentlemen of the class of '99: If I could offer you only one tip for the future, sunscreen would be it.";
+    private static final String AEAD_SEALED = "d31a8d34648e60db7b86afbc53ef7ec2a4aded51296e08fea9e2b5a736ee62d6"
+            + "3dbea45e8ca9671282fafb69da92728b1a71de0a9e060b2905d6a5b67ecd3b36"
+            + "92ddbd7f2d778b8c9803aee328091b58fab324e4fad675945585808b4831d7bc"
+            + "3ff4def08e4b7a9de576d26586cec64b6116"
+            + "6a23a4681fd59456aea1d29f82477216";
+
+    private SharedPreferenceVault createVault(boolean chaCha, SecretKey secretKey) {
+        SharedPreferenceVault sharedPreferenceVault = null;
+        try {
+            if (chaCha) {
+                sharedPreferenceVault = SharedPreferenceVaultFactory.getMemoryOnlyKeyChaCha20Poly1305Vault(getContext(), PREF_FILE_NAME, false);
+            } else {
+                sharedPreferenceVault = SharedPreferenceVaultFactory.getMemoryOnlyKeyAes256Vault(getContext(), PREF_FILE_NAME, false);
+            }
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Caught java.security.GeneralSecurityException", e);
+            assertTrue("Exception creating vault", false);
+        }
+        assertNotNull("Unable to create vault", sharedPreferenceVault);
+        sharedPreferenceVault.setKey(secretKey);
+        return sharedPreferenceVault;
+    }
+
+    public void testSoftwareMatchesProvider() throws GeneralSecurityException {
+        Random random = new Random(0);
+        byte[] key = new byte[ChaCha20Poly1305.KEY_SIZE];
+        byte[] nonce = new byte[ChaCha20Poly1305.NONCE_SIZE];
+        for (int length = 0; length < 300; length++) {
+            random.nextBytes(key);
+            random.nextBytes(nonce);
+            byte[] cleartext = new byte[length];
+            random.nextBytes(cleartext);
+
+            byte[] sealed = ChaCha20Poly1305.seal(key, nonce, cleartext, 0, length, false);
+            assertEquals("Incorrect sealed length", length + ChaCha20Poly1305.TAG_SIZE, sealed.length);
+            if (ChaCha20Poly1305.isProviderAvailable()) {
+                assertTrue("Software and provider output differ", Arrays.equals(ChaCha20Poly1305.seal(key, nonce, cleartext, 0, length, true), sealed));
+            }
+
+            byte[] opened = new byte[length];
+            assertEquals("Incorrect opened length", length, ChaCha20Poly1305.open(key, nonce, sealed, 0, sealed.length, opened, 0, false));
+            assertTrue("Incorrect opened value", Arrays.equals(cleartext, opened));
+
+            sealed[random.nextInt(sealed.length)] ^= 1;
+            try {
+                ChaCha20Poly1305.open(key, nonce, sealed, 0, sealed.length, opened, 0, false);
+                fail("Modified ciphertext was accepted");
+            } catch (AEADBadTagException e) {
+                //Expected
+            }
+        }
+    }
+
+    public void testChaCha20BlockKnownAnswer() throws GeneralSecurityException {
+        byte[] key = new byte[ChaCha20Poly1305.KEY_SIZE];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = (byte) i;
+        }
+        byte[] sealed = ChaCha20Poly1305.seal(key, fromHex(BLOCK_NONCE), new byte[64], 0, 64, false);
+        assertEquals("Incorrect ChaCha20 block", BLOCK_OUTPUT, toHex(Arrays.copyOf(sealed, 64)));
+    }
+
+    public void testPoly1305KnownAnswer() throws Exception {
+        Method poly1305 = ChaCha20Poly1305.class.getDeclaredMethod("poly1305", byte[].class, byte[].class, int.class, int.class, boolean.class, byte[].class, int.class);
+        poly1305.setAccessible(true);
+        byte[] message = POLY1305_MESSAGE.getBytes("UTF-8");
+        byte[] tag = new byte[ChaCha20Poly1305.TAG_SIZE];
+        poly1305.invoke(null, fromHex(POLY1305_KEY), message, 0, message.length, false, tag, 0);
+        assertEquals("Incorrect Poly1305 tag", POLY1305_TAG, toHex(tag));
+    }
+
+    public void testAeadKnownAnswer() throws Exception {
+        byte[] key = fromHex(AEAD_KEY);
+        byte[] nonce = fromHex(AEAD_NONCE);
+        byte[] cleartext = AEAD_CLEARTEXT.getBytes("UTF-8");
+        byte[] sealed = ChaCha20Poly1305.seal(key, nonce, cleartext, 0, cleartext.length, false);
+        assertEquals("Incorrect sealed value", AEAD_SEALED, toHex(sealed));
+
+        byte[] opened = new byte[cleartext.length];
+        assertEquals("Incorrect opened length", cleartext.length, ChaCha20Poly1305.open(key, nonce, sealed, 0, sealed.length, opened, 0, false));
+        assertTrue("Incorrect opened value", Arrays.equals(cleartext, opened));
+    }
+
+    @SuppressLint("CommitPrefEdits")
+    public void testVaultRoundTrip() {
+        SecretKey secretKey = Aes256RandomKeyFactory.createKey();
+        SharedPreferenceVault cbcVault = createVault(false, secretKey);
+        cbcVault.edit().clear().commit();
+        cbcVault.edit().putString("upgraded", "value").putLong("untouched", 7L).commit();
+
+        SharedPreferenceVault chaChaVault = createVault(true, secretKey);
+        assertEquals("CBC value unreadable", "value", chaChaVault.getString("upgraded", null));
+        assertEquals("CBC value unreadable", 7L, chaChaVault.getLong("untouched", 0));
+
+        Set<String> stringSet = new HashSet<>(Arrays.asList("one", "two"));
+        chaChaVault.setLargeValueThreshold(1024);
+        char[] large = new char[4096];
+        Arrays.fill(large, 'x');
+        chaChaVault.edit()
+                .putString("upgraded", "value")
+                .putStringSet("set", stringSet)
+                .putFloat("float", 1.5f)
+                .putBoolean("boolean", true)
+                .putString("large", new String(large))
+                .commit();
+        assertEquals("Value was not upgraded", CHACHA20_POLY1305_TYPED_VERSION, getEnvelopeVersion("upgraded"));
+        assertEquals("Untouched value was rewritten", CBC_TYPED_VERSION, getEnvelopeVersion("untouched"));
+        assertEquals("Incorrect set", stringSet, chaChaVault.getStringSet("set", null));
+        assertEquals("Incorrect float", 1.5f, chaChaVault.getFloat("float", 0f));
+        assertTrue("Incorrect boolean", chaChaVault.getBoolean("boolean", false));
+        assertEquals("Incorrect large value", new String(large), chaChaVault.getString("large", null));
+        assertEquals("Incorrect getAll size", 6, chaChaVault.getAll().size());
+
+        byte[] envelope = Base64.decode(getRawValue("upgraded"), Base64.DEFAULT);
+        envelope[envelope.length - 1] ^= 1;
+        getContext().getSharedPreferences(PREF_FILE_NAME, Context.MODE_PRIVATE).edit()
+                .putString("upgraded", Base64.encodeToString(envelope, Base64.DEFAULT))
+                .commit();
+        assertEquals("Tampered value was accepted", "default", chaChaVault.getString("upgraded", "default"));
+
+        chaChaVault.clearStorage();
+    }
+
+    public void testChaCha20Poly1305Benchmark() throws GeneralSecurityException {
+        SecretKey secretKey = Aes256RandomKeyFactory.createKey();
+        byte[] key = secretKey.getEncoded();
+        Random random = new Random(0);
+        for (int size : BENCHMARK_SIZES) {
+            byte[] cleartext = new byte[size];
+            random.nextBytes(cleartext);
+            int iterations = Math.max(10, BENCHMARK_BYTES / size);
+            StringBuilder result = new StringBuilder().append(size).append(" bytes");
+            result.append(" AES-CBC ").append(benchmarkCipher(secretKey, cleartext, iterations, EncryptionConstants.AES_CBC_PADDED_TRANSFORM));
+            result.append(" AES-GCM ").append(benchmarkCipher(secretKey, cleartext, iterations, EncryptionConstants.AES_GCM_TRANSFORM));
+            result.append(" ChaCha20-Poly1305 software ").append(benchmarkChaCha(key, cleartext, iterations, false));
+            if (ChaCha20Poly1305.isProviderAvailable()) {
+                result.append(" provider ").append(benchmarkChaCha(key, cleartext, iterations, true));
+            }
+            Log.i(TAG, result.toString());
+        }
+    }
+
+    private String benchmarkCipher(SecretKey secretKey, byte[] cleartext, int iterations, String transform) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(transform);
+        byte[] iv = new byte[EncryptionConstants.AES_GCM_TRANSFORM.equals(transform) ? 12 : 16];
+        byte[] encrypted = null;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            iv[0] = (byte) i;
+            iv[1] = (byte) (i >>> 8);
+            iv[2] = (byte) (i >>> 16);
+            cipher.init(Cipher.ENCRYPT_MODE, secretKey, createParameterSpec(transform, iv));
+            encrypted = cipher.doFinal(cleartext);
+        }
+        long encryptNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            cipher.init(Cipher.DECRYPT_MODE, secretKey, createParameterSpec(transform, iv));
+            cipher.doFinal(encrypted);
+        }
+        long decryptNanos = System.nanoTime() - start;
+        return formatThroughput((long) cleartext.length * iterations, encryptNanos, decryptNanos);
+    }
+
+    private static AlgorithmParameterSpec createParameterSpec(String transform, byte[] iv) {
+        return EncryptionConstants.AES_GCM_TRANSFORM.equals(transform) ? new GCMParameterSpec(128, iv) : new IvParameterSpec(iv);
+    }
+
+    private String benchmarkChaCha(byte[] key, byte[] cleartext, int iterations, boolean useProvider) throws GeneralSecurityException {
+        byte[] nonce = new byte[ChaCha20Poly1305.NONCE_SIZE];
+        byte[] encrypted = null;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            nonce[0] = (byte) i;
+            nonce[1] = (byte) (i >>> 8);
+            nonce[2] = (byte) (i >>> 16);
+            encrypted = ChaCha20Poly1305.seal(key, nonce, cleartext, 0, cleartext.length, useProvider);
+        }
+        long encryptNanos = System.nanoTime() - start;
+
+        byte[] output = new byte[cleartext.length];
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            ChaCha20Poly1305.open(key, nonce, encrypted, 0, encrypted.length, output, 0, useProvider);
+        }
+        long decryptNanos = System.nanoTime() - start;
+        return formatThroughput((long) cleartext.length * iterations, encryptNanos, decryptNanos);
+    }
+
+    private static String formatThroughput(long bytes, long encryptNanos, long decryptNanos) {
+        return "encrypt " + toMegabytesPerSecond(bytes, encryptNanos) + "MB/s decrypt " + toMegabytesPerSecond(bytes, decryptNanos) + "MB/s";
+    }
+
+    private static long toMegabytesPerSecond(long bytes, long nanos) {
+        return nanos == 0 ? 0 : bytes * 1000000000L / nanos / (1024 * 1024);
+    }
+
+    private int getEnvelopeVersion(String key) {
+        return Base64.decode(getRawValue(key), Base64.DEFAULT)[HEADER_VERSION_OFFSET];
+    }
+
+    private String getRawValue(String key) {
+        return getContext().getSharedPreferences(PREF_FILE_NAME, Context.MODE_PRIVATE).getString(key, null);
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte value : bytes) {
+            hex.append(Character.forDigit((value >> 4) & 0xF, 16)).append(Character.forDigit(value & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
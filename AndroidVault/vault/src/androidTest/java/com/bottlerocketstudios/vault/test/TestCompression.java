@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault.test;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.bottlerocketstudios.vault.SharedPreferenceVault;
+import com.bottlerocketstudios.vault.SharedPreferenceVaultFactory;
+import com.bottlerocketstudios.vault.keys.generator.Aes256RandomKeyFactory;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+public class TestCompression extends AndroidTestCase {
+    private static final String TAG = TestCompression.class.getSimpleName();
+
+    private static final String PREF_FILE_NAME = "compressionPrefFile";
+    private static final int THRESHOLD = 512;
+    private static final int PROFILE_COUNT = 40;
+    private static final int READ_ITERATIONS = 50;
+
+    private SharedPreferenceVault createVault() {
+        SharedPreferenceVault sharedPreferenceVault = null;
+        try {
+            sharedPreferenceVault = SharedPreferenceVaultFactory.getMemoryOnlyKeyAes256Vault(getContext(), PREF_FILE_NAME, true);
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Caught java.security.GeneralSecurityException", e);
+            assertTrue("Exception creating vault", false);
+        }
+        assertNotNull("Unable to create vault", sharedPreferenceVault);
+        sharedPreferenceVault.rekeyStorage(Aes256RandomKeyFactory.createKey());
+        return sharedPreferenceVault;
+    }
+
+    @SuppressLint("CommitPrefEdits")
+    public void testCompression() {
+        SharedPreferenceVault sharedPreferenceVault = createVault();
+        String profile = createProfile(PROFILE_COUNT);
+        sharedPreferenceVault.edit().putString("profile", profile).commit();
+        int uncompressedLength = getRawValue("profile").length();
+
+        sharedPreferenceVault.setCompressionThreshold(THRESHOLD);
+        sharedPreferenceVault.edit().putString("profile", profile + " ").commit();
+        assertTrue("Compressible value was not compressed", getRawValue("profile").length() < uncompressedLength / 2);
+        assertEquals("Incorrect compressed value", profile + " ", sharedPreferenceVault.getString("profile", null));
+
+        //Values written compressed remain readable when compression is disabled.
+        sharedPreferenceVault.setCompressionThreshold(0);
+        assertEquals("Incorrect value after disabling compression", profile + " ", sharedPreferenceVault.getString("profile", null));
+        sharedPreferenceVault.setCompressionThreshold(THRESHOLD);
+
+        String random = createRandomString(THRESHOLD * 4);
+        sharedPreferenceVault.setCompressionThreshold(0);
+        sharedPreferenceVault.edit().putString("random", random).commit();
+        int randomLength = getRawValue("random").length();
+        sharedPreferenceVault.setCompressionThreshold(THRESHOLD);
+        sharedPreferenceVault.edit().putString("random", random + "x").commit();
+        assertTrue("Incompressible value grew", getRawValue("random").length() <= randomLength + 4);
+        assertEquals("Incorrect incompressible value", random + "x", sharedPreferenceVault.getString("random", null));
+
+        Set<String> stringSet = new HashSet<>(Arrays.asList(profile, profile + "a", profile + "b"));
+        sharedPreferenceVault.edit().putStringSet("set", stringSet).putString("small", "small").putInt("int", 3).commit();
+        assertEquals("Incorrect compressed set", stringSet, sharedPreferenceVault.getStringSet("set", null));
+        assertEquals("Incorrect small value", "small", sharedPreferenceVault.getString("small", null));
+        assertEquals("Incorrect int value", 3, sharedPreferenceVault.getInt("int", 0));
+        assertEquals("Incorrect getAll value", profile + " ", sharedPreferenceVault.getAll().get("profile"));
+
+        sharedPreferenceVault.clearStorage();
+    }
+
+    @SuppressLint("CommitPrefEdits")
+    public void testCompressionBenchmark() {
+        SharedPreferenceVault sharedPreferenceVault = createVault();
+        String profile = createProfile(PROFILE_COUNT);
+        for (int threshold : new int[] {0, THRESHOLD}) {
+            sharedPreferenceVault.setCompressionThreshold(threshold);
+            sharedPreferenceVault.edit().clear().commit();
+
+            long start = System.nanoTime();
+            sharedPreferenceVault.edit().putString("profile", profile).commit();
+            long writeNanos = System.nanoTime() - start;
+            int storedLength = getRawValue("profile").length();
+
+            start = System.nanoTime();
+            for (int i = 0; i < READ_ITERATIONS; i++) {
+                assertEquals("Incorrect value", profile, sharedPreferenceVault.getString("profile", null));
+            }
+            long readNanos = (System.nanoTime() - start) / READ_ITERATIONS;
+
+            Log.i(TAG, (threshold > 0 ? "compressed" : "uncompressed") + ": cleartext " + profile.length() + " bytes stored " + storedLength + " bytes write " + (writeNanos / 1000) + "us read " + (readNanos / 1000) + "us");
+        }
+        sharedPreferenceVault.clearStorage();
+    }
+
+    private String getRawValue(String key) {
+        return getContext().getSharedPreferences(PREF_FILE_NAME, Context.MODE_PRIVATE).getString(key, null);
+    }
+
+    /**
+     * JSON resembling a cached list of user profiles.
+     */
+    private static String createProfile(int count) {
+        Random random = new Random(count);
+        StringBuilder stringBuilder = new StringBuilder("{\"profiles\":[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) stringBuilder.append(',');
+            stringBuilder.append("{\"id\":").append(random.nextInt(100000))
+                    .append(",\"name\":\"User ").append(random.nextInt(1000))
+                    .append("\",\"email\":\"user").append(random.nextInt(1000)).append("@example.com\"")
+                    .append(",\"verified\":").append(random.nextBoolean())
+                    .append(",\"roles\":[\"member\",\"reader\"]}");
+        }
+        return stringBuilder.append("]}").toString();
+    }
+
+    private static String createRandomString(int length) {
+        Random random = new Random(length);
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) (' ' + random.nextInt(95));
+        }
+        return new String(chars);
+    }
+}
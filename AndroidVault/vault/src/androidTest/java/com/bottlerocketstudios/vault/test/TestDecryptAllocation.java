@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault.test;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.bottlerocketstudios.vault.CharacterEncodingConstants;
+import com.bottlerocketstudios.vault.EncryptionConstants;
+import com.bottlerocketstudios.vault.StringEncryptionUtils;
+import com.bottlerocketstudios.vault.keys.generator.Aes256RandomKeyFactory;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Measure the bytes allocated by each decryption. The remaining allocations are the Base64 decoded envelope,
+ * the IvParameterSpec and the resulting value itself.
+ */
+public class TestDecryptAllocation extends AndroidTestCase {
+    private static final String TAG = TestDecryptAllocation.class.getSimpleName();
+
+    private static final int WARM_UP_ITERATIONS = 100;
+    private static final int MEASURED_ITERATIONS = 1000;
+    private static final int[] VALUE_SIZES = {16, 256, 4096};
+
+    /**
+     * Allowed allocation per decryption as a multiple of the Base64 encoded envelope length. The Base64 decoded
+     * envelope is 3/4 of its length and a String value is twice the cleartext length.
+     */
+    private static final int MAX_ALLOCATION_RATIO = 3;
+    private static final int ALLOCATION_OVERHEAD_BYTES = 512;
+
+    public void testDecryptAllocation() {
+        SecretKey secretKey = Aes256RandomKeyFactory.createKey();
+        for (int valueSize : VALUE_SIZES) {
+            try {
+                String encrypted = StringEncryptionUtils.encryptValue(secretKey, createString(valueSize), EncryptionConstants.AES_CBC_PADDED_TRANSFORM);
+                for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+                    decrypt(secretKey, encrypted);
+                }
+
+                Debug.resetThreadAllocSize();
+                Debug.resetThreadAllocCount();
+                Debug.startAllocCounting();
+                for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+                    decrypt(secretKey, encrypted);
+                }
+                Debug.stopAllocCounting();
+
+                long bytesPerDecrypt = Debug.getThreadAllocSize() / MEASURED_ITERATIONS;
+                long objectsPerDecrypt = Debug.getThreadAllocCount() / MEASURED_ITERATIONS;
+                Log.i(TAG, "Value size " + valueSize + " envelope size " + encrypted.length() + " allocated " + bytesPerDecrypt + " bytes in " + objectsPerDecrypt + " objects per decrypt");
+                assertTrue("Excessive allocation for value size " + valueSize + ": " + bytesPerDecrypt, bytesPerDecrypt <= encrypted.length() * MAX_ALLOCATION_RATIO + ALLOCATION_OVERHEAD_BYTES);
+            } catch (GeneralSecurityException | UnsupportedEncodingException | StringEncryptionUtils.UnencryptedException e) {
+                Log.e(TAG, "Caught exception", e);
+                assertTrue("Exception during decryption", false);
+            }
+        }
+    }
+
+    private void decrypt(SecretKey secretKey, String encrypted) throws GeneralSecurityException, UnsupportedEncodingException, StringEncryptionUtils.UnencryptedException {
+        StringEncryptionUtils.decrypt(secretKey, encrypted, CharacterEncodingConstants.UTF_8, EncryptionConstants.AES_CBC_PADDED_TRANSFORM);
+    }
+
+    private String createString(int size) {
+        StringBuilder stringBuilder = new StringBuilder(size);
+        for (int i = 0; i < size; i++) {
+            stringBuilder.append((char) ('a' + (i % 26)));
+        }
+        return stringBuilder.toString();
+    }
+}
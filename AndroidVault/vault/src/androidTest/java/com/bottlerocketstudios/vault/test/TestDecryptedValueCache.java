@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault.test;
+
+import android.annotation.SuppressLint;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.bottlerocketstudios.vault.SharedPreferenceVault;
+import com.bottlerocketstudios.vault.SharedPreferenceVaultFactory;
+import com.bottlerocketstudios.vault.keys.generator.Aes256RandomKeyFactory;
+
+import java.security.GeneralSecurityException;
+
+public class TestDecryptedValueCache extends AndroidTestCase {
+    private static final String TAG = TestDecryptedValueCache.class.getSimpleName();
+
+    private static final String PREF_FILE_NAME = "decryptedValueCachePrefFile";
+
+    private static final String TEST_STRING_KEY = "testKey";
+    private static final String TEST_STRING_VALUE = " This is a test. ";
+    private static final String TEST_STRING_VALUE_2 = " This is another test. ";
+    private static final int CACHE_SIZE = 2;
+
+    @SuppressLint("CommitPrefEdits")
+    public void testCacheInvalidation() {
+        SharedPreferenceVault sharedPreferenceVault = null;
+        try {
+            sharedPreferenceVault = SharedPreferenceVaultFactory.getMemoryOnlyKeyAes256Vault(getContext(), PREF_FILE_NAME, false);
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Caught java.security.GeneralSecurityException", e);
+            assertTrue("Exception creating vault", false);
+        }
+        assertNotNull("Unable to create vault", sharedPreferenceVault);
+        sharedPreferenceVault.rekeyStorage(Aes256RandomKeyFactory.createKey());
+        sharedPreferenceVault.setDecryptedValueCacheSize(CACHE_SIZE);
+
+        //First read is a miss, second read is a hit.
+        sharedPreferenceVault.edit().putString(TEST_STRING_KEY, TEST_STRING_VALUE).commit();
+        assertEquals("Incorrect value on first read", TEST_STRING_VALUE, sharedPreferenceVault.getString(TEST_STRING_KEY, null));
+        assertEquals("Incorrect value on cached read", TEST_STRING_VALUE, sharedPreferenceVault.getString(TEST_STRING_KEY, null));
+        assertEquals("Incorrect miss count", 1, sharedPreferenceVault.getDecryptedValueCacheMissCount());
+        assertEquals("Incorrect hit count", 1, sharedPreferenceVault.getDecryptedValueCacheHitCount());
+
+        //Writes replace the cached value.
+        sharedPreferenceVault.edit().putString(TEST_STRING_KEY, TEST_STRING_VALUE_2).apply();
+        assertEquals("Write did not invalidate cache", TEST_STRING_VALUE_2, sharedPreferenceVault.getString(TEST_STRING_KEY, null));
+
+        //Removal and clearing drop the cached value.
+        sharedPreferenceVault.edit().remove(TEST_STRING_KEY).apply();
+        assertNull("Remove did not invalidate cache", sharedPreferenceVault.getString(TEST_STRING_KEY, null));
+        sharedPreferenceVault.edit().putString(TEST_STRING_KEY, TEST_STRING_VALUE).apply();
+        assertEquals("Incorrect value after re-adding", TEST_STRING_VALUE, sharedPreferenceVault.getString(TEST_STRING_KEY, null));
+        sharedPreferenceVault.edit().clear().apply();
+        assertNull("Clear did not invalidate cache", sharedPreferenceVault.getString(TEST_STRING_KEY, null));
+
+        //Changing the key makes the old values unreadable, even if cached.
+        sharedPreferenceVault.edit().putString(TEST_STRING_KEY, TEST_STRING_VALUE).apply();
+        assertEquals("Incorrect value before setKey", TEST_STRING_VALUE, sharedPreferenceVault.getString(TEST_STRING_KEY, null));
+        sharedPreferenceVault.setKey(Aes256RandomKeyFactory.createKey());
+        assertNull("setKey did not invalidate cache", sharedPreferenceVault.getString(TEST_STRING_KEY, null));
+
+        //Rekeying destroys all values.
+        sharedPreferenceVault.edit().putString(TEST_STRING_KEY, TEST_STRING_VALUE).apply();
+        assertEquals("Incorrect value before rekey", TEST_STRING_VALUE, sharedPreferenceVault.getString(TEST_STRING_KEY, null));
+        sharedPreferenceVault.rekeyStorage(Aes256RandomKeyFactory.createKey());
+        assertNull("rekeyStorage did not invalidate cache", sharedPreferenceVault.getString(TEST_STRING_KEY, null));
+
+        //Disabling the cache resets the counters.
+        sharedPreferenceVault.setDecryptedValueCacheSize(0);
+        assertEquals("Hit count not reset", 0, sharedPreferenceVault.getDecryptedValueCacheHitCount());
+        assertEquals("Miss count not reset", 0, sharedPreferenceVault.getDecryptedValueCacheMissCount());
+        sharedPreferenceVault.clearStorage();
+    }
+}
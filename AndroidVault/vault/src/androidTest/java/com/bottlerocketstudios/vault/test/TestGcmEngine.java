@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bottlerocketstudios.vault.test;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.util.Base64;
+import android.util.Log;
+
+import com.bottlerocketstudios.vault.CharacterEncodingConstants;
+import com.bottlerocketstudios.vault.EncryptionConstants;
+import com.bottlerocketstudios.vault.SharedPreferenceVault;
+import com.bottlerocketstudios.vault.SharedPreferenceVaultFactory;
+import com.bottlerocketstudios.vault.StringEncryptionUtils;
+import com.bottlerocketstudios.vault.keys.generator.Aes256RandomKeyFactory;
+
+import java.security.GeneralSecurityException;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+
+public class TestGcmEngine extends AndroidTestCase {
+    private static final String TAG = TestGcmEngine.class.getSimpleName();
+
+    private static final String PREF_FILE_NAME = "gcmEnginePrefFile";
+    private static final int HEADER_VERSION_OFFSET = 1;
+    private static final int CBC_TYPED_VERSION = 2;
+    private static final int GCM_TYPED_VERSION = 4;
+    private static final int[] BENCHMARK_SIZES = {16, 256, 4096, 65536};
+    private static final int BENCHMARK_BYTES = 4 * 1024 * 1024;
+
+    private SharedPreferenceVault createVault(boolean gcm, SecretKey secretKey) {
+        SharedPreferenceVault sharedPreferenceVault = null;
+        try {
+            if (gcm) {
+                sharedPreferenceVault = SharedPreferenceVaultFactory.getMemoryOnlyKeyAes256GcmVault(getContext(), PREF_FILE_NAME, false);
+            } else {
+                sharedPreferenceVault = SharedPreferenceVaultFactory.getMemoryOnlyKeyAes256Vault(getContext(), PREF_FILE_NAME, false);
+            }
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Caught java.security.GeneralSecurityException", e);
+            assertTrue("Exception creating vault", false);
+        }
+        assertNotNull("Unable to create vault", sharedPreferenceVault);
+        sharedPreferenceVault.setKey(secretKey);
+        return sharedPreferenceVault;
+    }
+
+    @SuppressLint("CommitPrefEdits")
+    public void testLazyUpgrade() {
+        SecretKey secretKey = Aes256RandomKeyFactory.createKey();
+        SharedPreferenceVault cbcVault = createVault(false, secretKey);
+        cbcVault.edit().clear().commit();
+        cbcVault.edit().putString("upgraded", "value").putInt("untouched", 7).commit();
+        assertEquals("Incorrect CBC envelope", CBC_TYPED_VERSION, getEnvelopeVersion("upgraded"));
+
+        SharedPreferenceVault gcmVault = createVault(true, secretKey);
+        gcmVault.setSkipUnchangedWrites(true);
+        assertEquals("CBC value unreadable by GCM vault", "value", gcmVault.getString("upgraded", null));
+        assertEquals("CBC value unreadable by GCM vault", 7, gcmVault.getInt("untouched", 0));
+
+        //Writing an unchanged value still rewrites it so that the envelope is upgraded.
+        gcmVault.edit().putString("upgraded", "value").commit();
+        assertEquals("Value was not upgraded", GCM_TYPED_VERSION, getEnvelopeVersion("upgraded"));
+        assertEquals("Untouched value was rewritten", CBC_TYPED_VERSION, getEnvelopeVersion("untouched"));
+        assertEquals("Incorrect upgraded value", "value", gcmVault.getString("upgraded", null));
+
+        long skipped = gcmVault.getSkippedValueWriteCount();
+        gcmVault.edit().putString("upgraded", "value").commit();
+        assertEquals("Unchanged GCM value was rewritten", skipped + 1, gcmVault.getSkippedValueWriteCount());
+
+        gcmVault.edit().putString("new", "newValue").commit();
+        assertEquals("New value not written with GCM", GCM_TYPED_VERSION, getEnvelopeVersion("new"));
+        assertEquals("Incorrect getAll size", 3, gcmVault.getAll().size());
+        gcmVault.clearStorage();
+    }
+
+    @SuppressLint("CommitPrefEdits")
+    public void testTamperDetection() {
+        SharedPreferenceVault gcmVault = createVault(true, Aes256RandomKeyFactory.createKey());
+        gcmVault.edit().putString("tampered", "original value").commit();
+
+        byte[] envelope = Base64.decode(getRawValue("tampered"), Base64.DEFAULT);
+        envelope[envelope.length - 1] ^= 1;
+        getContext().getSharedPreferences(PREF_FILE_NAME, Context.MODE_PRIVATE).edit()
+                .putString("tampered", Base64.encodeToString(envelope, Base64.DEFAULT))
+                .commit();
+        assertEquals("Tampered value was accepted", "default", gcmVault.getString("tampered", "default"));
+        gcmVault.clearStorage();
+    }
+
+    public void testGcmBenchmark() throws Throwable {
+        SecretKey secretKey = Aes256RandomKeyFactory.createKey();
+        Random random = new Random(0);
+        for (int size : BENCHMARK_SIZES) {
+            char[] chars = new char[size];
+            for (int i = 0; i < size; i++) {
+                chars[i] = (char) ('a' + random.nextInt(26));
+            }
+            String value = new String(chars);
+            int iterations = Math.max(10, BENCHMARK_BYTES / size);
+            String cbc = benchmark(secretKey, value, iterations, EncryptionConstants.AES_CBC_PADDED_TRANSFORM);
+            String gcm = benchmark(secretKey, value, iterations, EncryptionConstants.AES_GCM_TRANSFORM);
+            Log.i(TAG, size + " bytes CBC " + cbc + " GCM " + gcm);
+        }
+    }
+
+    private String benchmark(SecretKey secretKey, String value, int iterations, String transform) throws Throwable {
+        String encrypted = null;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            encrypted = StringEncryptionUtils.encryptValue(secretKey, value, transform);
+        }
+        long encryptNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            assertEquals("Incorrect decrypted value", value, StringEncryptionUtils.decryptValue(secretKey, encrypted, CharacterEncodingConstants.UTF_8, transform));
+        }
+        long decryptNanos = System.nanoTime() - start;
+
+        long totalBytes = (long) value.length() * iterations;
+        return "encrypt " + toMegabytesPerSecond(totalBytes, encryptNanos) + "MB/s decrypt " + toMegabytesPerSecond(totalBytes, decryptNanos) + "MB/s";
+    }
+
+    private static long toMegabytesPerSecond(long bytes, long nanos) {
+        return nanos == 0 ? 0 : bytes * 1000000000L / nanos / (1024 * 1024);
+    }
+
+    private int getEnvelopeVersion(String key) {
+        return Base64.decode(getRawValue(key), Base64.DEFAULT)[HEADER_VERSION_OFFSET];
+    }
+
+    private String getRawValue(String key) {
+        return getContext().getSharedPreferences(PREF_FILE_NAME, Context.MODE_PRIVATE).getString(key, null);
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bottlerocketstudios.vault.test;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.util.Base64;
+import android.util.Log;
+
+import com.bottlerocketstudios.vault.CharacterEncodingConstants;
+import com.bottlerocketstudios.vault.EncryptionConstants;
+import com.bottlerocketstudios.vault.RekeyProgress;
+import com.bottlerocketstudios.vault.SharedPreferenceVault;
+import com.bottlerocketstudios.vault.SharedPreferenceVaultFactory;
+import com.bottlerocketstudios.vault.StringEncryptionUtils;
+import com.bottlerocketstudios.vault.keys.generator.Aes256RandomKeyFactory;
+
+import java.io.File;
+import java.security.GeneralSecurityException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.SecretKey;
+
+public class TestIncrementalRekey extends AndroidTestCase {
+    private static final String TAG = TestIncrementalRekey.class.getSimpleName();
+
+    private static final String PREF_FILE_NAME = "incrementalRekeyPrefFile";
+    private static final String REKEY_STATE_FILE_NAME = PREF_FILE_NAME + ".rekeyState";
+    private static final int HEADER_VERSION_OFFSET = 1;
+    private static final int KEY_ID_VERSION = 6;
+    private static final int STRING_COUNT = 20;
+    private static final int BATCH_SIZE = 5;
+    private static final int LARGE_VALUE_THRESHOLD = 1024;
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private static final String TEST_INT_KEY = "testIntegerKey";
+    private static final int TEST_INT_VALUE = -230;
+    private static final String TEST_STRING_SET_KEY = "testStringSetKey";
+    private static final String TEST_LARGE_KEY = "testLargeKey";
+    private static final String TEST_LEGACY_KEY = "testLegacyKey";
+    private static final String TEST_LEGACY_VALUE = "1234";
+    private static final Set<String> TEST_STRING_SET_VALUE;
+    private static final String TEST_LARGE_VALUE;
+
+    static {
+        Set<String> stringSet = new HashSet<>();
+        stringSet.add("Test String One");
+        stringSet.add("Test String Two");
+        TEST_STRING_SET_VALUE = stringSet;
+
+        StringBuilder stringBuilder = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            stringBuilder.append("large ").append(i).append(' ');
+        }
+        TEST_LARGE_VALUE = stringBuilder.toString();
+    }
+
+    private SharedPreferenceVault createVault() {
+        SharedPreferenceVault sharedPreferenceVault = null;
+        try {
+            sharedPreferenceVault = SharedPreferenceVaultFactory.getMemoryOnlyKeyAes256GcmVault(getContext(), PREF_FILE_NAME, false);
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Caught java.security.GeneralSecurityException", e);
+            assertTrue("Exception creating vault", false);
+        }
+        assertNotNull("Unable to create vault", sharedPreferenceVault);
+        sharedPreferenceVault.setLargeValueThreshold(LARGE_VALUE_THRESHOLD);
+        sharedPreferenceVault.setRekeyBatchSize(BATCH_SIZE);
+        return sharedPreferenceVault;
+    }
+
+    @SuppressLint("CommitPrefEdits")
+    private void writeValues(SharedPreferenceVault sharedPreferenceVault, SecretKey secretKey) throws Exception {
+        SharedPreferenceVault.Editor editor = sharedPreferenceVault.edit();
+        for (int i = 0; i < STRING_COUNT; i++) {
+            editor.putString(getStringKey(i), getStringValue(i));
+        }
+        editor.putInt(TEST_INT_KEY, TEST_INT_VALUE)
+                .putStringSet(TEST_STRING_SET_KEY, TEST_STRING_SET_VALUE)
+                .putString(TEST_LARGE_KEY, TEST_LARGE_VALUE)
+                .commit();
+
+        //Value written before type information was stored.
+        getContext().getSharedPreferences(PREF_FILE_NAME, Context.MODE_PRIVATE).edit()
+                .putString(TEST_LEGACY_KEY, StringEncryptionUtils.encrypt(secretKey, TEST_LEGACY_VALUE, CharacterEncodingConstants.UTF_8, EncryptionConstants.AES_CBC_PADDED_TRANSFORM))
+                .commit();
+    }
+
+    private void assertValues(SharedPreferenceVault sharedPreferenceVault) {
+        for (int i = 0; i < STRING_COUNT; i++) {
+            assertEquals("Incorrect string value", getStringValue(i), sharedPreferenceVault.getString(getStringKey(i), null));
+        }
+        assertEquals("Incorrect int value", TEST_INT_VALUE, sharedPreferenceVault.getInt(TEST_INT_KEY, 0));
+        assertEquals("Incorrect set value", TEST_STRING_SET_VALUE, sharedPreferenceVault.getStringSet(TEST_STRING_SET_KEY, null));
+        assertEquals("Incorrect large value", TEST_LARGE_VALUE, sharedPreferenceVault.getString(TEST_LARGE_KEY, null));
+        assertEquals("Incorrect legacy value", Integer.parseInt(TEST_LEGACY_VALUE), sharedPreferenceVault.getInt(TEST_LEGACY_KEY, 0));
+        assertEquals("Incorrect getAll size", STRING_COUNT + 4, sharedPreferenceVault.getAll().size());
+    }
+
+    public void testIncrementalRekey() throws Exception {
+        SharedPreferenceVault sharedPreferenceVault = createVault();
+        SecretKey oldKey = Aes256RandomKeyFactory.createKey();
+        sharedPreferenceVault.rekeyStorage(oldKey);
+        writeValues(sharedPreferenceVault, oldKey);
+        assertTrue("Rekey completed before it was started", sharedPreferenceVault.getRekeyProgress().isComplete());
+        File rekeyStateFile = new File(getContext().getFilesDir(), REKEY_STATE_FILE_NAME);
+        assertFalse("Rekey state saved before a rotation", rekeyStateFile.exists());
+
+        final List<RekeyProgress> progressList = new CopyOnWriteArrayList<>();
+        Future<RekeyProgress> future = sharedPreferenceVault.rekeyStorageIncrementally(Aes256RandomKeyFactory.createKey(), new SharedPreferenceVault.OnRekeyProgressListener() {
+            @Override
+            public void onRekeyProgress(SharedPreferenceVault vault, RekeyProgress progress) {
+                progressList.add(progress);
+            }
+        });
+        RekeyProgress progress = future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        Log.i(TAG, "Rekey " + progress);
+
+        assertTrue("Rekey did not complete", progress.isComplete());
+        assertEquals("Incorrect total count", STRING_COUNT + 4, progress.getTotalCount());
+        assertEquals("Incorrect completed count", progress.getTotalCount(), progress.getCompletedCount());
+        assertEquals("Values were not re-encrypted in batches", (STRING_COUNT + 4 + BATCH_SIZE - 1) / BATCH_SIZE, progressList.size());
+        assertTrue("Rekey progress not complete", sharedPreferenceVault.getRekeyProgress().isComplete());
+
+        for (String key : getContext().getSharedPreferences(PREF_FILE_NAME, Context.MODE_PRIVATE).getAll().keySet()) {
+            assertEquals("Value was not tagged with the new key", KEY_ID_VERSION, getEnvelopeVersion(key));
+        }
+        assertValues(sharedPreferenceVault);
+
+        //Tagged values in the current envelope are still recognized as unchanged.
+        sharedPreferenceVault.setSkipUnchangedWrites(true);
+        long skipped = sharedPreferenceVault.getSkippedValueWriteCount();
+        sharedPreferenceVault.edit().putString(getStringKey(0), getStringValue(0)).commit();
+        assertEquals("Unchanged tagged value was rewritten", skipped + 1, sharedPreferenceVault.getSkippedValueWriteCount());
+        sharedPreferenceVault.clearStorage();
+        assertFalse("Rekey state not cleared", rekeyStateFile.exists());
+    }
+
+    @SuppressLint("CommitPrefEdits")
+    public void testResumeAfterProcessDeath() throws Exception {
+        SharedPreferenceVault sharedPreferenceVault = createVault();
+        SecretKey oldKey = Aes256RandomKeyFactory.createKey();
+        SecretKey newKey = Aes256RandomKeyFactory.createKey();
+        sharedPreferenceVault.rekeyStorage(oldKey);
+        writeValues(sharedPreferenceVault, oldKey);
+
+        //Stop the rotation after its first batch.
+        final CountDownLatch startedLatch = new CountDownLatch(1);
+        final AtomicReference<Future<RekeyProgress>> futureReference = new AtomicReference<>();
+        futureReference.set(sharedPreferenceVault.rekeyStorageIncrementally(newKey, new SharedPreferenceVault.OnRekeyProgressListener() {
+            @Override
+            public void onRekeyProgress(SharedPreferenceVault vault, RekeyProgress progress) {
+                try {
+                    startedLatch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                futureReference.get().cancel(false);
+            }
+        }));
+        startedLatch.countDown();
+        //Asynchronous operations run in order, so this waits until the sweep has seen the cancellation.
+        sharedPreferenceVault.getStringAsync(getStringKey(0), null).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        RekeyProgress progress = sharedPreferenceVault.getRekeyProgress();
+        assertFalse("Rekey completed after a single batch", progress.isComplete());
+        assertEquals("Incorrect completed count", BATCH_SIZE, progress.getCompletedCount());
+        try {
+            sharedPreferenceVault.rekeyStorageIncrementally(Aes256RandomKeyFactory.createKey(), null);
+            assertTrue("Second rotation was started", false);
+        } catch (IllegalStateException e) {
+            //Expected
+        }
+
+        //Values under both keys are readable and new values use the new key.
+        assertValues(sharedPreferenceVault);
+        sharedPreferenceVault.edit().putString("midRotationKey", "midRotationValue").commit();
+        assertEquals("New value not tagged with the new key", KEY_ID_VERSION, getEnvelopeVersion("midRotationKey"));
+
+        //A new instance with the new key continues where the previous process stopped.
+        SharedPreferenceVault resumedVault = createVault();
+        resumedVault.setKey(newKey);
+        progress = resumedVault.resumeRekey(null).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertTrue("Resumed rekey did not complete", progress.isComplete());
+        assertEquals("Incorrect completed count", progress.getTotalCount(), progress.getCompletedCount());
+        for (String key : getContext().getSharedPreferences(PREF_FILE_NAME, Context.MODE_PRIVATE).getAll().keySet()) {
+            assertEquals("Value was not tagged with the new key", KEY_ID_VERSION, getEnvelopeVersion(key));
+        }
+        assertEquals("Incorrect mid rotation value", "midRotationValue", resumedVault.getString("midRotationKey", null));
+        resumedVault.edit().remove("midRotationKey").commit();
+        assertValues(resumedVault);
+
+        //The old key is no longer accepted.
+        resumedVault.setKey(oldKey);
+        assertNull("Value readable with retired key", resumedVault.getString(getStringKey(0), null));
+        resumedVault.clearStorage();
+    }
+
+    private static String getStringKey(int index) {
+        return "testKey" + index;
+    }
+
+    private static String getStringValue(int index) {
+        return " This is test " + index + ". ";
+    }
+
+    private int getEnvelopeVersion(String key) {
+        String rawValue = getContext().getSharedPreferences(PREF_FILE_NAME, Context.MODE_PRIVATE).getString(key, null);
+        return Base64.decode(rawValue, Base64.DEFAULT)[HEADER_VERSION_OFFSET];
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault.test;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.bottlerocketstudios.vault.SharedPreferenceVault;
+import com.bottlerocketstudios.vault.SharedPreferenceVaultFactory;
+import com.bottlerocketstudios.vault.keys.generator.Aes256RandomKeyFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.crypto.SecretKey;
+
+public class TestLargeValueSpill extends AndroidTestCase {
+    private static final String TAG = TestLargeValueSpill.class.getSimpleName();
+
+    private static final String PREF_FILE_NAME = "largeValueSpillPrefFile";
+    private static final String LARGE_VALUE_DIRECTORY = "vault_large_values";
+    private static final int THRESHOLD = 4 * 1024;
+    private static final int LARGE_VALUE_LENGTH = 300 * 1024;
+    private static final int MAX_POINTER_LENGTH = 256;
+
+    private SharedPreferenceVault createVault() {
+        SharedPreferenceVault sharedPreferenceVault = null;
+        try {
+            sharedPreferenceVault = SharedPreferenceVaultFactory.getMemoryOnlyKeyAes256Vault(getContext(), PREF_FILE_NAME, true);
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Caught java.security.GeneralSecurityException", e);
+            assertTrue("Exception creating vault", false);
+        }
+        assertNotNull("Unable to create vault", sharedPreferenceVault);
+        sharedPreferenceVault.setLargeValueThreshold(THRESHOLD);
+        return sharedPreferenceVault;
+    }
+
+    @SuppressLint("CommitPrefEdits")
+    public void testLargeValueSpill() {
+        SharedPreferenceVault sharedPreferenceVault = createVault();
+        sharedPreferenceVault.rekeyStorage(Aes256RandomKeyFactory.createKey());
+
+        String largeValue = createValue('a', LARGE_VALUE_LENGTH);
+        sharedPreferenceVault.edit().putString("large", largeValue).putString("small", "small").commit();
+        assertEquals("Incorrect large value", largeValue, sharedPreferenceVault.getString("large", null));
+        assertEquals("Incorrect small value", "small", sharedPreferenceVault.getString("small", null));
+        assertTrue("Pointer record too large", getRawValue("large").length() < MAX_POINTER_LENGTH);
+        assertEquals("Incorrect side file count", 1, countSideFiles());
+        assertEquals("Incorrect getAll value", largeValue, sharedPreferenceVault.getAll().get("large"));
+        assertEquals("Incorrect lazy value", largeValue, sharedPreferenceVault.getAllLazily().get("large"));
+
+        //Replacing a large value deletes the old file.
+        String replacementValue = createValue('b', LARGE_VALUE_LENGTH);
+        sharedPreferenceVault.edit().putString("large", replacementValue).apply();
+        assertEquals("Incorrect replaced value", replacementValue, sharedPreferenceVault.getString("large", null));
+        assertEquals("Old side file not deleted", 1, countSideFiles());
+
+        sharedPreferenceVault.edit().putString("large", "now small").commit();
+        assertEquals("Incorrect shrunk value", "now small", sharedPreferenceVault.getString("large", null));
+        assertEquals("Side file not deleted when value shrank", 0, countSideFiles());
+
+        Set<String> largeSet = new HashSet<>(Arrays.asList(createValue('c', THRESHOLD), createValue('d', THRESHOLD)));
+        sharedPreferenceVault.edit().putStringSet("set", largeSet).putString("large", largeValue).commit();
+        assertEquals("Incorrect large set", largeSet, sharedPreferenceVault.getStringSet("set", null));
+        assertEquals("Incorrect side file count", 2, countSideFiles());
+
+        sharedPreferenceVault.edit().remove("set").commit();
+        assertNull("Removed value returned", sharedPreferenceVault.getStringSet("set", null));
+        assertEquals("Side file not deleted on remove", 1, countSideFiles());
+
+        sharedPreferenceVault.clearStorage();
+        assertEquals("Side files not deleted on clear", 0, countSideFiles());
+    }
+
+    @SuppressLint("CommitPrefEdits")
+    public void testOrphanSweep() throws Exception {
+        SecretKey secretKey = Aes256RandomKeyFactory.createKey();
+        SharedPreferenceVault sharedPreferenceVault = createVault();
+        sharedPreferenceVault.rekeyStorage(secretKey);
+        String largeValue = createValue('e', LARGE_VALUE_LENGTH);
+        sharedPreferenceVault.edit().putString("large", largeValue).commit();
+        //Wait for this instance's own sweep to finish.
+        sharedPreferenceVault.getStringAsync("large", null).get();
+
+        //Simulate files left behind by a process that died part way through a write.
+        writeFile(new File(getLargeValueDirectory(), "orphan.value"));
+        writeFile(new File(getLargeValueDirectory(), "incomplete.tmp"));
+
+        SharedPreferenceVault reopenedVault = createVault();
+        reopenedVault.setKey(secretKey);
+        reopenedVault.edit().putString("other", largeValue).commit();
+        //The sweep runs on the vault's background thread ahead of this read.
+        assertEquals("Incorrect value after sweep", largeValue, reopenedVault.getStringAsync("large", null).get());
+        assertFalse("Orphaned file not deleted", new File(getLargeValueDirectory(), "orphan.value").exists());
+        assertFalse("Incomplete file not deleted", new File(getLargeValueDirectory(), "incomplete.tmp").exists());
+        assertEquals("Referenced file deleted", 2, countSideFiles());
+
+        reopenedVault.clearStorage();
+        assertEquals("Side files not deleted on clear", 0, countSideFiles());
+    }
+
+    private String getRawValue(String key) {
+        return getContext().getSharedPreferences(PREF_FILE_NAME, Context.MODE_PRIVATE).getString(key, null);
+    }
+
+    private File getLargeValueDirectory() {
+        return new File(new File(getContext().getFilesDir(), LARGE_VALUE_DIRECTORY), PREF_FILE_NAME);
+    }
+
+    private int countSideFiles() {
+        File[] files = getLargeValueDirectory().listFiles();
+        return files == null ? 0 : files.length;
+    }
+
+    private static String createValue(char c, int length) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static void writeFile(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        FileOutputStream fileOutputStream = new FileOutputStream(file);
+        fileOutputStream.write(new byte[] {1, 2, 3});
+        fileOutputStream.close();
+    }
+}
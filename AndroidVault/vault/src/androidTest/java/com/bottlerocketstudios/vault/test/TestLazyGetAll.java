@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault.test;
+
+import android.annotation.SuppressLint;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.bottlerocketstudios.vault.SharedPreferenceVault;
+import com.bottlerocketstudios.vault.SharedPreferenceVaultFactory;
+import com.bottlerocketstudios.vault.keys.generator.Aes256RandomKeyFactory;
+
+import java.security.GeneralSecurityException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+public class TestLazyGetAll extends AndroidTestCase {
+    private static final String TAG = TestLazyGetAll.class.getSimpleName();
+
+    private static final String PREF_FILE_NAME = "lazyGetAllPrefFile";
+
+    private static final String TEST_STRING_KEY = "testKey";
+    private static final String TEST_STRING_VALUE = " This is a test. ";
+    private static final String TEST_INT_KEY = "testIntegerKey";
+    private static final int TEST_INT_VALUE = -230;
+    private static final String TEST_STRING_SET_KEY = "testStringSetKey";
+    private static final Set<String> TEST_STRING_SET_VALUE;
+
+    static {
+        Set<String> stringSet = new HashSet<>();
+        stringSet.add("Test String One");
+        stringSet.add("Test String Two");
+        TEST_STRING_SET_VALUE = stringSet;
+    }
+
+    @SuppressLint("CommitPrefEdits")
+    public void testLazyGetAll() {
+        SharedPreferenceVault sharedPreferenceVault = null;
+        try {
+            sharedPreferenceVault = SharedPreferenceVaultFactory.getMemoryOnlyKeyAes256Vault(getContext(), PREF_FILE_NAME, false);
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Caught java.security.GeneralSecurityException", e);
+            assertTrue("Exception creating vault", false);
+        }
+        assertNotNull("Unable to create vault", sharedPreferenceVault);
+        sharedPreferenceVault.rekeyStorage(Aes256RandomKeyFactory.createKey());
+
+        sharedPreferenceVault.edit()
+                .putString(TEST_STRING_KEY, TEST_STRING_VALUE)
+                .putInt(TEST_INT_KEY, TEST_INT_VALUE)
+                .putStringSet(TEST_STRING_SET_KEY, TEST_STRING_SET_VALUE)
+                .commit();
+
+        Map<String, ?> lazyMap = sharedPreferenceVault.getAllLazily();
+        assertEquals("Incorrect size", 3, lazyMap.size());
+        assertTrue("Missing key", lazyMap.keySet().contains(TEST_INT_KEY));
+        assertEquals("Incorrect lazily decrypted value", TEST_INT_VALUE, lazyMap.get(TEST_INT_KEY));
+        assertEquals("Lazy map does not match getAll", sharedPreferenceVault.getAll(), lazyMap);
+
+        //The view is a snapshot of the entries at the time it was created.
+        sharedPreferenceVault.edit().remove(TEST_STRING_KEY).commit();
+        assertEquals("Snapshot value changed", TEST_STRING_VALUE, lazyMap.get(TEST_STRING_KEY));
+        assertNull("Unknown key returned a value", lazyMap.get("missingKey"));
+
+        sharedPreferenceVault.clearStorage();
+        assertTrue("Lazy map was not empty without a key", sharedPreferenceVault.getAllLazily().isEmpty());
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault.test;
+
+import com.bottlerocketstudios.vault.store.LogStructuredVaultStore;
+import com.bottlerocketstudios.vault.store.VaultStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+public class TestLogStructuredVaultStore extends VaultStoreConformanceTest {
+    private static final String RECOVERY_STORE_NAME = "logStructuredRecoveryStore";
+    private static final String COMPACTION_STORE_NAME = "logStructuredCompactionStore";
+    private static final String MALFORMED_STORE_NAME = "logStructuredMalformedStore";
+    private static final String FAILED_COMPACTION_STORE_NAME = "logStructuredFailedCompactionStore";
+    private static final int BATCH_MAGIC = 0x42415443;
+
+    @Override
+    protected VaultStore openStore(String name) {
+        return LogStructuredVaultStore.getInstance(getContext(), name);
+    }
+
+    public void testTornTailIsDiscarded() throws IOException {
+        LogStructuredVaultStore logStructuredVaultStore = LogStructuredVaultStore.getInstance(getContext(), RECOVERY_STORE_NAME);
+        assertTrue("Unable to clear store", logStructuredVaultStore.edit().clear().commit());
+        assertTrue("Unable to write first batch", logStructuredVaultStore.edit().putString("first", "one").putString("second", "two").commit());
+        File file = logStructuredVaultStore.getFile();
+        long intactLength = file.length();
+        assertTrue("Unable to write second batch", logStructuredVaultStore.edit().putString("first", "replaced").remove("second").commit());
+        long fullLength = file.length();
+        logStructuredVaultStore.close();
+
+        //Simulate a crash part way through writing the second batch.
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(intactLength + (fullLength - intactLength) / 2);
+        randomAccessFile.close();
+
+        logStructuredVaultStore = LogStructuredVaultStore.getInstance(getContext(), RECOVERY_STORE_NAME);
+        assertEquals("Incomplete batch was partially applied", "one", logStructuredVaultStore.getString("first"));
+        assertEquals("Incomplete batch was partially applied", "two", logStructuredVaultStore.getString("second"));
+        assertEquals("Torn tail was not truncated", intactLength, file.length());
+
+        //Later batches must be readable after recovery.
+        assertTrue("Unable to write after recovery", logStructuredVaultStore.edit().putString("third", "three").commit());
+        logStructuredVaultStore.close();
+
+        //Corrupt bytes after the last batch are discarded as well.
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.seek(randomAccessFile.length());
+        randomAccessFile.write(new byte[] {0x42, 0x41, 0x54, 0x43, 0, 0, 0, 1, 7, 0, 0, 0, 0});
+        randomAccessFile.close();
+
+        logStructuredVaultStore = LogStructuredVaultStore.getInstance(getContext(), RECOVERY_STORE_NAME);
+        assertEquals("Value lost during recovery", "three", logStructuredVaultStore.getString("third"));
+        assertEquals("Incorrect entry count", 3, logStructuredVaultStore.getAll().size());
+        logStructuredVaultStore.edit().clear().commit();
+        logStructuredVaultStore.close();
+    }
+
+    public void testMalformedBatchIsDiscarded() throws IOException {
+        LogStructuredVaultStore logStructuredVaultStore = LogStructuredVaultStore.getInstance(getContext(), MALFORMED_STORE_NAME);
+        assertTrue("Unable to clear store", logStructuredVaultStore.edit().clear().commit());
+        assertTrue("Unable to write batch", logStructuredVaultStore.edit().putString("first", "one").commit());
+        File file = logStructuredVaultStore.getFile();
+        long intactLength = file.length();
+        logStructuredVaultStore.close();
+
+        //A batch with a valid checksum whose second operation claims a key longer than the batch.
+        ByteBuffer payload = ByteBuffer.allocate(15);
+        payload.put((byte) 2).putInt(5).put("first".getBytes("UTF-8")).put((byte) 1).putInt(Integer.MAX_VALUE);
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload.array());
+        ByteBuffer batch = ByteBuffer.allocate(8 + payload.capacity() + 4);
+        batch.putInt(BATCH_MAGIC).putInt(payload.capacity()).put(payload.array()).putInt((int) crc32.getValue());
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.seek(randomAccessFile.length());
+        randomAccessFile.write(batch.array());
+        randomAccessFile.close();
+
+        logStructuredVaultStore = LogStructuredVaultStore.getInstance(getContext(), MALFORMED_STORE_NAME);
+        assertEquals("Malformed batch was partially applied", "one", logStructuredVaultStore.getString("first"));
+        assertEquals("Malformed batch was not truncated", intactLength, file.length());
+        assertTrue("Unable to write after recovery", logStructuredVaultStore.edit().putString("second", "two").commit());
+        assertEquals("Incorrect entry count", 2, logStructuredVaultStore.getAll().size());
+        logStructuredVaultStore.edit().clear().commit();
+        logStructuredVaultStore.close();
+    }
+
+    public void testCompaction() {
+        LogStructuredVaultStore logStructuredVaultStore = LogStructuredVaultStore.getInstance(getContext(), COMPACTION_STORE_NAME);
+        logStructuredVaultStore.setCompactionThreshold(Long.MAX_VALUE);
+        assertTrue("Unable to clear store", logStructuredVaultStore.edit().clear().commit());
+        for (int i = 0; i < 100; i++) {
+            logStructuredVaultStore.edit().putString("key" + (i % 10), "value" + i).apply();
+        }
+        long liveBytes = logStructuredVaultStore.getLiveBytes();
+        assertTrue("No dead bytes accumulated", logStructuredVaultStore.getDeadBytes() > liveBytes);
+
+        assertTrue("Compaction failed", logStructuredVaultStore.compact());
+        assertEquals("Live bytes changed", liveBytes, logStructuredVaultStore.getLiveBytes());
+        assertTrue("Dead bytes were not reclaimed", logStructuredVaultStore.getDeadBytes() < liveBytes);
+        for (int i = 0; i < 10; i++) {
+            assertEquals("Incorrect value after compaction", "value" + (90 + i), logStructuredVaultStore.getString("key" + i));
+        }
+
+        logStructuredVaultStore.close();
+        logStructuredVaultStore = LogStructuredVaultStore.getInstance(getContext(), COMPACTION_STORE_NAME);
+        assertEquals("Incorrect entry count after reopen", 10, logStructuredVaultStore.getAll().size());
+        assertEquals("Incorrect value after reopen", "value99", logStructuredVaultStore.getString("key9"));
+        logStructuredVaultStore.edit().clear().commit();
+        logStructuredVaultStore.close();
+    }
+
+    public void testFailedCompactionLeavesStoreUsable() throws IOException {
+        LogStructuredVaultStore logStructuredVaultStore = LogStructuredVaultStore.getInstance(getContext(), FAILED_COMPACTION_STORE_NAME);
+        logStructuredVaultStore.setCompactionThreshold(Long.MAX_VALUE);
+        assertTrue("Unable to write", logStructuredVaultStore.edit().putString("first", "one").commit());
+
+        //The open log can still be read, but neither renaming over nor reopening a non-empty directory works.
+        File file = logStructuredVaultStore.getFile();
+        assertTrue("Unable to delete log", file.delete());
+        assertTrue("Unable to create directory", file.mkdir());
+        File blockingFile = new File(file, "blocking");
+        assertTrue("Unable to create file", blockingFile.createNewFile());
+
+        assertFalse("Compaction succeeded", logStructuredVaultStore.compact());
+        try {
+            logStructuredVaultStore.getString("first");
+            fail("Read from a store that could not be reopened");
+        } catch (IllegalStateException e) {
+            //Expected
+        }
+
+        assertTrue("Unable to delete file", blockingFile.delete());
+        assertTrue("Unable to delete directory", file.delete());
+        assertNull("Replaced log was not reopened", logStructuredVaultStore.getString("first"));
+        assertTrue("Unable to write after reopening", logStructuredVaultStore.edit().putString("second", "two").commit());
+        assertEquals("Incorrect value after reopening", "two", logStructuredVaultStore.getString("second"));
+        logStructuredVaultStore.edit().clear().commit();
+        logStructuredVaultStore.close();
+    }
+}
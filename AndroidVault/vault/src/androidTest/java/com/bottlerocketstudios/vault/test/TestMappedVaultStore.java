@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault.test;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.bottlerocketstudios.vault.store.MappedVaultStore;
+import com.bottlerocketstudios.vault.store.VaultStore;
+import com.bottlerocketstudios.vault.store.VaultStoreConverter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+
+public class TestMappedVaultStore extends VaultStoreConformanceTest {
+    private static final String TAG = TestMappedVaultStore.class.getSimpleName();
+
+    private static final String CONVERTER_PREF_FILE_NAME = "mappedConverterPrefFile";
+    private static final String CONVERTER_STORE_NAME = "mappedConverterStore";
+    private static final String COLD_READ_STORE_NAME = "mappedColdReadStore";
+    private static final String CORRUPT_STORE_NAME = "mappedCorruptStore";
+    private static final int[] COLD_READ_ENTRY_COUNTS = {100, 1000, 10000};
+    private static final int COLD_READ_ITERATIONS = 20;
+
+    @Override
+    protected VaultStore openStore(String name) {
+        return MappedVaultStore.getInstance(getContext(), name);
+    }
+
+    public void testConvertSharedPreferences() {
+        SharedPreferences sharedPreferences = getContext().getSharedPreferences(CONVERTER_PREF_FILE_NAME, Context.MODE_PRIVATE);
+        sharedPreferences.edit().clear().putString("first", "one").putString("second", "two").commit();
+
+        MappedVaultStore mappedVaultStore = MappedVaultStore.getInstance(getContext(), CONVERTER_STORE_NAME);
+        mappedVaultStore.edit().putString("stale", "value").commit();
+        assertTrue("Conversion failed", VaultStoreConverter.convertSharedPreferences(getContext(), CONVERTER_PREF_FILE_NAME, mappedVaultStore, true));
+
+        Map<String, String> converted = mappedVaultStore.getAll();
+        assertEquals("Incorrect entry count", 2, converted.size());
+        assertEquals("Incorrect value", "one", converted.get("first"));
+        assertEquals("Incorrect value", "two", mappedVaultStore.getString("second"));
+        assertTrue("Source was not cleared", sharedPreferences.getAll().isEmpty());
+
+        mappedVaultStore.edit().clear().commit();
+        mappedVaultStore.close();
+    }
+
+    public void testColdReadTime() {
+        for (int entryCount : COLD_READ_ENTRY_COUNTS) {
+            MappedVaultStore mappedVaultStore = MappedVaultStore.getInstance(getContext(), COLD_READ_STORE_NAME);
+            VaultStore.Editor editor = mappedVaultStore.edit().clear();
+            for (int i = 0; i < entryCount; i++) {
+                editor.putString("key" + i, "value" + i);
+            }
+            assertTrue("Unable to write entries", editor.commit());
+            mappedVaultStore.close();
+
+            long nanos = 0;
+            for (int i = 0; i < COLD_READ_ITERATIONS; i++) {
+                String key = "key" + (i * 7919 % entryCount);
+                long start = System.nanoTime();
+                mappedVaultStore = MappedVaultStore.getInstance(getContext(), COLD_READ_STORE_NAME);
+                String value = mappedVaultStore.getString(key);
+                nanos += System.nanoTime() - start;
+                assertEquals("Incorrect value", "value" + (i * 7919 % entryCount), value);
+                mappedVaultStore.close();
+            }
+            Log.i(TAG, entryCount + " entries: open and read one key " + (nanos / COLD_READ_ITERATIONS / 1000) + "us");
+        }
+
+        MappedVaultStore mappedVaultStore = MappedVaultStore.getInstance(getContext(), COLD_READ_STORE_NAME);
+        assertNull("Missing key returned a value", mappedVaultStore.getString("missingKey"));
+        mappedVaultStore.edit().clear().commit();
+        mappedVaultStore.close();
+    }
+
+    public void testTruncatedFileIsRejected() throws IOException {
+        MappedVaultStore mappedVaultStore = MappedVaultStore.getInstance(getContext(), CORRUPT_STORE_NAME);
+        mappedVaultStore.edit().clear().putString("first", "one").putString("second", "two").commit();
+        mappedVaultStore.close();
+
+        File file = new File(getContext().getFilesDir(), CORRUPT_STORE_NAME + ".vaultmap");
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(randomAccessFile.length() - 2);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        mappedVaultStore = MappedVaultStore.getInstance(getContext(), CORRUPT_STORE_NAME);
+        try {
+            mappedVaultStore.getAll();
+            fail("Truncated file was read");
+        } catch (IllegalStateException e) {
+            //Expected
+        }
+        mappedVaultStore.close();
+        assertTrue("Unable to delete file", file.delete());
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault.test;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.bottlerocketstudios.vault.CharacterEncodingConstants;
+import com.bottlerocketstudios.vault.EncryptionConstants;
+import com.bottlerocketstudios.vault.SharedPreferenceVault;
+import com.bottlerocketstudios.vault.SharedPreferenceVaultFactory;
+import com.bottlerocketstudios.vault.StringEncryptionUtils;
+import com.bottlerocketstudios.vault.keys.generator.Aes256RandomKeyFactory;
+
+import java.security.GeneralSecurityException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Verify that parallel getAll() matches the serial result and report the speedup by entry count and thread count.
+ */
+public class TestParallelGetAll extends AndroidTestCase {
+    private static final String TAG = TestParallelGetAll.class.getSimpleName();
+
+    private static final String PREF_FILE_NAME = "parallelGetAllPrefFile";
+
+    private static final int[] ENTRY_COUNTS = {25, 100, 400};
+    private static final int BENCHMARK_ITERATIONS = 5;
+
+    @SuppressLint("CommitPrefEdits")
+    public void testParallelMatchesSerial() {
+        SharedPreferenceVault sharedPreferenceVault = createVault();
+        populate(sharedPreferenceVault, ENTRY_COUNTS[ENTRY_COUNTS.length - 1]);
+
+        Map<String, ?> serialMap = sharedPreferenceVault.getAll();
+
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        sharedPreferenceVault.setParallelDecryption(executorService, 4, 2);
+        Map<String, ?> parallelMap = sharedPreferenceVault.getAll();
+        executorService.shutdown();
+
+        assertEquals("Parallel result differs from serial result", serialMap, parallelMap);
+        sharedPreferenceVault.clearStorage();
+    }
+
+    @SuppressLint("CommitPrefEdits")
+    public void testParallelRuntimeFailureIsThrown() throws Exception {
+        SharedPreferenceVault sharedPreferenceVault = createVault();
+        SecretKey secretKey = Aes256RandomKeyFactory.createKey();
+        sharedPreferenceVault.rekeyStorage(secretKey);
+        populate(sharedPreferenceVault, ENTRY_COUNTS[0]);
+        //Legacy value whose inferred type overflows a long, which fails outside the crypto path.
+        getContext().getSharedPreferences(PREF_FILE_NAME, Context.MODE_PRIVATE).edit()
+                .putString("overflowKey", StringEncryptionUtils.encrypt(secretKey, "123456789012345678901234567890", CharacterEncodingConstants.UTF_8, EncryptionConstants.AES_CBC_PADDED_TRANSFORM))
+                .commit();
+
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        sharedPreferenceVault.setParallelDecryption(executorService, 4, 2);
+        try {
+            sharedPreferenceVault.getAll();
+            fail("Parallel getAll() did not throw like the serial path");
+        } catch (NumberFormatException e) {
+            //Expected
+        } finally {
+            executorService.shutdown();
+        }
+        sharedPreferenceVault.clearStorage();
+    }
+
+    public void testParallelBenchmark() {
+        SharedPreferenceVault sharedPreferenceVault = createVault();
+        int coreCount = Runtime.getRuntime().availableProcessors();
+        Set<Integer> threadCountSet = new HashSet<>();
+        for (int threadCount = 1; threadCount < coreCount; threadCount *= 2) {
+            threadCountSet.add(threadCount);
+        }
+        threadCountSet.add(coreCount);
+
+        for (int entryCount : ENTRY_COUNTS) {
+            sharedPreferenceVault.edit().clear().commit();
+            populate(sharedPreferenceVault, entryCount);
+
+            sharedPreferenceVault.setParallelDecryption(null, 1, 0);
+            long serialNanos = timeGetAll(sharedPreferenceVault);
+            Log.i(TAG, "Entries: " + entryCount + " serial: " + serialNanos / 1000 + "us");
+
+            for (int threadCount : threadCountSet) {
+                ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+                sharedPreferenceVault.setParallelDecryption(executorService, threadCount, 0);
+                long parallelNanos = timeGetAll(sharedPreferenceVault);
+                executorService.shutdown();
+                Log.i(TAG, "Entries: " + entryCount + " threads: " + threadCount + " of " + coreCount + " cores: " + parallelNanos / 1000 + "us speedup: " + ((float) serialNanos / parallelNanos));
+            }
+        }
+        sharedPreferenceVault.clearStorage();
+    }
+
+    private long timeGetAll(SharedPreferenceVault sharedPreferenceVault) {
+        //Warm up the threads and Cipher instances.
+        sharedPreferenceVault.getAll();
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            sharedPreferenceVault.getAll();
+        }
+        return (System.nanoTime() - start) / BENCHMARK_ITERATIONS;
+    }
+
+    private SharedPreferenceVault createVault() {
+        SharedPreferenceVault sharedPreferenceVault = null;
+        try {
+            sharedPreferenceVault = SharedPreferenceVaultFactory.getMemoryOnlyKeyAes256Vault(getContext(), PREF_FILE_NAME, true);
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Caught java.security.GeneralSecurityException", e);
+            assertTrue("Exception creating vault", false);
+        }
+        assertNotNull("Unable to create vault", sharedPreferenceVault);
+        sharedPreferenceVault.rekeyStorage(Aes256RandomKeyFactory.createKey());
+        return sharedPreferenceVault;
+    }
+
+    @SuppressLint("CommitPrefEdits")
+    private void populate(SharedPreferenceVault sharedPreferenceVault, int entryCount) {
+        SharedPreferences.Editor editor = sharedPreferenceVault.edit();
+        for (int i = 0; i < entryCount; i++) {
+            switch (i % 4) {
+                case 0:
+                    editor.putString("stringKey" + i, "Cached credential value " + i);
+                    break;
+                case 1:
+                    editor.putInt("intKey" + i, i);
+                    break;
+                case 2:
+                    editor.putLong("longKey" + i, Long.MAX_VALUE - i);
+                    break;
+                default:
+                    editor.putBoolean("booleanKey" + i, i % 3 == 0);
+                    break;
+            }
+        }
+        editor.commit();
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault.test;
+
+import android.annotation.SuppressLint;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.bottlerocketstudios.vault.SharedPreferenceVault;
+import com.bottlerocketstudios.vault.SharedPreferenceVaultFactory;
+import com.bottlerocketstudios.vault.keys.generator.Aes256RandomKeyFactory;
+
+import java.security.GeneralSecurityException;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Verify that parallel encryption writes the same values as serial encryption and report the entry count
+ * at which it becomes faster.
+ */
+public class TestParallelWrite extends AndroidTestCase {
+    private static final String TAG = TestParallelWrite.class.getSimpleName();
+
+    private static final String PREF_FILE_NAME = "parallelWritePrefFile";
+
+    private static final int[] ENTRY_COUNTS = {5, 10, 25, 50, 100, 200, 400};
+    private static final int BENCHMARK_ITERATIONS = 5;
+
+    public void testParallelMatchesSerial() {
+        SharedPreferenceVault sharedPreferenceVault = createVault();
+        int entryCount = ENTRY_COUNTS[ENTRY_COUNTS.length - 1];
+
+        assertTrue("Serial commit failed", populate(sharedPreferenceVault, entryCount));
+        Map<String, ?> serialMap = sharedPreferenceVault.getAll();
+
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        sharedPreferenceVault.setParallelEncryption(executorService, 4, 2);
+        sharedPreferenceVault.edit().clear().commit();
+        assertTrue("Parallel commit failed", populate(sharedPreferenceVault, entryCount));
+        executorService.shutdown();
+
+        assertEquals("Parallel write differs from serial write", serialMap, sharedPreferenceVault.getAll());
+        sharedPreferenceVault.clearStorage();
+    }
+
+    public void testParallelWriteBenchmark() {
+        SharedPreferenceVault sharedPreferenceVault = createVault();
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+
+        int crossoverEntryCount = -1;
+        for (int entryCount : ENTRY_COUNTS) {
+            sharedPreferenceVault.setParallelEncryption(null, 1, 0);
+            long serialNanos = timeCommit(sharedPreferenceVault, entryCount);
+
+            sharedPreferenceVault.setParallelEncryption(executorService, threadCount, 0);
+            long parallelNanos = timeCommit(sharedPreferenceVault, entryCount);
+
+            if (crossoverEntryCount < 0 && parallelNanos < serialNanos) {
+                crossoverEntryCount = entryCount;
+            }
+            Log.i(TAG, "Entries: " + entryCount + " serial: " + serialNanos / 1000 + "us parallel(" + threadCount + "): " + parallelNanos / 1000 + "us speedup: " + ((float) serialNanos / parallelNanos));
+        }
+        Log.i(TAG, "Parallel encryption first faster at " + crossoverEntryCount + " entries");
+
+        executorService.shutdown();
+        sharedPreferenceVault.clearStorage();
+    }
+
+    @SuppressLint("CommitPrefEdits")
+    private long timeCommit(SharedPreferenceVault sharedPreferenceVault, int entryCount) {
+        //Warm up the threads and Cipher instances.
+        populate(sharedPreferenceVault, entryCount);
+        long totalNanos = 0;
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            sharedPreferenceVault.edit().clear().commit();
+            long start = System.nanoTime();
+            populate(sharedPreferenceVault, entryCount);
+            totalNanos += System.nanoTime() - start;
+        }
+        return totalNanos / BENCHMARK_ITERATIONS;
+    }
+
+    private SharedPreferenceVault createVault() {
+        SharedPreferenceVault sharedPreferenceVault = null;
+        try {
+            sharedPreferenceVault = SharedPreferenceVaultFactory.getMemoryOnlyKeyAes256Vault(getContext(), PREF_FILE_NAME, true);
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Caught java.security.GeneralSecurityException", e);
+            assertTrue("Exception creating vault", false);
+        }
+        assertNotNull("Unable to create vault", sharedPreferenceVault);
+        sharedPreferenceVault.rekeyStorage(Aes256RandomKeyFactory.createKey());
+        return sharedPreferenceVault;
+    }
+
+    @SuppressLint("CommitPrefEdits")
+    private boolean populate(SharedPreferenceVault sharedPreferenceVault, int entryCount) {
+        SharedPreferences.Editor editor = sharedPreferenceVault.edit();
+        for (int i = 0; i < entryCount; i++) {
+            switch (i % 4) {
+                case 0:
+                    editor.putString("stringKey" + i, "Imported credential value " + i);
+                    break;
+                case 1:
+                    editor.putInt("intKey" + i, i);
+                    break;
+                case 2:
+                    editor.putLong("longKey" + i, Long.MAX_VALUE - i);
+                    break;
+                default:
+                    editor.putBoolean("booleanKey" + i, i % 3 == 0);
+                    break;
+            }
+        }
+        return editor.commit();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault.test;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.util.Log;
+
+import com.bottlerocketstudios.vault.SharedPreferenceVault;
+import com.bottlerocketstudios.vault.SharedPreferenceVaultFactory;
+import com.bottlerocketstudios.vault.keys.generator.Aes256RandomKeyFactory;
+import com.bottlerocketstudios.vault.store.ShardedVaultStore;
+import com.bottlerocketstudios.vault.store.VaultStore;
+
+import java.security.GeneralSecurityException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+
+public class TestShardedVaultStore extends VaultStoreConformanceTest {
+    private static final String TAG = TestShardedVaultStore.class.getSimpleName();
+
+    private static final String PREF_FILE_NAME = "shardedVaultPrefFile";
+    private static final int SHARD_COUNT = 4;
+    private static final int KEY_COUNT = 64;
+
+    @Override
+    protected VaultStore openStore(String name) {
+        return ShardedVaultStore.createSharedPreferencesShards(getContext(), name, SHARD_COUNT);
+    }
+
+    public void testRouting() {
+        ShardedVaultStore shardedVaultStore = ShardedVaultStore.createSharedPreferencesShards(getContext(), PREF_FILE_NAME, SHARD_COUNT);
+        shardedVaultStore.edit().clear().commit();
+        VaultStore.Editor editor = shardedVaultStore.edit();
+        for (int i = 0; i < KEY_COUNT; i++) {
+            editor.putString("key" + i, "value" + i);
+        }
+        assertTrue("Commit failed", editor.commit());
+
+        int totalCount = 0;
+        for (int shardIndex = 0; shardIndex < SHARD_COUNT; shardIndex++) {
+            Set<String> shardKeySet = getContext().getSharedPreferences(ShardedVaultStore.getShardFileName(PREF_FILE_NAME, shardIndex, SHARD_COUNT), Context.MODE_PRIVATE).getAll().keySet();
+            assertFalse("Shard " + shardIndex + " is empty", shardKeySet.isEmpty());
+            for (String key : shardKeySet) {
+                assertEquals("Key stored in wrong shard", shardIndex, shardedVaultStore.getShardIndex(key));
+            }
+            totalCount += shardKeySet.size();
+        }
+        assertEquals("Incorrect entry count", KEY_COUNT, totalCount);
+
+        //Routing must not depend on the instance.
+        ShardedVaultStore reopened = ShardedVaultStore.createSharedPreferencesShards(getContext(), PREF_FILE_NAME, SHARD_COUNT);
+        for (int i = 0; i < KEY_COUNT; i++) {
+            assertEquals("Incorrect value after reopen", "value" + i, reopened.getString("key" + i));
+        }
+        shardedVaultStore.edit().clear().commit();
+    }
+
+    @SuppressLint("CommitPrefEdits")
+    public void testShardedVault() throws InterruptedException {
+        SharedPreferenceVault sharedPreferenceVault = null;
+        try {
+            sharedPreferenceVault = SharedPreferenceVaultFactory.getShardedMemoryOnlyKeyAes256Vault(getContext(), PREF_FILE_NAME, SHARD_COUNT, true);
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Caught java.security.GeneralSecurityException", e);
+            assertTrue("Exception creating vault", false);
+        }
+        assertNotNull("Unable to create vault", sharedPreferenceVault);
+        sharedPreferenceVault.rekeyStorage(Aes256RandomKeyFactory.createKey());
+
+        final LinkedBlockingQueue<Set<String>> changeQueue = new LinkedBlockingQueue<>();
+        sharedPreferenceVault.registerOnVaultChangeListener(new SharedPreferenceVault.OnVaultChangeListener() {
+            @Override
+            public void onVaultChanged(SharedPreferenceVault vault, Set<String> changedKeys) {
+                changeQueue.add(changedKeys);
+            }
+        }, (Executor) null);
+
+        Set<String> keySet = new HashSet<>();
+        SharedPreferenceVault.Editor editor = sharedPreferenceVault.edit();
+        for (int i = 0; i < KEY_COUNT; i++) {
+            editor.putInt("key" + i, i);
+            keySet.add("key" + i);
+        }
+        editor.commit();
+        assertEquals("Listener did not receive keys from every shard", keySet, changeQueue.poll());
+
+        assertEquals("Incorrect entry count", KEY_COUNT, sharedPreferenceVault.getAll().size());
+        for (int i = 0; i < KEY_COUNT; i++) {
+            assertEquals("Incorrect value", i, sharedPreferenceVault.getInt("key" + i, -1));
+        }
+
+        sharedPreferenceVault.clearStorage();
+        sharedPreferenceVault.setKey(Aes256RandomKeyFactory.createKey());
+        assertTrue("Shards were not cleared", sharedPreferenceVault.getAll().isEmpty());
+    }
+}
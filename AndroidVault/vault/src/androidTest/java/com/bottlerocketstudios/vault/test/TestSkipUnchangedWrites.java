@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault.test;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.bottlerocketstudios.vault.SharedPreferenceVault;
+import com.bottlerocketstudios.vault.SharedPreferenceVaultFactory;
+import com.bottlerocketstudios.vault.keys.generator.Aes256RandomKeyFactory;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class TestSkipUnchangedWrites extends AndroidTestCase {
+    private static final String TAG = TestSkipUnchangedWrites.class.getSimpleName();
+
+    private static final String PREF_FILE_NAME = "skipUnchangedPrefFile";
+
+    private static final String TEST_STRING_KEY = "testKey";
+    private static final String TEST_STRING_VALUE = " This is a test. ";
+    private static final String TEST_FLOAT_KEY = "testFloatKey";
+    private static final float TEST_FLOAT_VALUE = 0.5f;
+    private static final String TEST_STRING_SET_KEY = "testStringSetKey";
+    private static final Set<String> TEST_STRING_SET_VALUE;
+
+    static {
+        Set<String> stringSet = new HashSet<>();
+        stringSet.add("Test String One");
+        stringSet.add("Test String Two");
+        TEST_STRING_SET_VALUE = stringSet;
+    }
+
+    @SuppressLint("CommitPrefEdits")
+    public void testSkipUnchangedWrites() {
+        SharedPreferenceVault sharedPreferenceVault = null;
+        try {
+            sharedPreferenceVault = SharedPreferenceVaultFactory.getMemoryOnlyKeyAes256Vault(getContext(), PREF_FILE_NAME, true);
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Caught java.security.GeneralSecurityException", e);
+            assertTrue("Exception creating vault", false);
+        }
+        assertNotNull("Unable to create vault", sharedPreferenceVault);
+        sharedPreferenceVault.rekeyStorage(Aes256RandomKeyFactory.createKey());
+        sharedPreferenceVault.setSkipUnchangedWrites(true);
+
+        sharedPreferenceVault.edit()
+                .putString(TEST_STRING_KEY, TEST_STRING_VALUE)
+                .putFloat(TEST_FLOAT_KEY, TEST_FLOAT_VALUE)
+                .putStringSet(TEST_STRING_SET_KEY, TEST_STRING_SET_VALUE)
+                .commit();
+
+        SharedPreferences underlyingPreferences = getContext().getSharedPreferences(PREF_FILE_NAME, Context.MODE_PRIVATE);
+        String encryptedString = underlyingPreferences.getString(TEST_STRING_KEY, null);
+
+        final List<String> notifiedKeyList = Collections.synchronizedList(new ArrayList<String>());
+        SharedPreferences.OnSharedPreferenceChangeListener listener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+            @Override
+            public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                notifiedKeyList.add(key);
+            }
+        };
+        sharedPreferenceVault.registerOnSharedPreferenceChangeListener(listener);
+
+        long skippedValueWriteCount = sharedPreferenceVault.getSkippedValueWriteCount();
+        long skippedEditorWriteCount = sharedPreferenceVault.getSkippedEditorWriteCount();
+        sharedPreferenceVault.edit()
+                .putString(TEST_STRING_KEY, TEST_STRING_VALUE)
+                .putFloat(TEST_FLOAT_KEY, TEST_FLOAT_VALUE)
+                .putStringSet(TEST_STRING_SET_KEY, new HashSet<>(TEST_STRING_SET_VALUE))
+                .remove("missingKey")
+                .commit();
+
+        assertEquals("Unchanged values were written", skippedValueWriteCount + 3, sharedPreferenceVault.getSkippedValueWriteCount());
+        assertEquals("Editor write was not skipped", skippedEditorWriteCount + 1, sharedPreferenceVault.getSkippedEditorWriteCount());
+        assertEquals("Unchanged value was re-encrypted", encryptedString, underlyingPreferences.getString(TEST_STRING_KEY, null));
+        assertTrue("Listener notified for unchanged values", notifiedKeyList.isEmpty());
+
+        sharedPreferenceVault.edit()
+                .putString(TEST_STRING_KEY, TEST_STRING_VALUE)
+                .putFloat(TEST_FLOAT_KEY, TEST_FLOAT_VALUE * 2)
+                .commit();
+        assertEquals("Incorrect changed value", TEST_FLOAT_VALUE * 2, sharedPreferenceVault.getFloat(TEST_FLOAT_KEY, 0));
+        assertEquals("Listener not notified for only the changed value", Collections.singletonList(TEST_FLOAT_KEY), notifiedKeyList);
+
+        sharedPreferenceVault.setSkipUnchangedWrites(false);
+        sharedPreferenceVault.edit().putString(TEST_STRING_KEY, TEST_STRING_VALUE).commit();
+        assertFalse("Value not re-encrypted when disabled", encryptedString.equals(underlyingPreferences.getString(TEST_STRING_KEY, null)));
+
+        sharedPreferenceVault.unregisterOnSharedPreferenceChangeListener(listener);
+        sharedPreferenceVault.clearStorage();
+    }
+}
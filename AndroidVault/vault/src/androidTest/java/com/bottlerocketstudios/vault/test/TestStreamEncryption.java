@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault.test;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.bottlerocketstudios.vault.EncryptedFileChannelReader;
+import com.bottlerocketstudios.vault.EncryptionConstants;
+import com.bottlerocketstudios.vault.SharedPreferenceVault;
+import com.bottlerocketstudios.vault.SharedPreferenceVaultFactory;
+import com.bottlerocketstudios.vault.StreamEncryptionUtils;
+import com.bottlerocketstudios.vault.keys.generator.Aes256RandomKeyFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+
+public class TestStreamEncryption extends AndroidTestCase {
+    private static final String TAG = TestStreamEncryption.class.getSimpleName();
+
+    private static final String PREF_FILE_NAME = "streamEncryptionPrefFile";
+    private static final String TRANSFORM = EncryptionConstants.AES_CBC_PADDED_TRANSFORM;
+    private static final int CHUNK_SIZE = 1024;
+    private static final int[] PAYLOAD_SIZES = {0, 1, CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1, 3 * CHUNK_SIZE, 3 * 1024 * 1024 + 7};
+    private static final int[] BENCHMARK_CHUNK_SIZES = {4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024};
+    private static final int BENCHMARK_PAYLOAD_SIZE = 4 * 1024 * 1024;
+
+    public void testRoundTrip() throws Exception {
+        SecretKey secretKey = Aes256RandomKeyFactory.createKey();
+        for (int payloadSize : PAYLOAD_SIZES) {
+            byte[] payload = createPayload(payloadSize);
+            byte[] encrypted = encrypt(secretKey, payload, CHUNK_SIZE);
+            assertTrue("Incorrect decrypted payload of " + payloadSize, Arrays.equals(payload, decrypt(secretKey, encrypted)));
+        }
+    }
+
+    public void testRandomAccess() throws Exception {
+        SecretKey secretKey = Aes256RandomKeyFactory.createKey();
+        byte[] payload = createPayload(10 * CHUNK_SIZE + 17);
+        File file = writeFile(encrypt(secretKey, payload, CHUNK_SIZE));
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            EncryptedFileChannelReader reader = StreamEncryptionUtils.openEncryptedFileChannel(secretKey, TRANSFORM, randomAccessFile.getChannel());
+            assertEquals("Incorrect size", payload.length, reader.size());
+
+            long[] positions = {0, 1, CHUNK_SIZE - 3, 5 * CHUNK_SIZE, payload.length - 10};
+            for (long position : positions) {
+                ByteBuffer buffer = ByteBuffer.allocate(2 * CHUNK_SIZE);
+                int read = reader.read(buffer, position);
+                int expected = (int) Math.min(buffer.capacity(), payload.length - position);
+                assertEquals("Incorrect read length at " + position, expected, read);
+                assertTrue("Incorrect data at " + position, Arrays.equals(Arrays.copyOfRange(payload, (int) position, (int) position + expected), Arrays.copyOf(buffer.array(), read)));
+            }
+            assertEquals("Read past end", -1, reader.read(ByteBuffer.allocate(1), payload.length));
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    public void testTamperDetection() throws Exception {
+        SecretKey secretKey = Aes256RandomKeyFactory.createKey();
+        byte[] payload = createPayload(4 * CHUNK_SIZE);
+        byte[] encrypted = encrypt(secretKey, payload, CHUNK_SIZE);
+        int headerSize = encrypted.length - 4 * (CHUNK_SIZE + 16) - 16;
+
+        byte[] modified = encrypted.clone();
+        modified[headerSize + CHUNK_SIZE + 20] ^= 1;
+        assertDecryptFails("Modified chunk accepted", secretKey, modified);
+
+        //Removing whole chunks from the end leaves a chunk that was not written as the final chunk.
+        assertDecryptFails("Truncated stream accepted", secretKey, Arrays.copyOf(encrypted, headerSize + 2 * (CHUNK_SIZE + 16)));
+
+        byte[] swapped = encrypted.clone();
+        System.arraycopy(encrypted, headerSize, swapped, headerSize + CHUNK_SIZE + 16, CHUNK_SIZE + 16);
+        System.arraycopy(encrypted, headerSize + CHUNK_SIZE + 16, swapped, headerSize, CHUNK_SIZE + 16);
+        assertDecryptFails("Reordered chunks accepted", secretKey, swapped);
+
+        assertDecryptFails("Wrong key accepted", Aes256RandomKeyFactory.createKey(), encrypted);
+    }
+
+    public void testVaultStreams() throws Exception {
+        SharedPreferenceVault sharedPreferenceVault = null;
+        try {
+            sharedPreferenceVault = SharedPreferenceVaultFactory.getMemoryOnlyKeyAes256Vault(getContext(), PREF_FILE_NAME, true);
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Caught java.security.GeneralSecurityException", e);
+            assertTrue("Exception creating vault", false);
+        }
+        assertNotNull("Unable to create vault", sharedPreferenceVault);
+        sharedPreferenceVault.rekeyStorage(Aes256RandomKeyFactory.createKey());
+
+        byte[] payload = createPayload(200 * 1024);
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        OutputStream outputStream = sharedPreferenceVault.createEncryptingOutputStream(byteArrayOutputStream);
+        outputStream.write(payload);
+        outputStream.close();
+
+        InputStream inputStream = sharedPreferenceVault.createDecryptingInputStream(new ByteArrayInputStream(byteArrayOutputStream.toByteArray()));
+        assertTrue("Incorrect vault stream payload", Arrays.equals(payload, readAll(inputStream)));
+        sharedPreferenceVault.clearStorage();
+    }
+
+    public void testThroughput() throws Exception {
+        SecretKey secretKey = Aes256RandomKeyFactory.createKey();
+        byte[] payload = createPayload(BENCHMARK_PAYLOAD_SIZE);
+        double megabytes = BENCHMARK_PAYLOAD_SIZE / (1024.0 * 1024.0);
+        for (int chunkSize : BENCHMARK_CHUNK_SIZES) {
+            long start = System.nanoTime();
+            byte[] encrypted = encrypt(secretKey, payload, chunkSize);
+            long encryptNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            byte[] decrypted = decrypt(secretKey, encrypted);
+            long decryptNanos = System.nanoTime() - start;
+            assertTrue("Incorrect decrypted payload", Arrays.equals(payload, decrypted));
+
+            Log.i(TAG, String.format(Locale.US, "chunk %dKB: encrypt %.1f MB/s decrypt %.1f MB/s overhead %d bytes", chunkSize / 1024, megabytes / (encryptNanos / 1e9), megabytes / (decryptNanos / 1e9), encrypted.length - payload.length));
+        }
+    }
+
+    private void assertDecryptFails(String message, SecretKey secretKey, byte[] encrypted) {
+        try {
+            decrypt(secretKey, encrypted);
+            fail(message);
+        } catch (IOException | GeneralSecurityException e) {
+            //Expected
+        }
+    }
+
+    private static byte[] encrypt(SecretKey secretKey, byte[] payload, int chunkSize) throws GeneralSecurityException, IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(payload.length + payload.length / 16 + 1024);
+        OutputStream outputStream = StreamEncryptionUtils.createEncryptingOutputStream(secretKey, TRANSFORM, byteArrayOutputStream, chunkSize);
+        //Write in uneven pieces to cross chunk boundaries.
+        int offset = 0;
+        while (offset < payload.length) {
+            int length = Math.min(payload.length - offset, 777);
+            outputStream.write(payload, offset, length);
+            offset += length;
+        }
+        outputStream.close();
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    private static byte[] decrypt(SecretKey secretKey, byte[] encrypted) throws GeneralSecurityException, IOException {
+        return readAll(StreamEncryptionUtils.createDecryptingInputStream(secretKey, TRANSFORM, new ByteArrayInputStream(encrypted)));
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            byteArrayOutputStream.write(buffer, 0, read);
+        }
+        inputStream.close();
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    private File writeFile(byte[] data) throws IOException {
+        File file = new File(getContext().getCacheDir(), TAG + ".bin");
+        FileOutputStream fileOutputStream = new FileOutputStream(file);
+        fileOutputStream.write(data);
+        fileOutputStream.close();
+        return file;
+    }
+
+    private static byte[] createPayload(int size) {
+        byte[] payload = new byte[size];
+        new Random(size).nextBytes(payload);
+        return payload;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault.test;
+
+import android.test.AndroidTestCase;
+
+import com.bottlerocketstudios.vault.StronglyTypedBundle;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class TestStronglyTypedBundle extends AndroidTestCase {
+
+    private static final int OPERATION_COUNT = 20000;
+    private static final int KEY_RANGE = 64;
+
+    /**
+     * Apply random puts and removes to the bundle and to a HashMap and verify they always agree.
+     */
+    public void testMatchesHashMap() {
+        Random random = new Random(42);
+        StronglyTypedBundle stronglyTypedBundle = new StronglyTypedBundle();
+        Map<String, Object> expectedMap = new HashMap<>();
+
+        for (int i = 0; i < OPERATION_COUNT; i++) {
+            String key = "key" + random.nextInt(KEY_RANGE);
+            switch (random.nextInt(7)) {
+                case 0:
+                    stronglyTypedBundle.putString(key, "value" + i);
+                    expectedMap.put(key, "value" + i);
+                    break;
+                case 1:
+                    stronglyTypedBundle.putInt(key, random.nextInt());
+                    expectedMap.put(key, stronglyTypedBundle.getInt(key));
+                    break;
+                case 2:
+                    stronglyTypedBundle.putLong(key, random.nextLong());
+                    expectedMap.put(key, stronglyTypedBundle.getLong(key));
+                    break;
+                case 3:
+                    stronglyTypedBundle.putFloat(key, random.nextFloat() - 0.5f);
+                    expectedMap.put(key, stronglyTypedBundle.getFloat(key));
+                    break;
+                case 4:
+                    stronglyTypedBundle.putBoolean(key, random.nextBoolean());
+                    expectedMap.put(key, stronglyTypedBundle.getBoolean(key));
+                    break;
+                case 5:
+                    stronglyTypedBundle.putStringSet(key, Collections.singleton("value" + i));
+                    expectedMap.put(key, Collections.singleton("value" + i));
+                    break;
+                default:
+                    stronglyTypedBundle.remove(key);
+                    expectedMap.remove(key);
+                    break;
+            }
+
+            assertEquals("Incorrect size", expectedMap.size(), stronglyTypedBundle.size());
+            assertEquals("Incorrect value", expectedMap.get(key), stronglyTypedBundle.getValue(key));
+        }
+
+        assertEquals("Incorrect keys", expectedMap.keySet(), stronglyTypedBundle.keySet());
+        for (Map.Entry<String, Object> entry : expectedMap.entrySet()) {
+            assertEquals("Incorrect value", entry.getValue(), stronglyTypedBundle.getValue(entry.getKey()));
+            assertTrue("Value not equal", stronglyTypedBundle.valueEquals(entry.getKey(), entry.getValue()));
+        }
+
+        StronglyTypedBundle copy = new StronglyTypedBundle();
+        copy.putAll(stronglyTypedBundle);
+        assertEquals("Incorrect copy", expectedMap.keySet(), copy.keySet());
+    }
+
+    public void testPrimitiveRoundTrip() {
+        StronglyTypedBundle stronglyTypedBundle = new StronglyTypedBundle();
+        stronglyTypedBundle.putInt("int", Integer.MIN_VALUE);
+        assertEquals("Incorrect inline int", Integer.MIN_VALUE, stronglyTypedBundle.getInt("int"));
+        stronglyTypedBundle.putLong("long", Long.MIN_VALUE);
+        stronglyTypedBundle.putFloat("float", -0.0f);
+        stronglyTypedBundle.putBoolean("boolean", true);
+
+        assertEquals("Incorrect int", Integer.MIN_VALUE, stronglyTypedBundle.getInt("int"));
+        assertEquals("Incorrect long", Long.MIN_VALUE, stronglyTypedBundle.getLong("long"));
+        assertEquals("Incorrect float", Float.floatToRawIntBits(-0.0f), Float.floatToRawIntBits(stronglyTypedBundle.getFloat("float")));
+        assertTrue("Incorrect boolean", stronglyTypedBundle.getBoolean("boolean"));
+        assertEquals("Incorrect type", Integer.class, stronglyTypedBundle.getTypeForValue("int"));
+        assertNull("Missing key has a value", stronglyTypedBundle.getValue("missing"));
+        assertFalse("Boxed type mismatch reported equal", stronglyTypedBundle.valueEquals("int", (long) Integer.MIN_VALUE));
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault.test;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.bottlerocketstudios.vault.CharacterEncodingConstants;
+import com.bottlerocketstudios.vault.EncryptionConstants;
+import com.bottlerocketstudios.vault.SharedPreferenceVault;
+import com.bottlerocketstudios.vault.SharedPreferenceVaultFactory;
+import com.bottlerocketstudios.vault.StringEncryptionUtils;
+import com.bottlerocketstudios.vault.keys.generator.Aes256RandomKeyFactory;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+
+public class TestTypedValueEnvelope extends AndroidTestCase {
+    private static final String TAG = TestTypedValueEnvelope.class.getSimpleName();
+
+    private static final String PREF_FILE_NAME = "typedValuePrefFile";
+
+    private static final String NUMERIC_STRING_KEY = "numericStringKey";
+    private static final String NUMERIC_STRING_VALUE = "1234";
+    private static final String BOOLEAN_STRING_KEY = "booleanStringKey";
+    private static final String BOOLEAN_STRING_VALUE = "true";
+    private static final String SMALL_LONG_KEY = "smallLongKey";
+    private static final long SMALL_LONG_VALUE = 12L;
+    private static final String LEGACY_INT_KEY = "legacyIntKey";
+    private static final int LEGACY_INT_VALUE = -230;
+
+    @SuppressLint("CommitPrefEdits")
+    public void testTypedValues() {
+        SharedPreferenceVault sharedPreferenceVault = null;
+        try {
+            sharedPreferenceVault = SharedPreferenceVaultFactory.getMemoryOnlyKeyAes256Vault(getContext(), PREF_FILE_NAME, true);
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Caught java.security.GeneralSecurityException", e);
+            assertTrue("Exception creating vault", false);
+        }
+        assertNotNull("Unable to create vault", sharedPreferenceVault);
+        SecretKey secretKey = Aes256RandomKeyFactory.createKey();
+        sharedPreferenceVault.rekeyStorage(secretKey);
+
+        sharedPreferenceVault.edit()
+                .putString(NUMERIC_STRING_KEY, NUMERIC_STRING_VALUE)
+                .putString(BOOLEAN_STRING_KEY, BOOLEAN_STRING_VALUE)
+                .putLong(SMALL_LONG_KEY, SMALL_LONG_VALUE)
+                .commit();
+
+        //Write a value in the original untyped format.
+        try {
+            String legacyValue = StringEncryptionUtils.encrypt(secretKey, String.valueOf(LEGACY_INT_VALUE), CharacterEncodingConstants.UTF_8, EncryptionConstants.AES_CBC_PADDED_TRANSFORM);
+            getContext().getSharedPreferences(PREF_FILE_NAME, Context.MODE_PRIVATE).edit().putString(LEGACY_INT_KEY, legacyValue).commit();
+        } catch (GeneralSecurityException | UnsupportedEncodingException e) {
+            Log.e(TAG, "Caught exception writing legacy value", e);
+            assertTrue("Exception writing legacy value", false);
+        }
+
+        Map<String, ?> fullSet = sharedPreferenceVault.getAll();
+        assertEquals("Numeric string was not kept as a String", NUMERIC_STRING_VALUE, fullSet.get(NUMERIC_STRING_KEY));
+        assertEquals("Boolean string was not kept as a String", BOOLEAN_STRING_VALUE, fullSet.get(BOOLEAN_STRING_KEY));
+        assertEquals("Long in Integer range was not kept as a Long", SMALL_LONG_VALUE, fullSet.get(SMALL_LONG_KEY));
+        assertEquals("Legacy value type was not inferred", LEGACY_INT_VALUE, fullSet.get(LEGACY_INT_KEY));
+
+        assertEquals("Legacy value not readable", LEGACY_INT_VALUE, sharedPreferenceVault.getInt(LEGACY_INT_KEY, 0));
+        assertEquals("Numeric string not readable as int", Integer.parseInt(NUMERIC_STRING_VALUE), sharedPreferenceVault.getInt(NUMERIC_STRING_KEY, 0));
+        assertEquals("Long not readable as String", String.valueOf(SMALL_LONG_VALUE), sharedPreferenceVault.getString(SMALL_LONG_KEY, null));
+
+        sharedPreferenceVault.clearStorage();
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bottlerocketstudios.vault.test;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+import android.util.Base64;
+import android.util.Log;
+
+import com.bottlerocketstudios.vault.EncryptionConstants;
+import com.bottlerocketstudios.vault.SharedPreferenceVault;
+import com.bottlerocketstudios.vault.SharedPreferenceVaultFactory;
+import com.bottlerocketstudios.vault.ValueEngineCalibration;
+
+import java.security.GeneralSecurityException;
+
+public class TestValueEngineCalibration extends AndroidTestCase {
+    private static final String TAG = TestValueEngineCalibration.class.getSimpleName();
+
+    private static final String KEY_FILE_NAME = "calibrationKeyFile";
+    private static final String PREF_FILE_NAME = "calibrationPrefFile";
+    private static final String KEY_ALIAS = "calibrationKeyAlias";
+    private static final int KEY_INDEX = 1;
+    private static final String PRESHARED_SECRET = "p9a8sdf;lkjqw4;lkjzsdv098a7sdf";
+    private static final int HEADER_VERSION_OFFSET = 1;
+    private static final int GCM_TYPED_VERSION = 4;
+    private static final int CHACHA20_POLY1305_TYPED_VERSION = 5;
+
+    private SharedPreferenceVault createVault() {
+        SharedPreferenceVault sharedPreferenceVault = null;
+        try {
+            sharedPreferenceVault = SharedPreferenceVaultFactory.getAppKeyedCalibratedCompatVault(getContext(), PREF_FILE_NAME, KEY_FILE_NAME, KEY_ALIAS, KEY_INDEX, PRESHARED_SECRET, false);
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Caught java.security.GeneralSecurityException", e);
+            assertTrue("Exception creating vault", false);
+        }
+        assertNotNull("Unable to create vault", sharedPreferenceVault);
+        return sharedPreferenceVault;
+    }
+
+    @SuppressLint("CommitPrefEdits")
+    public void testCalibration() {
+        SharedPreferences keyPreferences = getContext().getSharedPreferences(KEY_FILE_NAME, Context.MODE_PRIVATE);
+        keyPreferences.edit().clear().commit();
+        assertNull("Calibration present before running", SharedPreferenceVaultFactory.getValueEngineCalibration(getContext(), KEY_FILE_NAME, KEY_ALIAS));
+
+        SharedPreferenceVault sharedPreferenceVault = createVault();
+        ValueEngineCalibration calibration = SharedPreferenceVaultFactory.getValueEngineCalibration(getContext(), KEY_FILE_NAME, KEY_ALIAS);
+        assertNotNull("Calibration was not recorded", calibration);
+        Log.i(TAG, calibration.toString());
+        assertEquals("Incorrect engine count", 3, calibration.getThroughputMap().size());
+        for (Integer throughput : calibration.getThroughputMap().values()) {
+            assertTrue("Engine unavailable", throughput > 0);
+        }
+        String selectedTransform = calibration.getSelectedTransform();
+        assertTrue("Unauthenticated engine selected", EncryptionConstants.AES_GCM_TRANSFORM.equals(selectedTransform)
+                || EncryptionConstants.CHACHA20_POLY1305_TRANSFORM.equals(selectedTransform));
+        int selectedThroughput = calibration.getThroughputMap().get(selectedTransform);
+        assertTrue("Slower engine selected", selectedThroughput >= calibration.getThroughputMap().get(EncryptionConstants.AES_GCM_TRANSFORM)
+                && selectedThroughput >= calibration.getThroughputMap().get(EncryptionConstants.CHACHA20_POLY1305_TRANSFORM));
+
+        sharedPreferenceVault.edit().putString("key", "value").commit();
+        assertEquals("Incorrect value", "value", sharedPreferenceVault.getString("key", null));
+        int expectedVersion = EncryptionConstants.AES_GCM_TRANSFORM.equals(selectedTransform) ? GCM_TYPED_VERSION : CHACHA20_POLY1305_TYPED_VERSION;
+        assertEquals("Selected engine not used", expectedVersion, getEnvelopeVersion("key"));
+
+        //The recorded selection is used rather than running again.
+        String otherTransform = EncryptionConstants.AES_GCM_TRANSFORM.equals(selectedTransform) ? EncryptionConstants.CHACHA20_POLY1305_TRANSFORM : EncryptionConstants.AES_GCM_TRANSFORM;
+        keyPreferences.edit().putString("valueEngineSelected." + KEY_ALIAS, otherTransform).commit();
+        SharedPreferenceVault recordedVault = createVault();
+        assertEquals("Value from other engine unreadable", "value", recordedVault.getString("key", null));
+        recordedVault.edit().putString("key", "value").commit();
+        assertEquals("Recorded engine not used", expectedVersion == GCM_TYPED_VERSION ? CHACHA20_POLY1305_TYPED_VERSION : GCM_TYPED_VERSION, getEnvelopeVersion("key"));
+        assertEquals("Incorrect upgraded value", "value", recordedVault.getString("key", null));
+
+        recordedVault.clearStorage();
+    }
+
+    private int getEnvelopeVersion(String key) {
+        String rawValue = getContext().getSharedPreferences(PREF_FILE_NAME, Context.MODE_PRIVATE).getString(key, null);
+        return Base64.decode(rawValue, Base64.DEFAULT)[HEADER_VERSION_OFFSET];
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault.test;
+
+import android.annotation.SuppressLint;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.bottlerocketstudios.vault.SharedPreferenceVault;
+import com.bottlerocketstudios.vault.SharedPreferenceVaultFactory;
+import com.bottlerocketstudios.vault.keys.generator.Aes256RandomKeyFactory;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class TestVaultChangeListener extends AndroidTestCase {
+    private static final String TAG = TestVaultChangeListener.class.getSimpleName();
+
+    private static final String PREF_FILE_NAME = "vaultChangeListenerPrefFile";
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @SuppressLint("CommitPrefEdits")
+    public void testVaultChangeListener() throws InterruptedException {
+        SharedPreferenceVault sharedPreferenceVault = null;
+        try {
+            sharedPreferenceVault = SharedPreferenceVaultFactory.getMemoryOnlyKeyAes256Vault(getContext(), PREF_FILE_NAME, true);
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Caught java.security.GeneralSecurityException", e);
+            assertTrue("Exception creating vault", false);
+        }
+        assertNotNull("Unable to create vault", sharedPreferenceVault);
+        sharedPreferenceVault.rekeyStorage(Aes256RandomKeyFactory.createKey());
+        sharedPreferenceVault.setSkipUnchangedWrites(true);
+
+        final Thread writerThread = Thread.currentThread();
+        final LinkedBlockingQueue<Set<String>> changeQueue = new LinkedBlockingQueue<>();
+        SharedPreferenceVault.OnVaultChangeListener listener = new SharedPreferenceVault.OnVaultChangeListener() {
+            @Override
+            public void onVaultChanged(SharedPreferenceVault vault, Set<String> changedKeys) {
+                assertNotSame("Listener called on writer thread", writerThread, Thread.currentThread());
+                changeQueue.add(changedKeys);
+            }
+        };
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        sharedPreferenceVault.registerOnVaultChangeListener(listener, executorService);
+
+        sharedPreferenceVault.edit().putString("keyOne", "one").putInt("keyTwo", 2).putBoolean("keyThree", true).commit();
+        assertEquals("Incorrect changed keys", new HashSet<>(Arrays.asList("keyOne", "keyTwo", "keyThree")), changeQueue.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        //Only the changed value is reported.
+        sharedPreferenceVault.edit().putString("keyOne", "one").putInt("keyTwo", 3).remove("keyThree").commit();
+        assertEquals("Incorrect changed keys", new HashSet<>(Arrays.asList("keyTwo", "keyThree")), changeQueue.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        sharedPreferenceVault.unregisterOnVaultChangeListener(listener);
+        sharedPreferenceVault.edit().putString("keyOne", "changed").commit();
+        assertNull("Notified after unregistration", changeQueue.poll(1, TimeUnit.SECONDS));
+
+        executorService.shutdown();
+        sharedPreferenceVault.clearStorage();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault.test;
+
+import android.annotation.SuppressLint;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.bottlerocketstudios.vault.SharedPreferenceVault;
+import com.bottlerocketstudios.vault.SharedPreferenceVaultFactory;
+import com.bottlerocketstudios.vault.VaultWarmUpResult;
+import com.bottlerocketstudios.vault.keys.generator.Aes256RandomKeyFactory;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class TestWarmUp extends AndroidTestCase {
+    private static final String TAG = TestWarmUp.class.getSimpleName();
+
+    private static final String PREF_FILE_NAME = "warmUpPrefFile";
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private static final String TEST_STRING_KEY = "testKey";
+    private static final String TEST_STRING_VALUE = " This is a test. ";
+
+    @SuppressLint("CommitPrefEdits")
+    public void testWarmUp() throws InterruptedException, ExecutionException, TimeoutException {
+        SharedPreferenceVault sharedPreferenceVault = null;
+        try {
+            sharedPreferenceVault = SharedPreferenceVaultFactory.getMemoryOnlyKeyAes256Vault(getContext(), PREF_FILE_NAME, true);
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Caught java.security.GeneralSecurityException", e);
+            assertTrue("Exception creating vault", false);
+        }
+        assertNotNull("Unable to create vault", sharedPreferenceVault);
+
+        VaultWarmUpResult noKeyResult = sharedPreferenceVault.warmUp(null).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertFalse("Key reported without a key", noKeyResult.isKeyAvailable());
+
+        sharedPreferenceVault.rekeyStorage(Aes256RandomKeyFactory.createKey());
+        sharedPreferenceVault.edit().putString(TEST_STRING_KEY, TEST_STRING_VALUE).commit();
+        sharedPreferenceVault.setDecryptedValueCacheSize(10);
+
+        VaultWarmUpResult result = sharedPreferenceVault.warmUp(Arrays.asList(TEST_STRING_KEY, "missingKey")).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        Log.i(TAG, result.toString());
+        assertTrue("Key not available", result.isKeyAvailable());
+        assertEquals("Incorrect hot key count", 1, result.getHotKeyCount());
+        assertTrue("Cipher was not initialized", result.getCipherInitNanos() > 0);
+
+        //The hot key was decrypted into the cache during warm up.
+        assertEquals("Incorrect value", TEST_STRING_VALUE, sharedPreferenceVault.getString(TEST_STRING_KEY, null));
+        assertEquals("Hot key was not cached", 1, sharedPreferenceVault.getDecryptedValueCacheHitCount());
+
+        sharedPreferenceVault.setDecryptedValueCacheSize(0);
+        sharedPreferenceVault.clearStorage();
+    }
+}
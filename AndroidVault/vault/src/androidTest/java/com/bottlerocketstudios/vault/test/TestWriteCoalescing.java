@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault.test;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.bottlerocketstudios.vault.SharedPreferenceVault;
+import com.bottlerocketstudios.vault.SharedPreferenceVaultFactory;
+import com.bottlerocketstudios.vault.keys.generator.Aes256RandomKeyFactory;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+public class TestWriteCoalescing extends AndroidTestCase {
+    private static final String TAG = TestWriteCoalescing.class.getSimpleName();
+
+    private static final String PREF_FILE_NAME = "writeCoalescingPrefFile";
+    private static final long WINDOW_MILLIS = 60000;
+    private static final int KEY_COUNT = 5;
+    private static final int APPLY_COUNT = 50;
+
+    @SuppressLint("CommitPrefEdits")
+    public void testWriteCoalescing() {
+        SharedPreferenceVault sharedPreferenceVault = null;
+        try {
+            sharedPreferenceVault = SharedPreferenceVaultFactory.getMemoryOnlyKeyAes256Vault(getContext(), PREF_FILE_NAME, true);
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Caught java.security.GeneralSecurityException", e);
+            assertTrue("Exception creating vault", false);
+        }
+        assertNotNull("Unable to create vault", sharedPreferenceVault);
+        sharedPreferenceVault.rekeyStorage(Aes256RandomKeyFactory.createKey());
+
+        final List<String> notifiedKeyList = Collections.synchronizedList(new ArrayList<String>());
+        SharedPreferences.OnSharedPreferenceChangeListener listener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+            @Override
+            public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                notifiedKeyList.add(key);
+            }
+        };
+        sharedPreferenceVault.registerOnSharedPreferenceChangeListener(listener);
+
+        //A long window ensures nothing is written until the commit below.
+        sharedPreferenceVault.setWriteCoalescingWindow(WINDOW_MILLIS);
+        for (int i = 0; i < APPLY_COUNT; i++) {
+            sharedPreferenceVault.edit().putInt("key" + (i % KEY_COUNT), i).apply();
+        }
+
+        SharedPreferences underlyingPreferences = getContext().getSharedPreferences(PREF_FILE_NAME, Context.MODE_PRIVATE);
+        assertFalse("Write was not coalesced", underlyingPreferences.contains("key0"));
+        assertEquals("Pending value not visible", APPLY_COUNT - 1, sharedPreferenceVault.getInt("key" + (KEY_COUNT - 1), -1));
+        assertTrue("Listener notified before write", notifiedKeyList.isEmpty());
+
+        sharedPreferenceVault.edit().remove("key0").commit();
+        assertFalse("Removed key still present", underlyingPreferences.contains("key0"));
+        assertTrue("Commit did not flush pending writes", underlyingPreferences.contains("key1"));
+        assertEquals("Incorrect value after flush", APPLY_COUNT - KEY_COUNT + 1, sharedPreferenceVault.getInt("key1", -1));
+        assertEquals("Listener not notified once per key", KEY_COUNT, new HashSet<>(notifiedKeyList).size());
+        assertEquals("Listener notified more than once per key", KEY_COUNT, notifiedKeyList.size());
+
+        sharedPreferenceVault.unregisterOnSharedPreferenceChangeListener(listener);
+        sharedPreferenceVault.setWriteCoalescingWindow(0);
+        sharedPreferenceVault.clearStorage();
+    }
+}
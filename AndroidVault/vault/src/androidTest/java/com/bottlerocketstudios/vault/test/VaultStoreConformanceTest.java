@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault.test;
+
+import android.annotation.SuppressLint;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.bottlerocketstudios.vault.EncryptionConstants;
+import com.bottlerocketstudios.vault.SharedPreferenceVault;
+import com.bottlerocketstudios.vault.StandardSharedPreferenceVault;
+import com.bottlerocketstudios.vault.keys.generator.Aes256RandomKeyFactory;
+import com.bottlerocketstudios.vault.keys.storage.MemoryOnlyKeyStorage;
+import com.bottlerocketstudios.vault.store.VaultStore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Behavior and benchmark suite which every {@link VaultStore} implementation must pass. Subclass it and provide
+ * the store under test.
+ */
+public abstract class VaultStoreConformanceTest extends AndroidTestCase {
+    private static final String TAG = VaultStoreConformanceTest.class.getSimpleName();
+
+    private static final int THREAD_COUNT = 8;
+    private static final int WRITES_PER_THREAD = 50;
+    private static final int LARGE_VALUE_LENGTH = 256 * 1024;
+    private static final int BENCHMARK_ENTRY_COUNT = 500;
+    private static final int BENCHMARK_VALUE_LENGTH = 64;
+
+    /**
+     * Open the store with the given name. Opening the same name again must provide access to the same data.
+     */
+    protected abstract VaultStore openStore(String name);
+
+    private VaultStore mVaultStore;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mVaultStore = openStore(getStoreName());
+        assertTrue("Unable to clear store", mVaultStore.edit().clear().commit());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mVaultStore.edit().clear().commit();
+        super.tearDown();
+    }
+
+    protected String getStoreName() {
+        return getClass().getSimpleName();
+    }
+
+    public void testPutGetRemove() {
+        assertNull("Value found in empty store", mVaultStore.getString("key"));
+        assertFalse("Key found in empty store", mVaultStore.contains("key"));
+
+        assertTrue("Commit failed", mVaultStore.edit().putString("key", "value").commit());
+        assertEquals("Incorrect value", "value", mVaultStore.getString("key"));
+        assertTrue("Key not found", mVaultStore.contains("key"));
+
+        assertTrue("Commit failed", mVaultStore.edit().putString("key", "replacement").commit());
+        assertEquals("Value not replaced", "replacement", mVaultStore.getString("key"));
+
+        assertTrue("Commit failed", mVaultStore.edit().remove("key").commit());
+        assertNull("Value not removed", mVaultStore.getString("key"));
+        assertFalse("Key not removed", mVaultStore.contains("key"));
+    }
+
+    public void testBatchSemantics() {
+        assertTrue("Commit failed", mVaultStore.edit().putString("keep", "old").putString("drop", "old").commit());
+
+        //Clear applies before the rest of the batch no matter when it was called.
+        assertTrue("Commit failed", mVaultStore.edit().putString("new", "value").clear().commit());
+        assertEquals("Incorrect contents after clear", Collections.singletonMap("new", "value"), mVaultStore.getAll());
+
+        //Within a batch the last change to a key wins.
+        assertTrue("Commit failed", mVaultStore.edit().putString("a", "1").remove("a").putString("b", "1").putString("b", "2").commit());
+        assertFalse("Removed key present", mVaultStore.contains("a"));
+        assertEquals("Last put did not win", "2", mVaultStore.getString("b"));
+    }
+
+    public void testEnumerate() {
+        Map<String, String> expectedMap = new HashMap<>();
+        VaultStore.Editor editor = mVaultStore.edit();
+        for (int i = 0; i < 20; i++) {
+            expectedMap.put("key" + i, "value" + i);
+            editor.putString("key" + i, "value" + i);
+        }
+        assertTrue("Commit failed", editor.commit());
+        assertEquals("Incorrect enumeration", expectedMap, mVaultStore.getAll());
+
+        //The snapshot is independent from the store.
+        Map<String, String> snapshot = mVaultStore.getAll();
+        mVaultStore.edit().remove("key0").commit();
+        assertTrue("Snapshot changed", snapshot.containsKey("key0"));
+    }
+
+    public void testApplyIsVisibleImmediately() {
+        mVaultStore.edit().putString("key", "value").apply();
+        assertEquals("Applied value not visible", "value", mVaultStore.getString("key"));
+    }
+
+    public void testPersistsAcrossReopen() {
+        assertTrue("Commit failed", mVaultStore.edit().putString("persisted", "value").putString("removed", "value").commit());
+        assertTrue("Commit failed", mVaultStore.edit().remove("removed").commit());
+
+        VaultStore reopenedStore = openStore(getStoreName());
+        assertEquals("Value not persisted", "value", reopenedStore.getString("persisted"));
+        assertFalse("Removal not persisted", reopenedStore.contains("removed"));
+    }
+
+    public void testLargeValue() {
+        char[] chars = new char[LARGE_VALUE_LENGTH];
+        Arrays.fill(chars, 'x');
+        String largeValue = new String(chars);
+        assertTrue("Commit failed", mVaultStore.edit().putString("large", largeValue).commit());
+        assertEquals("Incorrect large value", largeValue, openStore(getStoreName()).getString("large"));
+    }
+
+    public void testConcurrentWriters() throws Exception {
+        ExecutorService executorService = Executors.newFixedThreadPool(THREAD_COUNT);
+        List<Future<Boolean>> futureList = new ArrayList<>();
+        for (int thread = 0; thread < THREAD_COUNT; thread++) {
+            final int threadIndex = thread;
+            futureList.add(executorService.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    boolean success = true;
+                    for (int i = 0; i < WRITES_PER_THREAD; i++) {
+                        success &= mVaultStore.edit().putString("thread" + threadIndex + "key" + i, String.valueOf(i)).commit();
+                        success &= String.valueOf(i).equals(mVaultStore.getString("thread" + threadIndex + "key" + i));
+                    }
+                    return success;
+                }
+            }));
+        }
+        for (Future<Boolean> future : futureList) {
+            assertTrue("Concurrent write failed", future.get());
+        }
+        executorService.shutdown();
+        assertEquals("Incorrect entry count", THREAD_COUNT * WRITES_PER_THREAD, mVaultStore.getAll().size());
+    }
+
+    @SuppressLint("CommitPrefEdits")
+    public void testVaultRoundTrip() {
+        SharedPreferenceVault sharedPreferenceVault = new StandardSharedPreferenceVault(getContext(), new MemoryOnlyKeyStorage(), mVaultStore, EncryptionConstants.AES_CBC_PADDED_TRANSFORM, true);
+        sharedPreferenceVault.setKey(Aes256RandomKeyFactory.createKey());
+        sharedPreferenceVault.edit().putString("string", "value").putInt("int", 7).putStringSet("set", new HashSet<>(Arrays.asList("a", "b"))).commit();
+
+        assertEquals("Incorrect string", "value", sharedPreferenceVault.getString("string", null));
+        assertEquals("Incorrect int", 7, sharedPreferenceVault.getInt("int", 0));
+        assertEquals("Incorrect set", new HashSet<>(Arrays.asList("a", "b")), sharedPreferenceVault.getStringSet("set", null));
+        assertEquals("Incorrect entry count", 3, sharedPreferenceVault.getAll().size());
+        assertFalse("Value stored unencrypted", "value".equals(mVaultStore.getString("string")));
+    }
+
+    public void testBenchmark() {
+        char[] chars = new char[BENCHMARK_VALUE_LENGTH];
+        Arrays.fill(chars, 'v');
+        String value = new String(chars);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ENTRY_COUNT; i++) {
+            mVaultStore.edit().putString("key" + i, value).apply();
+        }
+        long applyNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ENTRY_COUNT / 10; i++) {
+            mVaultStore.edit().putString("key" + i, value).commit();
+        }
+        long commitNanos = (System.nanoTime() - start) * 10;
+
+        start = System.nanoTime();
+        VaultStore.Editor editor = mVaultStore.edit();
+        for (int i = 0; i < BENCHMARK_ENTRY_COUNT; i++) {
+            editor.putString("batchKey" + i, value);
+        }
+        editor.commit();
+        long batchNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ENTRY_COUNT; i++) {
+            mVaultStore.getString("key" + i);
+        }
+        long getNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        VaultStore reopenedStore = openStore(getStoreName());
+        reopenedStore.getAll();
+        long openNanos = System.nanoTime() - start;
+
+        Log.i(TAG, getStoreName() + " " + BENCHMARK_ENTRY_COUNT + " entries: apply " + applyNanos / BENCHMARK_ENTRY_COUNT / 1000 + "us/op"
+                + " commit " + commitNanos / BENCHMARK_ENTRY_COUNT / 1000 + "us/op"
+                + " batch commit " + batchNanos / 1000 + "us"
+                + " get " + getNanos / BENCHMARK_ENTRY_COUNT / 1000 + "us/op"
+                + " open and enumerate " + openNanos / 1000 + "us");
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bottlerocketstudios.vault;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * ChaCha20-Poly1305 authenticated encryption as described in RFC 8439, without additional authenticated data.
+ * The platform provider is used when it offers the algorithm (Android 9, API 28 and above) otherwise a pure Java
+ * implementation is used, which is considerably faster than software AES on devices without AES instructions.
+ */
+public final class ChaCha20Poly1305 {
+    public static final int KEY_SIZE = 32;
+    public static final int NONCE_SIZE = 12;
+    public static final int TAG_SIZE = 16;
+
+    private static final String KEY_ALGORITHM = "ChaCha20";
+    private static final String[] PROVIDER_TRANSFORMS = {EncryptionConstants.CHACHA20_POLY1305_TRANSFORM, "ChaCha20-Poly1305"};
+    private static final int BLOCK_SIZE = 64;
+    private static final int POLY1305_BLOCK_SIZE = 16;
+    private static final int MASK_26 = 0x3ffffff;
+
+    private static final String sProviderTransform = findProviderTransform();
+
+    private ChaCha20Poly1305() {}
+
+    private static String findProviderTransform() {
+        for (String transform : PROVIDER_TRANSFORMS) {
+            try {
+                Cipher.getInstance(transform);
+                return transform;
+            } catch (GeneralSecurityException | RuntimeException e) {
+                //Try the next name.
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Determine if the platform provider implements ChaCha20-Poly1305.
+     */
+    public static boolean isProviderAvailable() {
+        return sProviderTransform != null;
+    }
+
+    /**
+     * Encrypt and authenticate len bytes of input using the provider when available.
+     * @return Ciphertext followed by the {@link #TAG_SIZE} byte tag.
+     */
+    public static byte[] seal(byte[] key, byte[] nonce, byte[] input, int offset, int length) throws GeneralSecurityException {
+        return seal(key, nonce, input, offset, length, isProviderAvailable());
+    }
+
+    /**
+     * Encrypt and authenticate len bytes of input.
+     * @param useProvider Use the platform provider rather than the pure Java implementation. Must only be true if
+     *                    {@link #isProviderAvailable()}.
+     * @return Ciphertext followed by the {@link #TAG_SIZE} byte tag.
+     */
+    public static byte[] seal(byte[] key, byte[] nonce, byte[] input, int offset, int length, boolean useProvider) throws GeneralSecurityException {
+        validate(key, nonce);
+        if (useProvider) {
+            Cipher cipher = initProviderCipher(Cipher.ENCRYPT_MODE, key, nonce);
+            return cipher.doFinal(input, offset, length);
+        }
+
+        byte[] output = new byte[length + TAG_SIZE];
+        int[] state = createState(key, nonce);
+        byte[] polyKey = createPolyKey(state);
+        xorKeyStream(state, input, offset, length, output, 0);
+        computeTag(polyKey, output, 0, length, output, length);
+        Arrays.fill(polyKey, (byte) 0);
+        Arrays.fill(state, 0);
+        return output;
+    }
+
+    /**
+     * Size of the cleartext produced by {@link #open(byte[], byte[], byte[], int, int, byte[], int)}.
+     */
+    public static int getOpenSize(int length) {
+        return Math.max(0, length - TAG_SIZE);
+    }
+
+    /**
+     * Verify and decrypt len bytes of ciphertext and tag into output using the provider when available.
+     * @return Number of cleartext bytes written.
+     * @throws AEADBadTagException if the ciphertext or tag was modified.
+     */
+    public static int open(byte[] key, byte[] nonce, byte[] input, int offset, int length, byte[] output, int outputOffset) throws GeneralSecurityException {
+        return open(key, nonce, input, offset, length, output, outputOffset, isProviderAvailable());
+    }
+
+    /**
+     * Verify and decrypt len bytes of ciphertext and tag into output.
+     * @see #seal(byte[], byte[], byte[], int, int, boolean)
+     */
+    public static int open(byte[] key, byte[] nonce, byte[] input, int offset, int length, byte[] output, int outputOffset, boolean useProvider) throws GeneralSecurityException {
+        validate(key, nonce);
+        if (length < TAG_SIZE) throw new AEADBadTagException("Not enough data");
+        int cleartextLength = length - TAG_SIZE;
+        if (output.length - outputOffset < cleartextLength) throw new ShortBufferException();
+
+        if (useProvider) {
+            Cipher cipher = initProviderCipher(Cipher.DECRYPT_MODE, key, nonce);
+            return cipher.doFinal(input, offset, length, output, outputOffset);
+        }
+
+        int[] state = createState(key, nonce);
+        byte[] polyKey = createPolyKey(state);
+        byte[] tag = new byte[TAG_SIZE];
+        computeTag(polyKey, input, offset, cleartextLength, tag, 0);
+        Arrays.fill(polyKey, (byte) 0);
+        boolean valid = MessageDigest.isEqual(tag, Arrays.copyOfRange(input, offset + cleartextLength, offset + length));
+        if (!valid) {
+            Arrays.fill(state, 0);
+            throw new AEADBadTagException("Tag mismatch");
+        }
+        xorKeyStream(state, input, offset, cleartextLength, output, outputOffset);
+        Arrays.fill(state, 0);
+        return cleartextLength;
+    }
+
+    private static void validate(byte[] key, byte[] nonce) throws InvalidKeyException {
+        if (key == null || key.length != KEY_SIZE) throw new InvalidKeyException("ChaCha20-Poly1305 requires a 256 bit key");
+        if (nonce == null || nonce.length != NONCE_SIZE) throw new InvalidKeyException("ChaCha20-Poly1305 requires a 96 bit nonce");
+    }
+
+    private static Cipher initProviderCipher(int mode, byte[] key, byte[] nonce) throws GeneralSecurityException {
+        SecretKeySpec secretKeySpec = new SecretKeySpec(key, KEY_ALGORITHM);
+        Cipher cipher = CipherCache.getCipher(sProviderTransform);
+        try {
+            cipher.init(mode, secretKeySpec, new IvParameterSpec(nonce));
+        } catch (InvalidKeyException e) {
+            //Some providers refuse to initialize an instance again with the key and nonce it last used.
+            cipher = CipherCache.replaceCipher(sProviderTransform);
+            cipher.init(mode, secretKeySpec, new IvParameterSpec(nonce));
+        }
+        return cipher;
+    }
+
+    /**
+     * Initial ChaCha20 state with a block counter of 0.
+     */
+    private static int[] createState(byte[] key, byte[] nonce) {
+        int[] state = new int[16];
+        state[0] = 0x61707865;
+        state[1] = 0x3320646e;
+        state[2] = 0x79622d32;
+        state[3] = 0x6b206574;
+        for (int i = 0; i < 8; i++) {
+            state[4 + i] = readIntLittleEndian(key, i * 4);
+        }
+        for (int i = 0; i < 3; i++) {
+            state[13 + i] = readIntLittleEndian(nonce, i * 4);
+        }
+        return state;
+    }
+
+    /**
+     * The Poly1305 key is the first 32 bytes of block 0, the ciphertext starts at block 1.
+     */
+    private static byte[] createPolyKey(int[] state) {
+        byte[] block = new byte[BLOCK_SIZE];
+        chachaBlock(state, block);
+        byte[] polyKey = Arrays.copyOf(block, 32);
+        Arrays.fill(block, (byte) 0);
+        state[12] = 1;
+        return polyKey;
+    }
+
+    private static void xorKeyStream(int[] state, byte[] input, int inputOffset, int length, byte[] output, int outputOffset) {
+        byte[] block = new byte[BLOCK_SIZE];
+        for (int position = 0; position < length; position += BLOCK_SIZE) {
+            chachaBlock(state, block);
+            state[12]++;
+            int blockLength = Math.min(BLOCK_SIZE, length - position);
+            for (int i = 0; i < blockLength; i++) {
+                output[outputOffset + position + i] = (byte) (input[inputOffset + position + i] ^ block[i]);
+            }
+        }
+        Arrays.fill(block, (byte) 0);
+    }
+
+    private static void chachaBlock(int[] state, byte[] output) {
+        int x0 = state[0], x1 = state[1], x2 = state[2], x3 = state[3];
+        int x4 = state[4], x5 = state[5], x6 = state[6], x7 = state[7];
+        int x8 = state[8], x9 = state[9], x10 = state[10], x11 = state[11];
+        int x12 = state[12], x13 = state[13], x14 = state[14], x15 = state[15];
+
+        for (int i = 0; i < 10; i++) {
+            //Column rounds
+            x0 += x4; x12 = Integer.rotateLeft(x12 ^ x0, 16);
+            x8 += x12; x4 = Integer.rotateLeft(x4 ^ x8, 12);
+            x0 += x4; x12 = Integer.rotateLeft(x12 ^ x0, 8);
+            x8 += x12; x4 = Integer.rotateLeft(x4 ^ x8, 7);
+
+            x1 += x5; x13 = Integer.rotateLeft(x13 ^ x1, 16);
+            x9 += x13; x5 = Integer.rotateLeft(x5 ^ x9, 12);
+            x1 += x5; x13 = Integer.rotateLeft(x13 ^ x1, 8);
+            x9 += x13; x5 = Integer.rotateLeft(x5 ^ x9, 7);
+
+            x2 += x6; x14 = Integer.rotateLeft(x14 ^ x2, 16);
+            x10 += x14; x6 = Integer.rotateLeft(x6 ^ x10, 12);
+            x2 += x6; x14 = Integer.rotateLeft(x14 ^ x2, 8);
+            x10 += x14; x6 = Integer.rotateLeft(x6 ^ x10, 7);
+
+            x3 += x7; x15 = Integer.rotateLeft(x15 ^ x3, 16);
+            x11 += x15; x7 = Integer.rotateLeft(x7 ^ x11, 12);
+            x3 += x7; x15 = Integer.rotateLeft(x15 ^ x3, 8);
+            x11 += x15; x7 = Integer.rotateLeft(x7 ^ x11, 7);
+
+            //Diagonal rounds
+            x0 += x5; x15 = Integer.rotateLeft(x15 ^ x0, 16);
+            x10 += x15; x5 = Integer.rotateLeft(x5 ^ x10, 12);
+            x0 += x5; x15 = Integer.rotateLeft(x15 ^ x0, 8);
+            x10 += x15; x5 = Integer.rotateLeft(x5 ^ x10, 7);
+
+            x1 += x6; x12 = Integer.rotateLeft(x12 ^ x1, 16);
+            x11 += x12; x6 = Integer.rotateLeft(x6 ^ x11, 12);
+            x1 += x6; x12 = Integer.rotateLeft(x12 ^ x1, 8);
+            x11 += x12; x6 = Integer.rotateLeft(x6 ^ x11, 7);
+
+            x2 += x7; x13 = Integer.rotateLeft(x13 ^ x2, 16);
+            x8 += x13; x7 = Integer.rotateLeft(x7 ^ x8, 12);
+            x2 += x7; x13 = Integer.rotateLeft(x13 ^ x2, 8);
+            x8 += x13; x7 = Integer.rotateLeft(x7 ^ x8, 7);
+
+            x3 += x4; x14 = Integer.rotateLeft(x14 ^ x3, 16);
+            x9 += x14; x4 = Integer.rotateLeft(x4 ^ x9, 12);
+            x3 += x4; x14 = Integer.rotateLeft(x14 ^ x3, 8);
+            x9 += x14; x4 = Integer.rotateLeft(x4 ^ x9, 7);
+        }
+
+        writeIntLittleEndian(x0 + state[0], output, 0);
+        writeIntLittleEndian(x1 + state[1], output, 4);
+        writeIntLittleEndian(x2 + state[2], output, 8);
+        writeIntLittleEndian(x3 + state[3], output, 12);
+        writeIntLittleEndian(x4 + state[4], output, 16);
+        writeIntLittleEndian(x5 + state[5], output, 20);
+        writeIntLittleEndian(x6 + state[6], output, 24);
+        writeIntLittleEndian(x7 + state[7], output, 28);
+        writeIntLittleEndian(x8 + state[8], output, 32);
+        writeIntLittleEndian(x9 + state[9], output, 36);
+        writeIntLittleEndian(x10 + state[10], output, 40);
+        writeIntLittleEndian(x11 + state[11], output, 44);
+        writeIntLittleEndian(x12 + state[12], output, 48);
+        writeIntLittleEndian(x13 + state[13], output, 52);
+        writeIntLittleEndian(x14 + state[14], output, 56);
+        writeIntLittleEndian(x15 + state[15], output, 60);
+    }
+
+    /**
+     * AEAD tag: Poly1305 over the ciphertext padded to 16 bytes followed by the little endian lengths of the
+     * empty additional data and the ciphertext.
+     */
+    private static void computeTag(byte[] polyKey, byte[] ciphertext, int offset, int length, byte[] tag, int tagOffset) {
+        poly1305(polyKey, ciphertext, offset, length, true, tag, tagOffset);
+    }
+
+    /**
+     * Poly1305 using 26 bit limbs so that products fit in a long.
+     * @param aeadFraming Zero pad the message and append the length block as {@link #computeTag} requires,
+     *                    rather than treat it as a plain Poly1305 message.
+     */
+    private static void poly1305(byte[] polyKey, byte[] message, int offset, int length, boolean aeadFraming, byte[] tag, int tagOffset) {
+        long r0 = readIntLittleEndian(polyKey, 0) & MASK_26;
+        long r1 = (readUnsignedIntLittleEndian(polyKey, 3) >>> 2) & 0x3ffff03;
+        long r2 = (readUnsignedIntLittleEndian(polyKey, 6) >>> 4) & 0x3ffc0ff;
+        long r3 = (readUnsignedIntLittleEndian(polyKey, 9) >>> 6) & 0x3f03fff;
+        long r4 = (readUnsignedIntLittleEndian(polyKey, 12) >>> 8) & 0x00fffff;
+        long s1 = r1 * 5, s2 = r2 * 5, s3 = r3 * 5, s4 = r4 * 5;
+        long h0 = 0, h1 = 0, h2 = 0, h3 = 0, h4 = 0;
+
+        byte[] block = new byte[POLY1305_BLOCK_SIZE];
+        int blockCount = (length + POLY1305_BLOCK_SIZE - 1) / POLY1305_BLOCK_SIZE + (aeadFraming ? 1 : 0);
+        for (int blockIndex = 0; blockIndex < blockCount; blockIndex++) {
+            byte[] source;
+            int sourceOffset;
+            int position = blockIndex * POLY1305_BLOCK_SIZE;
+            long highBit = 1 << 24;
+            if (aeadFraming && blockIndex == blockCount - 1) {
+                //Length block: 8 bytes of additional data length (always 0) then 8 bytes of ciphertext length.
+                Arrays.fill(block, (byte) 0);
+                writeIntLittleEndian(length, block, 8);
+                source = block;
+                sourceOffset = 0;
+            } else if (length - position >= POLY1305_BLOCK_SIZE) {
+                source = message;
+                sourceOffset = offset + position;
+            } else {
+                Arrays.fill(block, (byte) 0);
+                System.arraycopy(message, offset + position, block, 0, length - position);
+                if (!aeadFraming) {
+                    //A short final block is terminated by a 1 byte in place of the 2^128 bit.
+                    block[length - position] = 1;
+                    highBit = 0;
+                }
+                source = block;
+                sourceOffset = 0;
+            }
+
+            h0 += readUnsignedIntLittleEndian(source, sourceOffset) & MASK_26;
+            h1 += (readUnsignedIntLittleEndian(source, sourceOffset + 3) >>> 2) & MASK_26;
+            h2 += (readUnsignedIntLittleEndian(source, sourceOffset + 6) >>> 4) & MASK_26;
+            h3 += (readUnsignedIntLittleEndian(source, sourceOffset + 9) >>> 6) & MASK_26;
+            h4 += (readUnsignedIntLittleEndian(source, sourceOffset + 12) >>> 8) | highBit;
+
+            long d0 = h0 * r0 + h1 * s4 + h2 * s3 + h3 * s2 + h4 * s1;
+            long d1 = h0 * r1 + h1 * r0 + h2 * s4 + h3 * s3 + h4 * s2;
+            long d2 = h0 * r2 + h1 * r1 + h2 * r0 + h3 * s4 + h4 * s3;
+            long d3 = h0 * r3 + h1 * r2 + h2 * r1 + h3 * r0 + h4 * s4;
+            long d4 = h0 * r4 + h1 * r3 + h2 * r2 + h3 * r1 + h4 * r0;
+
+            long carry = d0 >>> 26; h0 = d0 & MASK_26;
+            d1 += carry; carry = d1 >>> 26; h1 = d1 & MASK_26;
+            d2 += carry; carry = d2 >>> 26; h2 = d2 & MASK_26;
+            d3 += carry; carry = d3 >>> 26; h3 = d3 & MASK_26;
+            d4 += carry; carry = d4 >>> 26; h4 = d4 & MASK_26;
+            h0 += carry * 5; carry = h0 >>> 26; h0 &= MASK_26;
+            h1 += carry;
+        }
+
+        long carry = h1 >>> 26; h1 &= MASK_26;
+        h2 += carry; carry = h2 >>> 26; h2 &= MASK_26;
+        h3 += carry; carry = h3 >>> 26; h3 &= MASK_26;
+        h4 += carry; carry = h4 >>> 26; h4 &= MASK_26;
+        h0 += carry * 5; carry = h0 >>> 26; h0 &= MASK_26;
+        h1 += carry;
+
+        //Compute h - p and keep it if it did not borrow, without branching.
+        long g0 = h0 + 5; carry = g0 >>> 26; g0 &= MASK_26;
+        long g1 = h1 + carry; carry = g1 >>> 26; g1 &= MASK_26;
+        long g2 = h2 + carry; carry = g2 >>> 26; g2 &= MASK_26;
+        long g3 = h3 + carry; carry = g3 >>> 26; g3 &= MASK_26;
+        long g4 = h4 + carry - (1 << 26);
+        long select = (g4 >>> 63) - 1;
+        h0 = (h0 & ~select) | (g0 & select);
+        h1 = (h1 & ~select) | (g1 & select);
+        h2 = (h2 & ~select) | (g2 & select);
+        h3 = (h3 & ~select) | (g3 & select);
+        h4 = (h4 & ~select) | (g4 & select);
+
+        long f0 = ((h0 | (h1 << 26)) & 0xffffffffL) + readUnsignedIntLittleEndian(polyKey, 16);
+        long f1 = (((h1 >>> 6) | (h2 << 20)) & 0xffffffffL) + readUnsignedIntLittleEndian(polyKey, 20) + (f0 >>> 32);
+        long f2 = (((h2 >>> 12) | (h3 << 14)) & 0xffffffffL) + readUnsignedIntLittleEndian(polyKey, 24) + (f1 >>> 32);
+        long f3 = (((h3 >>> 18) | (h4 << 8)) & 0xffffffffL) + readUnsignedIntLittleEndian(polyKey, 28) + (f2 >>> 32);
+        writeIntLittleEndian((int) f0, tag, tagOffset);
+        writeIntLittleEndian((int) f1, tag, tagOffset + 4);
+        writeIntLittleEndian((int) f2, tag, tagOffset + 8);
+        writeIntLittleEndian((int) f3, tag, tagOffset + 12);
+    }
+
+    private static int readIntLittleEndian(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF)
+                | ((buffer[offset + 1] & 0xFF) << 8)
+                | ((buffer[offset + 2] & 0xFF) << 16)
+                | ((buffer[offset + 3] & 0xFF) << 24);
+    }
+
+    private static long readUnsignedIntLittleEndian(byte[] buffer, int offset) {
+        return readIntLittleEndian(buffer, offset) & 0xffffffffL;
+    }
+
+    private static void writeIntLittleEndian(int value, byte[] buffer, int offset) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >>> 8);
+        buffer[offset + 2] = (byte) (value >>> 16);
+        buffer[offset + 3] = (byte) (value >>> 24);
+    }
+}
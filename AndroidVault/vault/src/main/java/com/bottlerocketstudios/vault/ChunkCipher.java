@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Chunked authenticated stream format used by {@link StreamEncryptionUtils}.
+ *
+ * <p>
+ *     Each stream has its own random AES-256 and HMAC-SHA256 key pair, which is encrypted with the vault's key
+ *     and transform in the header. This works with any key the vault can use, including AndroidKeyStore keys
+ *     whose material cannot be read. Every chunk is encrypted with AES/CTR starting at a counter derived from its
+ *     index and carries a truncated HMAC over its index, a final chunk flag and its ciphertext, so chunks can be
+ *     verified and decrypted independently while reordering and truncation are detected.
+ * </p>
+ *
+ * <pre>
+ * [magic][version][chunkSize int][wrappedKeyLength int][wrappedKey][headerTag]
+ * [chunk 0 ciphertext][tag] ... [final chunk ciphertext, possibly empty][tag]
+ * </pre>
+ *
+ * Instances are not thread safe.
+ */
+class ChunkCipher {
+    static final int TAG_SIZE = 16;
+    static final int MIN_CHUNK_SIZE = 256;
+    static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private static final int KEY_SIZE = 32;
+    private static final int MAX_WRAPPED_KEY_SIZE = 1024;
+    private static final int HEADER_FIXED_SIZE = 10;
+    private static final int BLOCK_SIZE = 16;
+    private static final byte DOMAIN_HEADER = 0;
+    private static final byte DOMAIN_CHUNK = 1;
+
+    private static final SecureRandom sSecureRandom = new SecureRandom();
+
+    private final SecretKeySpec mEncryptionKey;
+    private final Cipher mCipher;
+    private final Mac mMac;
+    private final int mChunkSize;
+    private final byte[] mIv = new byte[BLOCK_SIZE];
+    private final byte[] mChunkPrefix = new byte[10];
+    private final byte[] mTag;
+    private final byte[] mHeader;
+
+    private ChunkCipher(byte[] keyMaterial, int chunkSize, byte[] header) throws GeneralSecurityException {
+        mEncryptionKey = new SecretKeySpec(keyMaterial, 0, KEY_SIZE, EncryptionConstants.AES_CIPHER);
+        mCipher = Cipher.getInstance(EncryptionConstants.AES_CTR_TRANSFORM);
+        mMac = Mac.getInstance(EncryptionConstants.HMAC_SHA256);
+        mMac.init(new SecretKeySpec(keyMaterial, KEY_SIZE, KEY_SIZE, EncryptionConstants.HMAC_SHA256));
+        mTag = new byte[mMac.getMacLength()];
+        mChunkSize = chunkSize;
+        mHeader = header;
+    }
+
+    /**
+     * Create the cipher for a new stream along with its header.
+     */
+    static ChunkCipher create(SecretKey secretKey, String transform, int chunkSize) throws GeneralSecurityException {
+        if (chunkSize < MIN_CHUNK_SIZE || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size must be between " + MIN_CHUNK_SIZE + " and " + MAX_CHUNK_SIZE);
+        }
+
+        byte[] keyMaterial = new byte[KEY_SIZE * 2];
+        sSecureRandom.nextBytes(keyMaterial);
+        try {
+            byte[] wrappedKey = StringEncryptionUtils.encryptBytes(secretKey, keyMaterial, transform);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_FIXED_SIZE + wrappedKey.length + TAG_SIZE);
+            header.put(StringEncryptionUtils.HEADER_MAGIC_NUMBER).put(StringEncryptionUtils.HEADER_VERSION_CHUNKED_STREAM);
+            header.putInt(chunkSize).putInt(wrappedKey.length).put(wrappedKey);
+
+            ChunkCipher chunkCipher = new ChunkCipher(keyMaterial, chunkSize, header.array());
+            chunkCipher.computeHeaderTag(header.array(), header.position());
+            System.arraycopy(chunkCipher.mTag, 0, header.array(), header.position(), TAG_SIZE);
+            return chunkCipher;
+        } finally {
+            Arrays.fill(keyMaterial, (byte) 0);
+        }
+    }
+
+    /**
+     * Read and verify the header of an existing stream, leaving the stream positioned at the first chunk.
+     */
+    static ChunkCipher read(SecretKey secretKey, String transform, InputStream inputStream) throws GeneralSecurityException, IOException {
+        DataInputStream dataInputStream = new DataInputStream(inputStream);
+        byte[] fixedHeader = new byte[HEADER_FIXED_SIZE];
+        dataInputStream.readFully(fixedHeader);
+        ByteBuffer fixedHeaderBuffer = ByteBuffer.wrap(fixedHeader);
+        if (fixedHeaderBuffer.get() != StringEncryptionUtils.HEADER_MAGIC_NUMBER || fixedHeaderBuffer.get() != StringEncryptionUtils.HEADER_VERSION_CHUNKED_STREAM) {
+            throw new GeneralSecurityException("Invalid header");
+        }
+        int chunkSize = fixedHeaderBuffer.getInt();
+        int wrappedKeyLength = fixedHeaderBuffer.getInt();
+        if (chunkSize < MIN_CHUNK_SIZE || chunkSize > MAX_CHUNK_SIZE || wrappedKeyLength <= 0 || wrappedKeyLength > MAX_WRAPPED_KEY_SIZE) {
+            throw new GeneralSecurityException("Invalid header");
+        }
+
+        byte[] header = Arrays.copyOf(fixedHeader, HEADER_FIXED_SIZE + wrappedKeyLength + TAG_SIZE);
+        dataInputStream.readFully(header, HEADER_FIXED_SIZE, wrappedKeyLength + TAG_SIZE);
+        byte[] keyMaterial = StringEncryptionUtils.decryptBytes(secretKey, Arrays.copyOfRange(header, HEADER_FIXED_SIZE, HEADER_FIXED_SIZE + wrappedKeyLength), transform);
+        try {
+            if (keyMaterial.length != KEY_SIZE * 2) throw new GeneralSecurityException("Invalid stream key");
+
+            ChunkCipher chunkCipher = new ChunkCipher(keyMaterial, chunkSize, header);
+            int tagOffset = header.length - TAG_SIZE;
+            chunkCipher.computeHeaderTag(header, tagOffset);
+            if (!constantTimeEquals(chunkCipher.mTag, header, tagOffset)) {
+                throw new GeneralSecurityException("Header authentication failed");
+            }
+            return chunkCipher;
+        } finally {
+            Arrays.fill(keyMaterial, (byte) 0);
+        }
+    }
+
+    int getChunkSize() {
+        return mChunkSize;
+    }
+
+    /**
+     * Complete header including its tag.
+     */
+    byte[] getHeader() {
+        return mHeader;
+    }
+
+    /**
+     * Encrypt length bytes of cleartext into output followed by the chunk's tag.
+     * @return Number of bytes written to output, length plus {@link #TAG_SIZE}.
+     */
+    int encryptChunk(long chunkIndex, boolean finalChunk, byte[] input, int inputOffset, int length, byte[] output, int outputOffset) throws GeneralSecurityException {
+        initCipher(Cipher.ENCRYPT_MODE, chunkIndex);
+        int ciphertextLength = mCipher.doFinal(input, inputOffset, length, output, outputOffset);
+        computeChunkTag(chunkIndex, finalChunk, output, outputOffset, ciphertextLength);
+        System.arraycopy(mTag, 0, output, outputOffset + ciphertextLength, TAG_SIZE);
+        return ciphertextLength + TAG_SIZE;
+    }
+
+    /**
+     * Verify and decrypt a chunk of length bytes including its tag. Nothing is decrypted unless the tag matches.
+     * @return Number of cleartext bytes written to output.
+     */
+    int decryptChunk(long chunkIndex, boolean finalChunk, byte[] input, int inputOffset, int length, byte[] output, int outputOffset) throws GeneralSecurityException {
+        int ciphertextLength = length - TAG_SIZE;
+        if (ciphertextLength < 0 || ciphertextLength > mChunkSize) throw new GeneralSecurityException("Invalid chunk size");
+
+        computeChunkTag(chunkIndex, finalChunk, input, inputOffset, ciphertextLength);
+        if (!constantTimeEquals(mTag, input, inputOffset + ciphertextLength)) {
+            throw new GeneralSecurityException("Chunk authentication failed");
+        }
+        initCipher(Cipher.DECRYPT_MODE, chunkIndex);
+        return mCipher.doFinal(input, inputOffset, ciphertextLength, output, outputOffset);
+    }
+
+    private void initCipher(int mode, long chunkIndex) throws GeneralSecurityException {
+        //The chunk index occupies the high half of the counter block, leaving the low half for blocks within the chunk.
+        ByteBuffer.wrap(mIv).putLong(chunkIndex).putLong(0);
+        mCipher.init(mode, mEncryptionKey, new IvParameterSpec(mIv));
+    }
+
+    private void computeHeaderTag(byte[] header, int length) throws GeneralSecurityException {
+        mMac.update(DOMAIN_HEADER);
+        mMac.update(header, 0, length);
+        mMac.doFinal(mTag, 0);
+    }
+
+    private void computeChunkTag(long chunkIndex, boolean finalChunk, byte[] ciphertext, int offset, int length) throws GeneralSecurityException {
+        ByteBuffer.wrap(mChunkPrefix).put(DOMAIN_CHUNK).putLong(chunkIndex).put((byte) (finalChunk ? 1 : 0));
+        mMac.update(mChunkPrefix);
+        mMac.update(ciphertext, offset, length);
+        mMac.doFinal(mTag, 0);
+    }
+
+    /**
+     * Compare the first {@link #TAG_SIZE} bytes of the computed tag with the stored tag without an early exit.
+     */
+    private static boolean constantTimeEquals(byte[] computedTag, byte[] storedTag, int storedOffset) {
+        return MessageDigest.isEqual(Arrays.copyOf(computedTag, TAG_SIZE), Arrays.copyOfRange(storedTag, storedOffset, storedOffset + TAG_SIZE));
+    }
+}
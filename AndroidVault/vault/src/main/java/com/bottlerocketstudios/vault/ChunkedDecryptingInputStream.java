@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Verifies and decrypts the chunked format of {@link ChunkCipher} one chunk at a time. Data is only returned once
+ * the chunk holding it has been authenticated, and an IOException is thrown if chunks were modified, reordered or
+ * removed from the end.
+ */
+class ChunkedDecryptingInputStream extends InputStream {
+    private final PushbackInputStream mInputStream;
+    private final ChunkCipher mChunkCipher;
+    private final byte[] mEncryptedChunk;
+    private final byte[] mChunk;
+    private int mChunkPosition;
+    private int mChunkLength;
+    private long mChunkIndex;
+    private boolean mFinalChunkRead;
+
+    ChunkedDecryptingInputStream(InputStream inputStream, ChunkCipher chunkCipher) {
+        mInputStream = new PushbackInputStream(inputStream, 1);
+        mChunkCipher = chunkCipher;
+        mEncryptedChunk = new byte[chunkCipher.getChunkSize() + ChunkCipher.TAG_SIZE];
+        mChunk = new byte[chunkCipher.getChunkSize()];
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureChunk()) return -1;
+        return mChunk[mChunkPosition++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || length > buffer.length - offset) throw new IndexOutOfBoundsException();
+        if (length == 0) return 0;
+        if (!ensureChunk()) return -1;
+
+        int copyLength = Math.min(length, mChunkLength - mChunkPosition);
+        System.arraycopy(mChunk, mChunkPosition, buffer, offset, copyLength);
+        mChunkPosition += copyLength;
+        return copyLength;
+    }
+
+    @Override
+    public int available() {
+        return mChunkLength - mChunkPosition;
+    }
+
+    @Override
+    public void close() throws IOException {
+        Arrays.fill(mChunk, (byte) 0);
+        mChunkPosition = 0;
+        mChunkLength = 0;
+        mInputStream.close();
+    }
+
+    /**
+     * Decrypt chunks until cleartext is available.
+     * @return False at the end of the final chunk.
+     */
+    private boolean ensureChunk() throws IOException {
+        while (mChunkPosition == mChunkLength) {
+            if (mFinalChunkRead) return false;
+            readChunk();
+        }
+        return true;
+    }
+
+    private void readChunk() throws IOException {
+        int length = 0;
+        while (length < mEncryptedChunk.length) {
+            int read = mInputStream.read(mEncryptedChunk, length, mEncryptedChunk.length - length);
+            if (read == -1) break;
+            length += read;
+        }
+
+        boolean finalChunk = length < mEncryptedChunk.length;
+        if (!finalChunk) {
+            int next = mInputStream.read();
+            if (next == -1) {
+                finalChunk = true;
+            } else {
+                mInputStream.unread(next);
+            }
+        }
+        if (length < ChunkCipher.TAG_SIZE) throw new IOException("Truncated stream");
+
+        try {
+            mChunkLength = mChunkCipher.decryptChunk(mChunkIndex++, finalChunk, mEncryptedChunk, 0, length, mChunk, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to decrypt chunk", e);
+        }
+        mChunkPosition = 0;
+        mFinalChunkRead = finalChunk;
+    }
+}
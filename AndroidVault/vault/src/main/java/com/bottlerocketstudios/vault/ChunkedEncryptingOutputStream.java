@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Encrypts everything written to it into the chunked format of {@link ChunkCipher}, holding at most one chunk of
+ * cleartext. A chunk is only written once more data follows it or the stream is closed, because the last chunk
+ * must be marked as final. Closing the stream is required to produce a readable result.
+ */
+class ChunkedEncryptingOutputStream extends OutputStream {
+    private final OutputStream mOutputStream;
+    private final ChunkCipher mChunkCipher;
+    private final byte[] mChunk;
+    private final byte[] mEncryptedChunk;
+    private int mChunkLength;
+    private long mChunkIndex;
+    private boolean mClosed;
+
+    ChunkedEncryptingOutputStream(OutputStream outputStream, ChunkCipher chunkCipher) throws IOException {
+        mOutputStream = outputStream;
+        mChunkCipher = chunkCipher;
+        mChunk = new byte[chunkCipher.getChunkSize()];
+        mEncryptedChunk = new byte[chunkCipher.getChunkSize() + ChunkCipher.TAG_SIZE];
+        mOutputStream.write(chunkCipher.getHeader());
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (mChunkLength == mChunk.length) {
+            writeChunk(false);
+        }
+        mChunk[mChunkLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        ensureOpen();
+        if (offset < 0 || length < 0 || length > buffer.length - offset) throw new IndexOutOfBoundsException();
+
+        while (length > 0) {
+            if (mChunkLength == mChunk.length) {
+                writeChunk(false);
+            }
+            int copyLength = Math.min(length, mChunk.length - mChunkLength);
+            System.arraycopy(buffer, offset, mChunk, mChunkLength, copyLength);
+            mChunkLength += copyLength;
+            offset += copyLength;
+            length -= copyLength;
+        }
+    }
+
+    /**
+     * Flush chunks already encrypted. The current partial chunk is held until it is complete or the stream is closed.
+     */
+    @Override
+    public void flush() throws IOException {
+        mOutputStream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) return;
+
+        mClosed = true;
+        try {
+            writeChunk(true);
+            mOutputStream.close();
+        } finally {
+            Arrays.fill(mChunk, (byte) 0);
+        }
+    }
+
+    private void writeChunk(boolean finalChunk) throws IOException {
+        try {
+            int length = mChunkCipher.encryptChunk(mChunkIndex++, finalChunk, mChunk, 0, mChunkLength, mEncryptedChunk, 0);
+            mOutputStream.write(mEncryptedChunk, 0, length);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to encrypt chunk", e);
+        }
+        mChunkLength = 0;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (mClosed) throw new IOException("Stream closed");
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * Per-thread cache of resolved Cipher instances keyed by transform. Cipher objects are not thread safe,
+ * so each thread gets its own instance and only the key and IV are initialized for each operation.
+ */
+class CipherCache {
+
+    private static final ThreadLocal<Map<String, Cipher>> sCipherMap = new ThreadLocal<Map<String, Cipher>>() {
+        @Override
+        protected Map<String, Cipher> initialValue() {
+            return new HashMap<>();
+        }
+    };
+
+    /**
+     * Obtain this thread's Cipher for the transform, resolving the provider on first use. The caller must
+     * call one of the init methods before use and must not hand the instance to another thread.
+     */
+    static Cipher getCipher(String transform) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Map<String, Cipher> cipherMap = sCipherMap.get();
+        Cipher cipher = cipherMap.get(transform);
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transform);
+            cipherMap.put(transform, cipher);
+        }
+        return cipher;
+    }
+
+    /**
+     * Replace this thread's Cipher for the transform with a newly resolved instance. Providers are selected
+     * on the first init, so a cached instance bound to one provider may refuse a key from another
+     * e.g. an AndroidKeyStore key after a software key.
+     */
+    static Cipher replaceCipher(String transform) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Cipher cipher = Cipher.getInstance(transform);
+        sCipherMap.get().put(transform, cipher);
+        return cipher;
+    }
+}
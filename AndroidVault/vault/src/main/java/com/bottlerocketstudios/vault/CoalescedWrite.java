@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Unencrypted edits from several editors merged in order, last writer wins, to be written as one batch.
+ * Not thread safe, access must be guarded by the owning vault.
+ */
+class CoalescedWrite {
+    /**
+     * Returned from {@link #getValue(String)} when this write does not affect the key.
+     */
+    static final Object NOT_PENDING = new Object();
+
+    private boolean mCleared;
+    private boolean mCommitRequested;
+    private Set<String> mRemovalSet = new HashSet<>();
+    private StronglyTypedBundle mStronglyTypedBundle = new StronglyTypedBundle();
+
+    /**
+     * Apply the edits of one editor on top of the edits already merged.
+     */
+    void merge(boolean cleared, Set<String> removalSet, StronglyTypedBundle stronglyTypedBundle) {
+        if (cleared) {
+            mCleared = true;
+            mRemovalSet = new HashSet<>();
+            mStronglyTypedBundle = new StronglyTypedBundle();
+        }
+
+        if (removalSet != null) {
+            for (String key : removalSet) {
+                mStronglyTypedBundle.remove(key);
+                mRemovalSet.add(key);
+            }
+        }
+
+        if (stronglyTypedBundle != null) {
+            mStronglyTypedBundle.putAll(stronglyTypedBundle);
+        }
+    }
+
+    /**
+     * Value this write will store for the key, null if it will remove the key or {@link #NOT_PENDING}.
+     */
+    Object getValue(String key) {
+        if (mStronglyTypedBundle.containsKey(key)) {
+            return mStronglyTypedBundle.getValue(key);
+        } else if (mCleared || mRemovalSet.contains(key)) {
+            return null;
+        }
+        return NOT_PENDING;
+    }
+
+    void requestCommit() {
+        mCommitRequested = true;
+    }
+
+    boolean isCommitRequested() {
+        return mCommitRequested;
+    }
+
+    boolean isCleared() {
+        return mCleared;
+    }
+
+    Set<String> getRemovalSet() {
+        return mRemovalSet;
+    }
+
+    StronglyTypedBundle getStronglyTypedBundle() {
+        return mStronglyTypedBundle;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size bounded, least recently used cache of decrypted values keyed by preference key.
+ *
+ * <p>
+ *     Every invalidation advances a generation counter. A reader must obtain the generation before it
+ *     reads the encrypted value and hand it back when storing the decrypted result. This prevents a
+ *     value decrypted before a concurrent write from being cached after that write invalidated it.
+ * </p>
+ */
+class DecryptedValueCache {
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private final Map<String, Object> mValueMap;
+    private long mGeneration;
+    private long mHitCount;
+    private long mMissCount;
+
+    DecryptedValueCache(final int maxEntries) {
+        if (maxEntries <= 0) throw new IllegalArgumentException("Cache size must be positive");
+        mValueMap = new LinkedHashMap<String, Object>(Math.min(maxEntries, 16), LOAD_FACTOR, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Return the cached value or null on a miss.
+     */
+    synchronized Object get(String key) {
+        Object value = mValueMap.get(key);
+        if (value != null) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        return value;
+    }
+
+    /**
+     * Obtain the current generation prior to reading the encrypted value that will be cached.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Store the value if no invalidation has occurred since the provided generation was obtained.
+     */
+    synchronized void put(String key, Object value, long generation) {
+        if (value != null && generation == mGeneration) {
+            mValueMap.put(key, value);
+        }
+    }
+
+    synchronized void invalidate(Collection<String> keys) {
+        mGeneration++;
+        for (String key : keys) {
+            mValueMap.remove(key);
+        }
+    }
+
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mValueMap.clear();
+    }
+
+    synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized long getMissCount() {
+        return mMissCount;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Random access to the cleartext of a file written by {@link StreamEncryptionUtils}. Only the chunks covering a
+ * requested range are read, verified and decrypted, and the most recently used chunk is kept for sequential reads.
+ * Reads do not change the position of the channel, which remains owned by the caller. Not thread safe.
+ */
+public class EncryptedFileChannelReader {
+    private final FileChannel mFileChannel;
+    private final ChunkCipher mChunkCipher;
+    private final long mDataOffset;
+    private final long mChunkCount;
+    private final long mSize;
+    private final byte[] mEncryptedChunk;
+    private final byte[] mChunk;
+    private long mCachedChunkIndex = -1;
+    private int mCachedChunkLength;
+
+    EncryptedFileChannelReader(SecretKey secretKey, String transform, FileChannel fileChannel) throws GeneralSecurityException, IOException {
+        mFileChannel = fileChannel;
+        mChunkCipher = ChunkCipher.read(secretKey, transform, new ChannelInputStream(fileChannel));
+        mDataOffset = mChunkCipher.getHeader().length;
+
+        int encryptedChunkSize = mChunkCipher.getChunkSize() + ChunkCipher.TAG_SIZE;
+        long encryptedSize = fileChannel.size() - mDataOffset;
+        mChunkCount = (encryptedSize + encryptedChunkSize - 1) / encryptedChunkSize;
+        long finalChunkSize = encryptedSize - (mChunkCount - 1) * encryptedChunkSize;
+        if (mChunkCount == 0 || finalChunkSize < ChunkCipher.TAG_SIZE) throw new IOException("Truncated file");
+        mSize = encryptedSize - mChunkCount * ChunkCipher.TAG_SIZE;
+
+        mEncryptedChunk = new byte[encryptedChunkSize];
+        mChunk = new byte[mChunkCipher.getChunkSize()];
+    }
+
+    /**
+     * Size of the cleartext in bytes.
+     */
+    public long size() {
+        return mSize;
+    }
+
+    /**
+     * Read cleartext starting at position into the remaining space of destination.
+     * @return Number of bytes read or -1 if position is at or beyond the end.
+     */
+    public int read(ByteBuffer destination, long position) throws IOException {
+        if (position < 0) throw new IllegalArgumentException("Negative position");
+        if (position >= mSize) return -1;
+
+        int start = destination.position();
+        int chunkSize = mChunkCipher.getChunkSize();
+        while (destination.hasRemaining() && position < mSize) {
+            long chunkIndex = position / chunkSize;
+            loadChunk(chunkIndex);
+            int chunkOffset = (int) (position - chunkIndex * chunkSize);
+            int length = Math.min(destination.remaining(), mCachedChunkLength - chunkOffset);
+            destination.put(mChunk, chunkOffset, length);
+            position += length;
+        }
+        return destination.position() - start;
+    }
+
+    /**
+     * Wipe the cached cleartext chunk.
+     */
+    public void clear() {
+        Arrays.fill(mChunk, (byte) 0);
+        mCachedChunkIndex = -1;
+    }
+
+    private void loadChunk(long chunkIndex) throws IOException {
+        if (chunkIndex == mCachedChunkIndex) return;
+
+        long chunkPosition = mDataOffset + chunkIndex * mEncryptedChunk.length;
+        int length = (int) Math.min(mEncryptedChunk.length, mFileChannel.size() - chunkPosition);
+        ByteBuffer buffer = ByteBuffer.wrap(mEncryptedChunk, 0, length);
+        while (buffer.hasRemaining()) {
+            if (mFileChannel.read(buffer, chunkPosition + buffer.position()) == -1) throw new IOException("Truncated file");
+        }
+
+        mCachedChunkIndex = -1;
+        try {
+            mCachedChunkLength = mChunkCipher.decryptChunk(chunkIndex, chunkIndex == mChunkCount - 1, mEncryptedChunk, 0, length, mChunk, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to decrypt chunk " + chunkIndex, e);
+        }
+        mCachedChunkIndex = chunkIndex;
+    }
+
+    /**
+     * Reads from the start of the channel without changing its position.
+     */
+    private static class ChannelInputStream extends InputStream {
+        private final FileChannel mFileChannel;
+        private long mPosition;
+
+        ChannelInputStream(FileChannel fileChannel) {
+            mFileChannel = fileChannel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] buffer = new byte[1];
+            return read(buffer, 0, 1) == -1 ? -1 : buffer[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = mFileChannel.read(ByteBuffer.wrap(buffer, offset, length), mPosition);
+            if (read > 0) {
+                mPosition += read;
+            }
+            return read;
+        }
+    }
+}
@@ -21,6 +21,9 @@ package com.bottlerocketstudios.vault;
 public class EncryptionConstants {
     public static final String AES_CIPHER = "AES";
     public static final String BLOCK_MODE_CBC = "CBC";
+    public static final String BLOCK_MODE_CTR = "CTR";
+    public static final String BLOCK_MODE_GCM = "GCM";
+    public static final String ENCRYPTION_PADDING_NONE = "NoPadding";
     public static final String ENCRYPTION_PADDING_PKCS5 = "PKCS5Padding";
     public static final String ENCRYPTION_PADDING_PKCS7 = "PKCS7Padding";
 
@@ -31,8 +34,20 @@ public class EncryptionConstants {
       */
     public static final String AES_CBC_PADDED_TRANSFORM = AES_CIPHER + "/" + BLOCK_MODE_CBC + "/" + ENCRYPTION_PADDING_PKCS5;
     public static final String AES_CBC_PADDED_TRANSFORM_ANDROID_M = AES_CIPHER + "/" + BLOCK_MODE_CBC + "/" + ENCRYPTION_PADDING_PKCS7;
+    /**
+     * Authenticated encryption for values, requires Android 4.4 (API 19).
+     */
+    public static final String AES_GCM_TRANSFORM = AES_CIPHER + "/" + BLOCK_MODE_GCM + "/" + ENCRYPTION_PADDING_NONE;
+    /**
+     * Authenticated encryption for values that does not rely on AES instructions. A pure Java implementation is used
+     * where the platform provider does not offer it.
+     */
+    public static final String CHACHA20_POLY1305_TRANSFORM = "ChaCha20/Poly1305/NoPadding";
+    public static final String AES_CTR_TRANSFORM = AES_CIPHER + "/" + BLOCK_MODE_CTR + "/" + ENCRYPTION_PADDING_NONE;
     public static final int AES_256_KEY_LENGTH_BITS = 256;
 
+    public static final String HMAC_SHA256 = "HmacSHA256";
+
     public static final String DIGEST_SHA256 = "SHA256";
 
     public static final String ANDROID_KEY_STORE = "AndroidKeyStore";
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Collection;
+import java.util.UUID;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Directory of side files each holding one encrypted value that was too large to keep in the vault's store.
+ * Files are named with a random id which is kept in an encrypted pointer record in the store, and their content
+ * is a binary typed envelope written and read in chunks.
+ */
+class LargeValueFileStore {
+    private static final String TAG = LargeValueFileStore.class.getSimpleName();
+
+    private static final String FILE_EXTENSION = ".value";
+    private static final String TEMP_FILE_EXTENSION = ".tmp";
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final File mDirectory;
+    private final String mTransform;
+
+    LargeValueFileStore(File directory, String transform) {
+        mDirectory = directory;
+        mTransform = transform;
+    }
+
+    /**
+     * Determine if any side file may exist.
+     */
+    boolean exists() {
+        return mDirectory.exists();
+    }
+
+    /**
+     * Encrypt the encoded value to a new file and wait for it to reach the storage device.
+     * @return Id of the new file.
+     */
+    String write(SecretKey secretKey, byte[] encodedValue) throws GeneralSecurityException, IOException {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + mDirectory);
+        }
+
+        String fileId = UUID.randomUUID().toString();
+        File tempFile = new File(mDirectory, fileId + TEMP_FILE_EXTENSION);
+        FileOutputStream fileOutputStream = new FileOutputStream(tempFile);
+        boolean success = false;
+        try {
+            OutputStream outputStream = new BufferedOutputStream(fileOutputStream, BUFFER_SIZE);
+            StringEncryptionUtils.encryptEncodedValue(secretKey, encodedValue, mTransform, outputStream);
+            outputStream.flush();
+            fileOutputStream.getFD().sync();
+            success = true;
+        } finally {
+            fileOutputStream.close();
+            if (!success) {
+                tempFile.delete();
+            }
+        }
+
+        if (!tempFile.renameTo(getFile(fileId))) {
+            tempFile.delete();
+            throw new IOException("Unable to create value file " + fileId);
+        }
+        return fileId;
+    }
+
+    /**
+     * Read and decrypt the value held in the file.
+     */
+    Object read(SecretKey secretKey, String fileId) throws GeneralSecurityException, IOException {
+        File file = getFile(fileId);
+        InputStream inputStream = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        try {
+            return StringEncryptionUtils.decryptTypedValue(secretKey, inputStream, (int) Math.min(file.length(), Integer.MAX_VALUE - 8), mTransform);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    void delete(Collection<String> fileIdCollection) {
+        for (String fileId : fileIdCollection) {
+            deleteFile(getFile(fileId));
+        }
+    }
+
+    /**
+     * Delete every file, including incomplete ones, other than those in keepFileIdCollection.
+     */
+    void deleteAllExcept(Collection<String> keepFileIdCollection) {
+        File[] files = mDirectory.listFiles();
+        if (files == null) return;
+
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(FILE_EXTENSION) || !keepFileIdCollection.contains(name.substring(0, name.length() - FILE_EXTENSION.length()))) {
+                deleteFile(file);
+            }
+        }
+        if (keepFileIdCollection.isEmpty()) {
+            mDirectory.delete();
+        }
+    }
+
+    private File getFile(String fileId) {
+        if (fileId.indexOf(File.separatorChar) >= 0) throw new IllegalArgumentException("Invalid value file id");
+        return new File(mDirectory, fileId + FILE_EXTENSION);
+    }
+
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Unable to delete " + file);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Read-only map over a snapshot of encrypted values which decrypts each value on first access and memoizes it.
+ * Like HashMap, this is not safe for concurrent use without external synchronization.
+ */
+class LazyDecryptingMap extends AbstractMap<String, Object> {
+    private final StandardSharedPreferenceVault mVault;
+    private final Map<String, ?> mEncryptedMap;
+    private final Map<String, Object> mDecryptedMap = new HashMap<>();
+    private Set<Entry<String, Object>> mEntrySet;
+
+    LazyDecryptingMap(StandardSharedPreferenceVault vault, Map<String, ?> encryptedMap) {
+        mVault = vault;
+        mEncryptedMap = encryptedMap;
+    }
+
+    @Override
+    public int size() {
+        return mEncryptedMap.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return mEncryptedMap.containsKey(key);
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (!(key instanceof String) || !mEncryptedMap.containsKey(key)) return null;
+        return decrypt((String) key, null);
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return Collections.unmodifiableSet(mEncryptedMap.keySet());
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        if (mEntrySet == null) {
+            mEntrySet = new AbstractSet<Entry<String, Object>>() {
+                @Override
+                public Iterator<Entry<String, Object>> iterator() {
+                    final Iterator<String> keyIterator = mEncryptedMap.keySet().iterator();
+                    final IterationPass iterationPass = new IterationPass();
+                    return new Iterator<Entry<String, Object>>() {
+                        @Override
+                        public boolean hasNext() {
+                            return keyIterator.hasNext();
+                        }
+
+                        @Override
+                        public Entry<String, Object> next() {
+                            return new LazyEntry(keyIterator.next(), iterationPass);
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return mEncryptedMap.size();
+                }
+            };
+        }
+        return mEntrySet;
+    }
+
+    /**
+     * @param iterationPass Pass over the entries that supplies the key, or null to load the key for this value alone.
+     */
+    private Object decrypt(String key, IterationPass iterationPass) {
+        if (mDecryptedMap.containsKey(key)) return mDecryptedMap.get(key);
+
+        Object encryptedValue = mEncryptedMap.get(key);
+        Object value = null;
+        if (encryptedValue instanceof String) {
+            SecretKey secretKey = iterationPass != null ? iterationPass.getSecretKey() : mVault.loadViewKey();
+            value = mVault.decryptForView(key, (String) encryptedValue, secretKey);
+        }
+        mDecryptedMap.put(key, value);
+        return value;
+    }
+
+    /**
+     * Loads the key once for one iteration over the entries instead of once for each value read.
+     */
+    private class IterationPass {
+        private SecretKey mSecretKey;
+
+        SecretKey getSecretKey() {
+            if (mSecretKey == null) {
+                mSecretKey = mVault.loadViewKey();
+            }
+            return mSecretKey;
+        }
+    }
+
+    /**
+     * Entry which defers decryption until its value is requested.
+     */
+    private class LazyEntry implements Entry<String, Object> {
+        private final String mKey;
+        private final IterationPass mIterationPass;
+
+        LazyEntry(String key, IterationPass iterationPass) {
+            mKey = key;
+            mIterationPass = iterationPass;
+        }
+
+        @Override
+        public String getKey() {
+            return mKey;
+        }
+
+        @Override
+        public Object getValue() {
+            return decrypt(mKey, mIterationPass);
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) return false;
+            Entry<?, ?> entry = (Entry<?, ?>) o;
+            Object value = getValue();
+            return mKey.equals(entry.getKey()) && (value == null ? entry.getValue() == null : value.equals(entry.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            Object value = getValue();
+            return mKey.hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return mKey + "=" + getValue();
+        }
+    }
+}
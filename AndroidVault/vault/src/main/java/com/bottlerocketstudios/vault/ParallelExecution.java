@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Immutable configuration for splitting bulk cryptographic work across an executor.
+ */
+class ParallelExecution {
+    private final ExecutorService mExecutorService;
+    private final int mParallelism;
+    private final int mMinimumEntryCount;
+
+    ParallelExecution(ExecutorService executorService, int parallelism, int minimumEntryCount) {
+        if (executorService == null) throw new IllegalArgumentException("ExecutorService is required");
+        if (parallelism < 1) throw new IllegalArgumentException("Parallelism must be at least 1");
+        mExecutorService = executorService;
+        mParallelism = parallelism;
+        mMinimumEntryCount = Math.max(minimumEntryCount, 2);
+    }
+
+    ExecutorService getExecutorService() {
+        return mExecutorService;
+    }
+
+    /**
+     * Determine if a job with entryCount entries is large enough to benefit from parallel execution.
+     */
+    boolean isParallel(int entryCount) {
+        return mParallelism > 1 && entryCount >= mMinimumEntryCount;
+    }
+
+    /**
+     * Split items into contiguous batches of nearly equal size, one per unit of parallelism.
+     */
+    <T> List<List<T>> split(List<T> items) {
+        int batchCount = Math.min(mParallelism, items.size());
+        List<List<T>> batchList = new ArrayList<>(batchCount);
+        for (int i = 0; i < batchCount; i++) {
+            batchList.add(items.subList(i * items.size() / batchCount, (i + 1) * items.size() / batchCount));
+        }
+        return batchList;
+    }
+}
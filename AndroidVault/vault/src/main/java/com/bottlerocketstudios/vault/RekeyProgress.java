@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bottlerocketstudios.vault;
+
+/**
+ * Progress of {@link SharedPreferenceVault#rekeyStorageIncrementally(javax.crypto.SecretKey, SharedPreferenceVault.OnRekeyProgressListener)}.
+ */
+public final class RekeyProgress {
+    private final int mKeyId;
+    private final int mTotalCount;
+    private final int mCompletedCount;
+    private final boolean mComplete;
+
+    RekeyProgress(int keyId, int totalCount, int completedCount, boolean complete) {
+        mKeyId = keyId;
+        mTotalCount = totalCount;
+        mCompletedCount = completedCount;
+        mComplete = complete;
+    }
+
+    /**
+     * Id of the key that values are being re-encrypted with.
+     */
+    public int getKeyId() {
+        return mKeyId;
+    }
+
+    /**
+     * Number of values that had to be re-encrypted when the rotation began.
+     */
+    public int getTotalCount() {
+        return mTotalCount;
+    }
+
+    /**
+     * Number of those values which no longer depend on the old key, including values overwritten or removed.
+     */
+    public int getCompletedCount() {
+        return mCompletedCount;
+    }
+
+    /**
+     * True once the old key has been discarded.
+     */
+    public boolean isComplete() {
+        return mComplete;
+    }
+
+    @Override
+    public String toString() {
+        return "RekeyProgress{" +
+                "keyId=" + mKeyId +
+                ", completed=" + mCompletedCount + "/" + mTotalCount +
+                ", complete=" + mComplete +
+                '}';
+    }
+}
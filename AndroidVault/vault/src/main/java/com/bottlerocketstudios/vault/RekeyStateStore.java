@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault;
+
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Persists the progress of an incremental key rotation so that it survives process death. The key being retired is
+ * kept encrypted with the new key until every value has been re-encrypted, along with a digest that identifies
+ * the retiring key without revealing it.
+ *
+ * <p>
+ *     The state is kept in a small file that is only created when the first rotation begins, so vaults that have
+ *     never been rotated only check that the file is absent.
+ * </p>
+ */
+class RekeyStateStore {
+    private static final String TAG = RekeyStateStore.class.getSimpleName();
+
+    private static final int FILE_VERSION = 1;
+    private static final String TEMP_FILE_EXTENSION = ".tmp";
+
+    private static final String KEY_CHECK_DIGEST = "SHA-256";
+    private static final String KEY_CHECK_DOMAIN = "AndroidVault.retiringKeyCheck";
+
+    private static final State EMPTY_STATE = new State(0, 0, null, null, null, 0);
+
+    private final File mFile;
+    private volatile State mState;
+    private SecretKey mRetiringKey;
+
+    RekeyStateStore(File file) {
+        mFile = file;
+        State state = EMPTY_STATE;
+        if (file.exists()) {
+            try {
+                state = read(file);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to read " + file, e);
+            }
+        }
+        mState = state;
+    }
+
+    /**
+     * Id of the key used to encrypt new values. Values encrypted before the first rotation have id 0.
+     */
+    int getCurrentKeyId() {
+        return mState.mCurrentKeyId;
+    }
+
+    /**
+     * Id of the key being retired, only meaningful while a rotation is in progress.
+     */
+    int getRetiringKeyId() {
+        return mState.mRetiringKeyId;
+    }
+
+    boolean isInProgress() {
+        return mState.mRetiringKey != null;
+    }
+
+    /**
+     * Number of values that needed re-encryption when the latest rotation began.
+     */
+    int getTotalCount() {
+        return mState.mTotalCount;
+    }
+
+    /**
+     * Record the start of a rotation from currentKey to newKey. Must be written before newKey is saved so that a
+     * process which dies in between can still read every value.
+     */
+    synchronized void begin(SecretKey currentKey, SecretKey newKey, int totalCount, String transform) throws GeneralSecurityException {
+        byte[] encodedKey = currentKey.getEncoded();
+        if (encodedKey == null) throw new GeneralSecurityException("Current key cannot be exported for incremental rekeying");
+
+        State previous = mState;
+        State state = new State(
+                previous.mCurrentKeyId + 1,
+                previous.mCurrentKeyId,
+                Base64.encodeToString(StringEncryptionUtils.encryptBytes(newKey, encodedKey, transform), Base64.NO_WRAP),
+                currentKey.getAlgorithm(),
+                createKeyCheck(encodedKey),
+                totalCount);
+        if (!write(state)) throw new GeneralSecurityException("Unable to save rekey state");
+        mState = state;
+        mRetiringKey = currentKey;
+    }
+
+    /**
+     * Load the key being retired, decrypting it with the current key the first time. Nothing is written, so this is
+     * safe to use from any read.
+     * @param secretKey Key loaded from KeyStorage.
+     * @return The retiring key, or secretKey itself if it is the retiring key because the new key was never saved.
+     */
+    synchronized SecretKey getRetiringKey(SecretKey secretKey, String transform) throws GeneralSecurityException {
+        State state = mState;
+        if (state.mRetiringKey == null) return null;
+        if (mRetiringKey != null) return mRetiringKey;
+
+        try {
+            byte[] encodedKey = StringEncryptionUtils.decryptBytes(secretKey, Base64.decode(state.mRetiringKey, Base64.NO_WRAP), transform);
+            try {
+                //The wrapping envelope is not authenticated, so padding alone does not prove the key was correct.
+                if (!createKeyCheck(encodedKey).equals(state.mRetiringKeyCheck)) throw new GeneralSecurityException("Retiring key check failed");
+                mRetiringKey = new SecretKeySpec(encodedKey, state.mRetiringKeyAlgorithm);
+            } finally {
+                Arrays.fill(encodedKey, (byte) 0);
+            }
+            return mRetiringKey;
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            if (!isRetiringKey(secretKey, state)) throw new GeneralSecurityException("Unable to decrypt retiring key", e);
+            return secretKey;
+        }
+    }
+
+    /**
+     * Roll back a rotation whose new key was never saved, which is the case when KeyStorage still holds the
+     * retiring key. Must be called while no value is being read or written.
+     * @param secretKey Key loaded from KeyStorage.
+     * @return True if the rotation was rolled back.
+     */
+    synchronized boolean recoverInterruptedStart(SecretKey secretKey) throws GeneralSecurityException {
+        State state = mState;
+        if (state.mRetiringKey == null || !isRetiringKey(secretKey, state)) return false;
+        rollback();
+        return true;
+    }
+
+    /**
+     * Abandon a rotation whose new key was never saved.
+     */
+    synchronized void rollback() {
+        State state = mState;
+        State rolledBack = new State(state.mRetiringKeyId, 0, null, null, null, 0);
+        write(rolledBack);
+        mState = rolledBack;
+        mRetiringKey = null;
+    }
+
+    /**
+     * Forget the retiring key once no value depends on it.
+     */
+    synchronized void retire() {
+        State state = mState;
+        State retired = new State(state.mCurrentKeyId, 0, null, null, null, state.mTotalCount);
+        write(retired);
+        mState = retired;
+        mRetiringKey = null;
+    }
+
+    synchronized void clear() {
+        if (mFile.exists() && !mFile.delete()) {
+            Log.w(TAG, "Unable to delete " + mFile);
+        }
+        mState = EMPTY_STATE;
+        mRetiringKey = null;
+    }
+
+    private boolean write(State state) {
+        File tempFile = new File(mFile.getPath() + TEMP_FILE_EXTENSION);
+        try {
+            FileOutputStream fileOutputStream = new FileOutputStream(tempFile);
+            try {
+                DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
+                dataOutputStream.writeInt(FILE_VERSION);
+                dataOutputStream.writeInt(state.mCurrentKeyId);
+                dataOutputStream.writeInt(state.mRetiringKeyId);
+                dataOutputStream.writeInt(state.mTotalCount);
+                writeNullableString(dataOutputStream, state.mRetiringKey);
+                writeNullableString(dataOutputStream, state.mRetiringKeyAlgorithm);
+                writeNullableString(dataOutputStream, state.mRetiringKeyCheck);
+                dataOutputStream.flush();
+                fileOutputStream.getFD().sync();
+            } finally {
+                fileOutputStream.close();
+            }
+            if (!tempFile.renameTo(mFile)) throw new IOException("Unable to replace " + mFile);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write " + mFile, e);
+            tempFile.delete();
+            return false;
+        }
+    }
+
+    private static State read(File file) throws IOException {
+        DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (dataInputStream.readInt() != FILE_VERSION) throw new IOException("Unsupported rekey state version");
+            int currentKeyId = dataInputStream.readInt();
+            int retiringKeyId = dataInputStream.readInt();
+            int totalCount = dataInputStream.readInt();
+            return new State(currentKeyId, retiringKeyId, readNullableString(dataInputStream), readNullableString(dataInputStream), readNullableString(dataInputStream), totalCount);
+        } finally {
+            dataInputStream.close();
+        }
+    }
+
+    private static void writeNullableString(DataOutputStream dataOutputStream, String value) throws IOException {
+        dataOutputStream.writeBoolean(value != null);
+        if (value != null) {
+            dataOutputStream.writeUTF(value);
+        }
+    }
+
+    private static String readNullableString(DataInputStream dataInputStream) throws IOException {
+        return dataInputStream.readBoolean() ? dataInputStream.readUTF() : null;
+    }
+
+    private static boolean isRetiringKey(SecretKey secretKey, State state) throws GeneralSecurityException {
+        byte[] encodedKey = secretKey.getEncoded();
+        return encodedKey != null && createKeyCheck(encodedKey).equals(state.mRetiringKeyCheck);
+    }
+
+    private static String createKeyCheck(byte[] encodedKey) throws GeneralSecurityException {
+        MessageDigest messageDigest = MessageDigest.getInstance(KEY_CHECK_DIGEST);
+        try {
+            messageDigest.update(KEY_CHECK_DOMAIN.getBytes(CharacterEncodingConstants.UTF_8));
+        } catch (UnsupportedEncodingException e) {
+            throw new GeneralSecurityException(e);
+        }
+        return Base64.encodeToString(messageDigest.digest(encodedKey), Base64.NO_WRAP);
+    }
+
+    /**
+     * Immutable snapshot so that readers never observe a partially updated rotation.
+     */
+    private static final class State {
+        final int mCurrentKeyId;
+        final int mRetiringKeyId;
+        final String mRetiringKey;
+        final String mRetiringKeyAlgorithm;
+        final String mRetiringKeyCheck;
+        final int mTotalCount;
+
+        State(int currentKeyId, int retiringKeyId, String retiringKey, String retiringKeyAlgorithm, String retiringKeyCheck, int totalCount) {
+            mCurrentKeyId = currentKeyId;
+            mRetiringKeyId = retiringKeyId;
+            mRetiringKey = retiringKey;
+            mRetiringKeyAlgorithm = retiringKeyAlgorithm;
+            mRetiringKeyCheck = retiringKeyCheck;
+            mTotalCount = totalCount;
+        }
+    }
+}
@@ -16,15 +16,45 @@
 package com.bottlerocketstudios.vault;
 
 import android.content.SharedPreferences;
+import android.os.Looper;
 
 import com.bottlerocketstudios.vault.keys.storage.KeyStorageType;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
 import javax.crypto.SecretKey;
 
 /**
  * Shared Preferences backed vault for storing sensitive information.
  */
 public interface SharedPreferenceVault extends SharedPreferences {
+    /**
+     * Receives the full set of keys changed by a single write.
+     */
+    interface OnVaultChangeListener {
+        /**
+         * @param changedKeys Keys whose values were added, modified or removed. The set is not modifiable.
+         */
+        void onVaultChanged(SharedPreferenceVault vault, Set<String> changedKeys);
+    }
+
+    /**
+     * Receives the progress of an incremental key rotation on the vault's background thread.
+     */
+    interface OnRekeyProgressListener {
+        void onRekeyProgress(SharedPreferenceVault vault, RekeyProgress progress);
+    }
+
     /**
      * Remove all stored values and destroy cryptographic keys associated with the vault instance.
      * <strong>This will permanently destroy all data in the preference file.</strong>
@@ -46,6 +76,38 @@ public interface SharedPreferenceVault extends SharedPreferences {
      */
     void setKey(SecretKey secretKey);
 
+    /**
+     * Replace the key without losing data. The new key is used for every write from the moment this returns, while
+     * existing values are re-encrypted in batches on the vault's background thread, see
+     * {@link #setRekeyBatchSize(int)}. Until that completes, values encrypted with either key can be read. The old
+     * key is kept encrypted with the new key in a separate preference file and is discarded once the last value no
+     * longer depends on it. A rotation interrupted by process death resumes the next time the vault is used or the
+     * new key is set with {@link #setKey(SecretKey)}.
+     * @param listener Listener called after each batch or null.
+     * @return Future which completes once the old key has been discarded.
+     * @throws GeneralSecurityException if there is no current key, it cannot be exported or the new key cannot be saved.
+     * @throws IllegalStateException if a rotation is already in progress.
+     */
+    Future<RekeyProgress> rekeyStorageIncrementally(SecretKey secretKey, OnRekeyProgressListener listener) throws GeneralSecurityException;
+
+    /**
+     * Continue a rotation started by {@link #rekeyStorageIncrementally(SecretKey, OnRekeyProgressListener)}, for
+     * example after its Future was cancelled. If one is already running, the listener is added to it.
+     * @return Future which completes once the old key has been discarded, immediately if no rotation is in progress.
+     */
+    Future<RekeyProgress> resumeRekey(OnRekeyProgressListener listener);
+
+    /**
+     * Progress of the current rotation or of the most recent one if none is in progress.
+     */
+    RekeyProgress getRekeyProgress();
+
+    /**
+     * Number of values re-encrypted and committed together during an incremental rotation. Reads and writes wait
+     * while a batch is written. Defaults to 64.
+     */
+    void setRekeyBatchSize(int batchSize);
+
     /**
      * Determine if this instance of storage currently has a valid key with which to encrypt values.
      */
@@ -65,4 +127,190 @@ public interface SharedPreferenceVault extends SharedPreferences {
      * Method to find out expected security level of KeyStorage implementation being used.
      */
     KeyStorageType getKeyStorageType();
+
+    /**
+     * Keep up to maxEntries decrypted values in an in-memory LRU cache so that repeated reads of the same
+     * key do not decrypt again. The cache is disabled by default, use 0 to disable it again. Only writes made
+     * through this instance invalidate the cache. Changing the size resets the hit and miss counters.
+     * <strong>Cached values are held in memory as cleartext until evicted or invalidated.</strong>
+     */
+    void setDecryptedValueCacheSize(int maxEntries);
+
+    /**
+     * Number of reads served from the decrypted value cache.
+     */
+    long getDecryptedValueCacheHitCount();
+
+    /**
+     * Number of reads that were not in the decrypted value cache and required decryption.
+     */
+    long getDecryptedValueCacheMissCount();
+
+    /**
+     * Split decryption in {@link #getAll()} into parallelism batches run on the executorService once the vault
+     * holds at least minimumEntryCount entries. Each worker thread uses its own Cipher. The executor is not shut
+     * down by the vault. Use a null executorService to decrypt serially on the calling thread, which is the default.
+     */
+    void setParallelDecryption(ExecutorService executorService, int parallelism, int minimumEntryCount);
+
+    /**
+     * Split encryption of an editor's values into parallelism batches run on the executorService once the editor
+     * holds at least minimumEntryCount values. All ciphertexts are still written in a single commit or apply.
+     * The executor is not shut down by the vault. Use a null executorService to encrypt serially on the calling
+     * thread, which is the default.
+     */
+    void setParallelEncryption(ExecutorService executorService, int parallelism, int minimumEntryCount);
+
+    /**
+     * Merge edits applied within windowMillis of the first pending apply() into a single encrypted batch and a
+     * single write to the underlying preferences, last writer wins. Reads see pending edits immediately.
+     * commit() flushes pending edits together with its own, as does getAll(). Listeners are notified for every
+     * changed key when the batch is written, on the vault's background thread for applied edits. Use 0 to write
+     * every apply() immediately, which is the default.
+     */
+    void setWriteCoalescingWindow(long windowMillis);
+
+    /**
+     * Compare each value being written with the value already stored, using the decrypted value cache when
+     * enabled, and skip encryption and the underlying write for values that have not changed. Listeners are
+     * only notified for keys that changed, as with standard SharedPreferences. Disabled by default because
+     * without the cache each changed value is also decrypted before it is encrypted.
+     */
+    void setSkipUnchangedWrites(boolean enabled);
+
+    /**
+     * Store String and Set&lt;String&gt; values whose encoded size is at least thresholdBytes in their own
+     * encrypted file, keeping only an encrypted pointer in the underlying preferences. Such values are never held
+     * in the decrypted value cache. Writes that add, replace or remove a large value are committed rather than
+     * applied so that a replaced file is only deleted once nothing references it, and writes are serialized
+     * while large values are in use. Use 0 to keep every value in the preferences, which is the default.
+     */
+    void setLargeValueThreshold(int thresholdBytes);
+
+    /**
+     * Compress values whose encoded size is at least thresholdBytes with Deflate before encryption, keeping the
+     * compressed form only when it is smaller. A flag inside the encrypted value marks compressed values so they can
+     * be read whatever the current setting. Use 0 to never compress, which is the default.
+     */
+    void setCompressionThreshold(int thresholdBytes);
+
+    /**
+     * Number of individual values that were not written because they were unchanged.
+     */
+    long getSkippedValueWriteCount();
+
+    /**
+     * Number of commit or apply operations that did not reach the underlying preferences because nothing changed.
+     */
+    long getSkippedEditorWriteCount();
+
+    /**
+     * Write any coalesced edits now. See {@link #setWriteCoalescingWindow(long)}.
+     */
+    void flush();
+
+    /**
+     * Read-only alternative to {@link #getAll()} that does not decrypt up front. Keys come straight from the
+     * underlying storage at the time of the call and each value is decrypted the first time it is read through
+     * get() or entry iteration, then kept. The key is loaded once for each get() or pass over the entries and is
+     * not retained by the view itself. Values that are still stored unchanged are read through the decrypted value
+     * cache. Entries that cannot be decrypted have a null value instead of being omitted. The returned map is not
+     * thread safe.
+     */
+    Map<String, ?> getAllLazily();
+
+    /**
+     * Read many values at once while loading the key only one time, which avoids repeated and potentially
+     * expensive key loads compared to calling the individual getters. Values that cannot be decrypted are
+     * omitted unless exceptions are enabled.
+     */
+    VaultValues getValues(Collection<String> keys);
+
+    @Override
+    SharedPreferenceVaultEditor edit();
+
+    /**
+     * Asynchronous form of {@link #getString(String, String)}. Asynchronous operations run on a single
+     * background thread owned by the vault, in the order they were submitted along with
+     * {@link SharedPreferenceVaultEditor#commitAsync()}. A read that has not started yet can be cancelled
+     * through its Future. When exceptions are enabled, failures are thrown from Future.get() wrapped in
+     * {@link java.util.concurrent.ExecutionException}.
+     */
+    Future<String> getStringAsync(String key, String defValue);
+
+    /**
+     * Asynchronous form of {@link #getStringSet(String, Set)}, see {@link #getStringAsync(String, String)}.
+     */
+    Future<Set<String>> getStringSetAsync(String key, Set<String> defValues);
+
+    /**
+     * Asynchronous form of {@link #getInt(String, int)}, see {@link #getStringAsync(String, String)}.
+     */
+    Future<Integer> getIntAsync(String key, int defValue);
+
+    /**
+     * Asynchronous form of {@link #getLong(String, long)}, see {@link #getStringAsync(String, String)}.
+     */
+    Future<Long> getLongAsync(String key, long defValue);
+
+    /**
+     * Asynchronous form of {@link #getFloat(String, float)}, see {@link #getStringAsync(String, String)}.
+     */
+    Future<Float> getFloatAsync(String key, float defValue);
+
+    /**
+     * Asynchronous form of {@link #getBoolean(String, boolean)}, see {@link #getStringAsync(String, String)}.
+     */
+    Future<Boolean> getBooleanAsync(String key, boolean defValue);
+
+    /**
+     * Asynchronous form of {@link #getValues(Collection)}, see {@link #getStringAsync(String, String)}.
+     */
+    Future<VaultValues> getValuesAsync(Collection<String> keys);
+
+    /**
+     * Load the preference file and key, initialize the Cipher and decrypt the hotKeys on the vault's
+     * background thread so that later reads do not pay those first-use costs. Cipher instances are per thread,
+     * so another thread still creates its own on first use. Decrypted hot key values are only retained when the
+     * decrypted value cache is enabled with {@link #setDecryptedValueCacheSize(int)}.
+     * @param hotKeys Keys to decrypt ahead of time or null.
+     * @return Future providing the time spent in each phase.
+     */
+    Future<VaultWarmUpResult> warmUp(Collection<String> hotKeys);
+
+    /**
+     * Encrypt everything written to the returned stream with the vault's key in authenticated chunks, see
+     * {@link StreamEncryptionUtils}. The returned stream must be closed, which also closes outputStream.
+     * @throws GeneralSecurityException if the vault has no key.
+     */
+    OutputStream createEncryptingOutputStream(OutputStream outputStream) throws GeneralSecurityException, IOException;
+
+    /**
+     * Decrypt a stream written by {@link #createEncryptingOutputStream(OutputStream)}.
+     * @throws GeneralSecurityException if the vault has no key or the header cannot be verified.
+     */
+    InputStream createDecryptingInputStream(InputStream inputStream) throws GeneralSecurityException, IOException;
+
+    /**
+     * Open a file written by {@link #createEncryptingOutputStream(OutputStream)} for random access reads.
+     * @throws GeneralSecurityException if the vault has no key or the header cannot be verified.
+     */
+    EncryptedFileChannelReader openEncryptedFileChannel(FileChannel fileChannel) throws GeneralSecurityException, IOException;
+
+    /**
+     * Register a listener that is called once per write with every changed key. Unchanged values are only
+     * left out when {@link #setSkipUnchangedWrites(boolean)} is enabled. Registration does not block notification.
+     * @param executor Executor used to deliver callbacks or null to call the listener on the writing thread.
+     */
+    void registerOnVaultChangeListener(OnVaultChangeListener listener, Executor executor);
+
+    /**
+     * Register a listener that is called once per write with every changed key on the thread of the looper.
+     */
+    void registerOnVaultChangeListener(OnVaultChangeListener listener, Looper looper);
+
+    /**
+     * Stop delivery to the listener, including notifications already queued on its executor.
+     */
+    void unregisterOnVaultChangeListener(OnVaultChangeListener listener);
 }
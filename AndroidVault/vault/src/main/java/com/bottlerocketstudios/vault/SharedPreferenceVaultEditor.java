@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault;
+
+import android.content.SharedPreferences;
+
+import java.util.Set;
+import java.util.concurrent.Future;
+
+/**
+ * Editor for a {@link SharedPreferenceVault} which can also commit on the vault's background thread.
+ */
+public interface SharedPreferenceVaultEditor extends SharedPreferences.Editor {
+    @Override
+    SharedPreferenceVaultEditor putString(String key, String value);
+
+    @Override
+    SharedPreferenceVaultEditor putStringSet(String key, Set<String> values);
+
+    @Override
+    SharedPreferenceVaultEditor putInt(String key, int value);
+
+    @Override
+    SharedPreferenceVaultEditor putLong(String key, long value);
+
+    @Override
+    SharedPreferenceVaultEditor putFloat(String key, float value);
+
+    @Override
+    SharedPreferenceVaultEditor putBoolean(String key, boolean value);
+
+    @Override
+    SharedPreferenceVaultEditor remove(String key);
+
+    @Override
+    SharedPreferenceVaultEditor clear();
+
+    /**
+     * Encrypt and commit the pending changes on the vault's background thread. The pending changes are handed
+     * off and this editor starts empty again, so it may be reused. The future yields the result of commit().
+     */
+    Future<Boolean> commitAsync();
+}
@@ -27,6 +27,7 @@ import com.bottlerocketstudios.vault.keys.storage.KeyStorage;
 import com.bottlerocketstudios.vault.keys.storage.KeychainAuthenticatedKeyStorage;
 import com.bottlerocketstudios.vault.keys.storage.MemoryOnlyKeyStorage;
 import com.bottlerocketstudios.vault.salt.PrngSaltGenerator;
+import com.bottlerocketstudios.vault.store.ShardedVaultStore;
 
 import java.security.GeneralSecurityException;
 
@@ -61,18 +62,101 @@ public class SharedPreferenceVaultFactory {
      * @throws GeneralSecurityException
      */
     public static SharedPreferenceVault getCompatAes256Vault(Context context, String prefFileName, String keyFileName, String keyAlias, int keyIndex, String presharedSecret, boolean enableExceptions) throws GeneralSecurityException {
+        return createCompatAes256Vault(context, prefFileName, keyFileName, keyAlias, keyIndex, presharedSecret, EncryptionConstants.AES_CBC_PADDED_TRANSFORM, enableExceptions);
+    }
+
+    /**
+     * @see SharedPreferenceVaultFactory#getCompatAes256Vault(Context, String, String, String, int, String, boolean)
+     */
+    public static SharedPreferenceVault getCompatAes256Vault(Context context, String prefFileName, String keyFileName, String keyAlias, int keyIndex, String presharedSecret) throws GeneralSecurityException {
+        return getCompatAes256Vault(context, prefFileName, keyFileName, keyAlias, keyIndex, presharedSecret, false);
+    }
+
+    /**
+     * Create an unkeyed vault that encrypts values with AES-GCM, which authenticates each value and avoids padding.
+     * Values written by a CBC vault on the same preference file and key remain readable and are converted to GCM
+     * when they are next written. On devices below Android 4.4 (API 19), this is identical to
+     * {@link #getCompatAes256Vault(Context, String, String, String, int, String, boolean)}.
+     * <strong>Once a value has been written with GCM, a CBC vault can no longer read it.</strong>
+     *
+     * @see SharedPreferenceVaultFactory#getCompatAes256Vault(Context, String, String, String, int, String, boolean)
+     */
+    public static SharedPreferenceVault getCompatAes256GcmVault(Context context, String prefFileName, String keyFileName, String keyAlias, int keyIndex, String presharedSecret, boolean enableExceptions) throws GeneralSecurityException {
+        return createCompatAes256Vault(context, prefFileName, keyFileName, keyAlias, keyIndex, presharedSecret, getGcmTransform(), enableExceptions);
+    }
+
+    /**
+     * Create an unkeyed vault that encrypts values with ChaCha20-Poly1305 using the same 256 bit key material as
+     * the AES vaults. This is much faster than AES on devices without AES instructions, such as many older ARMv7
+     * devices. A pure Java implementation is used below Android 9 (API 28). Values written by a CBC vault on the
+     * same preference file and key remain readable and are converted when they are next written.
+     * <strong>Once a value has been written with ChaCha20-Poly1305, an AES vault can no longer read it.</strong>
+     *
+     * @see SharedPreferenceVaultFactory#getCompatAes256Vault(Context, String, String, String, int, String, boolean)
+     */
+    public static SharedPreferenceVault getCompatChaCha20Poly1305Vault(Context context, String prefFileName, String keyFileName, String keyAlias, int keyIndex, String presharedSecret, boolean enableExceptions) throws GeneralSecurityException {
+        return createCompatAes256Vault(context, prefFileName, keyFileName, keyAlias, keyIndex, presharedSecret, EncryptionConstants.CHACHA20_POLY1305_TRANSFORM, enableExceptions);
+    }
+
+    /**
+     * Create an unkeyed vault that writes values with the fastest authenticated engine on this device, AES-GCM or
+     * ChaCha20-Poly1305. The first call for a keyAlias runs a short benchmark of every engine, which takes tens of
+     * milliseconds, and records the result in keyFileName so later calls only read it. The benchmark runs again
+     * after an OS upgrade. Values written by any engine remain readable, and values written by an older engine are
+     * converted when they are next written.
+     *
+     * @see SharedPreferenceVaultFactory#getCompatAes256Vault(Context, String, String, String, int, String, boolean)
+     * @see SharedPreferenceVaultFactory#getValueEngineCalibration(Context, String, String)
+     */
+    public static SharedPreferenceVault getCalibratedCompatVault(Context context, String prefFileName, String keyFileName, String keyAlias, int keyIndex, String presharedSecret, boolean enableExceptions) throws GeneralSecurityException {
+        ValueEngineCalibration calibration = ValueEngineCalibrator.getCalibration(context.getSharedPreferences(keyFileName, Context.MODE_PRIVATE), keyAlias, Build.VERSION.SDK_INT);
+        return createCompatAes256Vault(context, prefFileName, keyFileName, keyAlias, keyIndex, presharedSecret, calibration.getSelectedTransform(), enableExceptions);
+    }
+
+    /**
+     * Read the benchmark result recorded by
+     * {@link #getCalibratedCompatVault(Context, String, String, String, int, String, boolean)} e.g. to report
+     * the distribution of engines across devices.
+     * @return Calibration for the current OS version or null if it has not run.
+     */
+    public static ValueEngineCalibration getValueEngineCalibration(Context context, String keyFileName, String keyAlias) {
+        return ValueEngineCalibrator.readCalibration(context.getSharedPreferences(keyFileName, Context.MODE_PRIVATE), keyAlias, Build.VERSION.SDK_INT);
+    }
+
+    private static SharedPreferenceVault createCompatAes256Vault(Context context, String prefFileName, String keyFileName, String keyAlias, int keyIndex, String presharedSecret, String transform, boolean enableExceptions) throws GeneralSecurityException {
         if (TextUtils.equals(prefFileName, keyFileName)) {
             throw new IllegalArgumentException("Pref file and key file cannot be the same file.");
         }
         KeyStorage keyStorage = CompatSharedPrefKeyStorageFactory.createKeyStorage(context, Build.VERSION.SDK_INT, keyFileName, keyAlias, keyIndex, EncryptionConstants.AES_CIPHER, presharedSecret, new PrngSaltGenerator());
-        return new StandardSharedPreferenceVault(context, keyStorage, prefFileName, EncryptionConstants.AES_CBC_PADDED_TRANSFORM, enableExceptions);
+        return new StandardSharedPreferenceVault(context, keyStorage, prefFileName, transform, enableExceptions);
+    }
+
+    /**
+     * GCMParameterSpec is not available below Android 4.4 (API 19).
+     */
+    private static String getGcmTransform() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT ? EncryptionConstants.AES_GCM_TRANSFORM : EncryptionConstants.AES_CBC_PADDED_TRANSFORM;
     }
 
     /**
+     * Create an unkeyed vault whose values are spread across shardCount preference files by a stable hash of each
+     * key, so that a write only rewrites the files holding the changed keys. All shards share one key.
+     * The shard count must remain constant for a given prefFileName.
+     *
      * @see SharedPreferenceVaultFactory#getCompatAes256Vault(Context, String, String, String, int, String, boolean)
+     * @see com.bottlerocketstudios.vault.store.ShardedVaultStore
+     *
+     * @param shardCount        Number of preference files to spread values across.
      */
-    public static SharedPreferenceVault getCompatAes256Vault(Context context, String prefFileName, String keyFileName, String keyAlias, int keyIndex, String presharedSecret) throws GeneralSecurityException {
-        return getCompatAes256Vault(context, prefFileName, keyFileName, keyAlias, keyIndex, presharedSecret, false);
+    public static SharedPreferenceVault getShardedCompatAes256Vault(Context context, String prefFileName, int shardCount, String keyFileName, String keyAlias, int keyIndex, String presharedSecret, boolean enableExceptions) throws GeneralSecurityException {
+        ShardedVaultStore shardedVaultStore = ShardedVaultStore.createSharedPreferencesShards(context, prefFileName, shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            if (TextUtils.equals(shardedVaultStore.getShard(i).getName(), keyFileName)) {
+                throw new IllegalArgumentException("Pref file and key file cannot be the same file.");
+            }
+        }
+        KeyStorage keyStorage = CompatSharedPrefKeyStorageFactory.createKeyStorage(context, Build.VERSION.SDK_INT, keyFileName, keyAlias, keyIndex, EncryptionConstants.AES_CIPHER, presharedSecret, new PrngSaltGenerator());
+        return new StandardSharedPreferenceVault(context, keyStorage, shardedVaultStore, EncryptionConstants.AES_CBC_PADDED_TRANSFORM, enableExceptions);
     }
 
     /**
@@ -105,6 +189,34 @@ public class SharedPreferenceVaultFactory {
         return getAppKeyedCompatAes256Vault(context, prefFileName, keyFileName, keyAlias, keyIndex, presharedSecret, false);
     }
 
+    /**
+     * Create an application keyed vault that writes values with the fastest authenticated engine on this device.
+     *
+     * @see SharedPreferenceVaultFactory#getAppKeyedCompatAes256Vault(Context, String, String, String, int, String, boolean)
+     * @see SharedPreferenceVaultFactory#getCalibratedCompatVault(Context, String, String, String, int, String, boolean)
+     */
+    public static SharedPreferenceVault getAppKeyedCalibratedCompatVault(Context context, String prefFileName, String keyFileName, String keyAlias, int keyIndex, String presharedSecret, boolean enableExceptions) throws GeneralSecurityException {
+        SharedPreferenceVault sharedPreferenceVault = getCalibratedCompatVault(context, prefFileName, keyFileName, keyAlias, keyIndex, presharedSecret, enableExceptions);
+        if (!sharedPreferenceVault.isKeyAvailable()) {
+            sharedPreferenceVault.rekeyStorage(Aes256RandomKeyFactory.createKey());
+        }
+        return sharedPreferenceVault;
+    }
+
+    /**
+     * Create an application keyed vault that encrypts values with AES-GCM.
+     *
+     * @see SharedPreferenceVaultFactory#getAppKeyedCompatAes256Vault(Context, String, String, String, int, String, boolean)
+     * @see SharedPreferenceVaultFactory#getCompatAes256GcmVault(Context, String, String, String, int, String, boolean)
+     */
+    public static SharedPreferenceVault getAppKeyedCompatAes256GcmVault(Context context, String prefFileName, String keyFileName, String keyAlias, int keyIndex, String presharedSecret, boolean enableExceptions) throws GeneralSecurityException {
+        SharedPreferenceVault sharedPreferenceVault = getCompatAes256GcmVault(context, prefFileName, keyFileName, keyAlias, keyIndex, presharedSecret, enableExceptions);
+        if (!sharedPreferenceVault.isKeyAvailable()) {
+            sharedPreferenceVault.rekeyStorage(Aes256RandomKeyFactory.createKey());
+        }
+        return sharedPreferenceVault;
+    }
+
     /**
      * Create a vault that uses the operating system's built in keystore locking mechanism. Whenever
      * the device has not been unlocked in a specified amount of time, reading from this vault will
@@ -148,4 +260,52 @@ public class SharedPreferenceVaultFactory {
         KeyStorage keyStorage = new MemoryOnlyKeyStorage();
         return new StandardSharedPreferenceVault(context, keyStorage, prefFileName, EncryptionConstants.AES_CBC_PADDED_TRANSFORM, enableExceptions);
     }
+
+    /**
+     * Create an application keyed vault that encrypts values with ChaCha20-Poly1305.
+     *
+     * @see SharedPreferenceVaultFactory#getAppKeyedCompatAes256Vault(Context, String, String, String, int, String, boolean)
+     * @see SharedPreferenceVaultFactory#getCompatChaCha20Poly1305Vault(Context, String, String, String, int, String, boolean)
+     */
+    public static SharedPreferenceVault getAppKeyedCompatChaCha20Poly1305Vault(Context context, String prefFileName, String keyFileName, String keyAlias, int keyIndex, String presharedSecret, boolean enableExceptions) throws GeneralSecurityException {
+        SharedPreferenceVault sharedPreferenceVault = getCompatChaCha20Poly1305Vault(context, prefFileName, keyFileName, keyAlias, keyIndex, presharedSecret, enableExceptions);
+        if (!sharedPreferenceVault.isKeyAvailable()) {
+            sharedPreferenceVault.rekeyStorage(Aes256RandomKeyFactory.createKey());
+        }
+        return sharedPreferenceVault;
+    }
+
+    /**
+     * Create a vault that will not persist the key and encrypts values with AES-GCM.
+     *
+     * @see SharedPreferenceVaultFactory#getMemoryOnlyKeyAes256Vault(Context, String, boolean)
+     * @see SharedPreferenceVaultFactory#getCompatAes256GcmVault(Context, String, String, String, int, String, boolean)
+     */
+    public static SharedPreferenceVault getMemoryOnlyKeyAes256GcmVault(Context context, String prefFileName, boolean enableExceptions) throws GeneralSecurityException {
+        KeyStorage keyStorage = new MemoryOnlyKeyStorage();
+        return new StandardSharedPreferenceVault(context, keyStorage, prefFileName, getGcmTransform(), enableExceptions);
+    }
+
+    /**
+     * Create a vault that will not persist the key and encrypts values with ChaCha20-Poly1305. The key must be a
+     * 256 bit key e.g. from {@link Aes256RandomKeyFactory}.
+     *
+     * @see SharedPreferenceVaultFactory#getMemoryOnlyKeyAes256Vault(Context, String, boolean)
+     * @see SharedPreferenceVaultFactory#getCompatChaCha20Poly1305Vault(Context, String, String, String, int, String, boolean)
+     */
+    public static SharedPreferenceVault getMemoryOnlyKeyChaCha20Poly1305Vault(Context context, String prefFileName, boolean enableExceptions) throws GeneralSecurityException {
+        KeyStorage keyStorage = new MemoryOnlyKeyStorage();
+        return new StandardSharedPreferenceVault(context, keyStorage, prefFileName, EncryptionConstants.CHACHA20_POLY1305_TRANSFORM, enableExceptions);
+    }
+
+    /**
+     * Create a sharded vault that will not persist the key to any secure storage system.
+     *
+     * @see SharedPreferenceVaultFactory#getMemoryOnlyKeyAes256Vault(Context, String, boolean)
+     * @see SharedPreferenceVaultFactory#getShardedCompatAes256Vault(Context, String, int, String, String, int, String, boolean)
+     */
+    public static SharedPreferenceVault getShardedMemoryOnlyKeyAes256Vault(Context context, String prefFileName, int shardCount, boolean enableExceptions) throws GeneralSecurityException {
+        KeyStorage keyStorage = new MemoryOnlyKeyStorage();
+        return new StandardSharedPreferenceVault(context, keyStorage, ShardedVaultStore.createSharedPreferencesShards(context, prefFileName, shardCount), EncryptionConstants.AES_CBC_PADDED_TRANSFORM, enableExceptions);
+    }
 }
@@ -19,6 +19,7 @@ import android.util.SparseArray;
 
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 /**
  * Ensure app-wide uniqueness of vault indices and key alias and reducing memory churn on object instantiation
@@ -80,6 +81,19 @@ public class SharedPreferenceVaultRegistry {
         return mSharedPreferenceVaultArray.get(index);
     }
 
+    /**
+     * Start {@link SharedPreferenceVault#warmUp(java.util.Collection)} on every registered vault. Each vault
+     * warms up on its own background thread.
+     * @return Futures keyed by vault index.
+     */
+    public SparseArray<Future<VaultWarmUpResult>> warmUp() {
+        SparseArray<Future<VaultWarmUpResult>> resultArray = new SparseArray<>(mSharedPreferenceVaultArray.size());
+        for (int i = 0; i < mSharedPreferenceVaultArray.size(); i++) {
+            resultArray.put(mSharedPreferenceVaultArray.keyAt(i), mSharedPreferenceVaultArray.valueAt(i).warmUp(null));
+        }
+        return resultArray;
+    }
+
     public void clear() {
         mPrefFileSet.clear();
         mKeyAliasSet.clear();
@@ -16,24 +16,47 @@
 package com.bottlerocketstudios.vault;
 
 import android.content.Context;
-import android.content.SharedPreferences;
-import android.text.TextUtils;
+import android.os.Looper;
 import android.util.Log;
 
 import com.bottlerocketstudios.vault.keys.storage.KeyStorage;
 import com.bottlerocketstudios.vault.keys.storage.KeyStorageType;
+import com.bottlerocketstudios.vault.store.SharedPreferencesVaultStore;
+import com.bottlerocketstudios.vault.store.VaultStore;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.channels.FileChannel;
 import java.security.GeneralSecurityException;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.regex.Pattern;
 
 import javax.crypto.SecretKey;
@@ -44,7 +67,10 @@ import javax.crypto.SecretKey;
 public class StandardSharedPreferenceVault implements SharedPreferenceVault {
     private static final String TAG = StandardSharedPreferenceVault.class.getSimpleName();
 
-    private static final String STRING_SET_SEPARATOR = "1eRHtJaybutdAsFp2DkfrT1FqMJlLfT7DdgCpQtTaoQWheoeFBZRqt5pgFDH7Cf";
+    private static final String LARGE_VALUE_DIRECTORY = "vault_large_values";
+    private static final long ASYNC_THREAD_KEEP_ALIVE_SECONDS = 30;
+    private static final String REKEY_STATE_FILE_SUFFIX = ".rekeyState";
+    private static final int DEFAULT_REKEY_BATCH_SIZE = 64;
 
     private static final Pattern FLOAT_REGEX = Pattern.compile("^-?\\d+\\.\\d+$");
     private static final Pattern INTEGER_REGEX = Pattern.compile("^-?\\d+$");
@@ -54,85 +80,247 @@ public class StandardSharedPreferenceVault implements SharedPreferenceVault {
     private final boolean mEnableExceptions;
     private final String mTransform;
     private final KeyStorage mKeyStorage;
-    private final String mSharedPreferenceName;
-    private final List<OnSharedPreferenceChangeListener> mSharedPreferenceChangeListenerList = Collections.synchronizedList(new LinkedList<OnSharedPreferenceChangeListener>());
+    private final VaultStore mVaultStore;
+    private final List<OnSharedPreferenceChangeListener> mSharedPreferenceChangeListenerList = new CopyOnWriteArrayList<>();
+    private final List<VaultChangeListenerRegistration> mVaultChangeListenerList = new CopyOnWriteArrayList<>();
 
-    private SharedPreferences mSharedPreferences;
     private boolean mDebugEnabled;
+    private volatile DecryptedValueCache mDecryptedValueCache;
+    private volatile ParallelExecution mParallelDecryption;
+    private volatile ParallelExecution mParallelEncryption;
+    private ScheduledThreadPoolExecutor mAsyncExecutor;
+    private volatile long mWriteCoalescingWindowMillis;
+    private final Object mCoalescingLock = new Object();
+    private final Object mFlushLock = new Object();
+    private volatile CoalescedWrite mPendingWrite;
+    private volatile CoalescedWrite mFlushingWrite;
+    private volatile boolean mSkipUnchangedWrites;
+    private final AtomicLong mSkippedValueWriteCount = new AtomicLong();
+    private final AtomicLong mSkippedEditorWriteCount = new AtomicLong();
+    private final Object mLargeValueLock = new Object();
+    private final AtomicBoolean mLargeValueSweepScheduled = new AtomicBoolean();
+    private volatile int mLargeValueThreshold;
+    private volatile int mCompressionThreshold;
+    private LargeValueFileStore mLargeValueFileStore;
+    /**
+     * Set once side files exist so that writes need not check the filesystem. Never cleared, as a stale true only
+     * costs a write the large value lock.
+     */
+    private volatile boolean mLargeValuesPresent;
+    /**
+     * Held for reading while a key is loaded and used, held for writing to change which key values depend on.
+     * Acquired after mFlushLock and mLargeValueLock.
+     */
+    private final ReentrantReadWriteLock mKeyRotationLock = new ReentrantReadWriteLock();
+    private final Object mRekeyLock = new Object();
+    private volatile RekeyStateStore mRekeyStateStore;
+    private RekeySweep mRekeySweep;
+    private volatile int mRekeyBatchSize = DEFAULT_REKEY_BATCH_SIZE;
 
     public StandardSharedPreferenceVault(Context context, KeyStorage keyStorage, String prefFileName, String transform, boolean enableExceptions) {
+        this(context, keyStorage, new SharedPreferencesVaultStore(context, prefFileName), transform, enableExceptions);
+    }
+
+    /**
+     * Create a vault which keeps its encrypted values in the provided VaultStore.
+     */
+    public StandardSharedPreferenceVault(Context context, KeyStorage keyStorage, VaultStore vaultStore, String transform, boolean enableExceptions) {
         mContext = context.getApplicationContext();
         mKeyStorage = keyStorage;
-        mSharedPreferenceName = prefFileName;
+        mVaultStore = vaultStore;
         mTransform = transform;
         mEnableExceptions = enableExceptions;
+        mLargeValuesPresent = getLargeValueFileStore().exists();
     }
 
     boolean writeValues(boolean commit, boolean wasCleared, Set<String> removalSet, StronglyTypedBundle stronglyTypedBundle) {
-        SharedPreferences.Editor editor = getSharedPreferences().edit();
-        Set<String> preferenceKeySet = new HashSet<>();
+        long writeCoalescingWindowMillis = mWriteCoalescingWindowMillis;
+        if (writeCoalescingWindowMillis > 0) {
+            boolean scheduleFlush;
+            synchronized (mCoalescingLock) {
+                scheduleFlush = mPendingWrite == null;
+                if (scheduleFlush) {
+                    mPendingWrite = new CoalescedWrite();
+                }
+                mPendingWrite.merge(wasCleared, removalSet, stronglyTypedBundle);
+                if (commit) {
+                    mPendingWrite.requestCommit();
+                }
+            }
 
-        if (wasCleared) {
-            editor.clear();
+            if (commit) {
+                return flushPendingWrite();
+            } else if (scheduleFlush) {
+                getAsyncExecutor().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushPendingWrite();
+                    }
+                }, writeCoalescingWindowMillis, TimeUnit.MILLISECONDS);
+            }
+            return true;
         }
+        return writeValuesNow(commit, wasCleared, removalSet, stronglyTypedBundle);
+    }
+
+    /**
+     * Encrypt and write all coalesced edits as one batch. A commit is used if any of the merged edits was
+     * committed. Flushes are serialized so that a committing caller waits for any flush already in progress.
+     */
+    private boolean flushPendingWrite() {
+        synchronized (mFlushLock) {
+            CoalescedWrite coalescedWrite;
+            synchronized (mCoalescingLock) {
+                coalescedWrite = mPendingWrite;
+                if (coalescedWrite == null) return true;
+                //Remains visible to readers until it has been written.
+                mFlushingWrite = coalescedWrite;
+                mPendingWrite = null;
+            }
 
-        if (removalSet != null) {
-            for (String key: removalSet) {
-                editor.remove(key);
+            try {
+                return writeValuesNow(coalescedWrite.isCommitRequested(), coalescedWrite.isCleared(), coalescedWrite.getRemovalSet(), coalescedWrite.getStronglyTypedBundle());
+            } finally {
+                synchronized (mCoalescingLock) {
+                    mFlushingWrite = null;
+                }
             }
-            preferenceKeySet.addAll(removalSet);
         }
+    }
 
-        if (stronglyTypedBundle != null) {
+    /**
+     * Determine the value a coalesced write that has not yet been written will store for the key.
+     * @return The unencrypted value, null if it will be removed or {@link CoalescedWrite#NOT_PENDING}.
+     */
+    private Object getPendingValue(String key) {
+        if (mPendingWrite == null && mFlushingWrite == null) return CoalescedWrite.NOT_PENDING;
+
+        synchronized (mCoalescingLock) {
+            Object value = mPendingWrite != null ? mPendingWrite.getValue(key) : CoalescedWrite.NOT_PENDING;
+            if (value == CoalescedWrite.NOT_PENDING && mFlushingWrite != null) {
+                value = mFlushingWrite.getValue(key);
+            }
+            return value;
+        }
+    }
+
+    private boolean writeValuesNow(boolean commit, boolean wasCleared, Set<String> removalSet, StronglyTypedBundle stronglyTypedBundle) {
+        if (mLargeValueThreshold > 0 || mLargeValuesPresent) {
+            //Reading the previous pointers, writing side files and committing must not interleave between writers.
+            synchronized (mLargeValueLock) {
+                return writeValuesNow(commit, wasCleared, removalSet, stronglyTypedBundle, true);
+            }
+        }
+        return writeValuesNow(commit, wasCleared, removalSet, stronglyTypedBundle, false);
+    }
+
+    private boolean writeValuesNow(boolean commit, boolean wasCleared, Set<String> removalSet, StronglyTypedBundle stronglyTypedBundle, boolean manageLargeValues) {
+        if (stronglyTypedBundle == null) return false;
+
+        Set<String> preferenceKeySet = new HashSet<>();
+        boolean commitSuccess;
+        //Listeners are called without the lock so that they may use the vault freely.
+        mKeyRotationLock.readLock().lock();
+        try {
             //Secret key is kept in memory only long enough to use it.
             SecretKey secretKey = mKeyStorage.loadKey(mContext);
-            if (secretKey != null) {
-                try {
-                    for (String key : stronglyTypedBundle.keySet()) {
-                        Class type = stronglyTypedBundle.getTypeForValue(key);
-                        if (type == String.class) {
-                            writeString(editor, key, secretKey, stronglyTypedBundle.getValue(String.class, key));
-                        } else if (type == Long.class) {
-                            writeLong(editor, key, secretKey, stronglyTypedBundle.getValue(Long.class, key));
-                        } else if (type == Integer.class) {
-                            writeInteger(editor, key, secretKey, stronglyTypedBundle.getValue(Integer.class, key));
-                        } else if (type == Float.class) {
-                            writeFloat(editor, key, secretKey, stronglyTypedBundle.getValue(Float.class, key));
-                        } else if (type == Boolean.class) {
-                            writeBoolean(editor, key, secretKey, stronglyTypedBundle.getValue(Boolean.class, key));
-                        } else if (Set.class.isAssignableFrom(type)) {
-                            try {
-                                //noinspection unchecked
-                                writeStringSet(editor, key, secretKey, stronglyTypedBundle.getValue(Set.class, key));
-                            } catch (ClassCastException e) {
-                                log("Unexpected type of set provided", e);
-                                return false;
-                            }
-                        } else {
-                            log("Unexpected data type encountered " + type.toString());
-                            return false;
-                        }
+            if (secretKey == null) return false;
+            int keyId;
+            try {
+                keyId = getWriteKeyId(secretKey);
+            } catch (GeneralSecurityException e) {
+                log("Exception in writeValues()", e);
+                if (mEnableExceptions) throw new RuntimeException(e);
+                return false;
+            }
+
+            VaultStore.Editor editor = mVaultStore.edit();
+            List<String> keyList = new ArrayList<>(stronglyTypedBundle.size());
+            stronglyTypedBundle.collectKeys(keyList);
+            boolean skipUnchangedWrites = mSkipUnchangedWrites && !wasCleared;
+
+            if (wasCleared) {
+                editor.clear();
+            }
+
+            if (removalSet != null) {
+                for (String key: removalSet) {
+                    if (skipUnchangedWrites && !mVaultStore.contains(key)) continue;
+                    editor.remove(key);
+                    preferenceKeySet.add(key);
+                }
+            }
+
+            if (skipUnchangedWrites) {
+                removeUnchangedValues(keyList, removalSet, stronglyTypedBundle, secretKey);
+            }
+
+            if (!wasCleared && preferenceKeySet.isEmpty() && keyList.isEmpty()) {
+                mSkippedEditorWriteCount.incrementAndGet();
+                return true;
+            }
+
+            Map<String, String> encryptedMap = new HashMap<>();
+            List<String> encryptKeyList = keyList;
+            List<String> obsoleteFileIdList = new ArrayList<>();
+            List<String> newFileIdList = new ArrayList<>();
+            ParallelExecution parallelEncryption = mParallelEncryption;
+            try {
+                if (manageLargeValues) {
+                    scheduleLargeValueSweep();
+                    if (!wasCleared) {
+                        collectLargeValueFileIds(preferenceKeySet, secretKey, obsoleteFileIdList);
+                        collectLargeValueFileIds(keyList, secretKey, obsoleteFileIdList);
                     }
-                } catch (GeneralSecurityException | UnsupportedEncodingException e) {
-                    log("Exception in writeValues()", e);
-                    if (mEnableExceptions) throw new RuntimeException(e);
+                    encryptKeyList = new ArrayList<>(keyList);
+                    writeLargeValues(encryptKeyList, stronglyTypedBundle, secretKey, keyId, encryptedMap, newFileIdList);
+                }
+
+                boolean encrypted;
+                if (parallelEncryption != null && parallelEncryption.isParallel(encryptKeyList.size())) {
+                    encrypted = encryptAllInParallel(parallelEncryption, encryptKeyList, stronglyTypedBundle, secretKey, keyId, encryptedMap);
+                } else {
+                    encrypted = encryptAll(encryptKeyList, stronglyTypedBundle, secretKey, keyId, encryptedMap);
+                }
+                if (!encrypted) {
+                    getLargeValueFileStore().delete(newFileIdList);
                     return false;
                 }
-            } else {
+            } catch (GeneralSecurityException | IOException e) {
+                getLargeValueFileStore().delete(newFileIdList);
+                log("Exception in writeValues()", e);
+                if (mEnableExceptions) throw new RuntimeException(e);
                 return false;
             }
-            preferenceKeySet.addAll(stronglyTypedBundle.keySet());
-        } else {
-            return false;
-        }
+            for (Map.Entry<String, String> entry : encryptedMap.entrySet()) {
+                editor.putString(entry.getKey(), entry.getValue());
+            }
+            preferenceKeySet.addAll(keyList);
 
-        boolean commitSuccess = true;
-        if (commit) {
-            commitSuccess = editor.commit();
-        } else {
-            editor.apply();
+            //Side files may only be deleted once the store no longer references them.
+            boolean largeValuesChanged = manageLargeValues && (wasCleared || !obsoleteFileIdList.isEmpty() || !newFileIdList.isEmpty());
+            if (commit || largeValuesChanged) {
+                commitSuccess = editor.commit();
+            } else {
+                editor.apply();
+                commitSuccess = true;
+            }
+
+            if (largeValuesChanged) {
+                if (!commitSuccess) {
+                    getLargeValueFileStore().delete(newFileIdList);
+                } else if (wasCleared) {
+                    getLargeValueFileStore().deleteAllExcept(newFileIdList);
+                } else {
+                    getLargeValueFileStore().delete(obsoleteFileIdList);
+                }
+            }
+        } finally {
+            mKeyRotationLock.readLock().unlock();
         }
 
+        invalidateCache(wasCleared, preferenceKeySet);
+
         if (commitSuccess) {
             notifyListeners(preferenceKeySet);
         }
@@ -140,168 +328,835 @@ public class StandardSharedPreferenceVault implements SharedPreferenceVault {
         return commitSuccess;
     }
 
-    private void writeStringSet(Editor editor, String key, SecretKey secretKey, Set<String> value) throws GeneralSecurityException, UnsupportedEncodingException {
-        StringBuilder stringBuilder = new StringBuilder();
-        for (Iterator<String> iterator = value.iterator(); iterator.hasNext();) {
-            stringBuilder.append(iterator.next());
-            if (iterator.hasNext()) stringBuilder.append(STRING_SET_SEPARATOR);
+    /**
+     * Move values whose encoding exceeds the large value threshold to side files, putting encrypted pointer
+     * records for them in the encryptedMap and removing their keys from the keyList.
+     */
+    private void writeLargeValues(List<String> keyList, StronglyTypedBundle stronglyTypedBundle, SecretKey secretKey, int keyId, Map<String, String> encryptedMap, List<String> newFileIdList) throws GeneralSecurityException, IOException {
+        int largeValueThreshold = mLargeValueThreshold;
+        if (largeValueThreshold <= 0) return;
+
+        for (Iterator<String> iterator = keyList.iterator(); iterator.hasNext();) {
+            String key = iterator.next();
+            int type = stronglyTypedBundle.getType(key);
+            //UTF-8 needs at most three bytes per char, so short strings need not be encoded to be ruled out.
+            if (type == TypedValueCodec.TYPE_STRING_SET || (type == TypedValueCodec.TYPE_STRING && stronglyTypedBundle.getString(key).length() * 3L + 1 >= largeValueThreshold)) {
+                byte[] encodedValue = encodeValue(stronglyTypedBundle, key);
+                if (encodedValue == null) continue;
+
+                //The decision is made on the size that would be stored, so it is encoded only once either way.
+                encodedValue = TypedValueCodec.compress(encodedValue, mCompressionThreshold);
+                if (encodedValue.length >= largeValueThreshold) {
+                    String fileId = writeLargeValueFile(secretKey, encodedValue);
+                    newFileIdList.add(fileId);
+                    encryptedMap.put(key, StringEncryptionUtils.encryptEncodedValue(secretKey, keyId, TypedValueCodec.encodeLargeValuePointer(fileId), mTransform));
+                } else {
+                    encryptedMap.put(key, StringEncryptionUtils.encryptEncodedValue(secretKey, keyId, encodedValue, mTransform));
+                }
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Add the side file ids referenced by the stored values of the keys to fileIdList.
+     */
+    private void collectLargeValueFileIds(Collection<String> keys, SecretKey secretKey, List<String> fileIdList) {
+        for (String key : keys) {
+            try {
+                String encryptedValue = mVaultStore.getString(key);
+                Object value = StringEncryptionUtils.decryptTypedValue(resolveKey(encryptedValue, secretKey), encryptedValue, CharacterEncodingConstants.UTF_8, mTransform);
+                if (value instanceof TypedValueCodec.LargeValuePointer) {
+                    fileIdList.add(((TypedValueCodec.LargeValuePointer) value).mFileId);
+                }
+            } catch (GeneralSecurityException | UnsupportedEncodingException | StringEncryptionUtils.UnencryptedException e) {
+                //Unreadable values are simply overwritten. Any side file they referenced is removed by the sweep.
+            }
+        }
+    }
+
+    /**
+     * Once per instance, delete side files left behind by a process that died between writing a side file
+     * and committing or deleting it.
+     */
+    private void scheduleLargeValueSweep() {
+        if (!mLargeValueSweepScheduled.compareAndSet(false, true)) return;
+
+        getAsyncExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mLargeValueLock) {
+                    mKeyRotationLock.readLock().lock();
+                    try {
+                        SecretKey secretKey = mKeyStorage.loadKey(mContext);
+                        if (secretKey == null) return;
+
+                        List<String> fileIdList = new ArrayList<>();
+                        for (String encryptedValue : mVaultStore.getAll().values()) {
+                            try {
+                                Object value = StringEncryptionUtils.decryptTypedValue(resolveKey(encryptedValue, secretKey), encryptedValue, CharacterEncodingConstants.UTF_8, mTransform);
+                                if (value instanceof TypedValueCodec.LargeValuePointer) {
+                                    fileIdList.add(((TypedValueCodec.LargeValuePointer) value).mFileId);
+                                }
+                            } catch (GeneralSecurityException | UnsupportedEncodingException | StringEncryptionUtils.UnencryptedException e) {
+                                //Without knowing every reference, nothing can safely be deleted.
+                                return;
+                            }
+                        }
+                        getLargeValueFileStore().deleteAllExcept(fileIdList);
+                    } finally {
+                        mKeyRotationLock.readLock().unlock();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Read the side file if the decrypted value is a pointer to one.
+     */
+    private Object resolveLargeValue(Object value, SecretKey secretKey) throws GeneralSecurityException {
+        if (!(value instanceof TypedValueCodec.LargeValuePointer)) return value;
+
+        try {
+            return getLargeValueFileStore().read(secretKey, ((TypedValueCodec.LargeValuePointer) value).mFileId);
+        } catch (IOException e) {
+            throw new GeneralSecurityException("Unable to read large value", e);
+        }
+    }
+
+    private String writeLargeValueFile(SecretKey secretKey, byte[] encodedValue) throws GeneralSecurityException, IOException {
+        mLargeValuesPresent = true;
+        return getLargeValueFileStore().write(secretKey, encodedValue);
+    }
+
+    private synchronized LargeValueFileStore getLargeValueFileStore() {
+        if (mLargeValueFileStore == null) {
+            File directory = new File(new File(mContext.getFilesDir(), LARGE_VALUE_DIRECTORY), mVaultStore.getName());
+            mLargeValueFileStore = new LargeValueFileStore(directory, mTransform);
+        }
+        return mLargeValueFileStore;
+    }
+
+    /**
+     * Load the rotation state the first time it is needed, resuming a rotation left unfinished by a previous process.
+     * A rotation whose new key was never saved is rolled back by the resumed sweep under the write lock.
+     */
+    private RekeyStateStore getRekeyStateStore() {
+        RekeyStateStore rekeyStateStore = mRekeyStateStore;
+        if (rekeyStateStore != null) return rekeyStateStore;
+
+        boolean created = false;
+        synchronized (this) {
+            if (mRekeyStateStore == null) {
+                mRekeyStateStore = new RekeyStateStore(new File(mContext.getFilesDir(), mVaultStore.getName() + REKEY_STATE_FILE_SUFFIX));
+                created = true;
+            }
+            rekeyStateStore = mRekeyStateStore;
+        }
+        if (created && rekeyStateStore.isInProgress()) {
+            resumeRekey(null);
         }
-        writeString(editor, key, secretKey, stringBuilder.toString());
+        return rekeyStateStore;
     }
 
-    private void writeBoolean(Editor editor, String key, SecretKey secretKey, Boolean value) throws GeneralSecurityException, UnsupportedEncodingException {
-        writeString(editor, key, secretKey, String.valueOf(value));
+    /**
+     * Id to tag newly encrypted values with. Must be called with the key rotation lock held.
+     * @param secretKey Key just loaded from KeyStorage.
+     */
+    private int getWriteKeyId(SecretKey secretKey) throws GeneralSecurityException {
+        RekeyStateStore rekeyStateStore = getRekeyStateStore();
+        if (rekeyStateStore.isInProgress() && rekeyStateStore.getRetiringKey(secretKey, mTransform) == secretKey) {
+            //The new key was never saved, so values stay tagged with the id of the key that encrypts them.
+            return rekeyStateStore.getRetiringKeyId();
+        }
+        return rekeyStateStore.getCurrentKeyId();
+    }
+
+    /**
+     * Select the key that encrypted the value, which is the retiring key for values not yet re-encrypted during a
+     * rotation. Must be called with the key rotation lock held.
+     */
+    private SecretKey resolveKey(String encryptedValue, SecretKey secretKey) throws GeneralSecurityException {
+        RekeyStateStore rekeyStateStore = getRekeyStateStore();
+        if (!rekeyStateStore.isInProgress() || StringEncryptionUtils.readKeyId(encryptedValue) != rekeyStateStore.getRetiringKeyId()) {
+            return secretKey;
+        }
+        SecretKey retiringKey = rekeyStateStore.getRetiringKey(secretKey, mTransform);
+        return retiringKey != null ? retiringKey : secretKey;
+    }
+
+    /**
+     * Remove keys from the keyList whose new value equals the value already stored. Keys that are also being
+     * removed by the same edit are always written, as are values stored in an older envelope than the transform
+     * produces so that they are upgraded as they are rewritten.
+     */
+    private void removeUnchangedValues(List<String> keyList, Set<String> removalSet, StronglyTypedBundle stronglyTypedBundle, SecretKey secretKey) {
+        boolean upgradeEnvelopes = StringEncryptionUtils.isAuthenticatedTransform(mTransform);
+        for (Iterator<String> iterator = keyList.iterator(); iterator.hasNext();) {
+            String key = iterator.next();
+            if (removalSet != null && removalSet.contains(key)) continue;
+            if (upgradeEnvelopes && !StringEncryptionUtils.isCurrentEnvelope(mVaultStore.getString(key), mTransform)) continue;
+
+            Object storedValue;
+            try {
+                storedValue = getStoredValue(key, secretKey);
+            } catch (GeneralSecurityException | UnsupportedEncodingException | StringEncryptionUtils.UnencryptedException e) {
+                //Unreadable values are simply overwritten.
+                continue;
+            }
+
+            if (storedValue != null && stronglyTypedBundle.valueEquals(key, storedValue)) {
+                iterator.remove();
+                mSkippedValueWriteCount.incrementAndGet();
+            }
+        }
     }
 
-    private void writeFloat(Editor editor, String key, SecretKey secretKey, Float value) throws GeneralSecurityException, UnsupportedEncodingException {
-        writeString(editor, key, secretKey, String.valueOf(value));
+    /**
+     * Encrypt each value in the bundle into the encryptedMap.
+     * @return False if a value of an unsupported type was encountered.
+     */
+    private boolean encryptAll(List<String> keyList, StronglyTypedBundle stronglyTypedBundle, SecretKey secretKey, int keyId, Map<String, String> encryptedMap) throws GeneralSecurityException {
+        for (String key : keyList) {
+            byte[] encodedValue = encodeValue(stronglyTypedBundle, key);
+            if (encodedValue == null) return false;
+            encodedValue = TypedValueCodec.compress(encodedValue, mCompressionThreshold);
+            encryptedMap.put(key, StringEncryptionUtils.encryptEncodedValue(secretKey, keyId, encodedValue, mTransform));
+        }
+        return true;
     }
 
-    private void writeInteger(Editor editor, String key, SecretKey secretKey, Integer value) throws GeneralSecurityException, UnsupportedEncodingException {
-        writeString(editor, key, secretKey, String.valueOf(value));
+    /**
+     * Encode the bundle value in its typed binary form.
+     * @return The encoded value or null if the type is not supported.
+     */
+    private byte[] encodeValue(StronglyTypedBundle stronglyTypedBundle, String key) {
+        switch (stronglyTypedBundle.getType(key)) {
+            case TypedValueCodec.TYPE_STRING:
+                return TypedValueCodec.encodeString(stronglyTypedBundle.getString(key));
+            case TypedValueCodec.TYPE_LONG:
+                return TypedValueCodec.encodeLong(stronglyTypedBundle.getLong(key));
+            case TypedValueCodec.TYPE_INTEGER:
+                return TypedValueCodec.encodeInteger(stronglyTypedBundle.getInt(key));
+            case TypedValueCodec.TYPE_FLOAT:
+                return TypedValueCodec.encodeFloat(stronglyTypedBundle.getFloat(key));
+            case TypedValueCodec.TYPE_BOOLEAN:
+                return TypedValueCodec.encodeBoolean(stronglyTypedBundle.getBoolean(key));
+            case TypedValueCodec.TYPE_STRING_SET:
+                try {
+                    return TypedValueCodec.encodeStringSet(stronglyTypedBundle.getStringSet(key));
+                } catch (ClassCastException e) {
+                    log("Unexpected type of set provided", e);
+                    return null;
+                }
+            default:
+                log("Unexpected data type encountered for " + key);
+                return null;
+        }
     }
 
-    private void writeLong(Editor editor, String key, SecretKey secretKey, Long value) throws GeneralSecurityException, UnsupportedEncodingException {
-        writeString(editor, key, secretKey, String.valueOf(value));
+    /**
+     * Encrypt contiguous batches of bundle values on the executor, each worker thread using its own Cipher.
+     * @return False if a value of an unsupported type was encountered or the calling thread was interrupted.
+     */
+    private boolean encryptAllInParallel(ParallelExecution parallelEncryption, List<String> keyList, StronglyTypedBundle stronglyTypedBundle, SecretKey secretKey, int keyId, Map<String, String> encryptedMap) throws GeneralSecurityException {
+        List<EncryptBatch> batchList = new ArrayList<>();
+        for (List<String> batchKeyList : parallelEncryption.split(keyList)) {
+            batchList.add(new EncryptBatch(batchKeyList, stronglyTypedBundle, secretKey, keyId));
+        }
+
+        try {
+            parallelEncryption.getExecutorService().invokeAll(batchList);
+        } catch (InterruptedException e) {
+            log("Interrupted in writeValues()", e);
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        boolean encrypted = true;
+        for (EncryptBatch batch : batchList) {
+            batch.rethrowFailure();
+            encryptedMap.putAll(batch.mEncryptedMap);
+            encrypted &= batch.mEncrypted;
+        }
+        return encrypted;
     }
 
-    private void writeString(Editor editor, String key, SecretKey secretKey, String value) throws GeneralSecurityException, UnsupportedEncodingException {
-        editor.putString(key, StringEncryptionUtils.encrypt(secretKey, value, CharacterEncodingConstants.UTF_8, mTransform));
+    private class EncryptBatch implements Callable<Void> {
+        private final List<String> mKeyList;
+        private final StronglyTypedBundle mStronglyTypedBundle;
+        private final SecretKey mSecretKey;
+        private final int mKeyId;
+        private final Map<String, String> mEncryptedMap = new HashMap<>();
+        private boolean mEncrypted;
+        private Exception mFailure;
+
+        EncryptBatch(List<String> keyList, StronglyTypedBundle stronglyTypedBundle, SecretKey secretKey, int keyId) {
+            mKeyList = keyList;
+            mStronglyTypedBundle = stronglyTypedBundle;
+            mSecretKey = secretKey;
+            mKeyId = keyId;
+        }
+
+        @Override
+        public Void call() {
+            try {
+                mEncrypted = encryptAll(mKeyList, mStronglyTypedBundle, mSecretKey, mKeyId, mEncryptedMap);
+            } catch (GeneralSecurityException | RuntimeException e) {
+                //Rethrown on the calling thread as the serial path would have thrown it.
+                mFailure = e;
+            }
+            return null;
+        }
+
+        void rethrowFailure() throws GeneralSecurityException {
+            if (mFailure instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) mFailure;
+            } else if (mFailure instanceof RuntimeException) {
+                throw (RuntimeException) mFailure;
+            }
+        }
     }
 
     @Override
     public Map<String, ?> getAll() {
+        flushPendingWrite();
         Map<String, Object> resultMap = new HashMap<>();
-        SecretKey secretKey = mKeyStorage.loadKey(mContext);
+        mKeyRotationLock.readLock().lock();
+        try {
+            SecretKey secretKey = mKeyStorage.loadKey(mContext);
+            if (secretKey != null) {
+                List<String> keyList = new ArrayList<>(mVaultStore.getAll().keySet());
+                ParallelExecution parallelDecryption = mParallelDecryption;
+                try {
+                    if (parallelDecryption != null && parallelDecryption.isParallel(keyList.size())) {
+                        decryptAllInParallel(parallelDecryption, keyList, secretKey, resultMap);
+                    } else {
+                        decryptAll(keyList, secretKey, resultMap);
+                    }
+                } catch (GeneralSecurityException | UnsupportedEncodingException | StringEncryptionUtils.UnencryptedException e) {
+                    log("Exception in getAll()", e);
+                    if (mEnableExceptions) throw new RuntimeException(e);
+                }
+            }
+        } finally {
+            mKeyRotationLock.readLock().unlock();
+        }
+        return resultMap;
+    }
+
+    private void decryptAll(List<String> keyList, SecretKey secretKey, Map<String, Object> resultMap) throws GeneralSecurityException, UnsupportedEncodingException, StringEncryptionUtils.UnencryptedException {
+        for (String key : keyList) {
+            Object value = toResultValue(getValue(key, secretKey));
+            if (value != null) {
+                resultMap.put(key, value);
+            }
+        }
+    }
+
+    @Override
+    public VaultValues getValues(Collection<String> keys) {
+        mKeyRotationLock.readLock().lock();
+        try {
+            //Load the key a single time for all values, this can be expensive for some KeyStorage implementations.
+            return getValues(keys, mKeyStorage.loadKey(mContext));
+        } finally {
+            mKeyRotationLock.readLock().unlock();
+        }
+    }
+
+    private VaultValues getValues(Collection<String> keys, SecretKey secretKey) {
+        Map<String, Object> valueMap = new HashMap<>();
         if (secretKey != null) {
-            try {
-                SharedPreferences sharedPreferences = getSharedPreferences();
-                Map<String, ?> sourceMap = sharedPreferences.getAll();
-                for (String key : sourceMap.keySet()) {
-                    String value = getString(key, null, secretKey);
+            for (String key : keys) {
+                try {
+                    Object value = getValue(key, secretKey);
                     if (value != null) {
-                        if (FLOAT_REGEX.matcher(value).matches()) {
-                            resultMap.put(key, Float.valueOf(value));
-                        } else if (INTEGER_REGEX.matcher(value).matches()) {
-                            Long longValue = Long.valueOf(value);
-                            if (longValue <= Integer.MAX_VALUE && longValue >= Integer.MIN_VALUE) {
-                                resultMap.put(key, longValue.intValue());
-                            } else {
-                                resultMap.put(key, longValue);
-                            }
-                        } else if (BOOLEAN_REGEX.matcher(value).matches()) {
-                            resultMap.put(key, Boolean.valueOf(value));
-                        } else if (value.contains(STRING_SET_SEPARATOR)) {
-                            resultMap.put(key, splitStringSet(value));
-                        } else {
-                            resultMap.put(key, value);
-                        }
+                        valueMap.put(key, value);
                     }
+                } catch (GeneralSecurityException | UnsupportedEncodingException | StringEncryptionUtils.UnencryptedException e) {
+                    log("Exception in getValues()", e);
+                    if (mEnableExceptions) throw new RuntimeException(e);
                 }
-            } catch (GeneralSecurityException | UnsupportedEncodingException | StringEncryptionUtils.UnencryptedException e) {
-                log("Exception in getAll()", e);
-                if (mEnableExceptions) throw new RuntimeException(e);
             }
         }
-        return resultMap;
+        return new VaultValues(valueMap);
     }
 
     @Override
-    public String getString(String key, String defaultValue) {
+    public Map<String, ?> getAllLazily() {
+        flushPendingWrite();
+        if (mKeyStorage.loadKey(mContext) == null) return new HashMap<>();
+        return new LazyDecryptingMap(this, mVaultStore.getAll());
+    }
+
+    /**
+     * Load the key for a {@link LazyDecryptingMap}, which holds it only for a single get() or iteration pass.
+     */
+    SecretKey loadViewKey() {
+        return mKeyStorage.loadKey(mContext);
+    }
+
+    /**
+     * Decrypt one value of a {@link LazyDecryptingMap} snapshot, wrapping exceptions per configuration. Values that
+     * are still stored unchanged are read through the decrypted value cache.
+     * @param secretKey Key from {@link #loadViewKey()}, null if it was not available.
+     */
+    Object decryptForView(String key, String encryptedValue, SecretKey secretKey) {
+        if (secretKey == null) return null;
+
+        mKeyRotationLock.readLock().lock();
         try {
-            return getString(key, defaultValue, mKeyStorage.loadKey(mContext));
+            if (encryptedValue.equals(mVaultStore.getString(key))) {
+                return toResultValue(getStoredValue(key, secretKey));
+            }
+            SecretKey valueKey = resolveKey(encryptedValue, secretKey);
+            return toResultValue(resolveLargeValue(StringEncryptionUtils.decryptTypedValue(valueKey, encryptedValue, CharacterEncodingConstants.UTF_8, mTransform), valueKey));
         } catch (GeneralSecurityException | UnsupportedEncodingException | StringEncryptionUtils.UnencryptedException e) {
-            log("Exception in getString()", e);
+            log("Exception in getAllLazily()", e);
             if (mEnableExceptions) throw new RuntimeException(e);
+        } finally {
+            mKeyRotationLock.readLock().unlock();
         }
-        return defaultValue;
+        return null;
     }
 
-    private String getString(String key, String defaultValue, SecretKey secretKey) throws GeneralSecurityException, UnsupportedEncodingException, StringEncryptionUtils.UnencryptedException {
-        String result = defaultValue;
-        String rawValue = getSharedPreferences().getString(key, null);
-        if (rawValue != null && secretKey != null) {
-            result = StringEncryptionUtils.decrypt(secretKey, rawValue, CharacterEncodingConstants.UTF_8, mTransform);
+    /**
+     * Convert a decrypted value to the form returned from getAll, inferring the type of legacy values and
+     * copying sets so that cached instances cannot be modified.
+     */
+    private Object toResultValue(Object value) {
+        if (value instanceof TypedValueCodec.UntypedValue) {
+            return inferUntypedValue(value.toString());
+        } else if (value instanceof Set) {
+            //noinspection unchecked
+            return new HashSet<>((Set<String>) value);
         }
-        return result;
+        return value;
     }
 
-    @Override
-    public Set<String> getStringSet(String key, Set<String> defValues) {
-        Set<String> result = defValues;
-        String joinedString = getString(key, null);
-        if (joinedString != null) {
-            result = splitStringSet(joinedString);
+    /**
+     * Decrypt contiguous batches of keys on the executor, each worker thread using its own Cipher. As with
+     * the serial path, the first failure ends the operation and values decrypted before it are kept.
+     */
+    private void decryptAllInParallel(ParallelExecution parallelDecryption, List<String> keyList, SecretKey secretKey, Map<String, Object> resultMap) throws GeneralSecurityException, UnsupportedEncodingException, StringEncryptionUtils.UnencryptedException {
+        List<DecryptBatch> batchList = new ArrayList<>();
+        for (List<String> batchKeyList : parallelDecryption.split(keyList)) {
+            batchList.add(new DecryptBatch(batchKeyList, secretKey));
+        }
+
+        try {
+            parallelDecryption.getExecutorService().invokeAll(batchList);
+        } catch (InterruptedException e) {
+            log("Interrupted in getAll()", e);
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        for (DecryptBatch batch : batchList) {
+            resultMap.putAll(batch.mResultMap);
+            batch.rethrowFailure();
         }
-        return result;
     }
 
-    private Set<String> splitStringSet(String joinedString) {
-        Set<String> result;
-        String splits[] = joinedString.split(STRING_SET_SEPARATOR);
-        result = new HashSet<>(splits.length);
-        result.addAll(Arrays.asList(splits));
+    private class DecryptBatch implements Callable<Void> {
+        private final List<String> mKeyList;
+        private final SecretKey mSecretKey;
+        private final Map<String, Object> mResultMap = new HashMap<>();
+        private Throwable mFailure;
+
+        DecryptBatch(List<String> keyList, SecretKey secretKey) {
+            mKeyList = keyList;
+            mSecretKey = secretKey;
+        }
+
+        @Override
+        public Void call() {
+            try {
+                decryptAll(mKeyList, mSecretKey, mResultMap);
+            } catch (GeneralSecurityException | UnsupportedEncodingException | StringEncryptionUtils.UnencryptedException | RuntimeException e) {
+                //Rethrown on the calling thread as the serial path would have thrown it.
+                mFailure = e;
+            }
+            return null;
+        }
+
+        void rethrowFailure() throws GeneralSecurityException, UnsupportedEncodingException, StringEncryptionUtils.UnencryptedException {
+            if (mFailure instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) mFailure;
+            } else if (mFailure instanceof UnsupportedEncodingException) {
+                throw (UnsupportedEncodingException) mFailure;
+            } else if (mFailure instanceof StringEncryptionUtils.UnencryptedException) {
+                throw (StringEncryptionUtils.UnencryptedException) mFailure;
+            } else if (mFailure instanceof RuntimeException) {
+                throw (RuntimeException) mFailure;
+            }
+        }
+    }
+
+    /**
+     * Values written before type information was stored must have their type inferred from their content.
+     */
+    private Object inferUntypedValue(String value) {
+        if (FLOAT_REGEX.matcher(value).matches()) {
+            return Float.valueOf(value);
+        } else if (INTEGER_REGEX.matcher(value).matches()) {
+            Long longValue = Long.valueOf(value);
+            if (longValue <= Integer.MAX_VALUE && longValue >= Integer.MIN_VALUE) {
+                return longValue.intValue();
+            } else {
+                return longValue;
+            }
+        } else if (BOOLEAN_REGEX.matcher(value).matches()) {
+            return Boolean.valueOf(value);
+        } else if (value.contains(VaultValues.STRING_SET_SEPARATOR)) {
+            return VaultValues.splitStringSet(value);
+        }
+        return value;
+    }
+
+    /**
+     * Read and decrypt the value for the key, wrapping exceptions per configuration.
+     * @return The decrypted value, {@link TypedValueCodec.UntypedValue} for legacy values or null.
+     */
+    private Object getValue(String key) {
+        mKeyRotationLock.readLock().lock();
+        try {
+            return getValue(key, mKeyStorage.loadKey(mContext));
+        } catch (GeneralSecurityException | UnsupportedEncodingException | StringEncryptionUtils.UnencryptedException e) {
+            log("Exception in getValue()", e);
+            if (mEnableExceptions) throw new RuntimeException(e);
+        } finally {
+            mKeyRotationLock.readLock().unlock();
+        }
+        return null;
+    }
+
+    private Object getValue(String key, SecretKey secretKey) throws GeneralSecurityException, UnsupportedEncodingException, StringEncryptionUtils.UnencryptedException {
+        if (secretKey == null) return null;
+
+        Object pendingValue = getPendingValue(key);
+        if (pendingValue != CoalescedWrite.NOT_PENDING) return pendingValue;
+
+        return getStoredValue(key, secretKey);
+    }
+
+    /**
+     * Read and decrypt the value written to the underlying preferences, ignoring coalesced writes.
+     */
+    private Object getStoredValue(String key, SecretKey secretKey) throws GeneralSecurityException, UnsupportedEncodingException, StringEncryptionUtils.UnencryptedException {
+        DecryptedValueCache decryptedValueCache = mDecryptedValueCache;
+        long cacheGeneration = 0;
+        if (decryptedValueCache != null) {
+            Object cachedValue = decryptedValueCache.get(key);
+            if (cachedValue != null) return cachedValue;
+            cacheGeneration = decryptedValueCache.getGeneration();
+        }
+
+        Object result = null;
+        String rawValue = mVaultStore.getString(key);
+        if (rawValue != null) {
+            SecretKey valueKey = resolveKey(rawValue, secretKey);
+            result = StringEncryptionUtils.decryptTypedValue(valueKey, rawValue, CharacterEncodingConstants.UTF_8, mTransform);
+            if (result instanceof TypedValueCodec.LargeValuePointer) {
+                //Large values are read from their file each time rather than being held in the cache.
+                return resolveLargeValue(result, valueKey);
+            }
+            if (decryptedValueCache != null) {
+                decryptedValueCache.put(key, result, cacheGeneration);
+            }
+        }
         return result;
     }
 
+    @Override
+    public String getString(String key, String defaultValue) {
+        return VaultValues.toString(getValue(key), defaultValue);
+    }
+
+    @Override
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        return VaultValues.toStringSet(getValue(key), defValues);
+    }
+
     @Override
     public int getInt(String key, int defValue) {
-        int result = defValue;
-        String stringValue = getString(key, null);
-        if (stringValue != null) {
-            result = Integer.valueOf(stringValue);
-        }
-        return result;
+        return VaultValues.toInt(getValue(key), defValue);
     }
 
     @Override
     public long getLong(String key, long defValue) {
-        long result = defValue;
-        String stringValue = getString(key, null);
-        if (stringValue != null) {
-            result = Long.valueOf(stringValue);
-        }
-        return result;
+        return VaultValues.toLong(getValue(key), defValue);
     }
 
     @Override
     public float getFloat(String key, float defValue) {
-        float result = defValue;
-        String stringValue = getString(key, null);
-        if (stringValue != null) {
-            result = Float.valueOf(stringValue);
-        }
-        return result;
+        return VaultValues.toFloat(getValue(key), defValue);
     }
 
     @Override
     public boolean getBoolean(String key, boolean defValue) {
-        boolean result = defValue;
-        String stringValue = getString(key, null);
-        if (stringValue != null) {
-            result = Boolean.valueOf(stringValue);
-        }
-        return result;
+        return VaultValues.toBoolean(getValue(key), defValue);
     }
 
     @Override
     public boolean contains(String key) {
-        return getSharedPreferences().contains(key);
+        Object pendingValue = getPendingValue(key);
+        if (pendingValue != CoalescedWrite.NOT_PENDING) return pendingValue != null;
+        return mVaultStore.contains(key);
     }
 
     @Override
-    public Editor edit() {
+    public SharedPreferenceVaultEditor edit() {
         return new StandardSharedPreferenceVaultEditor(this);
     }
 
-    private void notifyListeners(Set<String> preferenceKeySet) {
-        synchronized (mSharedPreferenceChangeListenerList) {
-            for (OnSharedPreferenceChangeListener listener : mSharedPreferenceChangeListenerList) {
-                for (String preferenceKey: preferenceKeySet) {
-                    listener.onSharedPreferenceChanged(this, preferenceKey);
+    @Override
+    public Future<String> getStringAsync(final String key, final String defValue) {
+        return submitAsync(new Callable<String>() {
+            @Override
+            public String call() {
+                return getString(key, defValue);
+            }
+        });
+    }
+
+    @Override
+    public Future<Set<String>> getStringSetAsync(final String key, final Set<String> defValues) {
+        return submitAsync(new Callable<Set<String>>() {
+            @Override
+            public Set<String> call() {
+                return getStringSet(key, defValues);
+            }
+        });
+    }
+
+    @Override
+    public Future<Integer> getIntAsync(final String key, final int defValue) {
+        return submitAsync(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return getInt(key, defValue);
+            }
+        });
+    }
+
+    @Override
+    public Future<Long> getLongAsync(final String key, final long defValue) {
+        return submitAsync(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return getLong(key, defValue);
+            }
+        });
+    }
+
+    @Override
+    public Future<Float> getFloatAsync(final String key, final float defValue) {
+        return submitAsync(new Callable<Float>() {
+            @Override
+            public Float call() {
+                return getFloat(key, defValue);
+            }
+        });
+    }
+
+    @Override
+    public Future<Boolean> getBooleanAsync(final String key, final boolean defValue) {
+        return submitAsync(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return getBoolean(key, defValue);
+            }
+        });
+    }
+
+    @Override
+    public Future<VaultValues> getValuesAsync(final Collection<String> keys) {
+        final List<String> keyList = new ArrayList<>(keys);
+        return submitAsync(new Callable<VaultValues>() {
+            @Override
+            public VaultValues call() {
+                return getValues(keyList);
+            }
+        });
+    }
+
+    @Override
+    public Future<VaultWarmUpResult> warmUp(Collection<String> hotKeys) {
+        final List<String> hotKeyList = hotKeys != null ? new ArrayList<>(hotKeys) : Collections.<String>emptyList();
+        return submitAsync(new Callable<VaultWarmUpResult>() {
+            @Override
+            public VaultWarmUpResult call() throws GeneralSecurityException {
+                return performWarmUp(hotKeyList);
+            }
+        });
+    }
+
+    private VaultWarmUpResult performWarmUp(List<String> hotKeyList) throws GeneralSecurityException {
+        long start = System.nanoTime();
+        //Any read blocks until the preference file has been loaded from disk.
+        mVaultStore.contains(TAG);
+        long preferenceLoadNanos = System.nanoTime() - start;
+
+        long keyLoadNanos;
+        long cipherInitNanos = 0;
+        long hotKeyDecryptNanos = 0;
+        int hotKeyCount = 0;
+        SecretKey secretKey;
+        mKeyRotationLock.readLock().lock();
+        try {
+            start = System.nanoTime();
+            secretKey = mKeyStorage.loadKey(mContext);
+            keyLoadNanos = System.nanoTime() - start;
+
+            if (secretKey != null) {
+                //Resolves the provider and seeds the SecureRandom used for IVs.
+                start = System.nanoTime();
+                StringEncryptionUtils.encryptEncodedValue(secretKey, TypedValueCodec.encodeString(""), mTransform);
+                cipherInitNanos = System.nanoTime() - start;
+
+                if (!hotKeyList.isEmpty()) {
+                    start = System.nanoTime();
+                    hotKeyCount = getValues(hotKeyList, secretKey).size();
+                    hotKeyDecryptNanos = System.nanoTime() - start;
                 }
             }
+        } finally {
+            mKeyRotationLock.readLock().unlock();
         }
+
+        VaultWarmUpResult result = new VaultWarmUpResult(preferenceLoadNanos, keyLoadNanos, cipherInitNanos, hotKeyDecryptNanos, hotKeyCount, secretKey != null);
+        if (mDebugEnabled) Log.d(TAG, "Warm up " + mVaultStore.getName() + " " + result);
+        return result;
+    }
+
+    Future<Boolean> writeValuesAsync(final boolean wasCleared, final Set<String> removalSet, final StronglyTypedBundle stronglyTypedBundle) {
+        return submitAsync(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return writeValues(true, wasCleared, removalSet, stronglyTypedBundle);
+            }
+        });
+    }
+
+    private <T> Future<T> submitAsync(Callable<T> callable) {
+        return getAsyncExecutor().submit(callable);
+    }
+
+    /**
+     * A single worker thread runs all asynchronous operations in submission order so that an asynchronous read
+     * observes every asynchronous commit submitted before it. The thread exits when idle.
+     */
+    private synchronized ScheduledExecutorService getAsyncExecutor() {
+        if (mAsyncExecutor == null) {
+            mAsyncExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, TAG + "-" + mVaultStore.getName());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            mAsyncExecutor.setKeepAliveTime(ASYNC_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+            mAsyncExecutor.allowCoreThreadTimeOut(true);
+        }
+        return mAsyncExecutor;
+    }
+
+    private void notifyListeners(Set<String> preferenceKeySet) {
+        if (preferenceKeySet.isEmpty()) return;
+
+        if (!mVaultChangeListenerList.isEmpty()) {
+            Set<String> changedKeySet = Collections.unmodifiableSet(new HashSet<>(preferenceKeySet));
+            for (VaultChangeListenerRegistration registration : mVaultChangeListenerList) {
+                registration.dispatch(changedKeySet);
+            }
+        }
+
+        for (OnSharedPreferenceChangeListener listener : mSharedPreferenceChangeListenerList) {
+            for (String preferenceKey: preferenceKeySet) {
+                listener.onSharedPreferenceChanged(this, preferenceKey);
+            }
+        }
+    }
+
+    @Override
+    public void registerOnVaultChangeListener(OnVaultChangeListener listener, Executor executor) {
+        if (listener == null) throw new IllegalArgumentException("Listener is required");
+        mVaultChangeListenerList.add(new VaultChangeListenerRegistration(listener, executor));
+    }
+
+    @Override
+    public void registerOnVaultChangeListener(OnVaultChangeListener listener, Looper looper) {
+        registerOnVaultChangeListener(listener, new LooperExecutor(looper));
+    }
+
+    @Override
+    public void unregisterOnVaultChangeListener(OnVaultChangeListener listener) {
+        for (VaultChangeListenerRegistration registration : mVaultChangeListenerList) {
+            if (registration.mListener == listener) {
+                registration.mRegistered = false;
+                mVaultChangeListenerList.remove(registration);
+            }
+        }
+    }
+
+    /**
+     * Binds a listener to the Executor its callbacks are delivered on.
+     */
+    private class VaultChangeListenerRegistration {
+        private final OnVaultChangeListener mListener;
+        private final Executor mExecutor;
+        private volatile boolean mRegistered = true;
+
+        VaultChangeListenerRegistration(OnVaultChangeListener listener, Executor executor) {
+            mListener = listener;
+            mExecutor = executor;
+        }
+
+        void dispatch(final Set<String> changedKeySet) {
+            if (mExecutor == null) {
+                mListener.onVaultChanged(StandardSharedPreferenceVault.this, changedKeySet);
+                return;
+            }
+
+            try {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        //Changes queued before unregistration are not delivered afterward.
+                        if (mRegistered) {
+                            mListener.onVaultChanged(StandardSharedPreferenceVault.this, changedKeySet);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                log("Change notification rejected by executor", e);
+            }
+        }
+    }
+
+    @Override
+    public OutputStream createEncryptingOutputStream(OutputStream outputStream) throws GeneralSecurityException, IOException {
+        return StreamEncryptionUtils.createEncryptingOutputStream(loadRequiredKey(), mTransform, outputStream);
+    }
+
+    @Override
+    public InputStream createDecryptingInputStream(InputStream inputStream) throws GeneralSecurityException, IOException {
+        return StreamEncryptionUtils.createDecryptingInputStream(loadRequiredKey(), mTransform, inputStream);
+    }
+
+    @Override
+    public EncryptedFileChannelReader openEncryptedFileChannel(FileChannel fileChannel) throws GeneralSecurityException, IOException {
+        return StreamEncryptionUtils.openEncryptedFileChannel(loadRequiredKey(), mTransform, fileChannel);
+    }
+
+    private SecretKey loadRequiredKey() throws GeneralSecurityException {
+        SecretKey secretKey = mKeyStorage.loadKey(mContext);
+        if (secretKey == null) throw new GeneralSecurityException("Vault key is not available");
+        return secretKey;
     }
 
     @Override
@@ -316,8 +1171,24 @@ public class StandardSharedPreferenceVault implements SharedPreferenceVault {
 
     @Override
     public void clearStorage() {
-        getSharedPreferences().edit().clear().apply();
-        mKeyStorage.clearKey(mContext);
+        synchronized (mFlushLock) {
+            synchronized (mCoalescingLock) {
+                mPendingWrite = null;
+            }
+            synchronized (mLargeValueLock) {
+                mKeyRotationLock.writeLock().lock();
+                try {
+                    mVaultStore.edit().clear().apply();
+                    getLargeValueFileStore().deleteAllExcept(Collections.<String>emptyList());
+                    cancelRekeySweep();
+                    getRekeyStateStore().clear();
+                    mKeyStorage.clearKey(mContext);
+                } finally {
+                    mKeyRotationLock.writeLock().unlock();
+                }
+            }
+            invalidateCache(true, null);
+        }
     }
 
     @Override
@@ -329,6 +1200,372 @@ public class StandardSharedPreferenceVault implements SharedPreferenceVault {
     @Override
     public void setKey(SecretKey secretKey) {
         mKeyStorage.saveKey(mContext, secretKey);
+        invalidateCache(true, null);
+        if (getRekeyStateStore().isInProgress()) {
+            resumeRekey(null);
+        }
+    }
+
+    @Override
+    public Future<RekeyProgress> rekeyStorageIncrementally(SecretKey secretKey, OnRekeyProgressListener listener) throws GeneralSecurityException {
+        if (secretKey == null) throw new IllegalArgumentException("Key is required");
+
+        synchronized (mLargeValueLock) {
+            mKeyRotationLock.writeLock().lock();
+            try {
+                RekeyStateStore rekeyStateStore = getRekeyStateStore();
+                SecretKey currentKey = loadRequiredKey();
+                if (rekeyStateStore.isInProgress() && !rekeyStateStore.recoverInterruptedStart(currentKey)) {
+                    throw new IllegalStateException("Key rotation already in progress");
+                }
+
+                //Every existing value depends on the current key.
+                rekeyStateStore.begin(currentKey, secretKey, mVaultStore.getAll().size(), mTransform);
+                if (!mKeyStorage.saveKey(mContext, secretKey)) {
+                    rekeyStateStore.rollback();
+                    throw new GeneralSecurityException("Unable to save new key");
+                }
+            } finally {
+                mKeyRotationLock.writeLock().unlock();
+            }
+        }
+        return resumeRekey(listener);
+    }
+
+    @Override
+    public Future<RekeyProgress> resumeRekey(OnRekeyProgressListener listener) {
+        synchronized (mRekeyLock) {
+            RekeySweep rekeySweep = mRekeySweep;
+            if (rekeySweep == null || rekeySweep.mFuture.isDone()) {
+                if (!getRekeyStateStore().isInProgress()) {
+                    RekeyFuture future = new RekeyFuture(null);
+                    future.set(getRekeyProgress());
+                    return future;
+                }
+                rekeySweep = new RekeySweep();
+                mRekeySweep = rekeySweep;
+                getAsyncExecutor().execute(rekeySweep);
+            }
+            if (listener != null) {
+                rekeySweep.mListenerList.add(listener);
+            }
+            return rekeySweep.mFuture;
+        }
+    }
+
+    @Override
+    public RekeyProgress getRekeyProgress() {
+        synchronized (mRekeyLock) {
+            if (mRekeySweep != null && mRekeySweep.mProgress != null) return mRekeySweep.mProgress;
+        }
+
+        RekeyStateStore rekeyStateStore = getRekeyStateStore();
+        int totalCount = rekeyStateStore.getTotalCount();
+        if (!rekeyStateStore.isInProgress()) {
+            return new RekeyProgress(rekeyStateStore.getCurrentKeyId(), totalCount, totalCount, true);
+        }
+        int remainingCount = collectKeysToRekey(rekeyStateStore.getCurrentKeyId()).size();
+        return new RekeyProgress(rekeyStateStore.getCurrentKeyId(), totalCount, Math.max(0, totalCount - remainingCount), false);
+    }
+
+    @Override
+    public void setRekeyBatchSize(int batchSize) {
+        mRekeyBatchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Keys of stored values which were not encrypted with the current key. Only the headers are decoded.
+     */
+    private List<String> collectKeysToRekey(int currentKeyId) {
+        List<String> keyList = new ArrayList<>();
+        for (Map.Entry<String, String> entry : mVaultStore.getAll().entrySet()) {
+            if (StringEncryptionUtils.readKeyId(entry.getValue()) != currentKeyId) {
+                keyList.add(entry.getKey());
+            }
+        }
+        return keyList;
+    }
+
+    private void cancelRekeySweep() {
+        synchronized (mRekeyLock) {
+            if (mRekeySweep != null) {
+                mRekeySweep.mFuture.cancel(false);
+                mRekeySweep = null;
+            }
+        }
+    }
+
+    /**
+     * Re-encrypts one batch of values per run on the asynchronous executor, then queues itself again so that other
+     * asynchronous operations are not held up for the whole rotation. Values are re-encrypted under the read lock,
+     * so reads only wait while the batch is compared with the store and committed.
+     */
+    private class RekeySweep implements Runnable {
+        private final RekeyFuture mFuture = new RekeyFuture(this);
+        private final List<OnRekeyProgressListener> mListenerList = new CopyOnWriteArrayList<>();
+        private List<String> mPendingKeyList;
+        private volatile RekeyProgress mProgress;
+        private volatile boolean mCancelled;
+        private boolean mInterruptedStartChecked;
+
+        @Override
+        public void run() {
+            if (mCancelled) return;
+
+            try {
+                RekeyProgress progress = rekeyBatch();
+                if (progress == null) return;
+                mProgress = progress;
+                for (OnRekeyProgressListener listener : mListenerList) {
+                    listener.onRekeyProgress(StandardSharedPreferenceVault.this, progress);
+                }
+                if (progress.isComplete()) {
+                    finish();
+                    mFuture.set(progress);
+                } else {
+                    getAsyncExecutor().execute(this);
+                }
+            } catch (GeneralSecurityException | RuntimeException e) {
+                //The rotation stays in progress and can be resumed, e.g. once the key is available again.
+                log("Exception in rekey", e);
+                finish();
+                mFuture.setException(e);
+            }
+        }
+
+        private RekeyProgress rekeyBatch() throws GeneralSecurityException {
+            RekeyStateStore rekeyStateStore = getRekeyStateStore();
+            if (!mInterruptedStartChecked) {
+                recoverInterruptedStart(rekeyStateStore);
+                mInterruptedStartChecked = true;
+            }
+
+            int batchSize = mRekeyBatchSize;
+            Map<String, String> readValueMap = new HashMap<>();
+            Map<String, String> reencryptedValueMap = new HashMap<>();
+            Map<String, String> obsoleteFileIdMap = new HashMap<>();
+            Map<String, String> newFileIdMap = new HashMap<>();
+            //Other threads neither write nor sweep side files while this is held, but reads continue.
+            synchronized (mLargeValueLock) {
+                try {
+                    int currentKeyId;
+                    mKeyRotationLock.readLock().lock();
+                    try {
+                        currentKeyId = rekeyStateStore.getCurrentKeyId();
+                        int totalCount = rekeyStateStore.getTotalCount();
+                        if (!rekeyStateStore.isInProgress()) {
+                            return new RekeyProgress(currentKeyId, totalCount, totalCount, true);
+                        }
+
+                        SecretKey secretKey = loadRequiredKey();
+                        SecretKey retiringKey = rekeyStateStore.getRetiringKey(secretKey, mTransform);
+                        int retiringKeyId = rekeyStateStore.getRetiringKeyId();
+
+                        if (mPendingKeyList == null) {
+                            mPendingKeyList = collectKeysToRekey(currentKeyId);
+                        }
+
+                        while (reencryptedValueMap.size() < batchSize && !mPendingKeyList.isEmpty() && !mCancelled) {
+                            String key = mPendingKeyList.remove(mPendingKeyList.size() - 1);
+                            String encryptedValue = mVaultStore.getString(key);
+                            //Values written or removed since the list was made no longer depend on the old key.
+                            if (encryptedValue == null || StringEncryptionUtils.readKeyId(encryptedValue) != retiringKeyId) continue;
+
+                            String reencryptedValue = reencryptValue(key, encryptedValue, retiringKey, secretKey, currentKeyId, obsoleteFileIdMap, newFileIdMap);
+                            if (reencryptedValue != null) {
+                                readValueMap.put(key, encryptedValue);
+                                reencryptedValueMap.put(key, reencryptedValue);
+                            }
+                        }
+                    } finally {
+                        mKeyRotationLock.readLock().unlock();
+                    }
+
+                    mKeyRotationLock.writeLock().lock();
+                    try {
+                        //Re-encrypted values and their new side files are discarded and the rotation stays in progress.
+                        if (mCancelled) return null;
+
+                        VaultStore.Editor editor = mVaultStore.edit();
+                        List<String> rekeyedKeyList = new ArrayList<>();
+                        for (Map.Entry<String, String> entry : reencryptedValueMap.entrySet()) {
+                            String key = entry.getKey();
+                            //A value rewritten since it was read already uses the current key.
+                            if (!readValueMap.get(key).equals(mVaultStore.getString(key))) continue;
+                            editor.putString(key, entry.getValue());
+                            rekeyedKeyList.add(key);
+                        }
+                        if (!rekeyedKeyList.isEmpty() && !editor.commit()) {
+                            throw new GeneralSecurityException("Unable to write re-encrypted values");
+                        }
+
+                        //Side files may only be deleted once the store no longer references them.
+                        List<String> obsoleteFileIdList = new ArrayList<>();
+                        for (String key : rekeyedKeyList) {
+                            newFileIdMap.remove(key);
+                            if (obsoleteFileIdMap.containsKey(key)) {
+                                obsoleteFileIdList.add(obsoleteFileIdMap.get(key));
+                            }
+                        }
+                        getLargeValueFileStore().delete(obsoleteFileIdList);
+
+                        int totalCount = rekeyStateStore.getTotalCount();
+                        boolean complete = mPendingKeyList.isEmpty();
+                        if (complete) {
+                            rekeyStateStore.retire();
+                        }
+                        return new RekeyProgress(currentKeyId, totalCount, Math.max(0, totalCount - mPendingKeyList.size()), complete);
+                    } finally {
+                        mKeyRotationLock.writeLock().unlock();
+                    }
+                } finally {
+                    getLargeValueFileStore().delete(newFileIdMap.values());
+                }
+            }
+        }
+
+        /**
+         * Roll back a rotation whose new key was never saved, which a previous process may have left behind.
+         */
+        private void recoverInterruptedStart(RekeyStateStore rekeyStateStore) throws GeneralSecurityException {
+            mKeyRotationLock.writeLock().lock();
+            try {
+                if (rekeyStateStore.isInProgress() && rekeyStateStore.recoverInterruptedStart(loadRequiredKey())) {
+                    throw new GeneralSecurityException("Key rotation was interrupted before the new key was saved");
+                }
+            } finally {
+                mKeyRotationLock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * Decrypt a value with the retiring key and encrypt it with the current one, moving any side file as well.
+         * @return The new encrypted value or null if the value could not be read and was left as it was.
+         */
+        private String reencryptValue(String key, String encryptedValue, SecretKey retiringKey, SecretKey secretKey, int currentKeyId, Map<String, String> obsoleteFileIdMap, Map<String, String> newFileIdMap) throws GeneralSecurityException {
+            Object value;
+            Object largeValue = null;
+            try {
+                value = StringEncryptionUtils.decryptTypedValue(retiringKey, encryptedValue, CharacterEncodingConstants.UTF_8, mTransform);
+                if (value instanceof TypedValueCodec.LargeValuePointer) {
+                    largeValue = resolveLargeValue(value, retiringKey);
+                }
+            } catch (GeneralSecurityException | UnsupportedEncodingException | StringEncryptionUtils.UnencryptedException e) {
+                //Values that cannot be read with the old key cannot be read after the rotation either.
+                log("Unable to re-encrypt " + key, e);
+                return null;
+            }
+
+            if (value instanceof TypedValueCodec.UntypedValue) {
+                //Legacy values keep their untyped envelope so that their type is still inferred the same way.
+                try {
+                    return StringEncryptionUtils.encryptUntypedValue(secretKey, currentKeyId, value.toString(), CharacterEncodingConstants.UTF_8, mTransform);
+                } catch (UnsupportedEncodingException e) {
+                    throw new GeneralSecurityException(e);
+                }
+            } else if (value instanceof TypedValueCodec.LargeValuePointer) {
+                byte[] encodedValue = TypedValueCodec.compress(TypedValueCodec.encode(largeValue), mCompressionThreshold);
+                String newFileId;
+                try {
+                    newFileId = writeLargeValueFile(secretKey, encodedValue);
+                } catch (IOException e) {
+                    throw new GeneralSecurityException("Unable to write large value", e);
+                }
+                newFileIdMap.put(key, newFileId);
+                obsoleteFileIdMap.put(key, ((TypedValueCodec.LargeValuePointer) value).mFileId);
+                return StringEncryptionUtils.encryptEncodedValue(secretKey, currentKeyId, TypedValueCodec.encodeLargeValuePointer(newFileId), mTransform);
+            }
+            return StringEncryptionUtils.encryptEncodedValue(secretKey, currentKeyId, TypedValueCodec.compress(TypedValueCodec.encode(value), mCompressionThreshold), mTransform);
+        }
+
+        /**
+         * Stop before the next value. A batch that has not been written yet is discarded.
+         */
+        private void cancel() {
+            mCancelled = true;
+            finish();
+        }
+
+        private void finish() {
+            synchronized (mRekeyLock) {
+                if (mRekeySweep == this) {
+                    mRekeySweep = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Future completed by a {@link RekeySweep}. Cancelling it stops the sweep.
+     */
+    private static class RekeyFuture implements Future<RekeyProgress> {
+        private final CountDownLatch mDoneLatch = new CountDownLatch(1);
+        private final RekeySweep mRekeySweep;
+        private RekeyProgress mProgress;
+        private Throwable mThrowable;
+        private boolean mCancelled;
+
+        /**
+         * @param rekeySweep Sweep to stop when cancelled or null if the future is completed immediately.
+         */
+        RekeyFuture(RekeySweep rekeySweep) {
+            mRekeySweep = rekeySweep;
+        }
+
+        synchronized boolean set(RekeyProgress progress) {
+            if (isDone()) return false;
+            mProgress = progress;
+            mDoneLatch.countDown();
+            return true;
+        }
+
+        synchronized boolean setException(Throwable throwable) {
+            if (isDone()) return false;
+            mThrowable = throwable;
+            mDoneLatch.countDown();
+            return true;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (this) {
+                if (isDone()) return false;
+                mCancelled = true;
+                mDoneLatch.countDown();
+            }
+            if (mRekeySweep != null) {
+                mRekeySweep.cancel();
+            }
+            return true;
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return mCancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mDoneLatch.getCount() == 0;
+        }
+
+        @Override
+        public RekeyProgress get() throws InterruptedException, ExecutionException {
+            mDoneLatch.await();
+            return getResult();
+        }
+
+        @Override
+        public RekeyProgress get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!mDoneLatch.await(timeout, unit)) throw new TimeoutException();
+            return getResult();
+        }
+
+        private synchronized RekeyProgress getResult() throws ExecutionException {
+            if (mCancelled) throw new CancellationException();
+            if (mThrowable != null) throw new ExecutionException(mThrowable);
+            return mProgress;
+        }
     }
 
     @Override
@@ -351,6 +1588,86 @@ public class StandardSharedPreferenceVault implements SharedPreferenceVault {
         return mKeyStorage.getKeyStorageType();
     }
 
+    @Override
+    public void setDecryptedValueCacheSize(int maxEntries) {
+        mDecryptedValueCache = maxEntries > 0 ? new DecryptedValueCache(maxEntries) : null;
+    }
+
+    @Override
+    public long getDecryptedValueCacheHitCount() {
+        DecryptedValueCache decryptedValueCache = mDecryptedValueCache;
+        return decryptedValueCache != null ? decryptedValueCache.getHitCount() : 0;
+    }
+
+    @Override
+    public long getDecryptedValueCacheMissCount() {
+        DecryptedValueCache decryptedValueCache = mDecryptedValueCache;
+        return decryptedValueCache != null ? decryptedValueCache.getMissCount() : 0;
+    }
+
+    @Override
+    public void setParallelDecryption(ExecutorService executorService, int parallelism, int minimumEntryCount) {
+        mParallelDecryption = executorService != null ? new ParallelExecution(executorService, parallelism, minimumEntryCount) : null;
+    }
+
+    @Override
+    public void setParallelEncryption(ExecutorService executorService, int parallelism, int minimumEntryCount) {
+        mParallelEncryption = executorService != null ? new ParallelExecution(executorService, parallelism, minimumEntryCount) : null;
+    }
+
+    @Override
+    public void setWriteCoalescingWindow(long windowMillis) {
+        mWriteCoalescingWindowMillis = Math.max(windowMillis, 0);
+        if (windowMillis <= 0) {
+            flushPendingWrite();
+        }
+    }
+
+    @Override
+    public void flush() {
+        flushPendingWrite();
+    }
+
+    @Override
+    public void setSkipUnchangedWrites(boolean enabled) {
+        mSkipUnchangedWrites = enabled;
+    }
+
+    @Override
+    public void setLargeValueThreshold(int thresholdBytes) {
+        mLargeValueThreshold = thresholdBytes;
+    }
+
+    @Override
+    public void setCompressionThreshold(int thresholdBytes) {
+        mCompressionThreshold = thresholdBytes;
+    }
+
+    @Override
+    public long getSkippedValueWriteCount() {
+        return mSkippedValueWriteCount.get();
+    }
+
+    @Override
+    public long getSkippedEditorWriteCount() {
+        return mSkippedEditorWriteCount.get();
+    }
+
+    /**
+     * Drop cached values for the modified keys or everything if the whole vault was affected. Must be called
+     * after the underlying preferences have been updated.
+     */
+    private void invalidateCache(boolean all, Set<String> preferenceKeySet) {
+        DecryptedValueCache decryptedValueCache = mDecryptedValueCache;
+        if (decryptedValueCache != null) {
+            if (all) {
+                decryptedValueCache.invalidateAll();
+            } else {
+                decryptedValueCache.invalidate(preferenceKeySet);
+            }
+        }
+    }
+
     private void log(String message) {
         if (isDebugEnabled()) Log.e(TAG, message);
     }
@@ -358,12 +1675,4 @@ public class StandardSharedPreferenceVault implements SharedPreferenceVault {
     private void log(String message, Throwable e) {
         if (isDebugEnabled()) Log.e(TAG, message, e);
     }
-
-    private SharedPreferences getSharedPreferences() {
-        if (mSharedPreferences == null) {
-            if (TextUtils.isEmpty(mSharedPreferenceName)) throw new IllegalStateException("Cannot open preferences before calling setSharedPreferenceFileName");
-            mSharedPreferences = mContext.getSharedPreferences(mSharedPreferenceName, Context.MODE_PRIVATE);
-        }
-        return mSharedPreferences;
-    }
 }
@@ -15,70 +15,72 @@
 
 package com.bottlerocketstudios.vault;
 
-import android.content.SharedPreferences;
-
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 /**
  * Editor implementation for StandardSharedPreferenceVault
  */
-public class StandardSharedPreferenceVaultEditor implements SharedPreferences.Editor {
+public class StandardSharedPreferenceVaultEditor implements SharedPreferenceVaultEditor {
 
     private final StandardSharedPreferenceVault mStandardSharedPreferenceVault;
     private StronglyTypedBundle mStronglyTypedBundle = new StronglyTypedBundle();
     private boolean mCleared;
-    private Set<String> mRemovalSet = new HashSet<>();
+    private Set<String> mRemovalSet;
 
     public StandardSharedPreferenceVaultEditor(StandardSharedPreferenceVault standardSharedPreferenceVault) {
         mStandardSharedPreferenceVault = standardSharedPreferenceVault;
     }
 
     @Override
-    public SharedPreferences.Editor putString(String key, String value) {
-        mStronglyTypedBundle.putValue(key, value);
+    public SharedPreferenceVaultEditor putString(String key, String value) {
+        mStronglyTypedBundle.putString(key, value);
         return this;
     }
 
     @Override
-    public SharedPreferences.Editor putStringSet(String key, Set<String> value) {
-        mStronglyTypedBundle.putValue(key, value);
+    public SharedPreferenceVaultEditor putStringSet(String key, Set<String> value) {
+        mStronglyTypedBundle.putStringSet(key, value);
         return this;
     }
 
     @Override
-    public SharedPreferences.Editor putInt(String key, int value) {
-        mStronglyTypedBundle.putValue(key, value);
+    public SharedPreferenceVaultEditor putInt(String key, int value) {
+        mStronglyTypedBundle.putInt(key, value);
         return this;
     }
 
     @Override
-    public SharedPreferences.Editor putLong(String key, long value) {
-        mStronglyTypedBundle.putValue(key, value);
+    public SharedPreferenceVaultEditor putLong(String key, long value) {
+        mStronglyTypedBundle.putLong(key, value);
         return this;
     }
 
     @Override
-    public SharedPreferences.Editor putFloat(String key, float value) {
-        mStronglyTypedBundle.putValue(key, value);
+    public SharedPreferenceVaultEditor putFloat(String key, float value) {
+        mStronglyTypedBundle.putFloat(key, value);
         return this;
     }
 
     @Override
-    public SharedPreferences.Editor putBoolean(String key, boolean value) {
-        mStronglyTypedBundle.putValue(key, value);
+    public SharedPreferenceVaultEditor putBoolean(String key, boolean value) {
+        mStronglyTypedBundle.putBoolean(key, value);
         return this;
     }
 
     @Override
-    public SharedPreferences.Editor remove(String key) {
+    public SharedPreferenceVaultEditor remove(String key) {
         mStronglyTypedBundle.remove(key);
+        if (mRemovalSet == null) {
+            mRemovalSet = new HashSet<>();
+        }
         mRemovalSet.add(key);
         return this;
     }
 
     @Override
-    public SharedPreferences.Editor clear() {
+    public SharedPreferenceVaultEditor clear() {
         mCleared = true;
         return this;
     }
@@ -92,4 +94,13 @@ public class StandardSharedPreferenceVaultEditor implements SharedPreferences.Ed
     public void apply() {
         mStandardSharedPreferenceVault.writeValues(false, mCleared, mRemovalSet, mStronglyTypedBundle);
     }
+
+    @Override
+    public Future<Boolean> commitAsync() {
+        Future<Boolean> result = mStandardSharedPreferenceVault.writeValuesAsync(mCleared, mRemovalSet, mStronglyTypedBundle);
+        mStronglyTypedBundle = new StronglyTypedBundle();
+        mCleared = false;
+        mRemovalSet = null;
+        return result;
+    }
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Tools to encrypt and decrypt streams of any length with constant memory using a vault's SecretKey and transform.
+ * Data is split into authenticated chunks which can be verified and decrypted independently, so a file can also be
+ * read at random offsets through {@link EncryptedFileChannelReader}. The header starts with the same magic number
+ * as values written by {@link StringEncryptionUtils}.
+ */
+public class StreamEncryptionUtils {
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * @see #createEncryptingOutputStream(SecretKey, String, OutputStream, int)
+     */
+    public static OutputStream createEncryptingOutputStream(SecretKey secretKey, String transform, OutputStream outputStream) throws GeneralSecurityException, IOException {
+        return createEncryptingOutputStream(secretKey, transform, outputStream, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Wrap outputStream so that everything written is encrypted. The returned stream must be closed to write the
+     * final chunk, which also closes outputStream.
+     * @param chunkSize Cleartext bytes per chunk, the unit of random access and of memory use.
+     */
+    public static OutputStream createEncryptingOutputStream(SecretKey secretKey, String transform, OutputStream outputStream, int chunkSize) throws GeneralSecurityException, IOException {
+        return new ChunkedEncryptingOutputStream(outputStream, ChunkCipher.create(secretKey, transform, chunkSize));
+    }
+
+    /**
+     * Write encrypted data to fileChannel starting at its current position.
+     * @see #createEncryptingOutputStream(SecretKey, String, OutputStream, int)
+     */
+    public static OutputStream createEncryptingOutputStream(SecretKey secretKey, String transform, FileChannel fileChannel, int chunkSize) throws GeneralSecurityException, IOException {
+        return createEncryptingOutputStream(secretKey, transform, Channels.newOutputStream(fileChannel), chunkSize);
+    }
+
+    /**
+     * Wrap inputStream to decrypt data written by {@link #createEncryptingOutputStream(SecretKey, String, OutputStream, int)}.
+     * The header is verified immediately and each chunk is verified before any of its data is returned.
+     */
+    public static InputStream createDecryptingInputStream(SecretKey secretKey, String transform, InputStream inputStream) throws GeneralSecurityException, IOException {
+        return new ChunkedDecryptingInputStream(inputStream, ChunkCipher.read(secretKey, transform, inputStream));
+    }
+
+    /**
+     * Open an encrypted file for random access reads. The file must have been written from the start of the channel.
+     */
+    public static EncryptedFileChannelReader openEncryptedFileChannel(SecretKey secretKey, String transform, FileChannel fileChannel) throws GeneralSecurityException, IOException {
+        return new EncryptedFileChannelReader(secretKey, transform, fileChannel);
+    }
+}
@@ -16,19 +16,26 @@
 package com.bottlerocketstudios.vault;
 
 import android.util.Base64;
-import android.util.Pair;
 
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 
 /**
@@ -37,11 +44,59 @@ import javax.crypto.spec.IvParameterSpec;
 public class StringEncryptionUtils {
     private static final String TAG = StringEncryptionUtils.class.getSimpleName();
 
-    private static final byte HEADER_MAGIC_NUMBER = 121;
-    private static final byte HEADER_VERSION = 1;
+    static final byte HEADER_MAGIC_NUMBER = 121;
+    /**
+     * Cleartext is a string in the charset provided by the caller.
+     */
+    private static final byte HEADER_VERSION_STRING = 1;
+    /**
+     * Cleartext is a type tagged value encoded by {@link TypedValueCodec}.
+     */
+    private static final byte HEADER_VERSION_TYPED = 2;
+    /**
+     * Chunked authenticated stream written by {@link StreamEncryptionUtils}, never stored as a value.
+     */
+    static final byte HEADER_VERSION_CHUNKED_STREAM = 3;
+    /**
+     * Cleartext is a type tagged value encoded by {@link TypedValueCodec}, encrypted with AES-GCM and a 12 byte nonce.
+     */
+    private static final byte HEADER_VERSION_TYPED_GCM = 4;
+    /**
+     * Cleartext is a type tagged value encoded by {@link TypedValueCodec}, encrypted with ChaCha20-Poly1305 and a
+     * 12 byte nonce.
+     */
+    private static final byte HEADER_VERSION_TYPED_CHACHA20_POLY1305 = 5;
+    /**
+     * Id of the vault key that encrypted the envelope which immediately follows, see
+     * {@link SharedPreferenceVault#rekeyStorageIncrementally(SecretKey, SharedPreferenceVault.OnRekeyProgressListener)}.
+     * Envelopes without this header were encrypted with key id 0.
+     */
+    private static final byte HEADER_VERSION_KEY_ID = 6;
+    private static final int HEADER_MAGIC_NUMBER_OFFSET = 0;
+    private static final int HEADER_VERSION_OFFSET = 1;
     private static final int HEADER_IV_OFFSET = 2;
     private static final int INTEGER_SIZE_BYTES = Integer.SIZE / 8;
     private static final int HEADER_METADATA_SIZE = HEADER_IV_OFFSET + INTEGER_SIZE_BYTES;
+    private static final int STREAM_CHUNK_SIZE = 16 * 1024;
+    private static final int MAX_STREAM_IV_SIZE = 256;
+    private static final int GCM_NONCE_SIZE = 12;
+    private static final int BASE64_HEADER_PREFIX_LENGTH = 4;
+    private static final int KEY_ID_HEADER_SIZE = HEADER_IV_OFFSET + INTEGER_SIZE_BYTES;
+    private static final int BASE64_KEY_ID_HEADER_LENGTH = 8;
+    /**
+     * Long enough to reach the version byte of an envelope that follows a key id header.
+     */
+    private static final int BASE64_TAGGED_HEADER_PREFIX_LENGTH = 12;
+    private static final int GCM_TAG_SIZE_BITS = 128;
+
+    private static final SecureRandom sSecureRandom = new SecureRandom();
+
+    private static final ThreadLocal<CleartextBuffer> sCleartextBuffer = new ThreadLocal<CleartextBuffer>() {
+        @Override
+        protected CleartextBuffer initialValue() {
+            return new CleartextBuffer();
+        }
+    };
 
     /**
      * Generate a Base64 encoded string containing an AES encrypted version of cleartext using the provided seed to generate a key.
@@ -49,7 +104,7 @@ public class StringEncryptionUtils {
     public static String encrypt(SecretKey key, String clearText, String charset, String transform) throws UnsupportedEncodingException, IllegalBlockSizeException, InvalidKeyException, BadPaddingException, NoSuchAlgorithmException, NoSuchPaddingException {
         if (clearText == null) return null;
 
-        byte[] result = encrypt(key, clearText.getBytes(charset), transform);
+        byte[] result = encrypt(key, clearText.getBytes(charset), HEADER_VERSION_STRING, getUntypedTransform(transform));
         return Base64.encodeToString(result, Base64.DEFAULT);
     }
 
@@ -58,74 +113,493 @@ public class StringEncryptionUtils {
      * @throws UnencryptedException
      */
     public static String decrypt(SecretKey key, String encrypted, String charset, String transform) throws UnencryptedException, GeneralSecurityException, UnsupportedEncodingException {
+        Object result = decryptValue(key, encrypted, charset, transform);
+        if (result != null && !(result instanceof String)) {
+            throw new GeneralSecurityException("Encrypted value is not a String");
+        }
+        return (String) result;
+    }
+
+    /**
+     * Generate a Base64 encoded string containing an encrypted version of the value along with its type.
+     * Supported types are those of SharedPreferences: String, Integer, Long, Float, Boolean and Set&lt;String&gt;.
+     */
+    public static String encryptValue(SecretKey key, Object value, String transform) throws IllegalBlockSizeException, InvalidKeyException, BadPaddingException, NoSuchAlgorithmException, NoSuchPaddingException {
+        if (value == null) return null;
+
+        return encryptEncodedValue(key, TypedValueCodec.encode(value), transform);
+    }
+
+    /**
+     * Encrypt a value already encoded with {@link TypedValueCodec}.
+     */
+    static String encryptEncodedValue(SecretKey key, byte[] encodedValue, String transform) throws IllegalBlockSizeException, InvalidKeyException, BadPaddingException, NoSuchAlgorithmException, NoSuchPaddingException {
+        return encryptEncodedValue(key, 0, encodedValue, transform);
+    }
+
+    /**
+     * Encrypt a value already encoded with {@link TypedValueCodec}, preceded by a key id header unless keyId is 0.
+     */
+    static String encryptEncodedValue(SecretKey key, int keyId, byte[] encodedValue, String transform) throws IllegalBlockSizeException, InvalidKeyException, BadPaddingException, NoSuchAlgorithmException, NoSuchPaddingException {
+        byte[] result = encrypt(key, encodedValue, getTypedHeaderVersion(transform), transform);
+        return Base64.encodeToString(addKeyIdHeader(result, keyId), Base64.DEFAULT);
+    }
+
+    /**
+     * Encrypt a legacy value without type information, preceded by a key id header unless keyId is 0.
+     */
+    static String encryptUntypedValue(SecretKey key, int keyId, String clearText, String charset, String transform) throws GeneralSecurityException, UnsupportedEncodingException {
+        byte[] result = encrypt(key, clearText.getBytes(charset), HEADER_VERSION_STRING, getUntypedTransform(transform));
+        return Base64.encodeToString(addKeyIdHeader(result, keyId), Base64.DEFAULT);
+    }
+
+    private static byte[] addKeyIdHeader(byte[] envelope, int keyId) {
+        if (keyId == 0) return envelope;
+
+        ByteBuffer byteBuffer = ByteBuffer.allocate(KEY_ID_HEADER_SIZE + envelope.length);
+        byteBuffer.put(HEADER_MAGIC_NUMBER);
+        byteBuffer.put(HEADER_VERSION_KEY_ID);
+        byteBuffer.putInt(keyId);
+        byteBuffer.put(envelope);
+        return byteBuffer.array();
+    }
+
+    private static boolean hasKeyIdHeader(byte[] encrypted) {
+        return encrypted.length > KEY_ID_HEADER_SIZE && encrypted[HEADER_MAGIC_NUMBER_OFFSET] == HEADER_MAGIC_NUMBER && encrypted[HEADER_VERSION_OFFSET] == HEADER_VERSION_KEY_ID;
+    }
+
+    /**
+     * Read the id of the key that encrypted a value, decoding only the start of the Base64 string.
+     * @return The key id or 0 if the value has no key id header.
+     */
+    static int readKeyId(String encrypted) {
+        if (encrypted == null || encrypted.length() < BASE64_KEY_ID_HEADER_LENGTH) return 0;
+
+        byte[] header;
+        try {
+            header = Base64.decode(encrypted.substring(0, BASE64_KEY_ID_HEADER_LENGTH), Base64.DEFAULT);
+        } catch (IllegalArgumentException e) {
+            return 0;
+        }
+        if (header.length < KEY_ID_HEADER_SIZE || header[HEADER_MAGIC_NUMBER_OFFSET] != HEADER_MAGIC_NUMBER || header[HEADER_VERSION_OFFSET] != HEADER_VERSION_KEY_ID) {
+            return 0;
+        }
+        return ByteBuffer.wrap(header, HEADER_IV_OFFSET, INTEGER_SIZE_BYTES).getInt();
+    }
+
+    /**
+     * Encrypt bytes into a binary envelope without Base64 encoding.
+     */
+    static byte[] encryptBytes(SecretKey key, byte[] clearText, String transform) throws GeneralSecurityException {
+        return encrypt(key, clearText, HEADER_VERSION_STRING, getUntypedTransform(transform));
+    }
+
+    /**
+     * Decrypt a binary envelope created with {@link #encryptBytes(SecretKey, byte[], String)}.
+     */
+    static byte[] decryptBytes(SecretKey key, byte[] encrypted, String transform) throws GeneralSecurityException {
+        CleartextBuffer cleartextBuffer = decrypt(key, encrypted, 0, transform);
+        try {
+            return Arrays.copyOf(cleartextBuffer.mBuffer, cleartextBuffer.mLength);
+        } finally {
+            cleartextBuffer.wipe();
+        }
+    }
+
+    /**
+     * Decode a Base64 encoded value created with {@link #encryptValue(SecretKey, Object, String)}. Values created
+     * with {@link #encrypt(SecretKey, String, String, String)} carry no type and are returned as a String decoded
+     * with the provided charset.
+     * @throws UnencryptedException
+     */
+    public static Object decryptValue(SecretKey key, String encrypted, String charset, String transform) throws UnencryptedException, GeneralSecurityException, UnsupportedEncodingException {
+        Object result = decryptTypedValue(key, encrypted, charset, transform);
+        return result instanceof TypedValueCodec.UntypedValue ? result.toString() : result;
+    }
+
+    /**
+     * Decode a Base64 encoded value preserving the distinction between typed values and legacy values
+     * without type information, which are returned as {@link TypedValueCodec.UntypedValue}.
+     */
+    static Object decryptTypedValue(SecretKey key, String encrypted, String charset, String transform) throws UnencryptedException, GeneralSecurityException, UnsupportedEncodingException {
         if (encrypted == null) return null;
 
+        byte[] enc;
         try {
-            byte[] enc = Base64.decode(encrypted, Base64.DEFAULT);
-            byte[] result = decrypt(key, enc, transform);
-            if (result != null) {
-                return new String(result, charset);
-            }
+            enc = Base64.decode(encrypted, Base64.DEFAULT);
         } catch (IllegalArgumentException e) {
             throw new UnencryptedException("Encrypted String was not base64 encoded.", e);
         }
-        return null;
+        //The caller has already selected the key for this id.
+        int offset = hasKeyIdHeader(enc) ? KEY_ID_HEADER_SIZE : 0;
+
+        CleartextBuffer cleartextBuffer = decrypt(key, enc, offset, transform);
+        try {
+            if (enc[offset + HEADER_VERSION_OFFSET] != HEADER_VERSION_STRING) {
+                return TypedValueCodec.decode(cleartextBuffer.mBuffer, 0, cleartextBuffer.mLength);
+            } else {
+                return new TypedValueCodec.UntypedValue(new String(cleartextBuffer.mBuffer, 0, cleartextBuffer.mLength, charset));
+            }
+        } finally {
+            cleartextBuffer.wipe();
+        }
+    }
+
+    /**
+     * Write a typed envelope for a value already encoded with {@link TypedValueCodec} directly to the stream in
+     * binary form, encrypting in chunks so that no complete copy of the ciphertext is held in memory. The stream
+     * is not closed.
+     */
+    static void encryptEncodedValue(SecretKey key, byte[] encodedValue, String transform, OutputStream outputStream) throws GeneralSecurityException, IOException {
+        if (isChaCha20Poly1305Transform(transform)) {
+            //The pure Java implementation is one-shot, so this value is encrypted in memory.
+            outputStream.write(encrypt(key, encodedValue, HEADER_VERSION_TYPED_CHACHA20_POLY1305, transform));
+            return;
+        }
+
+        Cipher cipher = initEncryptCipher(key, transform);
+        outputStream.write(createIvHeader(cipher.getIV(), getTypedHeaderVersion(transform)));
+
+        byte[] output = new byte[cipher.getOutputSize(STREAM_CHUNK_SIZE)];
+        for (int offset = 0; offset < encodedValue.length; offset += STREAM_CHUNK_SIZE) {
+            int length = cipher.update(encodedValue, offset, Math.min(STREAM_CHUNK_SIZE, encodedValue.length - offset), output, 0);
+            outputStream.write(output, 0, length);
+        }
+        outputStream.write(cipher.doFinal());
+    }
+
+    /**
+     * Read a typed envelope written by {@link #encryptEncodedValue(SecretKey, byte[], String, OutputStream)}
+     * from the stream, decrypting in chunks.
+     * @param sizeHint Expected size of the envelope used to size the cleartext buffer.
+     * @return The decoded value.
+     */
+    static Object decryptTypedValue(SecretKey key, InputStream inputStream, int sizeHint, String transform) throws GeneralSecurityException, IOException {
+        DataInputStream dataInputStream = new DataInputStream(inputStream);
+        byte[] header = new byte[HEADER_METADATA_SIZE];
+        dataInputStream.readFully(header);
+        byte headerVersion = header[HEADER_VERSION_OFFSET];
+        if (header[HEADER_MAGIC_NUMBER_OFFSET] != HEADER_MAGIC_NUMBER || (headerVersion != HEADER_VERSION_TYPED && headerVersion != HEADER_VERSION_TYPED_GCM && headerVersion != HEADER_VERSION_TYPED_CHACHA20_POLY1305)) {
+            throw new GeneralSecurityException("Invalid header");
+        }
+        int ivSize = ByteBuffer.wrap(header, HEADER_IV_OFFSET, INTEGER_SIZE_BYTES).getInt();
+        if (ivSize < 0 || ivSize > MAX_STREAM_IV_SIZE) throw new GeneralSecurityException("Invalid IV size");
+        byte[] iv = new byte[ivSize];
+        dataInputStream.readFully(iv);
+
+        if (headerVersion == HEADER_VERSION_TYPED_CHACHA20_POLY1305) {
+            return decryptChaCha20Poly1305Stream(key, iv, dataInputStream, sizeHint);
+        }
+
+        Cipher cipher = initDecryptCipher(key, headerVersion, iv, 0, ivSize, transform);
+
+        byte[] cleartext = new byte[Math.max(sizeHint, STREAM_CHUNK_SIZE)];
+        int cleartextLength = 0;
+        byte[] input = new byte[STREAM_CHUNK_SIZE];
+        try {
+            int read;
+            while ((read = dataInputStream.read(input)) != -1) {
+                cleartext = ensureCapacity(cleartext, cleartextLength, cleartextLength + cipher.getOutputSize(read));
+                cleartextLength += cipher.update(input, 0, read, cleartext, cleartextLength);
+            }
+            cleartext = ensureCapacity(cleartext, cleartextLength, cleartextLength + cipher.getOutputSize(0));
+            cleartextLength += cipher.doFinal(cleartext, cleartextLength);
+            return TypedValueCodec.decode(cleartext, 0, cleartextLength);
+        } finally {
+            Arrays.fill(cleartext, (byte) 0);
+        }
+    }
+
+    private static Object decryptChaCha20Poly1305Stream(SecretKey key, byte[] nonce, InputStream inputStream, int sizeHint) throws GeneralSecurityException, IOException {
+        byte[] encrypted = new byte[Math.max(sizeHint, STREAM_CHUNK_SIZE)];
+        int encryptedLength = 0;
+        int read;
+        while ((read = inputStream.read(encrypted, encryptedLength, encrypted.length - encryptedLength)) != -1) {
+            encryptedLength += read;
+            if (encryptedLength == encrypted.length) encrypted = Arrays.copyOf(encrypted, encrypted.length * 2);
+        }
+
+        byte[] cleartext = new byte[ChaCha20Poly1305.getOpenSize(encryptedLength)];
+        byte[] keyBytes = getChaCha20Poly1305Key(key);
+        try {
+            int cleartextLength = ChaCha20Poly1305.open(keyBytes, nonce, encrypted, 0, encryptedLength, cleartext, 0);
+            return TypedValueCodec.decode(cleartext, 0, cleartextLength);
+        } finally {
+            Arrays.fill(keyBytes, (byte) 0);
+            Arrays.fill(cleartext, (byte) 0);
+        }
+    }
+
+    /**
+     * Grow the buffer to at least size bytes, wiping the replaced buffer.
+     */
+    private static byte[] ensureCapacity(byte[] buffer, int length, int size) {
+        if (buffer.length >= size) return buffer;
+
+        byte[] result = new byte[Math.max(size, buffer.length * 2)];
+        System.arraycopy(buffer, 0, result, 0, length);
+        Arrays.fill(buffer, (byte) 0);
+        return result;
     }
 
-    private static byte[] createIvHeader(byte[] iv) {
+    private static byte[] createIvHeader(byte[] iv, byte headerVersion) {
         ByteBuffer byteBuffer = ByteBuffer.allocate(iv.length + HEADER_METADATA_SIZE);
         byteBuffer.put(HEADER_MAGIC_NUMBER);
-        byteBuffer.put(HEADER_VERSION);
+        byteBuffer.put(headerVersion);
         byteBuffer.putInt(iv.length);
         byteBuffer.put(iv);
         return byteBuffer.array();
     }
 
-    private static Pair<byte[], byte[]> readIvFromHeader(byte[] encrypted) throws GeneralSecurityException {
-        if (encrypted == null) return null;
-        ByteBuffer encryptedBuffer = ByteBuffer.wrap(encrypted);
-        if (encrypted.length <= HEADER_METADATA_SIZE) {
+    /**
+     * Validate the envelope header in place.
+     * @param offset Start of the envelope within the array.
+     * @return Size of the IV which immediately follows the header metadata.
+     */
+    private static int readIvSizeFromHeader(byte[] encrypted, int offset) throws GeneralSecurityException {
+        if (encrypted.length - offset <= HEADER_METADATA_SIZE) {
             throw new GeneralSecurityException("Not enough data");
-        } else if (encryptedBuffer.get() != HEADER_MAGIC_NUMBER) {
+        } else if (encrypted[offset + HEADER_MAGIC_NUMBER_OFFSET] != HEADER_MAGIC_NUMBER) {
             throw new GeneralSecurityException("Invalid header");
-        } else if (encryptedBuffer.get() != HEADER_VERSION) {
-            throw new GeneralSecurityException("Incorrect header version");
         }
 
-        int ivSize = encryptedBuffer.getInt();
-        byte[] iv = null;
-        if (ivSize > 0) {
-            iv = new byte[ivSize];
-            encryptedBuffer.get(iv, 0, ivSize);
+        byte headerVersion = encrypted[offset + HEADER_VERSION_OFFSET];
+        if (headerVersion != HEADER_VERSION_STRING && headerVersion != HEADER_VERSION_TYPED && headerVersion != HEADER_VERSION_TYPED_GCM && headerVersion != HEADER_VERSION_TYPED_CHACHA20_POLY1305) {
+            throw new GeneralSecurityException("Incorrect header version");
         }
 
-        int dataSize = encrypted.length - (HEADER_METADATA_SIZE + ivSize);
-        byte[] data = new byte[dataSize];
-        encryptedBuffer.get(data, 0, dataSize);
-
-        return new Pair<>(iv, data);
+        int ivOffset = offset + HEADER_IV_OFFSET;
+        int ivSize = ((encrypted[ivOffset] & 0xFF) << 24)
+                | ((encrypted[ivOffset + 1] & 0xFF) << 16)
+                | ((encrypted[ivOffset + 2] & 0xFF) << 8)
+                | (encrypted[ivOffset + 3] & 0xFF);
+        if (ivSize < 0 || ivSize > encrypted.length - offset - HEADER_METADATA_SIZE) {
+            throw new GeneralSecurityException("Invalid IV size");
+        }
+        return ivSize;
     }
 
-    private static byte[] encrypt(SecretKey key, byte[] clearText, String transform) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
-        Cipher cipher = Cipher.getInstance(transform);
-        cipher.init(Cipher.ENCRYPT_MODE, key);
+    private static byte[] encrypt(SecretKey key, byte[] clearText, byte headerVersion, String transform) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+        if (isChaCha20Poly1305Transform(transform)) {
+            return encryptChaCha20Poly1305(key, clearText);
+        }
+
+        Cipher cipher = initEncryptCipher(key, transform);
         byte[] data = cipher.doFinal(clearText);
-        byte[] header = createIvHeader(cipher.getIV());
+        byte[] header = createIvHeader(cipher.getIV(), headerVersion);
         return concatByteArrays(header, data);
     }
 
-    private static byte[] decrypt(SecretKey key, byte[] encrypted, String transform) throws GeneralSecurityException {
-        Cipher cipher = Cipher.getInstance(transform);
-        Pair<byte[], byte[]> dataPair = readIvFromHeader(encrypted);
-        if (dataPair != null) {
-            if (dataPair.first == null) {
-                cipher.init(Cipher.DECRYPT_MODE, key);
-            } else {
-                cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(dataPair.first));
+    /**
+     * Decrypt the envelope directly from its offsets into this thread's cleartext buffer. The caller must
+     * wipe the buffer once the cleartext has been consumed.
+     * @param offset Start of the envelope within the array, which is past any key id header.
+     */
+    private static CleartextBuffer decrypt(SecretKey key, byte[] encrypted, int offset, String transform) throws GeneralSecurityException {
+        int ivSize = readIvSizeFromHeader(encrypted, offset);
+        int ivOffset = offset + HEADER_METADATA_SIZE;
+        int dataOffset = ivOffset + ivSize;
+        int dataSize = encrypted.length - dataOffset;
+        byte headerVersion = encrypted[offset + HEADER_VERSION_OFFSET];
+
+        if (headerVersion == HEADER_VERSION_TYPED_CHACHA20_POLY1305) {
+            return decryptChaCha20Poly1305(key, encrypted, ivOffset, ivSize, dataOffset, dataSize);
+        }
+
+        Cipher cipher = initDecryptCipher(key, headerVersion, encrypted, ivOffset, ivSize, transform);
+
+        CleartextBuffer cleartextBuffer = sCleartextBuffer.get();
+        byte[] output = cleartextBuffer.prepare(cipher.getOutputSize(dataSize));
+        try {
+            cleartextBuffer.mLength = cipher.doFinal(encrypted, dataOffset, dataSize, output, 0);
+        } catch (GeneralSecurityException e) {
+            cleartextBuffer.wipe();
+            throw e;
+        }
+        return cleartextBuffer;
+    }
+
+    private static byte[] encryptChaCha20Poly1305(SecretKey key, byte[] clearText) throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+        byte[] nonce = new byte[ChaCha20Poly1305.NONCE_SIZE];
+        sSecureRandom.nextBytes(nonce);
+        byte[] keyBytes = getChaCha20Poly1305Key(key);
+        try {
+            return concatByteArrays(createIvHeader(nonce, HEADER_VERSION_TYPED_CHACHA20_POLY1305), ChaCha20Poly1305.seal(keyBytes, nonce, clearText, 0, clearText.length));
+        } catch (InvalidKeyException | IllegalBlockSizeException | BadPaddingException e) {
+            throw e;
+        } catch (GeneralSecurityException e) {
+            throw new InvalidKeyException("Unable to initialize ChaCha20-Poly1305", e);
+        } finally {
+            Arrays.fill(keyBytes, (byte) 0);
+        }
+    }
+
+    private static CleartextBuffer decryptChaCha20Poly1305(SecretKey key, byte[] encrypted, int ivOffset, int ivSize, int dataOffset, int dataSize) throws GeneralSecurityException {
+        if (ivSize != ChaCha20Poly1305.NONCE_SIZE) throw new GeneralSecurityException("Invalid IV size");
+        byte[] nonce = Arrays.copyOfRange(encrypted, ivOffset, ivOffset + ivSize);
+        byte[] keyBytes = getChaCha20Poly1305Key(key);
+
+        CleartextBuffer cleartextBuffer = sCleartextBuffer.get();
+        byte[] output = cleartextBuffer.prepare(ChaCha20Poly1305.getOpenSize(dataSize));
+        try {
+            cleartextBuffer.mLength = ChaCha20Poly1305.open(keyBytes, nonce, encrypted, dataOffset, dataSize, output, 0);
+        } catch (GeneralSecurityException e) {
+            cleartextBuffer.wipe();
+            throw e;
+        } finally {
+            Arrays.fill(keyBytes, (byte) 0);
+        }
+        return cleartextBuffer;
+    }
+
+    /**
+     * ChaCha20 uses the raw bytes of the 256 bit vault key, so keys held in hardware cannot be used.
+     */
+    private static byte[] getChaCha20Poly1305Key(SecretKey key) throws InvalidKeyException {
+        byte[] keyBytes = key == null ? null : key.getEncoded();
+        if (keyBytes == null || keyBytes.length != ChaCha20Poly1305.KEY_SIZE) {
+            throw new InvalidKeyException("ChaCha20-Poly1305 requires an exportable 256 bit key");
+        }
+        return keyBytes;
+    }
+
+    /**
+     * Obtain this thread's Cipher for the transform initialized for encryption with a new random IV or nonce.
+     */
+    private static Cipher initEncryptCipher(SecretKey key, String transform) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException {
+        Cipher cipher = CipherCache.getCipher(transform);
+        try {
+            initEncryptCipher(cipher, key, transform);
+        } catch (InvalidKeyException e) {
+            //The cached instance may be bound to a provider that does not accept this key.
+            cipher = CipherCache.replaceCipher(transform);
+            initEncryptCipher(cipher, key, transform);
+        }
+        return cipher;
+    }
+
+    private static void initEncryptCipher(Cipher cipher, SecretKey key, String transform) throws InvalidKeyException {
+        if (isGcmTransform(transform)) {
+            //GCM must never reuse a nonce with the same key, so a random one is supplied rather than relying on the provider.
+            byte[] nonce = new byte[GCM_NONCE_SIZE];
+            sSecureRandom.nextBytes(nonce);
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_SIZE_BITS, nonce));
+            } catch (InvalidAlgorithmParameterException e) {
+                throw new InvalidKeyException("Unable to initialize GCM", e);
+            }
+        } else {
+            cipher.init(Cipher.ENCRYPT_MODE, key);
+        }
+    }
+
+    /**
+     * Obtain this thread's Cipher for the envelope version initialized for decryption. GCM envelopes are always
+     * decrypted with GCM, others with transform or with CBC if transform is GCM.
+     */
+    private static Cipher initDecryptCipher(SecretKey key, byte headerVersion, byte[] iv, int ivOffset, int ivSize, String transform) throws GeneralSecurityException {
+        boolean gcm = headerVersion == HEADER_VERSION_TYPED_GCM;
+        String decryptTransform = gcm ? EncryptionConstants.AES_GCM_TRANSFORM : getUntypedTransform(transform);
+        Cipher cipher = CipherCache.getCipher(decryptTransform);
+        try {
+            initDecryptCipher(cipher, key, gcm, iv, ivOffset, ivSize);
+        } catch (InvalidKeyException e) {
+            //The cached instance may be bound to a provider that does not accept this key.
+            cipher = CipherCache.replaceCipher(decryptTransform);
+            initDecryptCipher(cipher, key, gcm, iv, ivOffset, ivSize);
+        }
+        return cipher;
+    }
+
+    private static void initDecryptCipher(Cipher cipher, SecretKey key, boolean gcm, byte[] iv, int ivOffset, int ivSize) throws GeneralSecurityException {
+        if (gcm) {
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_SIZE_BITS, iv, ivOffset, ivSize));
+        } else if (ivSize == 0) {
+            cipher.init(Cipher.DECRYPT_MODE, key);
+        } else {
+            cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv, ivOffset, ivSize));
+        }
+    }
+
+    private static boolean isGcmTransform(String transform) {
+        return EncryptionConstants.AES_GCM_TRANSFORM.equals(transform);
+    }
+
+    private static boolean isChaCha20Poly1305Transform(String transform) {
+        return EncryptionConstants.CHACHA20_POLY1305_TRANSFORM.equals(transform);
+    }
+
+    /**
+     * Determine if the transform writes typed values in an authenticated envelope of its own, in which case
+     * values stored in older envelopes should be upgraded when they are written.
+     */
+    static boolean isAuthenticatedTransform(String transform) {
+        return isGcmTransform(transform) || isChaCha20Poly1305Transform(transform);
+    }
+
+    private static byte getTypedHeaderVersion(String transform) {
+        if (isGcmTransform(transform)) return HEADER_VERSION_TYPED_GCM;
+        if (isChaCha20Poly1305Transform(transform)) return HEADER_VERSION_TYPED_CHACHA20_POLY1305;
+        return HEADER_VERSION_TYPED;
+    }
+
+    /**
+     * Untyped envelopes, and typed envelopes written before an authenticated transform was selected, use CBC.
+     */
+    private static String getUntypedTransform(String transform) {
+        return isAuthenticatedTransform(transform) ? EncryptionConstants.AES_CBC_PADDED_TRANSFORM : transform;
+    }
+
+    /**
+     * Determine if a stored value was written in the envelope the transform produces. Only the start of the
+     * Base64 string is decoded.
+     */
+    static boolean isCurrentEnvelope(String encrypted, String transform) {
+        if (encrypted == null || encrypted.length() < BASE64_HEADER_PREFIX_LENGTH) return false;
+
+        byte[] header;
+        try {
+            int prefixLength = Math.min(encrypted.length(), BASE64_TAGGED_HEADER_PREFIX_LENGTH);
+            header = Base64.decode(encrypted.substring(0, prefixLength - prefixLength % BASE64_HEADER_PREFIX_LENGTH), Base64.DEFAULT);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        int versionOffset = hasKeyIdHeader(header) ? KEY_ID_HEADER_SIZE + HEADER_VERSION_OFFSET : HEADER_VERSION_OFFSET;
+        return header.length > versionOffset && header[versionOffset] == getTypedHeaderVersion(transform);
+    }
+
+    /**
+     * Per-thread destination for decrypted bytes which is reused across decryptions to avoid allocating
+     * intermediate arrays. Buffers that grew beyond {@link #MAX_RETAINED_SIZE} are released after use.
+     */
+    private static class CleartextBuffer {
+        private static final int INITIAL_SIZE = 256;
+        private static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+        byte[] mBuffer = new byte[INITIAL_SIZE];
+        int mLength;
+
+        /**
+         * Ensure capacity for size bytes and return the buffer to decrypt into.
+         */
+        byte[] prepare(int size) {
+            if (mBuffer.length < size) {
+                mBuffer = new byte[size];
+            }
+            mLength = size;
+            return mBuffer;
+        }
+
+        /**
+         * Overwrite the cleartext so that it does not linger in memory.
+         */
+        void wipe() {
+            Arrays.fill(mBuffer, 0, mLength, (byte) 0);
+            mLength = 0;
+            if (mBuffer.length > MAX_RETAINED_SIZE) {
+                mBuffer = new byte[INITIAL_SIZE];
             }
-            return cipher.doFinal(dataPair.second);
         }
-        return null;
     }
 
     /**
@@ -15,37 +15,349 @@
 
 package com.bottlerocketstudios.vault;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Set;
 
 /**
- * Bundle that retains type information to be recovered on commit.
+ * Bundle that retains type information to be recovered on commit. Each entry holds a type tag from
+ * {@link TypedValueCodec} with primitives stored inline, so that puts of int, long, float and boolean values do not
+ * box. A single entry is held in fields and an open addressing table is only allocated for the second key.
+ * Not thread safe.
  */
 public class StronglyTypedBundle {
+    private static final int TYPE_NONE = 0;
+    private static final int INITIAL_CAPACITY = 8;
 
-    public Map<String, Class> mClassMap = new HashMap<>();
-    public Map<String, Object> mValueMap = new HashMap<>();
+    private String mInlineKey;
+    private byte mInlineType;
+    private long mInlinePrimitive;
+    private Object mInlineObject;
 
-    public Class getTypeForValue(String key) {
-        return mClassMap.get(key);
+    //Linear probing table with capacity a power of two, at most half full. Null keys are empty slots.
+    private String[] mKeys;
+    private byte[] mTypes;
+    private long[] mPrimitives;
+    private Object[] mObjects;
+    private int mSize;
+
+    public void putString(String key, String value) {
+        if (value == null) throw new NullPointerException("Null value for " + key);
+        put(key, TypedValueCodec.TYPE_STRING, 0, value);
     }
 
-    public <T> T getValue(Class<T> type, String key) {
-        return type.cast(mValueMap.get(key));
+    public void putInt(String key, int value) {
+        put(key, TypedValueCodec.TYPE_INTEGER, value, null);
+    }
+
+    public void putLong(String key, long value) {
+        put(key, TypedValueCodec.TYPE_LONG, value, null);
+    }
+
+    public void putFloat(String key, float value) {
+        put(key, TypedValueCodec.TYPE_FLOAT, Float.floatToRawIntBits(value), null);
+    }
+
+    public void putBoolean(String key, boolean value) {
+        put(key, TypedValueCodec.TYPE_BOOLEAN, value ? 1 : 0, null);
+    }
+
+    public void putStringSet(String key, Set<String> value) {
+        if (value == null) throw new NullPointerException("Null value for " + key);
+        put(key, TypedValueCodec.TYPE_STRING_SET, 0, value);
     }
 
+    /**
+     * Store a boxed value of any supported type.
+     */
     public void putValue(String key, Object value) {
-        mValueMap.put(key, value);
-        mClassMap.put(key, value.getClass());
+        if (value instanceof String) {
+            putString(key, (String) value);
+        } else if (value instanceof Integer) {
+            putInt(key, (Integer) value);
+        } else if (value instanceof Long) {
+            putLong(key, (Long) value);
+        } else if (value instanceof Float) {
+            putFloat(key, (Float) value);
+        } else if (value instanceof Boolean) {
+            putBoolean(key, (Boolean) value);
+        } else if (value instanceof Set) {
+            //noinspection unchecked
+            putStringSet(key, (Set<String>) value);
+        } else {
+            throw new IllegalArgumentException("Unsupported type for " + key + " " + (value != null ? value.getClass() : null));
+        }
+    }
+
+    /**
+     * Type tag of the value stored for key as defined in {@link TypedValueCodec} or 0 if there is none.
+     */
+    public int getType(String key) {
+        if (mKeys == null) {
+            return key.equals(mInlineKey) ? mInlineType : TYPE_NONE;
+        }
+        int slot = findSlot(key);
+        return slot >= 0 ? mTypes[slot] : TYPE_NONE;
+    }
+
+    public String getString(String key) {
+        return (String) getObject(key);
+    }
+
+    public int getInt(String key) {
+        return (int) getPrimitive(key);
+    }
+
+    public long getLong(String key) {
+        return getPrimitive(key);
+    }
+
+    public float getFloat(String key) {
+        return Float.intBitsToFloat((int) getPrimitive(key));
+    }
+
+    public boolean getBoolean(String key) {
+        return getPrimitive(key) != 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key) {
+        return (Set<String>) getObject(key);
+    }
+
+    /**
+     * Boxed form of the value stored for key or null if there is none.
+     */
+    public Object getValue(String key) {
+        switch (getType(key)) {
+            case TypedValueCodec.TYPE_STRING:
+            case TypedValueCodec.TYPE_STRING_SET:
+                return getObject(key);
+            case TypedValueCodec.TYPE_INTEGER:
+                return getInt(key);
+            case TypedValueCodec.TYPE_LONG:
+                return getLong(key);
+            case TypedValueCodec.TYPE_FLOAT:
+                return getFloat(key);
+            case TypedValueCodec.TYPE_BOOLEAN:
+                return getBoolean(key);
+            default:
+                return null;
+        }
+    }
+
+    public <T> T getValue(Class<T> type, String key) {
+        return type.cast(getValue(key));
+    }
+
+    public Class getTypeForValue(String key) {
+        switch (getType(key)) {
+            case TypedValueCodec.TYPE_STRING:
+                return String.class;
+            case TypedValueCodec.TYPE_INTEGER:
+                return Integer.class;
+            case TypedValueCodec.TYPE_LONG:
+                return Long.class;
+            case TypedValueCodec.TYPE_FLOAT:
+                return Float.class;
+            case TypedValueCodec.TYPE_BOOLEAN:
+                return Boolean.class;
+            case TypedValueCodec.TYPE_STRING_SET:
+                return Set.class;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Determine if the value stored for key equals a decrypted value without boxing the stored value.
+     */
+    public boolean valueEquals(String key, Object value) {
+        switch (getType(key)) {
+            case TypedValueCodec.TYPE_STRING:
+            case TypedValueCodec.TYPE_STRING_SET:
+                return getObject(key).equals(value);
+            case TypedValueCodec.TYPE_INTEGER:
+                return value instanceof Integer && (Integer) value == getInt(key);
+            case TypedValueCodec.TYPE_LONG:
+                return value instanceof Long && (Long) value == getLong(key);
+            case TypedValueCodec.TYPE_FLOAT:
+                return value instanceof Float && Float.floatToIntBits((Float) value) == Float.floatToIntBits(getFloat(key));
+            case TypedValueCodec.TYPE_BOOLEAN:
+                return value instanceof Boolean && (Boolean) value == getBoolean(key);
+            default:
+                return false;
+        }
+    }
+
+    public boolean containsKey(String key) {
+        return getType(key) != TYPE_NONE;
+    }
+
+    public int size() {
+        return mKeys == null ? (mInlineKey != null ? 1 : 0) : mSize;
+    }
+
+    /**
+     * Add every key to the collection without allocating an intermediate set.
+     */
+    public void collectKeys(Collection<String> keyCollection) {
+        if (mKeys == null) {
+            if (mInlineKey != null) keyCollection.add(mInlineKey);
+            return;
+        }
+        for (String key : mKeys) {
+            if (key != null) keyCollection.add(key);
+        }
     }
 
     public Set<String> keySet() {
-        return mValueMap.keySet();
+        Set<String> keySet = new HashSet<>(size() * 2);
+        collectKeys(keySet);
+        return keySet;
+    }
+
+    /**
+     * Copy every entry of the other bundle into this one, replacing existing values.
+     */
+    public void putAll(StronglyTypedBundle other) {
+        if (other.mKeys == null) {
+            if (other.mInlineKey != null) put(other.mInlineKey, other.mInlineType, other.mInlinePrimitive, other.mInlineObject);
+            return;
+        }
+        for (int slot = 0; slot < other.mKeys.length; slot++) {
+            if (other.mKeys[slot] != null) {
+                put(other.mKeys[slot], other.mTypes[slot], other.mPrimitives[slot], other.mObjects[slot]);
+            }
+        }
     }
 
     public void remove(String key) {
-        mValueMap.remove(key);
-        mClassMap.remove(key);
+        if (mKeys == null) {
+            if (key.equals(mInlineKey)) {
+                mInlineKey = null;
+                mInlineType = TYPE_NONE;
+                mInlinePrimitive = 0;
+                mInlineObject = null;
+            }
+            return;
+        }
+
+        int slot = findSlot(key);
+        if (slot >= 0) {
+            removeSlot(slot);
+            mSize--;
+        }
+    }
+
+    private void put(String key, byte type, long primitive, Object object) {
+        if (key == null) throw new NullPointerException("Null key");
+
+        if (mKeys == null) {
+            if (mInlineKey == null || mInlineKey.equals(key)) {
+                mInlineKey = key;
+                mInlineType = type;
+                mInlinePrimitive = primitive;
+                mInlineObject = object;
+                return;
+            }
+            allocateTable(INITIAL_CAPACITY);
+            insert(mInlineKey, mInlineType, mInlinePrimitive, mInlineObject);
+            mInlineKey = null;
+            mInlineObject = null;
+        }
+        insert(key, type, primitive, object);
+    }
+
+    private void insert(String key, byte type, long primitive, Object object) {
+        int mask = mKeys.length - 1;
+        int slot = indexFor(key, mask);
+        while (mKeys[slot] != null && !mKeys[slot].equals(key)) {
+            slot = (slot + 1) & mask;
+        }
+        if (mKeys[slot] == null) {
+            if ((mSize + 1) * 2 > mKeys.length) {
+                resize();
+                insert(key, type, primitive, object);
+                return;
+            }
+            mKeys[slot] = key;
+            mSize++;
+        }
+        mTypes[slot] = type;
+        mPrimitives[slot] = primitive;
+        mObjects[slot] = object;
+    }
+
+    private void resize() {
+        String[] keys = mKeys;
+        byte[] types = mTypes;
+        long[] primitives = mPrimitives;
+        Object[] objects = mObjects;
+        allocateTable(keys.length * 2);
+        mSize = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != null) {
+                insert(keys[slot], types[slot], primitives[slot], objects[slot]);
+            }
+        }
+    }
+
+    private void allocateTable(int capacity) {
+        mKeys = new String[capacity];
+        mTypes = new byte[capacity];
+        mPrimitives = new long[capacity];
+        mObjects = new Object[capacity];
+    }
+
+    /**
+     * Empty the slot and shift later entries of the same probe sequence back so that lookups need no tombstones.
+     */
+    private void removeSlot(int slot) {
+        int mask = mKeys.length - 1;
+        int hole = slot;
+        for (int next = (hole + 1) & mask; mKeys[next] != null; next = (next + 1) & mask) {
+            int ideal = indexFor(mKeys[next], mask);
+            if (((hole - ideal) & mask) < ((next - ideal) & mask)) {
+                mKeys[hole] = mKeys[next];
+                mTypes[hole] = mTypes[next];
+                mPrimitives[hole] = mPrimitives[next];
+                mObjects[hole] = mObjects[next];
+                hole = next;
+            }
+        }
+        mKeys[hole] = null;
+        mTypes[hole] = TYPE_NONE;
+        mPrimitives[hole] = 0;
+        mObjects[hole] = null;
+    }
+
+    private int findSlot(String key) {
+        int mask = mKeys.length - 1;
+        for (int slot = indexFor(key, mask); mKeys[slot] != null; slot = (slot + 1) & mask) {
+            if (mKeys[slot].equals(key)) return slot;
+        }
+        return -1;
+    }
+
+    private static int indexFor(String key, int mask) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    private long getPrimitive(String key) {
+        if (mKeys == null) {
+            return key.equals(mInlineKey) ? mInlinePrimitive : 0;
+        }
+        int slot = findSlot(key);
+        return slot >= 0 ? mPrimitives[slot] : 0;
+    }
+
+    private Object getObject(String key) {
+        if (mKeys == null) {
+            return key.equals(mInlineKey) ? mInlineObject : null;
+        }
+        int slot = findSlot(key);
+        return slot >= 0 ? mObjects[slot] : null;
     }
 }
@@ -0,0 +1,352 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact binary encoding of SharedPreference values with a leading type tag. This is the cleartext
+ * content of a typed envelope in {@link StringEncryptionUtils}.
+ *
+ * <ul>
+ *     <li>String - UTF-8 bytes</li>
+ *     <li>Integer, Long - ZigZag varint</li>
+ *     <li>Float - IEEE 754 bits, big endian</li>
+ *     <li>Boolean - one byte</li>
+ *     <li>Set&lt;String&gt; - varint count followed by varint length prefixed UTF-8 strings</li>
+ *     <li>Large value pointer - UTF-8 id of the side file holding the typed value</li>
+ * </ul>
+ *
+ * A value may be compressed, in which case {@link #TYPE_FLAG_COMPRESSED} is set in its tag and the tag is followed
+ * by the varint length of the uncompressed value and the zlib stream of the uncompressed value without its tag.
+ */
+class TypedValueCodec {
+    private static final Charset UTF_8 = Charset.forName(CharacterEncodingConstants.UTF_8);
+
+    static final byte TYPE_STRING = 1;
+    static final byte TYPE_INTEGER = 2;
+    static final byte TYPE_LONG = 3;
+    static final byte TYPE_FLOAT = 4;
+    static final byte TYPE_BOOLEAN = 5;
+    static final byte TYPE_STRING_SET = 6;
+    static final byte TYPE_LARGE_VALUE_POINTER = 7;
+    static final byte TYPE_FLAG_COMPRESSED = 0x40;
+
+    private static final int TAG_SIZE = 1;
+    private static final int FLOAT_SIZE = Float.SIZE / 8;
+    private static final int MAX_VARINT_SIZE = 10;
+    private static final int COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+    private static final int MAX_UNCOMPRESSED_SIZE = 64 * 1024 * 1024;
+
+    private static final ThreadLocal<Deflater> sDeflater = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(COMPRESSION_LEVEL);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> sInflater = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    static byte[] encodeString(String value) {
+        byte[] stringBytes = value.getBytes(UTF_8);
+        byte[] result = new byte[TAG_SIZE + stringBytes.length];
+        result[0] = TYPE_STRING;
+        System.arraycopy(stringBytes, 0, result, TAG_SIZE, stringBytes.length);
+        return result;
+    }
+
+    static byte[] encodeInteger(int value) {
+        return encodeVarint(TYPE_INTEGER, zigZag(value));
+    }
+
+    static byte[] encodeLong(long value) {
+        return encodeVarint(TYPE_LONG, zigZag(value));
+    }
+
+    static byte[] encodeFloat(float value) {
+        int bits = Float.floatToIntBits(value);
+        return new byte[] {TYPE_FLOAT, (byte) (bits >>> 24), (byte) (bits >>> 16), (byte) (bits >>> 8), (byte) bits};
+    }
+
+    static byte[] encodeBoolean(boolean value) {
+        return new byte[] {TYPE_BOOLEAN, (byte) (value ? 1 : 0)};
+    }
+
+    static byte[] encodeStringSet(Set<String> value) {
+        byte[][] stringBytesArray = new byte[value.size()][];
+        int size = TAG_SIZE + varintSize(stringBytesArray.length);
+        int index = 0;
+        for (String string : value) {
+            byte[] stringBytes = string.getBytes(UTF_8);
+            stringBytesArray[index++] = stringBytes;
+            size += varintSize(stringBytes.length) + stringBytes.length;
+        }
+
+        byte[] result = new byte[size];
+        result[0] = TYPE_STRING_SET;
+        int position = writeVarint(result, TAG_SIZE, stringBytesArray.length);
+        for (byte[] stringBytes : stringBytesArray) {
+            position = writeVarint(result, position, stringBytes.length);
+            System.arraycopy(stringBytes, 0, result, position, stringBytes.length);
+            position += stringBytes.length;
+        }
+        return result;
+    }
+
+    static byte[] encodeLargeValuePointer(String fileId) {
+        byte[] encoded = encodeString(fileId);
+        encoded[0] = TYPE_LARGE_VALUE_POINTER;
+        return encoded;
+    }
+
+    /**
+     * Encode any supported value type.
+     * @throws IllegalArgumentException if the type is not one supported by SharedPreferences.
+     */
+    static byte[] encode(Object value) {
+        if (value instanceof String) {
+            return encodeString((String) value);
+        } else if (value instanceof Integer) {
+            return encodeInteger((Integer) value);
+        } else if (value instanceof Long) {
+            return encodeLong((Long) value);
+        } else if (value instanceof Float) {
+            return encodeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            return encodeBoolean((Boolean) value);
+        } else if (value instanceof Set) {
+            //noinspection unchecked
+            return encodeStringSet((Set<String>) value);
+        }
+        throw new IllegalArgumentException("Unsupported value type " + (value == null ? null : value.getClass()));
+    }
+
+    /**
+     * Compress an encoded value if it is at least threshold bytes long and compression makes it smaller.
+     * @return The compressed value or the original encoded value.
+     */
+    static byte[] compress(byte[] encoded, int threshold) {
+        if (threshold <= 0 || encoded.length < threshold || (encoded[0] & TYPE_FLAG_COMPRESSED) != 0) return encoded;
+
+        int uncompressedLength = encoded.length - TAG_SIZE;
+        int prefixSize = TAG_SIZE + varintSize(uncompressedLength);
+        //Anything as long as the original is of no use, so the output never needs to grow.
+        byte[] result = new byte[encoded.length];
+        Deflater deflater = sDeflater.get();
+        deflater.reset();
+        deflater.setInput(encoded, TAG_SIZE, uncompressedLength);
+        deflater.finish();
+        int position = prefixSize;
+        while (!deflater.finished() && position < result.length) {
+            position += deflater.deflate(result, position, result.length - position);
+        }
+        if (!deflater.finished() || position >= encoded.length) return encoded;
+
+        result[0] = (byte) (encoded[0] | TYPE_FLAG_COMPRESSED);
+        writeVarint(result, TAG_SIZE, uncompressedLength);
+        return Arrays.copyOf(result, position);
+    }
+
+    /**
+     * Decode a tagged value from length bytes of buffer starting at offset.
+     */
+    static Object decode(byte[] buffer, int offset, int length) throws GeneralSecurityException {
+        if (length < TAG_SIZE) throw new GeneralSecurityException("Missing type tag");
+        if ((buffer[offset] & TYPE_FLAG_COMPRESSED) != 0) {
+            byte[] uncompressed = decompress(buffer, offset, length);
+            try {
+                return decode(uncompressed, 0, uncompressed.length);
+            } finally {
+                Arrays.fill(uncompressed, (byte) 0);
+            }
+        }
+        int end = offset + length;
+        int position = offset + TAG_SIZE;
+        switch (buffer[offset]) {
+            case TYPE_STRING:
+                return new String(buffer, position, end - position, UTF_8);
+            case TYPE_INTEGER:
+                return (int) unZigZag(readVarint(buffer, position, end));
+            case TYPE_LONG:
+                return unZigZag(readVarint(buffer, position, end));
+            case TYPE_FLOAT:
+                if (end - position != FLOAT_SIZE) throw new GeneralSecurityException("Malformed float");
+                return Float.intBitsToFloat(((buffer[position] & 0xFF) << 24) | ((buffer[position + 1] & 0xFF) << 16) | ((buffer[position + 2] & 0xFF) << 8) | (buffer[position + 3] & 0xFF));
+            case TYPE_BOOLEAN:
+                if (end - position != 1) throw new GeneralSecurityException("Malformed boolean");
+                return buffer[position] != 0;
+            case TYPE_STRING_SET:
+                return decodeStringSet(buffer, position, end);
+            case TYPE_LARGE_VALUE_POINTER:
+                return new LargeValuePointer(new String(buffer, position, end - position, UTF_8));
+            default:
+                throw new GeneralSecurityException("Unknown type tag " + buffer[offset]);
+        }
+    }
+
+    /**
+     * Expand a compressed value back to its tagged encoding.
+     */
+    private static byte[] decompress(byte[] buffer, int offset, int length) throws GeneralSecurityException {
+        int[] cursor = new int[] {offset + TAG_SIZE};
+        int end = offset + length;
+        long uncompressedLength = readVarint(buffer, cursor[0], end);
+        cursor[0] += varintSize(uncompressedLength);
+        if (uncompressedLength > MAX_UNCOMPRESSED_SIZE) throw new GeneralSecurityException("Malformed compressed value");
+
+        byte[] result = new byte[TAG_SIZE + (int) uncompressedLength];
+        result[0] = (byte) (buffer[offset] & ~TYPE_FLAG_COMPRESSED);
+        Inflater inflater = sInflater.get();
+        inflater.reset();
+        inflater.setInput(buffer, cursor[0], end - cursor[0]);
+        try {
+            int position = TAG_SIZE;
+            while (!inflater.finished()) {
+                //Once the output is full, only the end of the stream may remain.
+                int inflated = position < result.length ? inflater.inflate(result, position, result.length - position) : inflater.inflate(new byte[1]);
+                if (inflated == 0) break;
+                position += inflated;
+            }
+            if (position != result.length || !inflater.finished()) throw new GeneralSecurityException("Malformed compressed value");
+        } catch (DataFormatException e) {
+            throw new GeneralSecurityException("Malformed compressed value", e);
+        }
+        return result;
+    }
+
+    private static Set<String> decodeStringSet(byte[] buffer, int position, int end) throws GeneralSecurityException {
+        int[] cursor = new int[] {position};
+        int count = readLength(buffer, cursor, end);
+        Set<String> result = new HashSet<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            int stringLength = readLength(buffer, cursor, end);
+            result.add(new String(buffer, cursor[0], stringLength, UTF_8));
+            cursor[0] += stringLength;
+        }
+        if (cursor[0] != end) throw new GeneralSecurityException("Malformed set");
+        return result;
+    }
+
+    /**
+     * Read a varint length that must not exceed the remaining bytes, advancing the cursor past it.
+     */
+    private static int readLength(byte[] buffer, int[] cursor, int end) throws GeneralSecurityException {
+        long length = readVarint(buffer, cursor[0], end);
+        cursor[0] += varintSize(length);
+        if (length > end - cursor[0]) throw new GeneralSecurityException("Malformed length");
+        return (int) length;
+    }
+
+    private static byte[] encodeVarint(byte type, long value) {
+        byte[] result = new byte[TAG_SIZE + varintSize(value)];
+        result[0] = type;
+        writeVarint(result, TAG_SIZE, value);
+        return result;
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Write an unsigned varint and return the position following it.
+     */
+    private static int writeVarint(byte[] buffer, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+
+    private static long readVarint(byte[] buffer, int position, int end) throws GeneralSecurityException {
+        long result = 0;
+        for (int shift = 0, i = 0; i < MAX_VARINT_SIZE && position < end; shift += 7, i++) {
+            byte b = buffer[position++];
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return result;
+        }
+        throw new GeneralSecurityException("Malformed varint");
+    }
+
+    /**
+     * Value read from a legacy envelope which has no type information. Type must be inferred from the content.
+     */
+    static final class UntypedValue {
+        final String mValue;
+
+        UntypedValue(String value) {
+            mValue = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof UntypedValue && mValue.equals(((UntypedValue) o).mValue);
+        }
+
+        @Override
+        public int hashCode() {
+            return mValue.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return mValue;
+        }
+    }
+
+    /**
+     * Reference to a value stored in its own file by {@link LargeValueFileStore}.
+     */
+    static final class LargeValuePointer {
+        final String mFileId;
+
+        LargeValuePointer(String fileId) {
+            mFileId = fileId;
+        }
+
+        @Override
+        public String toString() {
+            return mFileId;
+        }
+    }
+}
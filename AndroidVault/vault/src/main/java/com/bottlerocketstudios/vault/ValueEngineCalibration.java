@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bottlerocketstudios.vault;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Result of timing each value engine on this device, see
+ * {@link SharedPreferenceVaultFactory#getCalibratedCompatVault(android.content.Context, String, String, String, int, String, boolean)}.
+ */
+public class ValueEngineCalibration {
+    /**
+     * Throughput recorded for an engine that is unavailable or failed its self test.
+     */
+    public static final int UNAVAILABLE = -1;
+
+    private final String mSelectedTransform;
+    private final Map<String, Integer> mThroughputMap;
+    private final int mSdkInt;
+
+    ValueEngineCalibration(String selectedTransform, Map<String, Integer> throughputMap, int sdkInt) {
+        mSelectedTransform = selectedTransform;
+        mThroughputMap = Collections.unmodifiableMap(new LinkedHashMap<>(throughputMap));
+        mSdkInt = sdkInt;
+    }
+
+    /**
+     * Transform used for new writes, one of the transforms in {@link EncryptionConstants}.
+     */
+    public String getSelectedTransform() {
+        return mSelectedTransform;
+    }
+
+    /**
+     * Combined encrypt and decrypt throughput in KB/s by transform, or {@link #UNAVAILABLE}.
+     */
+    public Map<String, Integer> getThroughputMap() {
+        return mThroughputMap;
+    }
+
+    /**
+     * Android SDK version the calibration ran on. Calibration runs again after an OS upgrade.
+     */
+    public int getSdkInt() {
+        return mSdkInt;
+    }
+
+    @Override
+    public String toString() {
+        return "ValueEngineCalibration{selected=" + mSelectedTransform + ", throughputKBps=" + mThroughputMap + ", sdkInt=" + mSdkInt + "}";
+    }
+}
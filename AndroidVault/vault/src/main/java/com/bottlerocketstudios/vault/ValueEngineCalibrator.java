@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bottlerocketstudios.vault;
+
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+import com.bottlerocketstudios.vault.keys.generator.Aes256RandomKeyFactory;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Times each value engine available on the device once and records the result in the key preference file, in the
+ * same way that the AndroidKeystoreTester records its result. Only authenticated engines meet the security
+ * policy, CBC is selected only if neither GCM nor ChaCha20-Poly1305 work on the device.
+ */
+class ValueEngineCalibrator {
+    private static final String TAG = ValueEngineCalibrator.class.getSimpleName();
+
+    private static final String PREF_VALUE_ENGINE_SELECTED_ROOT = "valueEngineSelected.";
+    private static final String PREF_VALUE_ENGINE_SDK_INT_ROOT = "valueEngineSdkInt.";
+    private static final String PREF_VALUE_ENGINE_THROUGHPUT_ROOT = "valueEngineThroughput.";
+
+    private static final int WARM_UP_ITERATIONS = 4;
+    private static final int SMALL_VALUE_SIZE = 256;
+    private static final int SMALL_VALUE_ITERATIONS = 64;
+    private static final int LARGE_VALUE_SIZE = 4096;
+    private static final int LARGE_VALUE_ITERATIONS = 8;
+
+    private ValueEngineCalibrator() {}
+
+    /**
+     * Read the previous calibration for this key alias or run it if there is none for the current SDK version.
+     */
+    static synchronized ValueEngineCalibration getCalibration(SharedPreferences sharedPreferences, String keyAlias, int currentSdkInt) {
+        ValueEngineCalibration calibration = readCalibration(sharedPreferences, keyAlias, currentSdkInt);
+        if (calibration == null) {
+            calibration = calibrate(currentSdkInt);
+            writeCalibration(sharedPreferences, keyAlias, calibration);
+        }
+        return calibration;
+    }
+
+    /**
+     * Read the calibration for this key alias without running it.
+     * @return Calibration for the current SDK version or null.
+     */
+    static ValueEngineCalibration readCalibration(SharedPreferences sharedPreferences, String keyAlias, int currentSdkInt) {
+        String selectedTransform = sharedPreferences.getString(PREF_VALUE_ENGINE_SELECTED_ROOT + keyAlias, null);
+        int sdkInt = sharedPreferences.getInt(PREF_VALUE_ENGINE_SDK_INT_ROOT + keyAlias, 0);
+        if (selectedTransform == null || sdkInt != currentSdkInt) return null;
+
+        Map<String, Integer> throughputMap = new LinkedHashMap<>();
+        for (String transform : getCandidateTransforms()) {
+            throughputMap.put(transform, sharedPreferences.getInt(getThroughputKey(keyAlias, transform), ValueEngineCalibration.UNAVAILABLE));
+        }
+        return new ValueEngineCalibration(selectedTransform, throughputMap, sdkInt);
+    }
+
+    private static void writeCalibration(SharedPreferences sharedPreferences, String keyAlias, ValueEngineCalibration calibration) {
+        SharedPreferences.Editor editor = sharedPreferences.edit()
+                .putString(PREF_VALUE_ENGINE_SELECTED_ROOT + keyAlias, calibration.getSelectedTransform())
+                .putInt(PREF_VALUE_ENGINE_SDK_INT_ROOT + keyAlias, calibration.getSdkInt());
+        for (Map.Entry<String, Integer> entry : calibration.getThroughputMap().entrySet()) {
+            editor.putInt(getThroughputKey(keyAlias, entry.getKey()), entry.getValue());
+        }
+        editor.apply();
+    }
+
+    private static String getThroughputKey(String keyAlias, String transform) {
+        return PREF_VALUE_ENGINE_THROUGHPUT_ROOT + keyAlias + "." + transform;
+    }
+
+    private static List<String> getCandidateTransforms() {
+        return Arrays.asList(EncryptionConstants.AES_CBC_PADDED_TRANSFORM, EncryptionConstants.AES_GCM_TRANSFORM, EncryptionConstants.CHACHA20_POLY1305_TRANSFORM);
+    }
+
+    /**
+     * Time every candidate with a throwaway key and select the fastest authenticated engine.
+     */
+    static ValueEngineCalibration calibrate(int currentSdkInt) {
+        SecretKey secretKey = Aes256RandomKeyFactory.createKey();
+        Random random = new Random();
+        String smallValue = createValue(random, SMALL_VALUE_SIZE);
+        String largeValue = createValue(random, LARGE_VALUE_SIZE);
+
+        Map<String, Integer> throughputMap = new LinkedHashMap<>();
+        String selectedTransform = EncryptionConstants.AES_CBC_PADDED_TRANSFORM;
+        int selectedThroughput = ValueEngineCalibration.UNAVAILABLE;
+        for (String transform : getCandidateTransforms()) {
+            int throughput = ValueEngineCalibration.UNAVAILABLE;
+            if (isSupported(transform, currentSdkInt)) {
+                try {
+                    //The first pass resolves providers and warms up the code path.
+                    measure(secretKey, transform, smallValue, WARM_UP_ITERATIONS);
+                    measure(secretKey, transform, largeValue, WARM_UP_ITERATIONS);
+                    long nanos = measure(secretKey, transform, smallValue, SMALL_VALUE_ITERATIONS) + measure(secretKey, transform, largeValue, LARGE_VALUE_ITERATIONS);
+                    long bytes = 2L * (SMALL_VALUE_SIZE * SMALL_VALUE_ITERATIONS + LARGE_VALUE_SIZE * LARGE_VALUE_ITERATIONS);
+                    throughput = (int) Math.min(Integer.MAX_VALUE, bytes * 1000000000L / Math.max(1, nanos) / 1024);
+                } catch (GeneralSecurityException | RuntimeException e) {
+                    Log.w(TAG, "Value engine " + transform + " failed its self test", e);
+                }
+            }
+            throughputMap.put(transform, throughput);
+
+            if (StringEncryptionUtils.isAuthenticatedTransform(transform) && throughput > selectedThroughput) {
+                selectedTransform = transform;
+                selectedThroughput = throughput;
+            }
+        }
+        return new ValueEngineCalibration(selectedTransform, throughputMap, currentSdkInt);
+    }
+
+    private static boolean isSupported(String transform, int currentSdkInt) {
+        return !EncryptionConstants.AES_GCM_TRANSFORM.equals(transform) || currentSdkInt >= Build.VERSION_CODES.KITKAT;
+    }
+
+    private static String createValue(Random random, int size) {
+        char[] value = new char[size];
+        for (int i = 0; i < size; i++) {
+            value[i] = (char) (' ' + random.nextInt(95));
+        }
+        return new String(value);
+    }
+
+    /**
+     * Encrypt and decrypt the value through the full envelope path, verifying the result.
+     * @return Elapsed nanoseconds.
+     */
+    private static long measure(SecretKey secretKey, String transform, String value, int iterations) throws GeneralSecurityException {
+        byte[] encodedValue = TypedValueCodec.encodeString(value);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            String encrypted = StringEncryptionUtils.encryptEncodedValue(secretKey, encodedValue, transform);
+            Object decrypted;
+            try {
+                decrypted = StringEncryptionUtils.decryptTypedValue(secretKey, encrypted, CharacterEncodingConstants.UTF_8, transform);
+            } catch (StringEncryptionUtils.UnencryptedException | UnsupportedEncodingException e) {
+                throw new GeneralSecurityException("Self test failed", e);
+            }
+            if (!value.equals(decrypted)) throw new GeneralSecurityException("Self test failed");
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decrypted values returned from {@link SharedPreferenceVault#getValues(java.util.Collection)}. The typed
+ * getters convert values exactly like the getters on the vault itself and return the default for keys that
+ * were not found.
+ */
+public final class VaultValues {
+    static final String STRING_SET_SEPARATOR = "1eRHtJaybutdAsFp2DkfrT1FqMJlLfT7DdgCpQtTaoQWheoeFBZRqt5pgFDH7Cf";
+
+    private final Map<String, Object> mValueMap;
+
+    VaultValues(Map<String, Object> valueMap) {
+        mValueMap = valueMap;
+    }
+
+    public boolean contains(String key) {
+        return mValueMap.containsKey(key);
+    }
+
+    /**
+     * Keys which had a value in the vault.
+     */
+    public Set<String> keySet() {
+        return Collections.unmodifiableSet(mValueMap.keySet());
+    }
+
+    public int size() {
+        return mValueMap.size();
+    }
+
+    public String getString(String key, String defaultValue) {
+        return toString(mValueMap.get(key), defaultValue);
+    }
+
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        return toStringSet(mValueMap.get(key), defValues);
+    }
+
+    public int getInt(String key, int defValue) {
+        return toInt(mValueMap.get(key), defValue);
+    }
+
+    public long getLong(String key, long defValue) {
+        return toLong(mValueMap.get(key), defValue);
+    }
+
+    public float getFloat(String key, float defValue) {
+        return toFloat(mValueMap.get(key), defValue);
+    }
+
+    public boolean getBoolean(String key, boolean defValue) {
+        return toBoolean(mValueMap.get(key), defValue);
+    }
+
+    /**
+     * Provide the String form of any value in the same format legacy values were stored.
+     */
+    static String toStringValue(Object value) {
+        if (value instanceof Set) {
+            StringBuilder stringBuilder = new StringBuilder();
+            for (Iterator<?> iterator = ((Set<?>) value).iterator(); iterator.hasNext();) {
+                stringBuilder.append(iterator.next());
+                if (iterator.hasNext()) stringBuilder.append(STRING_SET_SEPARATOR);
+            }
+            return stringBuilder.toString();
+        }
+        return String.valueOf(value);
+    }
+
+    static Set<String> splitStringSet(String joinedString) {
+        Set<String> result;
+        String splits[] = joinedString.split(STRING_SET_SEPARATOR);
+        result = new HashSet<>(splits.length);
+        result.addAll(Arrays.asList(splits));
+        return result;
+    }
+
+    static String toString(Object value, String defaultValue) {
+        return value != null ? toStringValue(value) : defaultValue;
+    }
+
+    static Set<String> toStringSet(Object value, Set<String> defValues) {
+        if (value instanceof Set) {
+            //noinspection unchecked
+            return new HashSet<>((Set<String>) value);
+        } else if (value != null) {
+            return splitStringSet(toStringValue(value));
+        }
+        return defValues;
+    }
+
+    static int toInt(Object value, int defValue) {
+        if (value instanceof Integer) {
+            return (Integer) value;
+        } else if (value != null) {
+            return Integer.valueOf(toStringValue(value));
+        }
+        return defValue;
+    }
+
+    static long toLong(Object value, long defValue) {
+        if (value instanceof Long) {
+            return (Long) value;
+        } else if (value != null) {
+            return Long.valueOf(toStringValue(value));
+        }
+        return defValue;
+    }
+
+    static float toFloat(Object value, float defValue) {
+        if (value instanceof Float) {
+            return (Float) value;
+        } else if (value != null) {
+            return Float.valueOf(toStringValue(value));
+        }
+        return defValue;
+    }
+
+    static boolean toBoolean(Object value, boolean defValue) {
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        } else if (value != null) {
+            return Boolean.valueOf(toStringValue(value));
+        }
+        return defValue;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time spent in each phase of {@link SharedPreferenceVault#warmUp(java.util.Collection)}.
+ */
+public final class VaultWarmUpResult {
+    private final long mPreferenceLoadNanos;
+    private final long mKeyLoadNanos;
+    private final long mCipherInitNanos;
+    private final long mHotKeyDecryptNanos;
+    private final int mHotKeyCount;
+    private final boolean mKeyAvailable;
+
+    VaultWarmUpResult(long preferenceLoadNanos, long keyLoadNanos, long cipherInitNanos, long hotKeyDecryptNanos, int hotKeyCount, boolean keyAvailable) {
+        mPreferenceLoadNanos = preferenceLoadNanos;
+        mKeyLoadNanos = keyLoadNanos;
+        mCipherInitNanos = cipherInitNanos;
+        mHotKeyDecryptNanos = hotKeyDecryptNanos;
+        mHotKeyCount = hotKeyCount;
+        mKeyAvailable = keyAvailable;
+    }
+
+    /**
+     * Time to open and parse the underlying SharedPreferences file.
+     */
+    public long getPreferenceLoadNanos() {
+        return mPreferenceLoadNanos;
+    }
+
+    /**
+     * Time to load the SecretKey from its KeyStorage, which includes any unwrap operation.
+     */
+    public long getKeyLoadNanos() {
+        return mKeyLoadNanos;
+    }
+
+    /**
+     * Time to resolve the Cipher provider and complete a first encryption. Zero if no key was available.
+     */
+    public long getCipherInitNanos() {
+        return mCipherInitNanos;
+    }
+
+    /**
+     * Time to decrypt the supplied hot keys. Zero if no key was available or no hot keys were supplied.
+     */
+    public long getHotKeyDecryptNanos() {
+        return mHotKeyDecryptNanos;
+    }
+
+    /**
+     * Number of hot keys that had a value and were decrypted.
+     */
+    public int getHotKeyCount() {
+        return mHotKeyCount;
+    }
+
+    /**
+     * False when the vault had no key, in which case only the preference file was loaded.
+     */
+    public boolean isKeyAvailable() {
+        return mKeyAvailable;
+    }
+
+    public long getTotalNanos() {
+        return mPreferenceLoadNanos + mKeyLoadNanos + mCipherInitNanos + mHotKeyDecryptNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "VaultWarmUpResult{" +
+                "preferenceLoadMs=" + TimeUnit.NANOSECONDS.toMillis(mPreferenceLoadNanos) +
+                ", keyLoadMs=" + TimeUnit.NANOSECONDS.toMillis(mKeyLoadNanos) +
+                ", cipherInitMs=" + TimeUnit.NANOSECONDS.toMillis(mCipherInitNanos) +
+                ", hotKeyDecryptMs=" + TimeUnit.NANOSECONDS.toMillis(mHotKeyDecryptNanos) +
+                ", hotKeyCount=" + mHotKeyCount +
+                ", keyAvailable=" + mKeyAvailable +
+                '}';
+    }
+}
@@ -0,0 +1,682 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault.store;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.bottlerocketstudios.vault.CharacterEncodingConstants;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * VaultStore which appends each batch of changes to a binary log file, so that the cost of a write depends only on
+ * the size of the changed values rather than the size of the vault. An in-memory index of value offsets is rebuilt
+ * from the log when the file is opened and values are read from the file on demand. Once dead bytes from replaced
+ * and removed values exceed both the live bytes and the compaction threshold, the live entries are rewritten to a
+ * new file on a background thread.
+ *
+ * <p>
+ *     Each batch is framed with a CRC32 and is applied completely or not at all. A batch left incomplete by process
+ *     death or power loss is truncated when the file is next opened. commit() waits for the data to reach the
+ *     storage device, apply() leaves that to the operating system.
+ * </p>
+ *
+ * Only one instance exists per file in a process, obtain it with {@link #getInstance(File)}.
+ */
+public class LogStructuredVaultStore implements VaultStore {
+    private static final String TAG = LogStructuredVaultStore.class.getSimpleName();
+
+    private static final String FILE_EXTENSION = ".vaultlog";
+    private static final String COMPACTION_FILE_EXTENSION = ".compact";
+    private static final Charset UTF_8 = Charset.forName(CharacterEncodingConstants.UTF_8);
+
+    private static final int FILE_MAGIC = 0x564c4f47;
+    private static final int FILE_VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+
+    private static final int BATCH_MAGIC = 0x42415443;
+    private static final int BATCH_HEADER_SIZE = 8;
+    private static final int BATCH_TRAILER_SIZE = 4;
+
+    private static final byte OPERATION_PUT = 1;
+    private static final byte OPERATION_REMOVE = 2;
+    private static final byte OPERATION_CLEAR = 3;
+
+    private static final long DEFAULT_COMPACTION_MINIMUM_DEAD_BYTES = 64 * 1024;
+    private static final int COMPACTION_BATCH_SIZE = 256 * 1024;
+    private static final long COMPACTION_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    private static final Map<String, LogStructuredVaultStore> sOpenStoreMap = new HashMap<>();
+
+    private final File mFile;
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+    private final Map<String, ValueLocation> mIndex = new HashMap<>();
+    private final AtomicBoolean mCompactionScheduled = new AtomicBoolean();
+    private final ThreadPoolExecutor mCompactionExecutor;
+
+    private RandomAccessFile mRandomAccessFile;
+    private volatile FileChannel mFileChannel;
+    private long mFileLength;
+    private long mLiveBytes;
+    private boolean mClosed;
+    private volatile long mCompactionMinimumDeadBytes = DEFAULT_COMPACTION_MINIMUM_DEAD_BYTES;
+
+    /**
+     * Obtain the store for a file named after the vault in the application's files directory.
+     */
+    public static LogStructuredVaultStore getInstance(Context context, String name) {
+        return getInstance(new File(context.getFilesDir(), name + FILE_EXTENSION));
+    }
+
+    /**
+     * Obtain the single instance of the store for the file. The file is opened and its index rebuilt on first use.
+     */
+    public static LogStructuredVaultStore getInstance(File file) {
+        synchronized (sOpenStoreMap) {
+            String path = file.getAbsolutePath();
+            LogStructuredVaultStore logStructuredVaultStore = sOpenStoreMap.get(path);
+            if (logStructuredVaultStore == null) {
+                logStructuredVaultStore = new LogStructuredVaultStore(file);
+                sOpenStoreMap.put(path, logStructuredVaultStore);
+            }
+            return logStructuredVaultStore;
+        }
+    }
+
+    private LogStructuredVaultStore(File file) {
+        mFile = file;
+        mCompactionExecutor = new ThreadPoolExecutor(1, 1, COMPACTION_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG + "-" + mFile.getName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mCompactionExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    @Override
+    public String getName() {
+        return mFile.getName();
+    }
+
+    @Override
+    public String getString(String key) {
+        ensureOpen();
+        mLock.readLock().lock();
+        try {
+            ValueLocation valueLocation = mIndex.get(key);
+            return valueLocation != null ? readValue(valueLocation) : null;
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read " + mFile, e);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(String key) {
+        ensureOpen();
+        mLock.readLock().lock();
+        try {
+            return mIndex.containsKey(key);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, String> getAll() {
+        ensureOpen();
+        mLock.readLock().lock();
+        try {
+            Map<String, String> result = new HashMap<>(mIndex.size() * 2);
+            for (Map.Entry<String, ValueLocation> entry : mIndex.entrySet()) {
+                result.put(entry.getKey(), readValue(entry.getValue()));
+            }
+            return result;
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read " + mFile, e);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Editor edit() {
+        return new LogEditor();
+    }
+
+    /**
+     * Bytes occupied by current values.
+     */
+    public long getLiveBytes() {
+        ensureOpen();
+        mLock.readLock().lock();
+        try {
+            return mLiveBytes;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Bytes occupied by replaced or removed values and framing that compaction would reclaim.
+     */
+    public long getDeadBytes() {
+        ensureOpen();
+        mLock.readLock().lock();
+        try {
+            return getDeadBytesLocked();
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Compact in the background once at least this many dead bytes have accumulated and they exceed the live bytes.
+     */
+    public void setCompactionThreshold(long minimumDeadBytes) {
+        mCompactionMinimumDeadBytes = minimumDeadBytes;
+    }
+
+    /**
+     * Rewrite only the live entries to a new file and replace the log with it. Readers and writers wait while this
+     * runs. Normally this happens automatically in the background.
+     * @return True if the log was compacted.
+     */
+    public boolean compact() {
+        ensureOpen();
+        mLock.writeLock().lock();
+        try {
+            compactLocked();
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to compact " + mFile, e);
+            return false;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Close the file. Later calls to {@link #getInstance(File)} open it again and rebuild the index from the log.
+     * This instance must not be used afterward.
+     */
+    public void close() {
+        synchronized (sOpenStoreMap) {
+            if (sOpenStoreMap.get(mFile.getAbsolutePath()) == this) {
+                sOpenStoreMap.remove(mFile.getAbsolutePath());
+            }
+        }
+        mLock.writeLock().lock();
+        try {
+            mClosed = true;
+            closeFile();
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    private void ensureOpen() {
+        if (mFileChannel != null) return;
+
+        mLock.writeLock().lock();
+        try {
+            if (mClosed) throw new IllegalStateException(mFile + " has been closed");
+            if (mFileChannel == null) {
+                open();
+            }
+        } catch (IOException e) {
+            closeFile();
+            throw new IllegalStateException("Unable to open " + mFile, e);
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    private void open() throws IOException {
+        File parent = mFile.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Unable to create " + parent);
+        }
+        //A compaction interrupted before its rename leaves a stale copy that is safe to discard.
+        deleteCompactionFile();
+
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        FileChannel fileChannel = mRandomAccessFile.getChannel();
+        mIndex.clear();
+        mLiveBytes = 0;
+
+        long size = fileChannel.size();
+        if (size < FILE_HEADER_SIZE) {
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+            header.putInt(FILE_MAGIC).putInt(FILE_VERSION).flip();
+            fileChannel.truncate(0);
+            writeFully(fileChannel, header, 0);
+            fileChannel.force(true);
+            mFileLength = FILE_HEADER_SIZE;
+        } else {
+            ByteBuffer header = readFully(fileChannel, 0, FILE_HEADER_SIZE);
+            if (header.getInt() != FILE_MAGIC || header.getInt() != FILE_VERSION) {
+                throw new IOException("Unrecognized vault log format");
+            }
+            mFileLength = replay(fileChannel, size);
+            if (mFileLength < size) {
+                Log.w(TAG, "Truncating " + (size - mFileLength) + " bytes of incomplete data from " + mFile);
+                fileChannel.truncate(mFileLength);
+                fileChannel.force(true);
+            }
+        }
+        mFileChannel = fileChannel;
+    }
+
+    /**
+     * Apply every complete batch to the index.
+     * @return The offset of the end of the last complete batch.
+     */
+    private long replay(FileChannel fileChannel, long size) throws IOException {
+        long position = FILE_HEADER_SIZE;
+        while (position + BATCH_HEADER_SIZE + BATCH_TRAILER_SIZE <= size) {
+            ByteBuffer header = readFully(fileChannel, position, BATCH_HEADER_SIZE);
+            int payloadLength = header.getInt(4);
+            if (header.getInt(0) != BATCH_MAGIC || payloadLength < 0 || payloadLength > size - position - BATCH_HEADER_SIZE - BATCH_TRAILER_SIZE) {
+                break;
+            }
+
+            ByteBuffer payload = readFully(fileChannel, position + BATCH_HEADER_SIZE, payloadLength + BATCH_TRAILER_SIZE);
+            CRC32 crc32 = new CRC32();
+            crc32.update(payload.array(), 0, payloadLength);
+            if ((int) crc32.getValue() != payload.getInt(payloadLength)) {
+                break;
+            }
+
+            List<BatchOperation> operationList;
+            try {
+                operationList = parseBatch(payload.array(), payloadLength, position + BATCH_HEADER_SIZE);
+            } catch (IOException e) {
+                //Treated like a torn tail, this batch and anything after it are discarded.
+                Log.w(TAG, "Malformed batch at " + position + " in " + mFile, e);
+                break;
+            }
+            applyBatch(operationList);
+            position += BATCH_HEADER_SIZE + payloadLength + BATCH_TRAILER_SIZE;
+        }
+        return position;
+    }
+
+    /**
+     * Decode a batch payload located at payloadOffset in the file without changing the index, so that a malformed
+     * batch is rejected as a whole.
+     */
+    private static List<BatchOperation> parseBatch(byte[] payload, int payloadLength, long payloadOffset) throws IOException {
+        List<BatchOperation> operationList = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(payload, 0, payloadLength);
+        try {
+            while (buffer.hasRemaining()) {
+                byte operation = buffer.get();
+                if (operation == OPERATION_CLEAR) {
+                    operationList.add(new BatchOperation(operation, null, null));
+                    continue;
+                } else if (operation != OPERATION_PUT && operation != OPERATION_REMOVE) {
+                    throw new IOException("Unknown operation " + operation);
+                }
+
+                int operationStart = buffer.position() - 1;
+                int keyLength = readLength(buffer);
+                String key = new String(payload, buffer.position(), keyLength, UTF_8);
+                buffer.position(buffer.position() + keyLength);
+
+                ValueLocation location = null;
+                if (operation == OPERATION_PUT) {
+                    int valueLength = readLength(buffer);
+                    int valuePosition = buffer.position();
+                    buffer.position(valuePosition + valueLength);
+                    location = new ValueLocation(payloadOffset + valuePosition, valueLength, buffer.position() - operationStart);
+                }
+                operationList.add(new BatchOperation(operation, key, location));
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed batch", e);
+        }
+        return operationList;
+    }
+
+    private static int readLength(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) throw new IOException("Malformed batch length " + length);
+        return length;
+    }
+
+    /**
+     * Update the index from a parsed batch.
+     */
+    private void applyBatch(List<BatchOperation> operationList) {
+        for (BatchOperation batchOperation : operationList) {
+            ValueLocation previousLocation;
+            if (batchOperation.mOperation == OPERATION_CLEAR) {
+                mIndex.clear();
+                mLiveBytes = 0;
+                continue;
+            } else if (batchOperation.mOperation == OPERATION_PUT) {
+                previousLocation = mIndex.put(batchOperation.mKey, batchOperation.mLocation);
+                mLiveBytes += batchOperation.mLocation.mRecordLength;
+            } else {
+                previousLocation = mIndex.remove(batchOperation.mKey);
+            }
+
+            if (previousLocation != null) {
+                mLiveBytes -= previousLocation.mRecordLength;
+            }
+        }
+    }
+
+    private boolean write(boolean cleared, Map<String, String> changeMap, boolean force) {
+        if (!cleared && changeMap.isEmpty()) return true;
+
+        byte[] payload;
+        try {
+            payload = encodeBatch(cleared, changeMap);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to encode batch", e);
+            return false;
+        }
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload);
+        ByteBuffer batch = ByteBuffer.allocate(BATCH_HEADER_SIZE + payload.length + BATCH_TRAILER_SIZE);
+        batch.putInt(BATCH_MAGIC).putInt(payload.length).put(payload).putInt((int) crc32.getValue()).flip();
+
+        ensureOpen();
+        mLock.writeLock().lock();
+        try {
+            //Parsed before anything is written so that the index always describes the file.
+            List<BatchOperation> operationList = parseBatch(payload, payload.length, mFileLength + BATCH_HEADER_SIZE);
+            FileChannel fileChannel = getOpenFileChannel();
+            writeFully(fileChannel, batch, mFileLength);
+            if (force) {
+                fileChannel.force(false);
+            }
+            applyBatch(operationList);
+            mFileLength += batch.limit();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write to " + mFile, e);
+            //Discard any partial batch so that later batches are not written after it.
+            try {
+                getOpenFileChannel().truncate(mFileLength);
+            } catch (IOException truncateException) {
+                Log.e(TAG, "Unable to truncate " + mFile, truncateException);
+            }
+            return false;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+
+        scheduleCompactionIfNeeded();
+        return true;
+    }
+
+    private static byte[] encodeBatch(boolean cleared, Map<String, String> changeMap) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOutputStream);
+        if (cleared) {
+            dataOutputStream.writeByte(OPERATION_CLEAR);
+        }
+        for (Map.Entry<String, String> entry : changeMap.entrySet()) {
+            byte[] key = entry.getKey().getBytes(UTF_8);
+            dataOutputStream.writeByte(entry.getValue() != null ? OPERATION_PUT : OPERATION_REMOVE);
+            dataOutputStream.writeInt(key.length);
+            dataOutputStream.write(key);
+            if (entry.getValue() != null) {
+                byte[] value = entry.getValue().getBytes(UTF_8);
+                dataOutputStream.writeInt(value.length);
+                dataOutputStream.write(value);
+            }
+        }
+        dataOutputStream.flush();
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    private long getDeadBytesLocked() {
+        return mFileLength - FILE_HEADER_SIZE - mLiveBytes;
+    }
+
+    private void scheduleCompactionIfNeeded() {
+        mLock.readLock().lock();
+        long deadBytes;
+        long liveBytes;
+        try {
+            deadBytes = getDeadBytesLocked();
+            liveBytes = mLiveBytes;
+        } finally {
+            mLock.readLock().unlock();
+        }
+
+        if (deadBytes >= mCompactionMinimumDeadBytes && deadBytes > liveBytes && mCompactionScheduled.compareAndSet(false, true)) {
+            mCompactionExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mCompactionScheduled.set(false);
+                    mLock.writeLock().lock();
+                    try {
+                        if (!mClosed && mFileChannel != null) {
+                            compactLocked();
+                        }
+                    } catch (IOException e) {
+                        Log.e(TAG, "Unable to compact " + mFile, e);
+                    } finally {
+                        mLock.writeLock().unlock();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Write the live entries to a new file, atomically rename it over the log and reopen it.
+     */
+    private void compactLocked() throws IOException {
+        File compactionFile = new File(mFile.getPath() + COMPACTION_FILE_EXTENSION);
+        RandomAccessFile compactionRandomAccessFile = new RandomAccessFile(compactionFile, "rw");
+        try {
+            FileChannel compactionChannel = compactionRandomAccessFile.getChannel();
+            compactionChannel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+            header.putInt(FILE_MAGIC).putInt(FILE_VERSION).flip();
+            long position = writeFully(compactionChannel, header, 0);
+
+            Map<String, String> batchMap = new LinkedHashMap<>();
+            int batchSize = 0;
+            for (Map.Entry<String, ValueLocation> entry : mIndex.entrySet()) {
+                batchMap.put(entry.getKey(), readValue(entry.getValue()));
+                batchSize += entry.getValue().mRecordLength;
+                if (batchSize >= COMPACTION_BATCH_SIZE) {
+                    position += writeCompactionBatch(compactionChannel, batchMap, position);
+                    batchMap.clear();
+                    batchSize = 0;
+                }
+            }
+            writeCompactionBatch(compactionChannel, batchMap, position);
+            compactionChannel.force(true);
+        } finally {
+            compactionRandomAccessFile.close();
+        }
+
+        closeFile();
+        try {
+            if (!compactionFile.renameTo(mFile)) {
+                compactionFile.delete();
+                throw new IOException("Unable to replace " + mFile);
+            }
+        } finally {
+            //If this fails too the store stays closed and the next call to ensureOpen() tries again.
+            open();
+        }
+    }
+
+    private long writeCompactionBatch(FileChannel fileChannel, Map<String, String> batchMap, long position) throws IOException {
+        if (batchMap.isEmpty()) return 0;
+
+        byte[] payload = encodeBatch(false, batchMap);
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload);
+        ByteBuffer batch = ByteBuffer.allocate(BATCH_HEADER_SIZE + payload.length + BATCH_TRAILER_SIZE);
+        batch.putInt(BATCH_MAGIC).putInt(payload.length).put(payload).putInt((int) crc32.getValue()).flip();
+        return writeFully(fileChannel, batch, position);
+    }
+
+    private void deleteCompactionFile() {
+        File compactionFile = new File(mFile.getPath() + COMPACTION_FILE_EXTENSION);
+        if (compactionFile.exists() && !compactionFile.delete()) {
+            Log.w(TAG, "Unable to delete " + compactionFile);
+        }
+    }
+
+    private void closeFile() {
+        mFileChannel = null;
+        if (mRandomAccessFile != null) {
+            try {
+                mRandomAccessFile.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close " + mFile, e);
+            }
+            mRandomAccessFile = null;
+        }
+    }
+
+    private String readValue(ValueLocation valueLocation) throws IOException {
+        return new String(readFully(getOpenFileChannel(), valueLocation.mOffset, valueLocation.mLength).array(), UTF_8);
+    }
+
+    /**
+     * Obtain the channel while holding the lock. It is null if reopening the file failed after ensureOpen() returned,
+     * e.g. when a compaction could not replace the log.
+     */
+    private FileChannel getOpenFileChannel() {
+        FileChannel fileChannel = mFileChannel;
+        if (fileChannel == null) throw new IllegalStateException(mFile + " is not open");
+        return fileChannel;
+    }
+
+    private static ByteBuffer readFully(FileChannel fileChannel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (fileChannel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static long writeFully(FileChannel fileChannel, ByteBuffer buffer, long position) throws IOException {
+        long start = position;
+        while (buffer.hasRemaining()) {
+            position += fileChannel.write(buffer, position);
+        }
+        return position - start;
+    }
+
+    /**
+     * Location of a value within the log and the size of the record holding it.
+     */
+    private static class ValueLocation {
+        final long mOffset;
+        final int mLength;
+        final int mRecordLength;
+
+        ValueLocation(long offset, int length, int recordLength) {
+            mOffset = offset;
+            mLength = length;
+            mRecordLength = recordLength;
+        }
+    }
+
+    /**
+     * One decoded operation of a batch. The key and location are null for a clear.
+     */
+    private static class BatchOperation {
+        final byte mOperation;
+        final String mKey;
+        final ValueLocation mLocation;
+
+        BatchOperation(byte operation, String key, ValueLocation location) {
+            mOperation = operation;
+            mKey = key;
+            mLocation = location;
+        }
+    }
+
+    private class LogEditor implements Editor {
+        //A null value marks a removal. Insertion order is kept so the batch replays in the order it was built.
+        private final Map<String, String> mChangeMap = new LinkedHashMap<>();
+        private boolean mCleared;
+
+        @Override
+        public Editor putString(String key, String value) {
+            mChangeMap.remove(key);
+            mChangeMap.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor remove(String key) {
+            mChangeMap.remove(key);
+            mChangeMap.put(key, null);
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            mCleared = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            return write(mCleared, mChangeMap, true);
+        }
+
+        @Override
+        public void apply() {
+            write(mCleared, mChangeMap, false);
+        }
+    }
+}
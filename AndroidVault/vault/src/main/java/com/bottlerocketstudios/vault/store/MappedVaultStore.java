@@ -0,0 +1,546 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault.store;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.bottlerocketstudios.vault.CharacterEncodingConstants;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Read-optimized VaultStore backed by a memory-mapped file with an open addressing hash index in front of the
+ * entries. Opening the store maps the file and checks only its header, and a lookup touches only the index slots
+ * it probes and the block holding the requested entry, so a cold read takes the same time however many entries the
+ * file holds. Offsets and lengths are checked against the file size as they are read.
+ *
+ * <p>
+ *     Every commit or apply rewrites the whole file to a temporary file and renames it into place, so writes cost
+ *     time proportional to the size of the vault. Applied changes are visible to reads immediately and are written
+ *     on a background thread, merged with any others applied in the meantime. Use this store for vaults that are
+ *     read far more often than they are written, and {@link LogStructuredVaultStore} for write heavy vaults.
+ *     Existing preference files can be moved into this format with {@link VaultStoreConverter}.
+ * </p>
+ *
+ * File layout, all integers big endian:
+ * <pre>
+ * [magic][version][entryCount][slotCount]
+ * slotCount index slots of [keyHash][entryOffset], entryOffset 0 marks an empty slot
+ * entries of [keyLength][key UTF-8][valueLength][value UTF-8]
+ * </pre>
+ *
+ * Only one instance exists per file in a process, obtain it with {@link #getInstance(File)}.
+ */
+public class MappedVaultStore implements VaultStore {
+    private static final String TAG = MappedVaultStore.class.getSimpleName();
+
+    private static final String FILE_EXTENSION = ".vaultmap";
+    private static final String TEMP_FILE_EXTENSION = ".tmp";
+    private static final Charset UTF_8 = Charset.forName(CharacterEncodingConstants.UTF_8);
+
+    private static final int FILE_MAGIC = 0x564d4150;
+    private static final int FILE_VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 16;
+    private static final int SLOT_SIZE = 8;
+    private static final int LENGTH_SIZE = 4;
+    private static final long WRITE_THREAD_KEEP_ALIVE_SECONDS = 30;
+    private static final Object NOT_PENDING = new Object();
+
+    private static final Map<String, MappedVaultStore> sOpenStoreMap = new HashMap<>();
+
+    private final File mFile;
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+    /**
+     * Applied edits not yet in the file, oldest first. Guarded by itself and acquired after mLock.
+     */
+    private final List<PendingWrite> mPendingWriteList = new ArrayList<>();
+    private final AtomicBoolean mPendingWriteScheduled = new AtomicBoolean();
+    private final ThreadPoolExecutor mWriteExecutor;
+
+    private ByteBuffer mMappedBuffer;
+    private int mEntryCount;
+    private int mSlotCount;
+    private boolean mClosed;
+
+    /**
+     * Obtain the store for a file named after the vault in the application's files directory.
+     */
+    public static MappedVaultStore getInstance(Context context, String name) {
+        return getInstance(new File(context.getFilesDir(), name + FILE_EXTENSION));
+    }
+
+    /**
+     * Obtain the single instance of the store for the file. The file is mapped on first use.
+     */
+    public static MappedVaultStore getInstance(File file) {
+        synchronized (sOpenStoreMap) {
+            String path = file.getAbsolutePath();
+            MappedVaultStore mappedVaultStore = sOpenStoreMap.get(path);
+            if (mappedVaultStore == null) {
+                mappedVaultStore = new MappedVaultStore(file);
+                sOpenStoreMap.put(path, mappedVaultStore);
+            }
+            return mappedVaultStore;
+        }
+    }
+
+    private MappedVaultStore(File file) {
+        mFile = file;
+        mWriteExecutor = new ThreadPoolExecutor(1, 1, WRITE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG + "-" + mFile.getName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mWriteExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    @Override
+    public String getName() {
+        return mFile.getName();
+    }
+
+    @Override
+    public String getString(String key) {
+        ensureOpen();
+        mLock.readLock().lock();
+        try {
+            Object pendingValue = getPendingValue(key);
+            if (pendingValue != NOT_PENDING) return (String) pendingValue;
+
+            ByteBuffer buffer = mMappedBuffer.duplicate();
+            int entryOffset = findEntry(buffer, key.getBytes(UTF_8));
+            if (entryOffset == 0) return null;
+
+            buffer.position(entryOffset);
+            buffer.position(entryOffset + LENGTH_SIZE + readLength(buffer));
+            return readString(buffer);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read " + mFile, e);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(String key) {
+        ensureOpen();
+        mLock.readLock().lock();
+        try {
+            Object pendingValue = getPendingValue(key);
+            if (pendingValue != NOT_PENDING) return pendingValue != null;
+
+            return findEntry(mMappedBuffer.duplicate(), key.getBytes(UTF_8)) != 0;
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read " + mFile, e);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, String> getAll() {
+        ensureOpen();
+        mLock.readLock().lock();
+        try {
+            Map<String, String> result = readAll();
+            synchronized (mPendingWriteList) {
+                for (PendingWrite pendingWrite : mPendingWriteList) {
+                    pendingWrite.applyTo(result);
+                }
+            }
+            return result;
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read " + mFile, e);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Editor edit() {
+        return new MappedEditor();
+    }
+
+    /**
+     * Write any applied changes and release the mapping. Later calls to {@link #getInstance(File)} map the file
+     * again. This instance must not be used afterward.
+     */
+    public void close() {
+        writePending(false, null, true);
+        synchronized (sOpenStoreMap) {
+            if (sOpenStoreMap.get(mFile.getAbsolutePath()) == this) {
+                sOpenStoreMap.remove(mFile.getAbsolutePath());
+            }
+        }
+        mLock.writeLock().lock();
+        try {
+            mClosed = true;
+            mMappedBuffer = null;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    private void ensureOpen() {
+        mLock.readLock().lock();
+        try {
+            if (mMappedBuffer != null) return;
+        } finally {
+            mLock.readLock().unlock();
+        }
+
+        mLock.writeLock().lock();
+        try {
+            if (mClosed) throw new IllegalStateException(mFile + " has been closed");
+            if (mMappedBuffer == null) {
+                map();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to open " + mFile, e);
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    private void map() throws IOException {
+        //A write interrupted before its rename leaves a stale copy that is safe to discard.
+        File tempFile = getTempFile();
+        if (tempFile.exists() && !tempFile.delete()) {
+            Log.w(TAG, "Unable to delete " + tempFile);
+        }
+
+        if (!mFile.exists()) {
+            writeFile(new HashMap<String, String>(), false);
+        }
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(mFile, "r");
+        try {
+            FileChannel fileChannel = randomAccessFile.getChannel();
+            long size = fileChannel.size();
+            if (size < FILE_HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Invalid vault file size " + size);
+            }
+            //The mapping remains valid after the channel is closed.
+            MappedByteBuffer mappedBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (mappedBuffer.getInt(0) != FILE_MAGIC || mappedBuffer.getInt(4) != FILE_VERSION) {
+                throw new IOException("Unrecognized vault file format");
+            }
+            int entryCount = mappedBuffer.getInt(8);
+            int slotCount = mappedBuffer.getInt(12);
+            if (entryCount < 0 || slotCount <= entryCount || Integer.bitCount(slotCount) != 1 || FILE_HEADER_SIZE + (long) slotCount * SLOT_SIZE > size) {
+                throw new IOException("Invalid vault file index");
+            }
+            mMappedBuffer = mappedBuffer;
+            mEntryCount = entryCount;
+            mSlotCount = slotCount;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Probe the index for the key.
+     * @return Offset of the entry or 0 if the key is absent.
+     */
+    private int findEntry(ByteBuffer buffer, byte[] key) throws IOException {
+        int hash = hash(key);
+        int mask = mSlotCount - 1;
+        int slot = hash & mask;
+        for (int probeCount = 0; probeCount < mSlotCount; probeCount++) {
+            int slotOffset = FILE_HEADER_SIZE + slot * SLOT_SIZE;
+            int entryOffset = buffer.getInt(slotOffset + 4);
+            if (entryOffset == 0) return 0;
+            //Only the probed slots are checked so that opening the file does not touch every page.
+            if (entryOffset < FILE_HEADER_SIZE + mSlotCount * SLOT_SIZE || entryOffset > buffer.limit() - 2 * LENGTH_SIZE) {
+                throw new IOException("Invalid vault file index entry");
+            }
+            if (buffer.getInt(slotOffset) == hash && keyEquals(buffer, entryOffset, key)) {
+                return entryOffset;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return 0;
+    }
+
+    private static boolean keyEquals(ByteBuffer buffer, int entryOffset, byte[] key) throws IOException {
+        buffer.position(entryOffset);
+        if (readLength(buffer) != key.length) return false;
+        int keyOffset = entryOffset + LENGTH_SIZE;
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(keyOffset + i) != key[i]) return false;
+        }
+        return true;
+    }
+
+    private Map<String, String> readAll() throws IOException {
+        Map<String, String> result = new HashMap<>(mEntryCount * 2);
+        ByteBuffer buffer = mMappedBuffer.duplicate();
+        buffer.position(FILE_HEADER_SIZE + mSlotCount * SLOT_SIZE);
+        for (int i = 0; i < mEntryCount; i++) {
+            String key = readString(buffer);
+            result.put(key, readString(buffer));
+        }
+        return result;
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        byte[] bytes = new byte[readLength(buffer)];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Read the length at the buffer position. Index slots may point anywhere within the entries, so every length is
+     * checked against the end of the file.
+     */
+    private static int readLength(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < LENGTH_SIZE) throw new IOException("Vault file is truncated");
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) throw new IOException("Invalid vault file entry length");
+        return length;
+    }
+
+    /**
+     * Look for the latest applied change to the key that has not been written yet.
+     * @return The pending value, null for a pending removal or NOT_PENDING.
+     */
+    private Object getPendingValue(String key) {
+        synchronized (mPendingWriteList) {
+            for (int i = mPendingWriteList.size() - 1; i >= 0; i--) {
+                PendingWrite pendingWrite = mPendingWriteList.get(i);
+                if (pendingWrite.mChangeMap.containsKey(key)) return pendingWrite.mChangeMap.get(key);
+                if (pendingWrite.mCleared) return null;
+            }
+        }
+        return NOT_PENDING;
+    }
+
+    /**
+     * Keep the change visible to reads and rewrite the file on the background thread.
+     */
+    private void apply(boolean cleared, Map<String, String> changeMap) {
+        if (!cleared && changeMap.isEmpty()) return;
+
+        synchronized (mPendingWriteList) {
+            mPendingWriteList.add(new PendingWrite(cleared, new HashMap<>(changeMap)));
+        }
+        if (mPendingWriteScheduled.compareAndSet(false, true)) {
+            mWriteExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mPendingWriteScheduled.set(false);
+                    writePending(false, null, false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Rewrite the file with every pending applied change followed by the provided change, if any.
+     */
+    private boolean writePending(boolean cleared, Map<String, String> changeMap, boolean sync) {
+        List<PendingWrite> pendingWriteList;
+        synchronized (mPendingWriteList) {
+            if (mPendingWriteList.isEmpty() && !cleared && (changeMap == null || changeMap.isEmpty())) return true;
+        }
+
+        ensureOpen();
+        mLock.writeLock().lock();
+        try {
+            synchronized (mPendingWriteList) {
+                pendingWriteList = new ArrayList<>(mPendingWriteList);
+            }
+            Map<String, String> entryMap = readAll();
+            for (PendingWrite pendingWrite : pendingWriteList) {
+                pendingWrite.applyTo(entryMap);
+            }
+            if (changeMap != null) {
+                new PendingWrite(cleared, changeMap).applyTo(entryMap);
+            }
+            writeFile(entryMap, sync);
+            mMappedBuffer = null;
+            map();
+            //Removed together with the remap so that a read sees each change either pending or in the file.
+            synchronized (mPendingWriteList) {
+                mPendingWriteList.subList(0, pendingWriteList.size()).clear();
+            }
+            return true;
+        } catch (IOException e) {
+            //Applied changes stay pending and visible, and are written with the next change.
+            Log.e(TAG, "Unable to write " + mFile, e);
+            return false;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Write the entries to a temporary file and atomically rename it over the vault file.
+     */
+    private void writeFile(Map<String, String> entryMap, boolean sync) throws IOException {
+        int entryCount = entryMap.size();
+        int slotCount = Integer.highestOneBit(Math.max(entryCount, 1) * 2 - 1) << 1;
+        byte[][] keys = new byte[entryCount][];
+        byte[][] values = new byte[entryCount][];
+        long fileSize = FILE_HEADER_SIZE + (long) slotCount * SLOT_SIZE;
+        int i = 0;
+        for (Map.Entry<String, String> entry : entryMap.entrySet()) {
+            keys[i] = entry.getKey().getBytes(UTF_8);
+            values[i] = entry.getValue().getBytes(UTF_8);
+            fileSize += 8 + keys[i].length + values[i].length;
+            i++;
+        }
+        if (fileSize > Integer.MAX_VALUE) {
+            throw new IOException("Vault too large for mapped storage");
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) fileSize);
+        buffer.putInt(FILE_MAGIC).putInt(FILE_VERSION).putInt(entryCount).putInt(slotCount);
+        int mask = slotCount - 1;
+        buffer.position(FILE_HEADER_SIZE + slotCount * SLOT_SIZE);
+        for (i = 0; i < entryCount; i++) {
+            int entryOffset = buffer.position();
+            buffer.putInt(keys[i].length).put(keys[i]).putInt(values[i].length).put(values[i]);
+
+            int hash = hash(keys[i]);
+            int slot = hash & mask;
+            while (buffer.getInt(FILE_HEADER_SIZE + slot * SLOT_SIZE + 4) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            buffer.putInt(FILE_HEADER_SIZE + slot * SLOT_SIZE, hash);
+            buffer.putInt(FILE_HEADER_SIZE + slot * SLOT_SIZE + 4, entryOffset);
+        }
+
+        File parent = mFile.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Unable to create " + parent);
+        }
+        File tempFile = getTempFile();
+        FileOutputStream fileOutputStream = new FileOutputStream(tempFile);
+        try {
+            fileOutputStream.write(buffer.array());
+            if (sync) {
+                fileOutputStream.getFD().sync();
+            }
+        } finally {
+            fileOutputStream.close();
+        }
+        if (!tempFile.renameTo(mFile)) {
+            tempFile.delete();
+            throw new IOException("Unable to replace " + mFile);
+        }
+    }
+
+    private File getTempFile() {
+        return new File(mFile.getPath() + TEMP_FILE_EXTENSION);
+    }
+
+    /**
+     * Hash of the UTF-8 key bytes. The format depends on this value so it must never change.
+     */
+    private static int hash(byte[] key) {
+        int hash = Arrays.hashCode(key);
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Batch applied by an editor, with the same semantics as the editor itself.
+     */
+    private static class PendingWrite {
+        final boolean mCleared;
+        //A null value marks a removal.
+        final Map<String, String> mChangeMap;
+
+        PendingWrite(boolean cleared, Map<String, String> changeMap) {
+            mCleared = cleared;
+            mChangeMap = changeMap;
+        }
+
+        void applyTo(Map<String, String> entryMap) {
+            if (mCleared) {
+                entryMap.clear();
+            }
+            for (Map.Entry<String, String> entry : mChangeMap.entrySet()) {
+                if (entry.getValue() == null) {
+                    entryMap.remove(entry.getKey());
+                } else {
+                    entryMap.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    private class MappedEditor implements Editor {
+        //A null value marks a removal.
+        private final Map<String, String> mChangeMap = new LinkedHashMap<>();
+        private boolean mCleared;
+
+        @Override
+        public Editor putString(String key, String value) {
+            mChangeMap.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor remove(String key) {
+            mChangeMap.put(key, null);
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            mCleared = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            return writePending(mCleared, mChangeMap, true);
+        }
+
+        @Override
+        public void apply() {
+            MappedVaultStore.this.apply(mCleared, mChangeMap);
+        }
+    }
+}
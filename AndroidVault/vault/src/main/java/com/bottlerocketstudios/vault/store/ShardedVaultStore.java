@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault.store;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * VaultStore which routes each key by a stable hash to one of several underlying stores, so that a write only
+ * rewrites and locks the shards holding the keys it changes. A single vault on top of this store keeps one
+ * KeyStorage, and getAll, clear and change listeners cover every shard.
+ *
+ * <p>
+ *     A commit that changes keys in several shards commits each shard in turn and is not atomic across shards.
+ *     The shard count is part of each shard's file name, so a vault opened with a different count starts out
+ *     empty rather than misrouting keys. Move data between counts with {@link VaultStoreConverter}.
+ * </p>
+ */
+public class ShardedVaultStore implements VaultStore {
+    private static final String SHARD_FILE_FORMAT = "%s.shard%dof%d";
+
+    private final String mName;
+    private final VaultStore[] mShards;
+
+    /**
+     * Create a store split across shardCount SharedPreferences files derived from prefFileName.
+     */
+    public static ShardedVaultStore createSharedPreferencesShards(Context context, String prefFileName, int shardCount) {
+        if (shardCount < 1) throw new IllegalArgumentException("Shard count must be at least 1");
+
+        List<VaultStore> shardList = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            shardList.add(new SharedPreferencesVaultStore(context, getShardFileName(prefFileName, i, shardCount)));
+        }
+        return new ShardedVaultStore(prefFileName, shardList);
+    }
+
+    /**
+     * Name of the file holding a single shard.
+     */
+    public static String getShardFileName(String prefFileName, int shardIndex, int shardCount) {
+        return String.format(Locale.US, SHARD_FILE_FORMAT, prefFileName, shardIndex, shardCount);
+    }
+
+    /**
+     * @param shards Stores in a fixed order. The same stores must be supplied in the same order every time.
+     */
+    public ShardedVaultStore(String name, List<VaultStore> shards) {
+        if (shards.isEmpty()) throw new IllegalArgumentException("At least one shard is required");
+        mName = name;
+        mShards = shards.toArray(new VaultStore[shards.size()]);
+    }
+
+    public int getShardCount() {
+        return mShards.length;
+    }
+
+    public VaultStore getShard(int shardIndex) {
+        return mShards[shardIndex];
+    }
+
+    /**
+     * Index of the shard holding the key. String.hashCode is defined by the language specification, so the
+     * routing is stable across processes and platform versions.
+     */
+    public int getShardIndex(String key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return (hash & Integer.MAX_VALUE) % mShards.length;
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public String getString(String key) {
+        return mShards[getShardIndex(key)].getString(key);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return mShards[getShardIndex(key)].contains(key);
+    }
+
+    @Override
+    public Map<String, String> getAll() {
+        Map<String, String> result = new HashMap<>();
+        for (VaultStore shard : mShards) {
+            result.putAll(shard.getAll());
+        }
+        return result;
+    }
+
+    @Override
+    public Editor edit() {
+        return new ShardedEditor();
+    }
+
+    private class ShardedEditor implements Editor {
+        //Changes for each shard in the order they were made, a null value marks a removal. Shards without changes have no map.
+        @SuppressWarnings("unchecked")
+        private final Map<String, String>[] mShardChangeMaps = new Map[mShards.length];
+        private boolean mCleared;
+
+        @Override
+        public Editor putString(String key, String value) {
+            getChangeMap(key).put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor remove(String key) {
+            getChangeMap(key).put(key, null);
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            mCleared = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            boolean success = true;
+            for (int i = 0; i < mShards.length; i++) {
+                Editor editor = createShardEditor(i);
+                if (editor != null) {
+                    success &= editor.commit();
+                }
+            }
+            return success;
+        }
+
+        @Override
+        public void apply() {
+            for (int i = 0; i < mShards.length; i++) {
+                Editor editor = createShardEditor(i);
+                if (editor != null) {
+                    editor.apply();
+                }
+            }
+        }
+
+        private Map<String, String> getChangeMap(String key) {
+            int shardIndex = getShardIndex(key);
+            if (mShardChangeMaps[shardIndex] == null) {
+                mShardChangeMaps[shardIndex] = new LinkedHashMap<>();
+            }
+            return mShardChangeMaps[shardIndex];
+        }
+
+        /**
+         * @return Editor holding this shard's changes or null if the shard is unaffected.
+         */
+        private Editor createShardEditor(int shardIndex) {
+            Map<String, String> changeMap = mShardChangeMaps[shardIndex];
+            if (!mCleared && changeMap == null) return null;
+
+            Editor editor = mShards[shardIndex].edit();
+            if (mCleared) {
+                editor.clear();
+            }
+            if (changeMap != null) {
+                for (Map.Entry<String, String> entry : changeMap.entrySet()) {
+                    if (entry.getValue() == null) {
+                        editor.remove(entry.getKey());
+                    } else {
+                        editor.putString(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+            return editor;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault.store;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Default VaultStore backed by a private SharedPreferences file. The file is opened on first use.
+ */
+public class SharedPreferencesVaultStore implements VaultStore {
+    private final Context mContext;
+    private final String mSharedPreferenceName;
+    private volatile SharedPreferences mSharedPreferences;
+
+    public SharedPreferencesVaultStore(Context context, String prefFileName) {
+        mContext = context.getApplicationContext();
+        mSharedPreferenceName = prefFileName;
+    }
+
+    @Override
+    public String getName() {
+        return mSharedPreferenceName;
+    }
+
+    @Override
+    public String getString(String key) {
+        return getSharedPreferences().getString(key, null);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return getSharedPreferences().contains(key);
+    }
+
+    @Override
+    public Map<String, String> getAll() {
+        Map<String, ?> allValues = getSharedPreferences().getAll();
+        Map<String, String> result = new HashMap<>(allValues.size() * 2);
+        for (Map.Entry<String, ?> entry : allValues.entrySet()) {
+            if (entry.getValue() instanceof String) {
+                result.put(entry.getKey(), (String) entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Editor edit() {
+        return new SharedPreferencesEditor(getSharedPreferences().edit());
+    }
+
+    private SharedPreferences getSharedPreferences() {
+        if (mSharedPreferences == null) {
+            if (TextUtils.isEmpty(mSharedPreferenceName)) throw new IllegalStateException("Cannot open preferences before calling setSharedPreferenceFileName");
+            mSharedPreferences = mContext.getSharedPreferences(mSharedPreferenceName, Context.MODE_PRIVATE);
+        }
+        return mSharedPreferences;
+    }
+
+    private static class SharedPreferencesEditor implements Editor {
+        private final SharedPreferences.Editor mEditor;
+
+        SharedPreferencesEditor(SharedPreferences.Editor editor) {
+            mEditor = editor;
+        }
+
+        @Override
+        public Editor putString(String key, String value) {
+            mEditor.putString(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor remove(String key) {
+            mEditor.remove(key);
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            mEditor.clear();
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            return mEditor.commit();
+        }
+
+        @Override
+        public void apply() {
+            mEditor.apply();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault.store;
+
+import java.util.Map;
+
+/**
+ * Storage backend holding the encrypted values of a vault as opaque Strings. Stores perform no cryptography.
+ * Implementations must be thread safe and an edit must be visible to reads as soon as commit or apply returns.
+ */
+public interface VaultStore {
+    /**
+     * Name of the underlying storage for diagnostics e.g. a file name.
+     */
+    String getName();
+
+    /**
+     * @return The stored value or null if there is none.
+     */
+    String getString(String key);
+
+    boolean contains(String key);
+
+    /**
+     * Snapshot of every stored key and value. Modifications to the map do not affect the store.
+     */
+    Map<String, String> getAll();
+
+    /**
+     * Begin a batch of changes which takes effect atomically on commit or apply.
+     */
+    Editor edit();
+
+    /**
+     * Batch of changes to a VaultStore. As with SharedPreferences, a clear is performed before any other change in
+     * the same batch regardless of call order and the last change to a key wins.
+     */
+    interface Editor {
+        Editor putString(String key, String value);
+
+        Editor remove(String key);
+
+        Editor clear();
+
+        /**
+         * Write the batch and wait until it is durable.
+         * @return True if the batch was written successfully.
+         */
+        boolean commit();
+
+        /**
+         * Write the batch, possibly completing the durable write in the background.
+         */
+        void apply();
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2016. Bottle Rocket LLC
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bottlerocketstudios.vault.store;
+
+import android.content.Context;
+
+import java.util.Map;
+
+/**
+ * Moves the encrypted contents of a vault between storage formats. Values are copied as ciphertext so the vault's
+ * key is neither needed nor changed.
+ */
+public class VaultStoreConverter {
+
+    /**
+     * Convert a vault's existing SharedPreferences file into the destination store.
+     * @see #convert(VaultStore, VaultStore, boolean)
+     */
+    public static boolean convertSharedPreferences(Context context, String prefFileName, VaultStore destination, boolean clearSource) {
+        return convert(new SharedPreferencesVaultStore(context, prefFileName), destination, clearSource);
+    }
+
+    /**
+     * Replace the contents of destination with the contents of source in a single commit.
+     * @param clearSource Remove all values from source once the destination has been committed.
+     * @return True if the destination was committed and, when requested, the source was cleared.
+     */
+    public static boolean convert(VaultStore source, VaultStore destination, boolean clearSource) {
+        Map<String, String> entryMap = source.getAll();
+        VaultStore.Editor editor = destination.edit().clear();
+        for (Map.Entry<String, String> entry : entryMap.entrySet()) {
+            editor.putString(entry.getKey(), entry.getValue());
+        }
+        if (!editor.commit()) return false;
+
+        return !clearSource || source.edit().clear().commit();
+    }
+}